@@ -0,0 +1,26 @@
+package com.gryzorz.fsm.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entry point of benchmarks.jar.<br>
+ * Accepts the usual JMH command line options, but writes the results as JSON into jmh-result.json
+ * unless another result format or file is given, so that runs of different releases can be compared :<br>
+ * <code>java -jar benchmarks/target/benchmarks.jar [JMH options] [benchmark regexp]</code><br>
+ * Useful options : -prof gc to see the allocations per operation, -t to change the number of threads,
+ * -p fanOut=8,64 to restrict a parameter.
+ *
+ * @author Benoit Fernandez
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        List<String> arguments = new ArrayList<String>(Arrays.asList(args));
+        if(!arguments.contains("-rf"))
+            arguments.addAll(Arrays.asList("-rf", "json"));
+        if(!arguments.contains("-rff"))
+            arguments.addAll(Arrays.asList("-rff", "jmh-result.json"));
+        org.openjdk.jmh.Main.main(arguments.toArray(new String[arguments.size()]));
+    }
+}
@@ -0,0 +1,74 @@
+package com.gryzorz.fsm.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.FiniteStateMachine;
+import com.gryzorz.fsm.v2.FiniteStateMachineBroadcaster;
+import com.gryzorz.fsm.v2.FiniteStateMachineBuilder;
+import com.gryzorz.fsm.v2.FiniteStateMachineDefinition;
+import com.gryzorz.fsm.v2.State;
+import com.gryzorz.fsm.v2.TransitionOutcome;
+
+/**
+ * Cost of sending one event to 100 000 machines, of which only reactingCount react to it : the event loops on
+ * their state, the others have no transition for it.<br>
+ * BROADCASTER only reaches the reacting machines through a FiniteStateMachineBroadcaster. LOOP calls
+ * processEventWithOutcome(...) on every machine, which is what had to be done before.
+ *
+ * @author Benoit Fernandez
+ */
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BroadcastBenchmark {
+    private static final int MACHINE_COUNT = 100000;
+
+    @Param({"100", "10000", "100000"})
+    int reactingCount;
+
+    @Param({"BROADCASTER", "LOOP"})
+    String delivery;
+
+    private final Event tick = new Event("tick");
+    private FiniteStateMachine[] machines;
+    private FiniteStateMachineBroadcaster broadcaster;
+
+    @Setup
+    public void setup() throws Exception {
+        State idle = new State("idle");
+        State armed = new State("armed");
+        Event arm = new Event("arm");
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        builder.addTransition(idle, arm, armed);
+        builder.addTransition(armed, tick, armed);
+        FiniteStateMachineDefinition definition = builder.createDefinition(idle);
+        broadcaster = new FiniteStateMachineBroadcaster();
+        machines = new FiniteStateMachine[MACHINE_COUNT];
+        int step = MACHINE_COUNT / reactingCount;
+        for(int i = 0; i < MACHINE_COUNT; i++) {
+            machines[i] = definition.newInstance();
+            if(i % step == 0)
+                machines[i].processEvent(arm);
+            if("BROADCASTER".equals(delivery))
+                broadcaster.register(machines[i]);
+        }
+    }
+
+    @Benchmark
+    public int sendToAll() {
+        if("BROADCASTER".equals(delivery))
+            return broadcaster.broadcast(tick);
+        int taken = 0;
+        for(FiniteStateMachine machine : machines) {
+            if(machine.processEventWithOutcome(tick) != TransitionOutcome.UNEXISTING_TRANSITION)
+                taken++;
+        }
+        return taken;
+    }
+}
@@ -0,0 +1,58 @@
+package com.gryzorz.fsm.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.FiniteStateMachineBuilder;
+import com.gryzorz.fsm.v2.FiniteStateMachineDefinition;
+import com.gryzorz.fsm.v2.FiniteStateMachineException;
+import com.gryzorz.fsm.v2.State;
+
+/**
+ * Time needed to build large graphs with FiniteStateMachineBuilder.addTransition(...), then to compile them,
+ * with or without minimization. Every state of the graphs of Graphs is equivalent to every other one, so
+ * minimization merges them all, after the refinement has checked each of them against each event.
+ *
+ * @author Benoit Fernandez
+ */
+@org.openjdk.jmh.annotations.State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class BuilderBenchmark {
+    @Param({"1000", "10000", "100000"})
+    int stateCount;
+
+    @Param({"4", "64"})
+    int fanOut;
+
+    private State[] states;
+    private Event[] events;
+
+    @Setup
+    public void setup() {
+        states = Graphs.states(stateCount);
+        events = Graphs.events(fanOut);
+    }
+
+    @Benchmark
+    public FiniteStateMachineBuilder addTransition() throws FiniteStateMachineException {
+        return Graphs.builder(states, events);
+    }
+
+    @Benchmark
+    public FiniteStateMachineDefinition addTransitionAndCreateDefinition() throws FiniteStateMachineException {
+        return Graphs.builder(states, events).createDefinition(states[0]);
+    }
+
+    @Benchmark
+    public FiniteStateMachineDefinition addTransitionAndCreateMinimizedDefinition() throws FiniteStateMachineException {
+        FiniteStateMachineBuilder builder = Graphs.builder(states, events);
+        builder.setMinimizationEnabled(true);
+        return builder.createDefinition(states[0]);
+    }
+}
@@ -0,0 +1,72 @@
+package com.gryzorz.fsm.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.FiniteStateMachineBuilder;
+import com.gryzorz.fsm.v2.FiniteStateMachineBulkBuilder;
+import com.gryzorz.fsm.v2.FiniteStateMachineDefinition;
+import com.gryzorz.fsm.v2.FiniteStateMachineDefinitionFile;
+import com.gryzorz.fsm.v2.State;
+
+/**
+ * Time to get the definition of a generated graph of a million transitions ready to use : built with a
+ * FiniteStateMachineBuilder, built with a FiniteStateMachineBulkBuilder, or loaded from the file
+ * FiniteStateMachineDefinitionFile saved it in.
+ *
+ * @author Benoit Fernandez
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+public class BulkBuildBenchmark {
+    private static final int STATE_COUNT = 1 << 17;
+    private static final int EVENT_COUNT = 8;
+
+    private State[] states;
+    private Event[] events;
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        states = Graphs.states(STATE_COUNT);
+        events = Graphs.events(EVENT_COUNT);
+        file = Files.createTempFile("definition", ".fsmd");
+        FiniteStateMachineDefinitionFile.write(bulkBuilder(), file);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public FiniteStateMachineDefinition builder() throws Exception {
+        FiniteStateMachineBuilder builder = Graphs.builder(states, events);
+        return builder.createDefinition(states[0]);
+    }
+
+    @Benchmark
+    public FiniteStateMachineDefinition bulkBuilder() throws Exception {
+        FiniteStateMachineBulkBuilder builder = new FiniteStateMachineBulkBuilder();
+        for(int s = 0; s < STATE_COUNT; s++) {
+            for(int k = 0; k < EVENT_COUNT; k++) {
+                builder.addTransition(states[s], events[k], states[(s + k + 1) % STATE_COUNT]);
+            }
+        }
+        return builder.createDefinition(states[0]);
+    }
+
+    @Benchmark
+    public FiniteStateMachineDefinition file() throws Exception {
+        return FiniteStateMachineDefinitionFile.read(file);
+    }
+}
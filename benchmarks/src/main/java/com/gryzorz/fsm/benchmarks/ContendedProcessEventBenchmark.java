@@ -0,0 +1,74 @@
+package com.gryzorz.fsm.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.gryzorz.fsm.v2.ConcurrencyMode;
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.FiniteStateMachine;
+import com.gryzorz.fsm.v2.FiniteStateMachineBuilder;
+import com.gryzorz.fsm.v2.FiniteStateMachineDefinition;
+import com.gryzorz.fsm.v2.State;
+import com.gryzorz.fsm.v2.TransitionOutcome;
+
+/**
+ * Cost of processEvent(...) when several threads inject events, either all into the same machine (SHARED)
+ * or each into its own machine created from the same definition (PRIVATE).<br>
+ * The number of threads defaults to 4, change it with -t.
+ *
+ * @author Benoit Fernandez
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ContendedProcessEventBenchmark {
+    private static final int STATE_COUNT = 16;
+
+    @org.openjdk.jmh.annotations.State(Scope.Benchmark)
+    public static class Machines {
+        @Param({"8"})
+        int fanOut;
+
+        @Param({"LOCKED", "LOCK_FREE"})
+        ConcurrencyMode concurrencyMode;
+
+        @Param({"SHARED", "PRIVATE"})
+        String contention;
+
+        FiniteStateMachineDefinition definition;
+        FiniteStateMachine shared;
+        Event[] sequence;
+
+        @Setup
+        public void setup() throws Exception {
+            State[] states = Graphs.states(STATE_COUNT);
+            Event[] events = Graphs.events(fanOut);
+            FiniteStateMachineBuilder builder = Graphs.builder(states, events);
+            builder.setConcurrencyMode(concurrencyMode);
+            definition = builder.createDefinition(states[0]);
+            shared = definition.newInstance();
+            sequence = Graphs.sequence(events, new Event[Graphs.SEQUENCE_LENGTH]);
+        }
+    }
+
+    @org.openjdk.jmh.annotations.State(Scope.Thread)
+    public static class Producer {
+        FiniteStateMachine fsm;
+        int index;
+
+        @Setup
+        public void setup(Machines machines) {
+            fsm = "SHARED".equals(machines.contention) ? machines.shared : machines.definition.newInstance();
+            index = (int) Thread.currentThread().getId() * 31; //threads do not inject the same events at the same time
+        }
+    }
+
+    @Benchmark
+    public TransitionOutcome processEvent(Machines machines, Producer producer) {
+        return producer.fsm.processEventWithOutcome(machines.sequence[producer.index++ & (Graphs.SEQUENCE_LENGTH - 1)]);
+    }
+}
@@ -0,0 +1,66 @@
+package com.gryzorz.fsm.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.FiniteStateMachine;
+import com.gryzorz.fsm.v2.FiniteStateMachineBuilder;
+import com.gryzorz.fsm.v2.State;
+import com.gryzorz.fsm.v2.TransitionOutcome;
+
+/**
+ * Cost of one processEvent(...) call on a compiled machine, with the generic transition table or with a
+ * dispatcher generated by FiniteStateMachineBuilder.setDispatcherGenerationEnabled(true).<br>
+ * RANDOM sequences defeat branch prediction, CYCLIC sequences (e0, e1, ..., e0, ...) are fully predictable,
+ * as are most real protocols.
+ *
+ * @author Benoit Fernandez
+ */
+@org.openjdk.jmh.annotations.State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatcherBenchmark {
+    @Param({"2", "8", "16"})
+    int fanOut;
+
+    @Param({"RANDOM", "CYCLIC"})
+    String pattern;
+
+    @Param({"false", "true"})
+    boolean generated;
+
+    private static final int STATE_COUNT = 16;
+
+    private FiniteStateMachine fsm;
+    private Event[] sequence;
+    private int index = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        State[] states = Graphs.states(STATE_COUNT);
+        Event[] events = Graphs.events(fanOut);
+        FiniteStateMachineBuilder builder = Graphs.builder(states, events);
+        builder.setDispatcherGenerationEnabled(generated);
+        fsm = builder.createDefinition(states[0]).newInstance();
+        if(fsm.getDefinition().isDispatcherGenerated() != generated)
+            throw new IllegalStateException("dispatcher generation failed");
+        sequence = new Event[Graphs.SEQUENCE_LENGTH];
+        if("RANDOM".equals(pattern)) {
+            Graphs.sequence(events, sequence);
+        } else {
+            for(int i = 0; i < sequence.length; i++) {
+                sequence[i] = events[i % fanOut];
+            }
+        }
+    }
+
+    @Benchmark
+    public TransitionOutcome processEvent() {
+        return fsm.processEventWithOutcome(sequence[index++ & (Graphs.SEQUENCE_LENGTH - 1)]);
+    }
+}
@@ -0,0 +1,78 @@
+package com.gryzorz.fsm.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.gryzorz.fsm.v2.TransitionOutcome;
+import com.gryzorz.fsm.v2.enums.EnumAdapter;
+import com.gryzorz.fsm.v2.enums.FiniteStateMachine;
+import com.gryzorz.fsm.v2.enums.FiniteStateMachineBuilder;
+
+/**
+ * Cost of one processEvent(...) call on an enum-typed machine, compared with v2 machines built from the
+ * same graph through FiniteStateMachineBuilder.toFiniteStateMachineBuilder(), interpreted and compiled.<br>
+ * The graph is the one of Graphs, on 16 states, with the first fanOut events.
+ *
+ * @author Benoit Fernandez
+ */
+@org.openjdk.jmh.annotations.State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnumBenchmark {
+    public enum BenchmarkState { S0, S1, S2, S3, S4, S5, S6, S7, S8, S9, S10, S11, S12, S13, S14, S15 }
+
+    public enum BenchmarkEvent { E0, E1, E2, E3, E4, E5, E6, E7, E8, E9, E10, E11, E12, E13, E14, E15 }
+
+    @Param({"1", "8", "16"})
+    int fanOut;
+
+    private FiniteStateMachine<BenchmarkState, BenchmarkEvent> fsm;
+    private com.gryzorz.fsm.v2.FiniteStateMachine interpreted;
+    private com.gryzorz.fsm.v2.FiniteStateMachine compiled;
+    private BenchmarkEvent[] sequence;
+    private com.gryzorz.fsm.v2.Event[] adaptedSequence;
+    private int index = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkState[] states = BenchmarkState.values();
+        BenchmarkEvent[] events = new BenchmarkEvent[fanOut];
+        System.arraycopy(BenchmarkEvent.values(), 0, events, 0, fanOut);
+        FiniteStateMachineBuilder<BenchmarkState, BenchmarkEvent> builder =
+                new FiniteStateMachineBuilder<BenchmarkState, BenchmarkEvent>(BenchmarkState.class, BenchmarkEvent.class);
+        for(int s = 0; s < states.length; s++) {
+            for(int k = 0; k < events.length; k++) {
+                builder.addTransition(states[s], events[k], states[(s + k + 1) % states.length]);
+            }
+        }
+        fsm = builder.createFSM(BenchmarkState.S0);
+        EnumAdapter<BenchmarkState, BenchmarkEvent> adapter = builder.getAdapter();
+        interpreted = builder.toFiniteStateMachineBuilder().createFSM(adapter.toState(BenchmarkState.S0));
+        compiled = builder.toFiniteStateMachineBuilder().createDefinition(adapter.toState(BenchmarkState.S0)).newInstance();
+
+        sequence = Graphs.sequence(events, new BenchmarkEvent[Graphs.SEQUENCE_LENGTH]);
+        adaptedSequence = new com.gryzorz.fsm.v2.Event[Graphs.SEQUENCE_LENGTH];
+        for(int i = 0; i < sequence.length; i++) {
+            adaptedSequence[i] = adapter.toEvent(sequence[i]);
+        }
+    }
+
+    @Benchmark
+    public TransitionOutcome enums() {
+        return fsm.processEventWithOutcome(sequence[index++ & (Graphs.SEQUENCE_LENGTH - 1)]);
+    }
+
+    @Benchmark
+    public TransitionOutcome v2Interpreted() {
+        return interpreted.processEventWithOutcome(adaptedSequence[index++ & (Graphs.SEQUENCE_LENGTH - 1)]);
+    }
+
+    @Benchmark
+    public TransitionOutcome v2Compiled() {
+        return compiled.processEventWithOutcome(adaptedSequence[index++ & (Graphs.SEQUENCE_LENGTH - 1)]);
+    }
+}
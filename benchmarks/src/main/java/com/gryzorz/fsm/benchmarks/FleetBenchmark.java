@@ -0,0 +1,76 @@
+package com.gryzorz.fsm.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.FiniteStateMachineDefinition;
+import com.gryzorz.fsm.v2.FiniteStateMachineFleet;
+import com.gryzorz.fsm.v2.State;
+
+/**
+ * Throughput of a FiniteStateMachineFleet depending on its number of shards.<br>
+ * Each operation submits a batch of BATCH events to one million entities then waits for the shards
+ * to process them, so the score multiplied by BATCH is the number of events per time unit.
+ * Run it with as many threads (-t) as shards to feed them : throughput should grow about linearly
+ * with the number of shards, up to the number of cores.
+ *
+ * @author Benoit Fernandez
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FleetBenchmark {
+    static final int BATCH = 65536;
+    private static final int ENTITY_COUNT = 1 << 20;
+
+    @org.openjdk.jmh.annotations.State(Scope.Benchmark)
+    public static class Fleet {
+        @Param({"1", "2", "4", "8", "16"})
+        int shardCount;
+
+        FiniteStateMachineFleet fleet;
+        Event[] events;
+
+        @Setup
+        public void setup() throws Exception {
+            State[] states = Graphs.states(16);
+            events = Graphs.events(8);
+            FiniteStateMachineDefinition definition = Graphs.builder(states, events).createDefinition(states[0]);
+            fleet = new FiniteStateMachineFleet(definition, shardCount, 1 << 16);
+        }
+
+        @TearDown
+        public void tearDown() throws InterruptedException {
+            fleet.close();
+        }
+    }
+
+    @org.openjdk.jmh.annotations.State(Scope.Thread)
+    public static class Producer {
+        long[] entityIds = new long[BATCH];
+        Event[] events = new Event[BATCH];
+        long next;
+
+        @Setup
+        public void setup(Fleet fleet) {
+            next = Thread.currentThread().getId() * 7919;
+            int[] sequence = Graphs.sequence(fleet.events.length);
+            for(int i = 0; i < BATCH; i++) {
+                events[i] = fleet.events[sequence[i & (Graphs.SEQUENCE_LENGTH - 1)]];
+            }
+        }
+    }
+
+    @Benchmark
+    public void submitAll(Fleet fleet, Producer producer) {
+        for(int i = 0; i < BATCH; i++) {
+            producer.entityIds[i] = (producer.next++) & (ENTITY_COUNT - 1);
+        }
+        fleet.fleet.submitAll(producer.entityIds, producer.events, 0, BATCH);
+        fleet.fleet.flush();
+    }
+}
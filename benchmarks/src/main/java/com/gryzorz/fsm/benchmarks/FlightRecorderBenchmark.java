@@ -0,0 +1,76 @@
+package com.gryzorz.fsm.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.FiniteStateMachine;
+import com.gryzorz.fsm.v2.FiniteStateMachineBuilder;
+import com.gryzorz.fsm.v2.FiniteStateMachineClock;
+import com.gryzorz.fsm.v2.FiniteStateMachineFlightRecorder;
+import com.gryzorz.fsm.v2.State;
+import com.gryzorz.fsm.v2.TransitionOutcome;
+
+/**
+ * Overhead of FiniteStateMachineFlightRecorder on processEvent(...), with several threads driving their own
+ * instance of a shared definition (-t to change their number) : NONE without recorder, PER_MACHINE with a recorder
+ * per instance, SHARED with one recorder for all of them. The recorders sample JFR events, no recording being
+ * started, as they would stay in production.
+ *
+ * @author Benoit Fernandez
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class FlightRecorderBenchmark {
+    private static final int CAPACITY = 1024;
+    private static final int JFR_SAMPLING_INTERVAL = 100;
+
+    @org.openjdk.jmh.annotations.State(Scope.Benchmark)
+    public static class Definition {
+        @Param({"NONE", "PER_MACHINE", "SHARED"})
+        String recorder;
+
+        FiniteStateMachineBuilder builder;
+        FiniteStateMachineFlightRecorder shared;
+        State[] states;
+        Event[] sequence;
+
+        @Setup
+        public void setup() throws Exception {
+            states = Graphs.states(16);
+            Event[] events = Graphs.events(8);
+            builder = Graphs.builder(states, events);
+            shared = _recorder();
+            sequence = Graphs.sequence(events, new Event[Graphs.SEQUENCE_LENGTH]);
+        }
+    }
+
+    @org.openjdk.jmh.annotations.State(Scope.Thread)
+    public static class Instance {
+        FiniteStateMachine fsm;
+        int index;
+
+        @Setup
+        public void setup(Definition definition) throws Exception {
+            fsm = definition.builder.createDefinition(definition.states[0]).newInstance();
+            if("PER_MACHINE".equals(definition.recorder))
+                _recorder().attach(fsm);
+            else if("SHARED".equals(definition.recorder))
+                definition.shared.attach(fsm);
+        }
+    }
+
+    private static FiniteStateMachineFlightRecorder _recorder() {
+        return new FiniteStateMachineFlightRecorder(FiniteStateMachineClock.SYSTEM, CAPACITY, JFR_SAMPLING_INTERVAL);
+    }
+
+    @Benchmark
+    public TransitionOutcome processEvent(Definition definition, Instance instance) {
+        return instance.fsm.processEventWithOutcome(definition.sequence[instance.index++ & (Graphs.SEQUENCE_LENGTH - 1)]);
+    }
+}
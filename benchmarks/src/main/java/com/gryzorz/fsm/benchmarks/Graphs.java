@@ -0,0 +1,69 @@
+package com.gryzorz.fsm.benchmarks;
+
+import java.util.Random;
+
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.FiniteStateMachineBuilder;
+import com.gryzorz.fsm.v2.FiniteStateMachineException;
+import com.gryzorz.fsm.v2.State;
+
+/**
+ * Builds the graphs the benchmarks run on.<br>
+ * Every state reacts to the same fanOut events : event k leads from state s to state (s + k + 1) % stateCount,
+ * so any sequence of these events is accepted, and an interpreted machine scans fanOut / 2 transitions
+ * on average to find the right one.
+ *
+ * @author Benoit Fernandez
+ */
+final class Graphs {
+    /** length of the pre-generated event sequences, a power of 2 */
+    static final int SEQUENCE_LENGTH = 4096;
+
+    private Graphs() {}
+
+    static State[] states(int count) {
+        State[] states = new State[count];
+        for(int i = 0; i < count; i++) {
+            states[i] = new State("s" + i);
+        }
+        return states;
+    }
+
+    static Event[] events(int count) {
+        Event[] events = new Event[count];
+        for(int i = 0; i < count; i++) {
+            events[i] = new Event("e" + i);
+        }
+        return events;
+    }
+
+    static FiniteStateMachineBuilder builder(State[] states, Event[] events) throws FiniteStateMachineException {
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        for(int s = 0; s < states.length; s++) {
+            for(int k = 0; k < events.length; k++) {
+                builder.addTransition(states[s], events[k], states[(s + k + 1) % states.length]);
+            }
+        }
+        return builder;
+    }
+
+    /**
+     * @return SEQUENCE_LENGTH indexes in [0, eventCount), always the same for a given eventCount
+     */
+    static int[] sequence(int eventCount) {
+        Random random = new Random(42);
+        int[] sequence = new int[SEQUENCE_LENGTH];
+        for(int i = 0; i < sequence.length; i++) {
+            sequence[i] = random.nextInt(eventCount);
+        }
+        return sequence;
+    }
+
+    static <T> T[] sequence(T[] elements, T[] sequence) {
+        int[] indexes = sequence(elements.length);
+        for(int i = 0; i < indexes.length; i++) {
+            sequence[i] = elements[indexes[i]];
+        }
+        return sequence;
+    }
+}
@@ -0,0 +1,76 @@
+package com.gryzorz.fsm.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.gryzorz.fsm.v2.ConcurrencyMode;
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.FiniteStateMachine;
+import com.gryzorz.fsm.v2.FiniteStateMachineBuilder;
+import com.gryzorz.fsm.v2.FiniteStateMachineDefinition;
+import com.gryzorz.fsm.v2.State;
+import com.gryzorz.fsm.v2.TransitionOutcome;
+
+/**
+ * Cost of moving a population of instances to the next version of their definition, see
+ * FiniteStateMachineDefinition.publishSuccessor(...).<br>
+ * STEADY processes one event on each instance of a definition that has no successor, SWAPPED on each instance of a
+ * definition whose successor was just published : every instance then moves to the next version before processing
+ * its event. The difference is the cost of the moves, paid once by each instance on its next event.
+ *
+ * @author Benoit Fernandez
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+public class HotSwapBenchmark {
+    private static final int INSTANCE_COUNT = 1 << 17;
+
+    @Param({"LOCKED", "LOCK_FREE"})
+    ConcurrencyMode concurrencyMode;
+
+    @Param({"STEADY", "SWAPPED"})
+    String scenario;
+
+    private State[] states;
+    private Event[] events;
+    private final FiniteStateMachine[] instances = new FiniteStateMachine[INSTANCE_COUNT];
+    private final Event[] sequence = new Event[Graphs.SEQUENCE_LENGTH];
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        states = Graphs.states(16);
+        events = Graphs.events(8);
+        Graphs.sequence(events, sequence);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() throws Exception {
+        FiniteStateMachineDefinition definition = _builder().createDefinition(states[0]);
+        for(int i = 0; i < INSTANCE_COUNT; i++) {
+            instances[i] = definition.newInstance();
+        }
+        if("SWAPPED".equals(scenario))
+            definition.publishSuccessor(_builder(), states[0], null);
+    }
+
+    private FiniteStateMachineBuilder _builder() throws Exception {
+        FiniteStateMachineBuilder builder = Graphs.builder(states, events);
+        builder.setConcurrencyMode(concurrencyMode);
+        return builder;
+    }
+
+    @Benchmark
+    public int processEvent() {
+        int changed = 0;
+        for(int i = 0; i < INSTANCE_COUNT; i++) {
+            if(instances[i].processEventWithOutcome(sequence[i & (Graphs.SEQUENCE_LENGTH - 1)]) == TransitionOutcome.STATE_CHANGED)
+                changed++;
+        }
+        return changed;
+    }
+}
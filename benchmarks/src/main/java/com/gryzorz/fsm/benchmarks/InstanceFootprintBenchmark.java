@@ -0,0 +1,48 @@
+package com.gryzorz.fsm.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.FiniteStateMachine;
+import com.gryzorz.fsm.v2.FiniteStateMachineDefinition;
+import com.gryzorz.fsm.v2.FiniteStateMachineException;
+import com.gryzorz.fsm.v2.State;
+
+/**
+ * Memory cost of a FiniteStateMachine created from a shared FiniteStateMachineDefinition, compared to one
+ * created by its own builder.<br>
+ * Run it with -prof gc : gc.alloc.rate.norm of newInstance() is the size of an instance, 40 bytes with
+ * compressed oops as documented by FiniteStateMachineDefinition. AllocationTest checks it at each build.
+ *
+ * @author Benoit Fernandez
+ */
+@org.openjdk.jmh.annotations.State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InstanceFootprintBenchmark {
+    private FiniteStateMachineDefinition definition;
+    private State[] states;
+    private Event[] events;
+
+    @Setup
+    public void setup() throws Exception {
+        states = Graphs.states(8);
+        events = Graphs.events(4);
+        definition = Graphs.builder(states, events).createDefinition(states[0]);
+    }
+
+    @Benchmark
+    public FiniteStateMachine newInstance() {
+        return definition.newInstance();
+    }
+
+    @Benchmark
+    public FiniteStateMachine ownBuilder() throws FiniteStateMachineException {
+        return Graphs.builder(states, events).createFSM(states[0]);
+    }
+}
@@ -0,0 +1,118 @@
+package com.gryzorz.fsm.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.FiniteStateMachine;
+import com.gryzorz.fsm.v2.FiniteStateMachineDefinition;
+import com.gryzorz.fsm.v2.FiniteStateMachineJournal;
+import com.gryzorz.fsm.v2.FiniteStateMachineJournalReader;
+import com.gryzorz.fsm.v2.State;
+
+/**
+ * Cost of journaling with FiniteStateMachineJournal, and speed of rebuilding states from a journal.<br>
+ * durableProcessEvent only returns once the transition is on disk : run it with more threads (-t) to see
+ * them share syncs, the score should grow with the number of threads while a sync per event would not.
+ * replay rebuilds the states of 65536 machines from REPLAYED_RECORDS records.
+ *
+ * @author Benoit Fernandez
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JournalBenchmark {
+    private static final int REPLAYED_RECORDS = 1 << 22;
+    private static final int MACHINE_COUNT = 1 << 16;
+
+    static void delete(Path directory) throws IOException {
+        try(Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @org.openjdk.jmh.annotations.State(Scope.Benchmark)
+    public static class Journal {
+        final State[] states = Graphs.states(16);
+        final Event[] events = Graphs.events(8);
+        FiniteStateMachineDefinition definition;
+        FiniteStateMachineJournal journal;
+        Path directory;
+        final AtomicLong machineIds = new AtomicLong();
+
+        @Setup
+        public void setup() throws Exception {
+            definition = Graphs.builder(states, events).createDefinition(states[0]);
+            directory = Files.createTempDirectory("fsm-journal");
+            journal = new FiniteStateMachineJournal(directory, definition, 1 << 16, true);
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            journal.close();
+            delete(directory);
+        }
+    }
+
+    @org.openjdk.jmh.annotations.State(Scope.Thread)
+    public static class Machine {
+        FiniteStateMachine fsm;
+        Event[] sequence;
+        int position = 0;
+
+        @Setup
+        public void setup(Journal journal) throws Exception {
+            fsm = journal.definition.newInstance();
+            journal.journal.attach(journal.machineIds.getAndIncrement(), fsm);
+            sequence = Graphs.sequence(journal.events, new Event[Graphs.SEQUENCE_LENGTH]);
+        }
+    }
+
+    @org.openjdk.jmh.annotations.State(Scope.Benchmark)
+    public static class Written {
+        FiniteStateMachineDefinition definition;
+        Path directory;
+
+        @Setup
+        public void setup() throws Exception {
+            State[] states = Graphs.states(16);
+            Event[] events = Graphs.events(8);
+            definition = Graphs.builder(states, events).createDefinition(states[0]);
+            directory = Files.createTempDirectory("fsm-journal");
+            try(FiniteStateMachineJournal journal = new FiniteStateMachineJournal(directory, definition, 1 << 20, false)) {
+                for(int i = 0; i < REPLAYED_RECORDS; i++) {
+                    journal.append(i & (MACHINE_COUNT - 1), events[0], states[(i >>> 16) & (states.length - 1)]);
+                }
+            }
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            delete(directory);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public State durableProcessEvent(Machine machine) throws Exception {
+        machine.fsm.processEvent(machine.sequence[machine.position++ & (Graphs.SEQUENCE_LENGTH - 1)]);
+        return machine.fsm.getState();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    public int replay(Written written) throws Exception {
+        return new FiniteStateMachineJournalReader(written.directory, written.definition).replay().size();
+    }
+}
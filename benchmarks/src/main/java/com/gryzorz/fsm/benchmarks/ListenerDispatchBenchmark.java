@@ -0,0 +1,73 @@
+package com.gryzorz.fsm.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.gryzorz.fsm.v2.DefaultFiniteStateMachineListener;
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.FiniteStateMachine;
+import com.gryzorz.fsm.v2.FiniteStateMachineSubscription;
+import com.gryzorz.fsm.v2.State;
+import com.gryzorz.fsm.v2.TransitionOutcome;
+
+/**
+ * Cost of notifying listeners that each only care about one event, on a compiled machine of 64 states and
+ * 16 events.<br>
+ * SUBSCRIPTION registers each listener with a subscription on its event : only the listeners of the event
+ * processed are called. FILTER_IN_LISTENER registers them for everything, and each one compares the event
+ * itself, which is what listeners had to do before subscriptions.
+ *
+ * @author Benoit Fernandez
+ */
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ListenerDispatchBenchmark {
+    private static final int STATE_COUNT = 64;
+    private static final int EVENT_COUNT = 16;
+
+    @Param({"16", "256"})
+    int listenerCount;
+
+    @Param({"SUBSCRIPTION", "FILTER_IN_LISTENER"})
+    String registration;
+
+    private FiniteStateMachine machine;
+    private final Event[] sequence = new Event[Graphs.SEQUENCE_LENGTH];
+    private int cursor = 0;
+    long calls;
+
+    @Setup
+    public void setup() throws Exception {
+        State[] states = Graphs.states(STATE_COUNT);
+        Event[] events = Graphs.events(EVENT_COUNT);
+        machine = Graphs.builder(states, events).createCompiledFSM(states[0]);
+        for(int i = 0; i < listenerCount; i++) {
+            final Event event = events[i % EVENT_COUNT];
+            if("SUBSCRIPTION".equals(registration)) {
+                machine.addListener(new DefaultFiniteStateMachineListener() {
+                    public void stateChanged(State from, Event e, State to) {
+                        calls++;
+                    }
+                }, new FiniteStateMachineSubscription(null, event, null, TransitionOutcome.STATE_CHANGED));
+            } else {
+                machine.addListener(new DefaultFiniteStateMachineListener() {
+                    public void stateChanged(State from, Event e, State to) {
+                        if(e == event)
+                            calls++;
+                    }
+                });
+            }
+        }
+        Graphs.sequence(events, sequence);
+    }
+
+    @Benchmark
+    public Object processEvent() {
+        return machine.processEventWithOutcome(sequence[cursor++ & (Graphs.SEQUENCE_LENGTH - 1)]);
+    }
+}
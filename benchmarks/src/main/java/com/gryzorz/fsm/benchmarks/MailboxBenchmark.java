@@ -0,0 +1,64 @@
+package com.gryzorz.fsm.benchmarks;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.FiniteStateMachineDefinition;
+import com.gryzorz.fsm.v2.FiniteStateMachineMailbox;
+import com.gryzorz.fsm.v2.State;
+
+/**
+ * Stress test of FiniteStateMachineMailbox : up to a million machines, each with its own mailbox, all
+ * drained by the default executor. Each operation submits EVENTS_PER_MACHINE events to every machine, then
+ * waits for all their outcomes.<br>
+ * The forked JVM traces virtual threads blocking while pinned to their carrier : running this benchmark on
+ * a JVM that has virtual threads must not print any stack trace.
+ *
+ * @author Benoit Fernandez
+ */
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g", "-Djdk.tracePinnedThreads=full"})
+public class MailboxBenchmark {
+    private static final int STATE_COUNT = 16;
+    private static final int FAN_OUT = 4;
+    private static final int EVENTS_PER_MACHINE = 4;
+
+    @Param({"1000", "1000000"})
+    int machineCount;
+
+    private FiniteStateMachineMailbox[] mailboxes;
+    private Event[] sequence;
+    private CompletableFuture<?>[] outcomes;
+
+    @Setup
+    public void setup() throws Exception {
+        State[] states = Graphs.states(STATE_COUNT);
+        Event[] events = Graphs.events(FAN_OUT);
+        FiniteStateMachineDefinition definition = Graphs.builder(states, events).createDefinition(states[0]);
+        sequence = Graphs.sequence(events, new Event[Graphs.SEQUENCE_LENGTH]);
+        mailboxes = new FiniteStateMachineMailbox[machineCount];
+        for(int i = 0; i < machineCount; i++) {
+            mailboxes[i] = new FiniteStateMachineMailbox(definition.newInstance());
+        }
+        outcomes = new CompletableFuture<?>[machineCount];
+    }
+
+    @Benchmark
+    public Object submitToEveryMachine() throws Exception {
+        FiniteStateMachineMailbox[] mailboxes = this.mailboxes;
+        int next = 0;
+        for(int round = 0; round < EVENTS_PER_MACHINE; round++) {
+            for(int i = 0; i < mailboxes.length; i++) {
+                outcomes[i] = mailboxes[i].submit(sequence[next++ & (Graphs.SEQUENCE_LENGTH - 1)]);
+            }
+        }
+        return CompletableFuture.allOf(outcomes).get();
+    }
+}
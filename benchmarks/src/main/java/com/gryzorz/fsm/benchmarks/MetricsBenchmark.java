@@ -0,0 +1,61 @@
+package com.gryzorz.fsm.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.FiniteStateMachine;
+import com.gryzorz.fsm.v2.FiniteStateMachineBuilder;
+import com.gryzorz.fsm.v2.State;
+import com.gryzorz.fsm.v2.TransitionOutcome;
+
+/**
+ * Overhead of FiniteStateMachineMetrics on processEvent(...), with several threads driving their own
+ * instance of a shared definition (-t to change their number).
+ *
+ * @author Benoit Fernandez
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class MetricsBenchmark {
+
+    @org.openjdk.jmh.annotations.State(Scope.Benchmark)
+    public static class Definition {
+        @Param({"false", "true"})
+        boolean metricsEnabled;
+
+        FiniteStateMachineBuilder builder;
+        State[] states;
+        Event[] sequence;
+
+        @Setup
+        public void setup() throws Exception {
+            states = Graphs.states(16);
+            Event[] events = Graphs.events(8);
+            builder = Graphs.builder(states, events);
+            builder.setMetricsEnabled(metricsEnabled);
+            sequence = Graphs.sequence(events, new Event[Graphs.SEQUENCE_LENGTH]);
+        }
+    }
+
+    @org.openjdk.jmh.annotations.State(Scope.Thread)
+    public static class Instance {
+        FiniteStateMachine fsm;
+        int index;
+
+        @Setup
+        public void setup(Definition definition) throws Exception {
+            fsm = definition.builder.createDefinition(definition.states[0]).newInstance();
+        }
+    }
+
+    @Benchmark
+    public TransitionOutcome processEvent(Definition definition, Instance instance) {
+        return instance.fsm.processEventWithOutcome(definition.sequence[instance.index++ & (Graphs.SEQUENCE_LENGTH - 1)]);
+    }
+}
@@ -0,0 +1,74 @@
+package com.gryzorz.fsm.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.FiniteStateMachine;
+import com.gryzorz.fsm.v2.FiniteStateMachineBuilder;
+import com.gryzorz.fsm.v2.State;
+import com.gryzorz.fsm.v2.TransitionOutcome;
+
+/**
+ * Cost of an event for the language "the k-th symbol from the end is an a", the usual case where determinizing
+ * blows up : the nondeterministic machine has k + 1 states, the deterministic one 2^k, one per combination of the
+ * last k symbols.<br>
+ * NFA runs the nondeterministic machine of package nfa, DFA the equivalent compiled deterministic machine, on the
+ * same random sequence of a and b. About k / 2 states are active at a time in the NFA.
+ *
+ * @author Benoit Fernandez
+ */
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NondeterministicBenchmark {
+    @Param({"8", "16"})
+    int k;
+
+    private final Event a = new Event("a");
+    private final Event b = new Event("b");
+    private com.gryzorz.fsm.v2.nfa.FiniteStateMachine nfa;
+    private FiniteStateMachine dfa;
+    private final Event[] sequence = new Event[Graphs.SEQUENCE_LENGTH];
+    private int cursor = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        State[] states = Graphs.states(k + 1);
+        com.gryzorz.fsm.v2.nfa.FiniteStateMachineBuilder nfaBuilder = new com.gryzorz.fsm.v2.nfa.FiniteStateMachineBuilder();
+        nfaBuilder.addTransition(states[0], a, states[0]);
+        nfaBuilder.addTransition(states[0], b, states[0]);
+        nfaBuilder.addTransition(states[0], a, states[1]);
+        for(int i = 1; i < k; i++) {
+            nfaBuilder.addTransition(states[i], a, states[i + 1]);
+            nfaBuilder.addTransition(states[i], b, states[i + 1]);
+        }
+        nfa = nfaBuilder.createFSM(states[0]);
+
+        //state i of the deterministic machine : bit j is set if the j-th last symbol was an a
+        int mask = (1 << k) - 1;
+        State[] combinations = Graphs.states(1 << k);
+        FiniteStateMachineBuilder dfaBuilder = new FiniteStateMachineBuilder();
+        for(int i = 0; i <= mask; i++) {
+            dfaBuilder.addTransition(combinations[i], a, combinations[((i << 1) | 1) & mask]);
+            dfaBuilder.addTransition(combinations[i], b, combinations[(i << 1) & mask]);
+        }
+        dfa = dfaBuilder.createCompiledFSM(combinations[0]);
+
+        Graphs.sequence(new Event[] {a, b}, sequence);
+    }
+
+    @Benchmark
+    public TransitionOutcome nfa() {
+        return nfa.processEventWithOutcome(sequence[cursor++ & (Graphs.SEQUENCE_LENGTH - 1)]);
+    }
+
+    @Benchmark
+    public TransitionOutcome dfa() {
+        return dfa.processEventWithOutcome(sequence[cursor++ & (Graphs.SEQUENCE_LENGTH - 1)]);
+    }
+}
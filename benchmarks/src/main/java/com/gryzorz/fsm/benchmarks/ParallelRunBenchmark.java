@@ -0,0 +1,74 @@
+package com.gryzorz.fsm.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.gryzorz.fsm.v2.BatchResult;
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.FiniteStateMachineBuilder;
+import com.gryzorz.fsm.v2.FiniteStateMachineDefinition;
+import com.gryzorz.fsm.v2.FiniteStateMachineParallelRun;
+import com.gryzorz.fsm.v2.State;
+
+/**
+ * Time needed to run 16M events through one machine : sequentially with processEvents(...), or with
+ * FiniteStateMachineDefinition.runInParallel(...) in the common ForkJoinPool.<br>
+ * RANDOM sends each state to a random state for each event, so the candidate start states of a chunk
+ * converge within a few events. RING is the graph of Graphs, a permutation of the states that never
+ * converges : every chunk gives up, and is run again sequentially.
+ *
+ * @author Benoit Fernandez
+ */
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ParallelRunBenchmark {
+    private static final int EVENT_COUNT = 16 << 20;
+    private static final int STATE_COUNT = 64;
+    private static final int FAN_OUT = 8;
+
+    @Param({"RANDOM", "RING"})
+    String graph;
+
+    private FiniteStateMachineDefinition definition;
+    private Event[] sequence;
+
+    @Setup
+    public void setup() throws Exception {
+        State[] states = Graphs.states(STATE_COUNT);
+        Event[] events = Graphs.events(FAN_OUT);
+        FiniteStateMachineBuilder builder;
+        if("RING".equals(graph)) {
+            builder = Graphs.builder(states, events);
+        } else {
+            Random random = new Random(42);
+            builder = new FiniteStateMachineBuilder();
+            for(int s = 0; s < states.length; s++) {
+                for(int k = 0; k < events.length; k++) {
+                    builder.addTransition(states[s], events[k], states[random.nextInt(states.length)]);
+                }
+            }
+        }
+        definition = builder.createDefinition(states[0]);
+        Event[] pattern = Graphs.sequence(events, new Event[Graphs.SEQUENCE_LENGTH]);
+        sequence = new Event[EVENT_COUNT];
+        for(int i = 0; i < EVENT_COUNT; i += Graphs.SEQUENCE_LENGTH) {
+            System.arraycopy(pattern, 0, sequence, i, Graphs.SEQUENCE_LENGTH);
+        }
+    }
+
+    @Benchmark
+    public BatchResult sequential() {
+        return definition.newInstance().processEvents(sequence);
+    }
+
+    @Benchmark
+    public FiniteStateMachineParallelRun parallel() throws Exception {
+        return definition.runInParallel(definition.getInitialState(), sequence);
+    }
+}
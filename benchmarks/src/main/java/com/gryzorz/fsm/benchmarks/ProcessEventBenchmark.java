@@ -0,0 +1,113 @@
+package com.gryzorz.fsm.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.gryzorz.fsm.v2.ConcurrencyMode;
+import com.gryzorz.fsm.v2.DefaultFiniteStateMachineListener;
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.FiniteStateMachine;
+import com.gryzorz.fsm.v2.FiniteStateMachineBuilder;
+import com.gryzorz.fsm.v2.State;
+import com.gryzorz.fsm.v2.TransitionNotAllowedException;
+import com.gryzorz.fsm.v2.TransitionOutcome;
+
+/**
+ * Cost of one processEvent(...) call on a single thread, for v1, v2 interpreted, v2 compiled and v2 lock-free,
+ * depending on the number of events each state reacts to and on the number of listeners.
+ *
+ * @author Benoit Fernandez
+ */
+@org.openjdk.jmh.annotations.State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessEventBenchmark {
+    @Param({"1", "8", "64", "512"})
+    int fanOut;
+
+    @Param({"0", "1", "4"})
+    int listenerCount;
+
+    @Param({"INTERPRETED", "COMPILED", "LOCK_FREE"})
+    String mode;
+
+    private static final int STATE_COUNT = 16;
+
+    private FiniteStateMachine fsm;
+    private Event[] sequence;
+    private com.gryzorz.fsm.v1.FiniteStateMachine fsmV1;
+    private com.gryzorz.fsm.v1.Event[] sequenceV1;
+    private int index = 0;
+
+    @Setup
+    public void setup(final Blackhole blackhole) throws Exception {
+        State[] states = Graphs.states(STATE_COUNT);
+        Event[] events = Graphs.events(fanOut);
+        FiniteStateMachineBuilder builder = Graphs.builder(states, events);
+        if("INTERPRETED".equals(mode)) {
+            fsm = builder.createFSM(states[0]);
+        } else {
+            builder.setConcurrencyMode(ConcurrencyMode.valueOf("COMPILED".equals(mode) ? "LOCKED" : mode));
+            fsm = builder.createDefinition(states[0]).newInstance();
+        }
+        for(int i = 0; i < listenerCount; i++) {
+            fsm.addListener(new DefaultFiniteStateMachineListener() {
+                @Override
+                public void stateChanged(State from, Event event, State to) {
+                    blackhole.consume(to);
+                }
+            });
+        }
+        sequence = Graphs.sequence(events, new Event[Graphs.SEQUENCE_LENGTH]);
+
+        V1Builder builderV1 = new V1Builder(STATE_COUNT, fanOut);
+        fsmV1 = builderV1.fsm;
+        sequenceV1 = Graphs.sequence(builderV1.events, new com.gryzorz.fsm.v1.Event[Graphs.SEQUENCE_LENGTH]);
+    }
+
+    @Benchmark
+    public TransitionOutcome v2() {
+        return fsm.processEventWithOutcome(sequence[index++ & (Graphs.SEQUENCE_LENGTH - 1)]);
+    }
+
+    @Benchmark
+    public void v2Throwing() throws TransitionNotAllowedException {
+        fsm.processEvent(sequence[index++ & (Graphs.SEQUENCE_LENGTH - 1)]);
+    }
+
+    @Benchmark
+    public com.gryzorz.fsm.v1.State v1() {
+        fsmV1.processEvent(sequenceV1[index++ & (Graphs.SEQUENCE_LENGTH - 1)]);
+        return fsmV1.getState();
+    }
+
+    /**
+     * The v1 builder only exposes its methods to subclasses.
+     */
+    static class V1Builder extends com.gryzorz.fsm.v1.FiniteStateMachineBuilder {
+        final com.gryzorz.fsm.v1.Event[] events;
+        final com.gryzorz.fsm.v1.FiniteStateMachine fsm;
+
+        V1Builder(int stateCount, int fanOut) throws com.gryzorz.fsm.v1.FiniteStateMachineException {
+            com.gryzorz.fsm.v1.State[] states = new com.gryzorz.fsm.v1.State[stateCount];
+            for(int i = 0; i < stateCount; i++) {
+                states[i] = new com.gryzorz.fsm.v1.State();
+            }
+            events = new com.gryzorz.fsm.v1.Event[fanOut];
+            for(int i = 0; i < fanOut; i++) {
+                events[i] = new com.gryzorz.fsm.v1.Event();
+            }
+            for(int s = 0; s < stateCount; s++) {
+                for(int k = 0; k < fanOut; k++) {
+                    addTransition(states[s], events[k], states[(s + k + 1) % stateCount]);
+                }
+            }
+            fsm = createFSM(states[0]);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.gryzorz.fsm.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.FiniteStateMachineBuilder;
+import com.gryzorz.fsm.v2.FiniteStateMachineRecognizer;
+import com.gryzorz.fsm.v2.State;
+
+/**
+ * Throughput of a FiniteStateMachineRecognizer over 64 MB of synthetic log lines, in bytes (or chars)
+ * per microsecond, that is MB/s, from a heap buffer, a direct buffer, a memory mapped file and a String.<br>
+ * ERROR looks for the rare word "ERROR", NUMBER matches every digit of every number, about one symbol
+ * out of four : both only count the matches.
+ *
+ * @author Benoit Fernandez
+ */
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class RecognizerBenchmark {
+    private static final int SIZE = 64 << 20;
+
+    @Param({"ERROR", "NUMBER"})
+    String pattern;
+
+    private FiniteStateMachineRecognizer recognizer;
+    private ByteBuffer heap;
+    private ByteBuffer direct;
+    private String text;
+    private Path file;
+
+    @Setup
+    public void setup() throws Exception {
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        Event[] symbols = new Event[256];
+        State initial = new State("initial");
+        State accept;
+        if("ERROR".equals(pattern)) {
+            String word = "ERROR";
+            State from = initial;
+            accept = null;
+            for(int i = 0; i < word.length(); i++) {
+                char letter = word.charAt(i);
+                if(symbols[letter] == null)
+                    symbols[letter] = new Event(String.valueOf(letter));
+                State to = new State(word.substring(0, i + 1));
+                builder.addTransition(from, symbols[letter], to);
+                from = accept = to;
+            }
+        } else {
+            Event digit = new Event("digit");
+            for(char c = '0'; c <= '9'; c++) {
+                symbols[c] = digit;
+            }
+            accept = new State("number");
+            builder.addTransition(initial, digit, accept);
+            builder.addTransition(accept, digit, accept);
+        }
+        recognizer = builder.createDefinition(initial).newRecognizer(symbols, accept);
+
+        byte[] bytes = _logLines();
+        heap = ByteBuffer.wrap(bytes);
+        direct = ByteBuffer.allocateDirect(SIZE).put(bytes).flip();
+        text = new String(bytes, StandardCharsets.ISO_8859_1);
+        file = Files.createTempFile("recognizer", ".log");
+        Files.write(file, bytes);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private static byte[] _logLines() {
+        String[] levels = {"INFO ", "INFO ", "INFO ", "DEBUG", "WARN ", "INFO ", "DEBUG", "ERROR"};
+        Random random = new Random(42);
+        StringBuilder lines = new StringBuilder(SIZE + 128);
+        while(lines.length() < SIZE) {
+            lines.append("2024-03-").append(10 + random.nextInt(20)).append(" 12:").append(10 + random.nextInt(50))
+                 .append(':').append(10 + random.nextInt(50)).append(' ').append(levels[random.nextInt(levels.length)])
+                 .append(" request ").append(random.nextInt(1000000)).append(" served in ").append(random.nextInt(500))
+                 .append(" ms by worker-").append(random.nextInt(64)).append('\n');
+        }
+        lines.setLength(SIZE);
+        return lines.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public long heapBuffer() {
+        return recognizer.scan(heap, null);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public long directBuffer() {
+        return recognizer.scan(direct, null);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public long mappedFile() throws IOException {
+        return recognizer.scan(file, null);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public long charSequence() {
+        return recognizer.scan(text, null);
+    }
+}
@@ -0,0 +1,64 @@
+package com.gryzorz.fsm.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.gryzorz.fsm.v2.DefaultFiniteStateMachineListener;
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.FiniteStateMachine;
+import com.gryzorz.fsm.v2.FiniteStateMachineBuilder;
+import com.gryzorz.fsm.v2.State;
+import com.gryzorz.fsm.v2.TransitionNotAllowedException;
+import com.gryzorz.fsm.v2.TransitionOutcome;
+
+/**
+ * Cost of an event for which no transition exists, through the 3 ways of injecting it.<br>
+ * Run it with -prof gc : processEventWithOutcome(...) and processEventWithoutErrorNotification(...) must
+ * show a gc.alloc.rate.norm of 0 bytes per operation, only processEvent(...) allocates its exception.
+ * AllocationTest checks it at each build.
+ *
+ * @author Benoit Fernandez
+ */
+@org.openjdk.jmh.annotations.State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RejectedEventBenchmark {
+    @Param({"true", "false"})
+    boolean compiled;
+
+    private FiniteStateMachine fsm;
+    private Event unexpected;
+
+    @Setup
+    public void setup() throws Exception {
+        State[] states = Graphs.states(4);
+        FiniteStateMachineBuilder builder = Graphs.builder(states, Graphs.events(4));
+        fsm = compiled ? builder.createDefinition(states[0]).newInstance() : builder.createFSM(states[0]);
+        fsm.addListener(new DefaultFiniteStateMachineListener() {});
+        unexpected = new Event("unexpected");
+    }
+
+    @Benchmark
+    public TransitionNotAllowedException processEvent() {
+        try {
+            fsm.processEvent(unexpected);
+            return null;
+        } catch(TransitionNotAllowedException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public void processEventWithoutErrorNotification() {
+        fsm.processEventWithoutErrorNotification(unexpected);
+    }
+
+    @Benchmark
+    public TransitionOutcome processEventWithOutcome() {
+        return fsm.processEventWithOutcome(unexpected);
+    }
+}
@@ -0,0 +1,102 @@
+package com.gryzorz.fsm.benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.FiniteStateMachine;
+import com.gryzorz.fsm.v2.FiniteStateMachineDefinition;
+import com.gryzorz.fsm.v2.FiniteStateMachineFleet;
+import com.gryzorz.fsm.v2.FiniteStateMachineSnapshotReader;
+import com.gryzorz.fsm.v2.FiniteStateMachineSnapshotWriter;
+import com.gryzorz.fsm.v2.State;
+
+/**
+ * Time to save and to restore the states of one million entities with FiniteStateMachineSnapshotWriter
+ * and FiniteStateMachineSnapshotReader, compared to replaying the events that led to those states.<br>
+ * Each entity received REPLAYED_EVENTS events, so replay grows with history while restore does not.
+ *
+ * @author Benoit Fernandez
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+public class SnapshotBenchmark {
+    private static final int ENTITY_COUNT = 1 << 20;
+    private static final int REPLAYED_EVENTS = 16;
+
+    FiniteStateMachineDefinition definition;
+    FiniteStateMachineFleet source;
+    Event[] sequence;
+    Path file;
+
+    @Setup
+    public void setup() throws Exception {
+        State[] states = Graphs.states(16);
+        Event[] events = Graphs.events(8);
+        definition = Graphs.builder(states, events).createDefinition(states[0]);
+        sequence = Graphs.sequence(events, new Event[Graphs.SEQUENCE_LENGTH]);
+        source = new FiniteStateMachineFleet(definition, 1, 1 << 16);
+        _replay(source);
+        file = Files.createTempFile("fsm-snapshot", ".bin");
+        try(FiniteStateMachineSnapshotWriter writer = new FiniteStateMachineSnapshotWriter(file, definition)) {
+            writer.writeAll(source);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        source.close();
+        Files.deleteIfExists(file);
+    }
+
+    private void _replay(FiniteStateMachineFleet fleet) {
+        int position = 0;
+        for(int round = 0; round < REPLAYED_EVENTS; round++) {
+            position++; //ENTITY_COUNT is a multiple of SEQUENCE_LENGTH : without it an entity would get the same event every round
+            for(long id = 0; id < ENTITY_COUNT; id++) {
+                fleet.submit(id, sequence[position++ & (Graphs.SEQUENCE_LENGTH - 1)]);
+            }
+        }
+        fleet.flush();
+    }
+
+    @Benchmark
+    public long write() throws Exception {
+        try(FiniteStateMachineSnapshotWriter writer = new FiniteStateMachineSnapshotWriter(file, definition)) {
+            return writer.writeAll(source);
+        }
+    }
+
+    @Benchmark
+    public long restoreFleet() throws Exception {
+        FiniteStateMachineFleet fleet = new FiniteStateMachineFleet(definition, 1, 1 << 16);
+        new FiniteStateMachineSnapshotReader(file, definition).restoreInto(fleet);
+        fleet.close();
+        return fleet.getEntityCount();
+    }
+
+    @Benchmark
+    public long restoreInstances() throws Exception {
+        FiniteStateMachineSnapshotReader reader = new FiniteStateMachineSnapshotReader(file, definition);
+        FiniteStateMachine[] machines = new FiniteStateMachine[(int) reader.getEntityCount()];
+        for(int i = 0; i < machines.length; i++) {
+            machines[i] = reader.newInstance(i);
+        }
+        return machines.length;
+    }
+
+    @Benchmark
+    public long replayFleet() throws Exception {
+        FiniteStateMachineFleet fleet = new FiniteStateMachineFleet(definition, 1, 1 << 16);
+        _replay(fleet);
+        fleet.close();
+        return fleet.getEntityCount();
+    }
+}
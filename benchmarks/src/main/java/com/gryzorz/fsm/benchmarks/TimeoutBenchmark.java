@@ -0,0 +1,104 @@
+package com.gryzorz.fsm.benchmarks;
+
+import java.time.Duration;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.FiniteStateMachine;
+import com.gryzorz.fsm.v2.FiniteStateMachineBuilder;
+import com.gryzorz.fsm.v2.FiniteStateMachineDefinition;
+import com.gryzorz.fsm.v2.ManualClock;
+import com.gryzorz.fsm.v2.State;
+import com.gryzorz.fsm.v2.TimingWheel;
+
+/**
+ * Cost of a transition re-arming the timeout of the state it enters, for a million machines going back and
+ * forth between two states that time out after 30 minutes.<br>
+ * NONE has no timeout at all. WHEEL attaches the machines to a TimingWheel, advanced every 4096 transitions
+ * to re-arm the entries, on a clock that never moves. SCHEDULED_EXECUTOR is the usual alternative : cancel
+ * the task of the previous state, and schedule a new one, on a ScheduledThreadPoolExecutor that removes
+ * cancelled tasks.
+ *
+ * @author Benoit Fernandez
+ */
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class TimeoutBenchmark {
+    private static final int MACHINE_COUNT = 1 << 20;
+    private static final int ADVANCE_PERIOD = 4096;
+    private static final Duration TIMEOUT = Duration.ofMinutes(30);
+
+    @Param({"NONE", "WHEEL", "SCHEDULED_EXECUTOR"})
+    String timeouts;
+
+    private final State ping = new State("ping");
+    private final State pong = new State("pong");
+    private final Event next = new Event("next");
+    private final Event expire = new Event("expire");
+    private FiniteStateMachine[] machines;
+    private TimingWheel wheel;
+    private ScheduledThreadPoolExecutor executor;
+    private ScheduledFuture<?>[] tasks;
+    private final Runnable task = new Runnable() {
+        public void run() {
+        }
+    };
+    private int cursor = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        builder.addTransition(ping, next, pong);
+        builder.addTransition(pong, next, ping);
+        builder.addTransition(ping, expire, ping);
+        builder.addTransition(pong, expire, ping);
+        if("WHEEL".equals(timeouts)) {
+            builder.addTimeout(ping, TIMEOUT, expire);
+            builder.addTimeout(pong, TIMEOUT, expire);
+            wheel = new TimingWheel(new ManualClock(), Duration.ofMillis(1));
+        } else if("SCHEDULED_EXECUTOR".equals(timeouts)) {
+            executor = new ScheduledThreadPoolExecutor(1);
+            executor.setRemoveOnCancelPolicy(true);
+            tasks = new ScheduledFuture<?>[MACHINE_COUNT];
+        }
+        FiniteStateMachineDefinition definition = builder.createDefinition(ping);
+        machines = new FiniteStateMachine[MACHINE_COUNT];
+        for(int i = 0; i < MACHINE_COUNT; i++) {
+            machines[i] = definition.newInstance();
+            if(wheel != null)
+                wheel.attach(machines[i]);
+            if(executor != null)
+                tasks[i] = executor.schedule(task, TIMEOUT.toNanos(), TimeUnit.NANOSECONDS);
+        }
+        if(wheel != null)
+            wheel.advance();
+    }
+
+    @TearDown
+    public void tearDown() {
+        if(executor != null)
+            executor.shutdownNow();
+    }
+
+    @Benchmark
+    public Object transition() {
+        int i = cursor++ & (MACHINE_COUNT - 1);
+        Object outcome = machines[i].processEventWithOutcome(next);
+        if(wheel != null) {
+            if((cursor & (ADVANCE_PERIOD - 1)) == 0)
+                wheel.advance();
+        } else if(executor != null) {
+            tasks[i].cancel(false);
+            tasks[i] = executor.schedule(task, TIMEOUT.toNanos(), TimeUnit.NANOSECONDS);
+        }
+        return outcome;
+    }
+}
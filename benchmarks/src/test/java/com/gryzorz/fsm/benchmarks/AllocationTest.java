@@ -0,0 +1,82 @@
+package com.gryzorz.fsm.benchmarks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+
+import org.junit.jupiter.api.Test;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+/**
+ * Checks the allocations documented by the benchmarks, by running them with the GC profiler : gc.alloc.rate.norm
+ * is the number of bytes allocated per operation. Iterations are shorter than when benchmarking, the allocations
+ * do not depend on the time measured.
+ *
+ * @author Benoit Fernandez
+ */
+public class AllocationTest {
+    private static final String ALLOCATION = "gc.alloc.rate.norm";
+
+    /**
+     * processEventWithOutcome(...) and processEventWithoutErrorNotification(...) allocate nothing for an event
+     * without transition, on interpreted and compiled machines, see RejectedEventBenchmark
+     */
+    @Test
+    public void rejectedEventsDoNotAllocate() throws RunnerException {
+        Collection<RunResult> results = _run(RejectedEventBenchmark.class.getName() + "\\.processEventWith(Outcome|outErrorNotification)$");
+        assertEquals(4, results.size());
+        for(RunResult result : results) {
+            assertEquals(0.0, _allocation(result), 1.0, result.getParams().getBenchmark() + " " + result.getParams().getParam("compiled"));
+        }
+    }
+
+    /**
+     * An instance of a definition is 40 bytes with compressed oops, 64 without, as FiniteStateMachineDefinition
+     * documents, see InstanceFootprintBenchmark : what it may be attached to is held by the snapshot of its listeners,
+     * not by fields of its own
+     */
+    @Test
+    public void instanceFootprint() throws RunnerException {
+        Collection<RunResult> results = _run(InstanceFootprintBenchmark.class.getName() + "\\.newInstance$");
+        assertEquals(1, results.size());
+        HotSpotDiagnosticMXBean hotSpot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+        double expected = Boolean.parseBoolean(hotSpot.getVMOption("UseCompressedOops").getValue()) ? 40.0 : 64.0;
+        assertEquals(expected, _allocation(results.iterator().next()), 1.0);
+    }
+
+    private static Collection<RunResult> _run(String include) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(include)
+                .addProfiler(GCProfiler.class)
+                .forks(1)
+                .warmupIterations(3)
+                .warmupTime(TimeValue.milliseconds(300))
+                .measurementIterations(3)
+                .measurementTime(TimeValue.milliseconds(300))
+                .shouldFailOnError(true)
+                .verbosity(VerboseMode.SILENT)
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+        assertFalse(results.isEmpty(), "no benchmark matches " + include);
+        return results;
+    }
+
+    private static double _allocation(RunResult result) {
+        Result<?> allocation = result.getSecondaryResults().get(ALLOCATION);
+        if(allocation == null)
+            throw new AssertionError("the GC profiler reported no " + ALLOCATION + " for " + result.getParams().getBenchmark());
+        return allocation.getScore();
+    }
+}
@@ -0,0 +1,345 @@
+package com.gryzorz.fsm.v2;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This listener moves the work of other listeners out of the thread that calls processEvent(...).<br>
+ * Register it on one or more FiniteStateMachine with addListener(...), then register your own listeners
+ * on the dispatcher instead of on the machines.<br>
+ * <br>
+ * Each notification is published as a (from, event, to, outcome) record into a preallocated ring buffer,
+ * which costs a few field writes to the processing thread. A single consumer thread then delivers the records
+ * to the listeners in batches, in the order they were published, calling eventOccurred(...) then the specific
+ * method, exactly as the machine would have done.<br>
+ * <br>
+ * When the ring buffer is full, the BackPressurePolicy decides whether the producer waits, drops the
+ * notification or delivers it itself.<br>
+ * <br>
+ * Call flush() to wait until everything published so far has been delivered, and close() on shutdown : it
+ * delivers the remaining records and stops the consumer thread. Notifications arriving after close() are
+ * delivered directly by the thread that processed the event.<br>
+ * <br>
+ * An exception or error thrown by a listener does not stop the delivery, it is handed to the uncaught exception
+ * handler of the consumer thread. The records the consumer thread left when it stopped are delivered by close(), or
+ * by the producer publishing after it : each one is still delivered once, and the first exception or error a listener
+ * throws is rethrown once all of them are, with the following ones suppressed in it.
+ *
+ * @author Benoit Fernandez
+ */
+public class AsynchronousListenerDispatcher implements FiniteStateMachineListener {
+    private static final int DEFAULT_BATCH_SIZE = 256;
+    private static final int SPINS_BEFORE_PARKING = 100;
+    private static final long PARK_NANOS = 50000L;
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final BackPressurePolicy backPressurePolicy;
+    private final int batchSize;
+
+    /* the ring buffer : a slot can be written when its sequence equals the producer position,
+       and read when it equals the consumer position + 1 */
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final State[] froms;
+    private final Event[] events;
+    private final State[] tos;
+    private final TransitionOutcome[] outcomes;
+
+    private final AtomicLong tail = new AtomicLong(); //next position claimed by a producer
+    private volatile long head = 0; //next position read by the consumer, only written by the consumer
+    private final LongAdder droppedCount = new LongAdder();
+
+    private volatile FiniteStateMachineListener[] listeners = new FiniteStateMachineListener[0];
+    private volatile boolean closed = false;
+    private final Thread consumer;
+
+    /**
+     * Creates a dispatcher and starts its daemon consumer thread.
+     * @param capacity the number of records the ring buffer can hold, rounded up to a power of 2
+     * @param backPressurePolicy what to do when the ring buffer is full
+     */
+    public AsynchronousListenerDispatcher(int capacity, BackPressurePolicy backPressurePolicy) {
+        this(capacity, backPressurePolicy, DEFAULT_BATCH_SIZE, null);
+    }
+
+    /**
+     * Creates a dispatcher and starts its consumer thread.
+     * @param capacity the number of records the ring buffer can hold, rounded up to a power of 2
+     * @param backPressurePolicy what to do when the ring buffer is full
+     * @param batchSize the maximum number of records delivered before the consumer frees their slots
+     * @param threadFactory the factory creating the consumer thread, or null for a daemon thread
+     */
+    public AsynchronousListenerDispatcher(int capacity, BackPressurePolicy backPressurePolicy, int batchSize, ThreadFactory threadFactory) {
+        if(capacity < 1 || capacity > (1 << 30))
+            throw new IllegalArgumentException("capacity must be between 1 and 2^30 : " + capacity);
+        if(batchSize < 1)
+            throw new IllegalArgumentException("batchSize must be positive : " + batchSize);
+        if(backPressurePolicy == null)
+            throw new IllegalArgumentException("backPressurePolicy cannot be null");
+
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity)
+            size <<= 1;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        for(int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.froms = new State[size];
+        this.events = new Event[size];
+        this.tos = new State[size];
+        this.outcomes = new TransitionOutcome[size];
+        this.backPressurePolicy = backPressurePolicy;
+        this.batchSize = batchSize;
+
+        Runnable loop = new Runnable() {
+            public void run() {
+                _consume();
+            }
+        };
+        if(threadFactory != null) {
+            consumer = threadFactory.newThread(loop);
+        } else {
+            consumer = new Thread(loop, "fsm-listener-dispatcher-" + threadCount.incrementAndGet());
+            consumer.setDaemon(true);
+        }
+        consumer.start();
+    }
+
+    public synchronized void addListener(FiniteStateMachineListener listener) {
+        FiniteStateMachineListener[] current = listeners;
+        FiniteStateMachineListener[] updated = new FiniteStateMachineListener[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = listener;
+        listeners = updated;
+    }
+
+    public synchronized void removeListener(FiniteStateMachineListener listener) {
+        FiniteStateMachineListener[] current = listeners;
+        for(int i = 0; i < current.length; i++) {
+            if(current[i] == listener) {
+                FiniteStateMachineListener[] updated = new FiniteStateMachineListener[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                listeners = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the number of notifications dropped because the ring buffer was full, with policy DROP
+     */
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    /**
+     * Waits until every notification published before this call has been delivered to the listeners.
+     * @throws IllegalStateException if the consumer thread died before close() was called
+     */
+    public void flush() {
+        long target = tail.get();
+        int idle = 0;
+        while(head < target) {
+            if(idle >= SPINS_BEFORE_PARKING && !closed && !consumer.isAlive())
+                throw new IllegalStateException("flush : the consumer thread is dead, " + (target - head) + " notifications will never be delivered");
+            idle = _backOff(idle);
+        }
+    }
+
+    /**
+     * Delivers the remaining notifications then stops the consumer thread.<br>
+     * Notifications arriving afterwards are delivered by the thread that processed the event.
+     * @throws InterruptedException if interrupted while waiting for the consumer thread to stop
+     * @throws RuntimeException the first one a listener threw while this thread delivered the remaining notifications,
+     * once all of them are delivered
+     */
+    public void close() throws InterruptedException {
+        closed = true;
+        LockSupport.unpark(consumer);
+        consumer.join();
+        //producers that claimed a slot just before closed was set may still be writing it
+        _drainAfterClose(tail.get());
+    }
+
+
+    /**************************************************************************
+     *                          listener callbacks                            *
+     *************************************************************************/
+
+    public void eventOccurred(State from, Event event, State to) {
+        //published along with the specific callback, the consumer calls both
+    }
+
+    public void stateChanged(State from, Event event, State to) {
+        _publish(from, event, to, TransitionOutcome.STATE_CHANGED);
+    }
+
+    public void stateLoop(State state, Event event) {
+        _publish(state, event, state, TransitionOutcome.STATE_LOOP);
+    }
+
+    public void unexistingTransition(State from, Event event) {
+        _publish(from, event, null, TransitionOutcome.UNEXISTING_TRANSITION);
+    }
+
+
+    /**************************************************************************
+     *                             ring buffer                                *
+     *************************************************************************/
+
+    private void _publish(State from, Event event, State to, TransitionOutcome outcome) {
+        if(closed) {
+            _deliver(from, event, to, outcome);
+            return;
+        }
+
+        long position;
+        int index;
+        int idle = 0;
+        while(true) {
+            position = tail.get();
+            index = (int) position & mask;
+            long available = sequences.get(index) - position;
+            if(available == 0) {
+                if(tail.compareAndSet(position, position + 1))
+                    break;
+            } else if(available < 0) { //the buffer is full
+                switch(backPressurePolicy) {
+                    case DROP:
+                        droppedCount.increment();
+                        return;
+                    case CALLER_RUNS:
+                        _deliver(from, event, to, outcome);
+                        return;
+                    default:
+                        idle = _backOff(idle);
+                }
+            }
+        }
+        froms[index] = from;
+        events[index] = event;
+        tos[index] = to;
+        outcomes[index] = outcome;
+        sequences.lazySet(index, position + 1);
+        if(closed) { //close() may have drained the buffer before this slot was claimed : deliver it here
+            idle = 0;
+            while(consumer.isAlive()) {
+                idle = _backOff(idle);
+            }
+            _drainAfterClose(position + 1);
+        }
+    }
+
+    /**
+     * Delivers the records up to a position, once the consumer thread is stopped.
+     * close() and the producers publishing after it take turns on the monitor of the dispatcher.
+     * @param target the position to reach, exclusive
+     */
+    private void _drainAfterClose(long target) {
+        Throwable failure = null;
+        synchronized (this) {
+            int idle = 0;
+            while(head < target) { //records claimed below target are being written
+                try {
+                    if(_drainBatch() == 0)
+                        idle = _backOff(idle);
+                } catch(RuntimeException | Error e) { //the records after the one that failed must be delivered too
+                    if(failure == null)
+                        failure = e;
+                    else if(failure != e)
+                        failure.addSuppressed(e);
+                }
+            }
+        }
+        if(failure instanceof Error)
+            throw (Error) failure;
+        if(failure != null)
+            throw (RuntimeException) failure;
+    }
+
+    private void _consume() {
+        int idle = 0;
+        while(true) {
+            if(_drainBatch() > 0) {
+                idle = 0;
+            } else if(closed) {
+                return;
+            } else {
+                idle = _backOff(idle);
+            }
+        }
+    }
+
+    /**
+     * Delivers up to batchSize records, then releases their slots at once.
+     * Only called by the consumer thread, or by _drainAfterClose(...) once the consumer thread is stopped.
+     * @return the number of records delivered
+     * @throws RuntimeException what a listener threw, outside of the consumer thread : the records delivered so far,
+     * the one that failed included, are released first, so that none is delivered twice
+     */
+    private int _drainBatch() {
+        long start = head;
+        long position = start;
+        long end = start + batchSize;
+        try {
+            while(position < end) {
+                int index = (int) position & mask;
+                if(sequences.get(index) != position + 1)
+                    break;
+                position++;
+                _deliver(froms[index], events[index], tos[index], outcomes[index]);
+            }
+        } finally {
+            for(long released = start; released < position; released++) {
+                int index = (int) released & mask;
+                froms[index] = null;
+                events[index] = null;
+                tos[index] = null;
+                outcomes[index] = null;
+                sequences.lazySet(index, released + mask + 1);
+            }
+            head = position;
+        }
+        return (int) (position - start);
+    }
+
+    private void _deliver(State from, Event event, State to, TransitionOutcome outcome) {
+        for(FiniteStateMachineListener listener : listeners) {
+            try {
+                listener.eventOccurred(from, event, to);
+                switch(outcome) {
+                    case STATE_CHANGED:
+                        listener.stateChanged(from, event, to);
+                        break;
+                    case STATE_LOOP:
+                        listener.stateLoop(from, event);
+                        break;
+                    default:
+                        listener.unexistingTransition(from, event);
+                }
+            } catch(RuntimeException | Error e) {
+                if(Thread.currentThread() != consumer)
+                    throw e; //delivered inline, the caller of processEvent(...) gets it as it would without dispatcher
+                //the consumer thread must survive whatever a listener throws, or flush() and the producers would wait for it forever
+                Thread.UncaughtExceptionHandler handler = consumer.getUncaughtExceptionHandler();
+                if(handler != null)
+                    handler.uncaughtException(consumer, e);
+            }
+        }
+    }
+
+    private static int _backOff(int idle) {
+        if(idle < SPINS_BEFORE_PARKING) {
+            Thread.onSpinWait();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        return idle + 1;
+    }
+}
@@ -0,0 +1,27 @@
+package com.gryzorz.fsm.v2;
+
+/**
+ * Defines what an AsynchronousListenerDispatcher does with a notification when its ring buffer is full,
+ * which happens when the listeners are slower than the events for too long.
+ * 
+ * @author Benoit Fernandez
+ */
+public enum BackPressurePolicy {
+    /**
+     * The thread that processed the event waits until a slot is freed by the consumer.
+     * No notification is lost and the order is kept, but producers are slowed down to the pace of the listeners.
+     */
+    BLOCK,
+    
+    /**
+     * The notification is dropped and counted, see AsynchronousListenerDispatcher.getDroppedCount().
+     * Producers are never slowed down, but listeners miss some events.
+     */
+    DROP,
+    
+    /**
+     * The listeners are called directly by the thread that processed the event, as if there were no dispatcher.
+     * No notification is lost, but this one may be delivered before older notifications still in the buffer.
+     */
+    CALLER_RUNS
+}
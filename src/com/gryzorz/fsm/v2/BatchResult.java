@@ -0,0 +1,70 @@
+package com.gryzorz.fsm.v2;
+
+/**
+ * Summary of a batch of events injected with one of the FiniteStateMachine.processEvents(...) methods.<br>
+ * Events of a batch are processed like processEventWithoutErrorNotification(...) would : an event
+ * for which no transition exists is counted as rejected, the state does not change, and the following
+ * events are processed anyway.
+ * 
+ * @author Benoit Fernandez
+ */
+public class BatchResult {
+    private int processedCount = 0;
+    private int acceptedCount = 0;
+    private int firstRejectedIndex = -1;
+    State from = null; //in ConcurrencyMode.LOCK_FREE, the state the first event of the batch was processed in
+    State to = null; //in ConcurrencyMode.LOCK_FREE, the state the last event of the batch left the machine in
+    
+    BatchResult() {}
+    
+    void record(TransitionOutcome outcome) {
+        if(outcome == TransitionOutcome.UNEXISTING_TRANSITION) {
+            if(firstRejectedIndex < 0)
+                firstRejectedIndex = processedCount;
+        } else {
+            acceptedCount++;
+        }
+        processedCount++;
+    }
+    
+    void record(TransitionOutcome outcome, State before, State after) {
+        if(processedCount == 0)
+            from = before;
+        to = after;
+        record(outcome);
+    }
+    
+    /**
+     * @return the number of events of the batch that were processed
+     */
+    public int getProcessedCount() {
+        return processedCount;
+    }
+    
+    /**
+     * @return the number of events that produced a state change or a state loop
+     */
+    public int getAcceptedCount() {
+        return acceptedCount;
+    }
+    
+    /**
+     * @return the number of events for which no transition existed
+     */
+    public int getRejectedCount() {
+        return processedCount - acceptedCount;
+    }
+    
+    /**
+     * @return the index, relative to the first event of the batch, of the first event for which no
+     * transition existed, or -1 if every event was accepted
+     */
+    public int getFirstRejectedIndex() {
+        return firstRejectedIndex;
+    }
+    
+    @Override
+    public String toString() {
+        return processedCount + " events processed, " + acceptedCount + " accepted, first rejected at " + firstRejectedIndex;
+    }
+}
@@ -0,0 +1,34 @@
+package com.gryzorz.fsm.v2;
+
+/**
+ * Defines how a compiled FiniteStateMachine protects its current state when several threads
+ * call processEvent(...) at the same time.<br>
+ * Choose it with FiniteStateMachineBuilder.setConcurrencyMode(...) before creating the machine or
+ * its definition. Interpreted machines (created by createFSM(...)) are always LOCKED.
+ * 
+ * @author Benoit Fernandez
+ */
+public enum ConcurrencyMode {
+    /**
+     * Each event is processed while holding the monitor of the machine, and the listeners are called
+     * while still holding it. Listeners of a machine therefore see the events one at a time,
+     * in the exact order they were processed. This is the default.
+     */
+    LOCKED,
+    
+    /**
+     * The current state is advanced with a compare-and-set loop, no monitor is ever taken.<br>
+     * Ordering guarantees :<br>
+     *  - each transition is atomic : it is computed from the state it replaces, and a concurrent
+     *  event makes it retry from the new state<br>
+     *  - listeners are called after the transition is committed, by the thread that committed it,
+     *  so a slow listener never stalls other producers<br>
+     *  - the notifications of one thread arrive in the order of its own events, but the
+     *  notifications of different threads may interleave and may arrive in a different order than
+     *  the one the transitions were committed in. When a listener is called, the machine may
+     *  already have left the "to" state.<br>
+     *  - a state loop is not written back, it is reported from the state read at that time<br>
+     * Use it when producers must not block each other and listeners do not rely on a global order.
+     */
+    LOCK_FREE
+}
@@ -0,0 +1,331 @@
+package com.gryzorz.fsm.v2;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes, at runtime, a TransitionDispatcher class dedicated to one TransitionTable, and defines it as a
+ * hidden class, with nothing but the JDK.<br>
+ * <br>
+ * The generated class is what one would write by hand for a small machine :<br>
+ * <code>eventOrdinal(event)</code> compares the event with each known Event, held in static final fields,
+ * instead of hashing it ; <code>nextState(state, event)</code> is a switch on the state ordinal, each case
+ * being a switch on the event ordinal returning the destination as a constant. The JIT compiles both to
+ * jump tables and constants it can inline and predict, where the table needs a hash lookup and two array
+ * loads. This only pays when the events follow a predictable pattern : on random events, each branch
+ * is mispredicted where the table's loads are not, and the table is faster.<br>
+ * <br>
+ * The class file is written in version 50, which lets the JVM verify it without a StackMapTable.
+ * Only small graphs are generated : at most MAX_EVENT_COUNT events, and a nextState(...) method under
+ * the MAX_CODE_SIZE bytes beyond which HotSpot does not compile a method. Otherwise, or if the class cannot
+ * be defined, generate(...) returns null and the definition keeps using its table.
+ *
+ * @author Benoit Fernandez
+ */
+final class DispatcherGenerator {
+    /** beyond this many events, comparing references one by one costs more than hashing */
+    static final int MAX_EVENT_COUNT = 16;
+    /** HotSpot does not JIT compile methods of more than 8000 bytes of bytecode */
+    static final int MAX_CODE_SIZE = 8000;
+
+    private static final String CLASS_NAME = "com/gryzorz/fsm/v2/GeneratedTransitionDispatcher";
+    private static final String EVENT_DESCRIPTOR = "Lcom/gryzorz/fsm/v2/Event;";
+    private static final String EVENTS_DESCRIPTOR = "[Lcom/gryzorz/fsm/v2/Event;";
+    private static final String LOOKUP_DESCRIPTOR = "Ljava/lang/invoke/MethodHandles$Lookup;";
+
+    /* opcodes */
+    private static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13;
+    private static final int ILOAD_1 = 0x1B, ILOAD_2 = 0x1C, ALOAD_0 = 0x2A, ALOAD_1 = 0x2B, AALOAD = 0x32, ASTORE_0 = 0x4B;
+    private static final int IF_ACMPNE = 0xA6, TABLESWITCH = 0xAA, IRETURN = 0xAC, RETURN = 0xB1;
+    private static final int GETSTATIC = 0xB2, PUTSTATIC = 0xB3, INVOKESPECIAL = 0xB7, INVOKESTATIC = 0xB8, CHECKCAST = 0xC0;
+
+    private DispatcherGenerator() {}
+
+    /**
+     * @return the generated dispatcher, or null if the table is too large or the class cannot be defined
+     */
+    static TransitionDispatcher generate(TransitionTable table) {
+        if(table.eventCount > MAX_EVENT_COUNT || _nextStateCodeSizeBound(table) > MAX_CODE_SIZE)
+            return null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClassWithClassData(_classFile(table), table.events, true);
+            return (TransitionDispatcher) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch(VirtualMachineError e) {
+            throw e;
+        } catch(Throwable e) { //a restricted or unusual JVM : the table does the same job, only slower
+            return null;
+        }
+    }
+
+    private static int _nextStateCodeSizeBound(TransitionTable table) {
+        int stateCount = table.states.length;
+        int perState = 1 + 16 + 4 * table.eventCount + 4 * table.eventCount; //load, switch, a constant and a return per transition
+        return 1 + 16 + 4 * stateCount + 2 + stateCount * perState;
+    }
+
+    private static byte[] _classFile(TransitionTable table) {
+        ConstantPool pool = new ConstantPool();
+        int thisClass = pool.classRef(CLASS_NAME);
+        int superClass = pool.classRef("java/lang/Object");
+        int dispatcherInterface = pool.classRef("com/gryzorz/fsm/v2/TransitionDispatcher");
+        int[] eventFields = new int[table.eventCount];
+        for(int e = 0; e < eventFields.length; e++) {
+            eventFields[e] = pool.fieldRef(CLASS_NAME, "e" + e, EVENT_DESCRIPTOR);
+        }
+
+        ByteVector methods = new ByteVector();
+        _method(pool, methods, "<init>", "()V", 1, 1, _constructor(pool));
+        _method(pool, methods, "<clinit>", "()V", 3, 1, _staticInitializer(pool, eventFields));
+        _method(pool, methods, "eventOrdinal", "(" + EVENT_DESCRIPTOR + ")I", 2, 2, _eventOrdinal(eventFields));
+        _method(pool, methods, "nextState", "(II)I", 1, 3, _nextState(table));
+
+        ByteVector file = new ByteVector();
+        file.putInt(0xCAFEBABE).putShort(0).putShort(50);
+        file.putShort(pool.count).putBytes(pool.entries);
+        file.putShort(0x0030).putShort(thisClass).putShort(superClass); //final, super
+        file.putShort(1).putShort(dispatcherInterface);
+        file.putShort(eventFields.length);
+        for(int e = 0; e < eventFields.length; e++) {
+            file.putShort(0x001A).putShort(pool.utf8("e" + e)).putShort(pool.utf8(EVENT_DESCRIPTOR)).putShort(0); //private static final
+        }
+        file.putShort(4).putBytes(methods);
+        file.putShort(0);
+        return file.toByteArray();
+    }
+
+    private static void _method(ConstantPool pool, ByteVector methods, String name, String descriptor,
+                                int maxStack, int maxLocals, ByteVector code) {
+        int access = name.equals("<clinit>") ? 0x0008 : 0x0001; //static or public
+        methods.putShort(access).putShort(pool.utf8(name)).putShort(pool.utf8(descriptor)).putShort(1);
+        methods.putShort(pool.utf8("Code")).putInt(12 + code.length);
+        methods.putShort(maxStack).putShort(maxLocals).putInt(code.length).putBytes(code);
+        methods.putShort(0).putShort(0); //no exception table, no attribute
+    }
+
+    private static ByteVector _constructor(ConstantPool pool) {
+        ByteVector code = new ByteVector();
+        code.putByte(ALOAD_0);
+        code.putByte(INVOKESPECIAL).putShort(pool.methodRef("java/lang/Object", "<init>", "()V"));
+        code.putByte(RETURN);
+        return code;
+    }
+
+    /**
+     * Copies the events, handed over as class data, into the static final fields
+     */
+    private static ByteVector _staticInitializer(ConstantPool pool, int[] eventFields) {
+        ByteVector code = new ByteVector();
+        code.putByte(INVOKESTATIC).putShort(pool.methodRef("java/lang/invoke/MethodHandles", "lookup", "()" + LOOKUP_DESCRIPTOR));
+        code.putByte(LDC_W).putShort(pool.string("_"));
+        code.putByte(LDC_W).putShort(pool.classRef(EVENTS_DESCRIPTOR));
+        code.putByte(INVOKESTATIC).putShort(pool.methodRef("java/lang/invoke/MethodHandles", "classData",
+                                                           "(" + LOOKUP_DESCRIPTOR + "Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/Object;"));
+        code.putByte(CHECKCAST).putShort(pool.classRef(EVENTS_DESCRIPTOR));
+        code.putByte(ASTORE_0);
+        for(int e = 0; e < eventFields.length; e++) {
+            code.putByte(ALOAD_0);
+            _push(code, e);
+            code.putByte(AALOAD);
+            code.putByte(PUTSTATIC).putShort(eventFields[e]);
+        }
+        code.putByte(RETURN);
+        return code;
+    }
+
+    /**
+     * if(event == e0) return 0; if(event == e1) return 1; ... return -1;
+     */
+    private static ByteVector _eventOrdinal(int[] eventFields) {
+        ByteVector code = new ByteVector();
+        for(int e = 0; e < eventFields.length; e++) {
+            code.putByte(ALOAD_1);
+            code.putByte(GETSTATIC).putShort(eventFields[e]);
+            int branch = code.length;
+            code.putByte(IF_ACMPNE).putShort(0);
+            _push(code, e);
+            code.putByte(IRETURN);
+            code.setShort(branch + 1, code.length - branch);
+        }
+        _push(code, TransitionTable.NO_TRANSITION);
+        code.putByte(IRETURN);
+        return code;
+    }
+
+    /**
+     * switch(state) { case s : switch(event) { case e : return table[s][e]; ... } ... } return -1;
+     */
+    private static ByteVector _nextState(TransitionTable table) {
+        int stateCount = table.states.length;
+        int eventCount = table.eventCount;
+        ByteVector code = new ByteVector();
+        code.putByte(ILOAD_1);
+        int outerSwitch = code.length;
+        int[] stateSlots = _tableSwitch(code, stateCount);
+        int noTransition = code.length;
+        _push(code, TransitionTable.NO_TRANSITION);
+        code.putByte(IRETURN);
+        code.setInt(stateSlots[0], noTransition - outerSwitch);
+
+        for(int s = 0; s < stateCount; s++) {
+            boolean reacts = false;
+            for(int e = 0; e < eventCount; e++) {
+                reacts |= table.table[s * eventCount + e] != TransitionTable.NO_TRANSITION;
+            }
+            if(!reacts) {
+                code.setInt(stateSlots[1 + s], noTransition - outerSwitch);
+                continue;
+            }
+            code.setInt(stateSlots[1 + s], code.length - outerSwitch);
+            code.putByte(ILOAD_2);
+            int innerSwitch = code.length;
+            int[] eventSlots = _tableSwitch(code, eventCount);
+            code.setInt(eventSlots[0], noTransition - innerSwitch);
+            for(int e = 0; e < eventCount; e++) {
+                int next = table.table[s * eventCount + e];
+                if(next == TransitionTable.NO_TRANSITION) {
+                    code.setInt(eventSlots[1 + e], noTransition - innerSwitch);
+                } else {
+                    code.setInt(eventSlots[1 + e], code.length - innerSwitch);
+                    _push(code, next);
+                    code.putByte(IRETURN);
+                }
+            }
+        }
+        return code;
+    }
+
+    /**
+     * Writes a tableswitch on 0 .. count - 1
+     * @return the positions of the default offset, then of the offset of each case, all left to fill
+     */
+    private static int[] _tableSwitch(ByteVector code, int count) {
+        code.putByte(TABLESWITCH);
+        while(code.length % 4 != 0) {
+            code.putByte(0);
+        }
+        int[] slots = new int[1 + count];
+        slots[0] = code.length;
+        code.putInt(0).putInt(0).putInt(count - 1);
+        for(int i = 0; i < count; i++) {
+            slots[1 + i] = code.length;
+            code.putInt(0);
+        }
+        return slots;
+    }
+
+    private static void _push(ByteVector code, int value) {
+        if(value >= -1 && value <= 5) {
+            code.putByte(ICONST_0 + value);
+        } else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.putByte(BIPUSH).putByte(value);
+        } else {
+            code.putByte(SIPUSH).putShort(value);
+        }
+    }
+
+
+    /**
+     * Growable big endian byte array, as the class file format wants it
+     */
+    private static final class ByteVector {
+        byte[] bytes = new byte[256];
+        int length = 0;
+
+        ByteVector putByte(int value) {
+            if(length == bytes.length)
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            bytes[length++] = (byte) value;
+            return this;
+        }
+
+        ByteVector putShort(int value) {
+            return putByte(value >>> 8).putByte(value);
+        }
+
+        ByteVector putInt(int value) {
+            return putShort(value >>> 16).putShort(value);
+        }
+
+        ByteVector putBytes(ByteVector other) {
+            for(int i = 0; i < other.length; i++) {
+                putByte(other.bytes[i]);
+            }
+            return this;
+        }
+
+        void setShort(int position, int value) {
+            bytes[position] = (byte) (value >>> 8);
+            bytes[position + 1] = (byte) value;
+        }
+
+        void setInt(int position, int value) {
+            setShort(position, value >>> 16);
+            setShort(position + 2, value);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+
+    /**
+     * Constant pool entries, each written once
+     */
+    private static final class ConstantPool {
+        final ByteVector entries = new ByteVector();
+        final Map<String, Integer> indexes = new HashMap<String, Integer>();
+        int count = 1; //index 0 is not used
+
+        int utf8(String value) {
+            Integer index = indexes.get("U" + value);
+            if(index != null)
+                return index;
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8); //names and descriptors are plain ASCII
+            entries.putByte(1).putShort(bytes.length);
+            for(byte b : bytes) {
+                entries.putByte(b);
+            }
+            return _add("U" + value);
+        }
+
+        int classRef(String internalName) {
+            return _reference("C", 7, utf8(internalName), -1);
+        }
+
+        int string(String value) {
+            return _reference("S", 8, utf8(value), -1);
+        }
+
+        int fieldRef(String owner, String name, String descriptor) {
+            return _reference("F", 9, classRef(owner), _nameAndType(name, descriptor));
+        }
+
+        int methodRef(String owner, String name, String descriptor) {
+            return _reference("M", 10, classRef(owner), _nameAndType(name, descriptor));
+        }
+
+        private int _nameAndType(String name, String descriptor) {
+            return _reference("N", 12, utf8(name), utf8(descriptor));
+        }
+
+        private int _reference(String kind, int tag, int first, int second) {
+            String key = kind + first + "/" + second;
+            Integer index = indexes.get(key);
+            if(index != null)
+                return index;
+            entries.putByte(tag).putShort(first);
+            if(second >= 0)
+                entries.putShort(second);
+            return _add(key);
+        }
+
+        private int _add(String key) {
+            indexes.put(key, count);
+            return count++;
+        }
+    }
+}
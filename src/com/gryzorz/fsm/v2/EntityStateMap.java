@@ -0,0 +1,151 @@
+package com.gryzorz.fsm.v2;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Open addressing map from a long entity id to the int ordinal of its current state.<br>
+ * Keys and states live in two primitive arrays, so an entity costs 24 bytes at most (12 bytes per slot,
+ * at a load factor kept between 0.25 and 0.5) and a lookup never allocates.<br>
+ * This map is meant to be owned by a single writer thread ; only get(...) and forEach(...) can be called from others.
+ *
+ * @author Benoit Fernandez
+ */
+final class EntityStateMap {
+    static final int ABSENT = -1;
+    private static final int FREE = -1; //marks an unused slot in the state array, ordinals are never negative
+    private static final AtomicLong seeds = new AtomicLong();
+    private static final VarHandle STATES = MethodHandles.arrayElementVarHandle(int[].class);
+
+    /* written by the owner thread only ; a resize publishes a complete new Table, so get(...) can run on any thread :
+       it sees either table, with arrays and mask that match, and a slot taken by a new entity only once its key is written */
+    private volatile Table table;
+    private int size = 0;
+    /* entities copied from another map, by a snapshot for example, come in the order of its slots :
+       hashing them the same way here would pile them up in long runs of occupied slots */
+    private final long seed = seeds.addAndGet(0x9E3779B97F4A7C15L);
+
+    EntityStateMap(int expectedSize) {
+        int capacity = 16;
+        while(capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        table = new Table(capacity);
+    }
+
+    /**
+     * @return the index of the slot holding the entity, inserting it with the given state if it is unknown
+     */
+    int slotOf(long entityId, int initialState) {
+        Table table = this.table;
+        int[] states = table.states;
+        long[] keys = table.keys;
+        int index = _indexFor(entityId, table);
+        while(states[index] != FREE) {
+            if(keys[index] == entityId)
+                return index;
+            index = (index + 1) & table.mask;
+        }
+        if(size >= (table.mask + 1) >> 1) {
+            _resize();
+            return slotOf(entityId, initialState);
+        }
+        keys[index] = entityId;
+        STATES.setRelease(states, index, initialState); //after the key, for the readers of other threads
+        size++;
+        return index;
+    }
+
+    int stateAt(int slot) {
+        return table.states[slot];
+    }
+
+    void setStateAt(int slot, int state) {
+        table.states[slot] = state;
+    }
+
+    /**
+     * Can be called from any thread : the state returned is one the entity was in, recently.
+     * @return the state of the entity, or ABSENT if it is unknown
+     */
+    int get(long entityId) {
+        Table table = this.table;
+        int index = _indexFor(entityId, table);
+        int state;
+        while((state = (int) STATES.getAcquire(table.states, index)) != FREE) { //before the key
+            if(table.keys[index] == entityId)
+                return state;
+            index = (index + 1) & table.mask;
+        }
+        return ABSENT;
+    }
+
+    void put(long entityId, int state) {
+        int slot = slotOf(entityId, state); //may resize, so states must be read afterwards
+        table.states[slot] = state;
+    }
+
+    /**
+     * Only called by the owner thread
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Calls the visitor for each entity, in no particular order
+     */
+    void forEach(EntityStateVisitor visitor) {
+        Table table = this.table;
+        for(int i = 0; i < table.states.length; i++) {
+            int state = (int) STATES.getAcquire(table.states, i);
+            if(state != FREE)
+                visitor.visit(table.keys[i], state);
+        }
+    }
+
+    private int _indexFor(long entityId, Table table) {
+        //murmur3 finalizer : the fleet already picks shards with the high bits of a multiplicative hash,
+        //reusing that hash here would crowd the entities of a shard in a fraction of the table
+        long h = entityId ^ seed;
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return (int) ((h ^ (h >>> 33)) >>> table.shift);
+    }
+
+    private void _resize() {
+        Table old = table;
+        Table grown = new Table(old.keys.length << 1);
+        for(int i = 0; i < old.keys.length; i++) {
+            if(old.states[i] != FREE) {
+                int index = _indexFor(old.keys[i], grown);
+                while(grown.states[index] != FREE) {
+                    index = (index + 1) & grown.mask;
+                }
+                grown.keys[index] = old.keys[i];
+                grown.states[index] = old.states[i];
+            }
+        }
+        table = grown; //only published once filled
+    }
+
+    /**
+     * The arrays of the map and the mask and shift that go with them
+     */
+    private static final class Table {
+        final long[] keys;
+        final int[] states;
+        final int mask;
+        final int shift;
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            states = new int[capacity];
+            Arrays.fill(states, FREE);
+            mask = capacity - 1;
+            shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.gryzorz.fsm.v2;
+
+/**
+ * Receives the entities of an EntityStateMap one by one.
+ *
+ * @author Benoit Fernandez
+ */
+interface EntityStateVisitor {
+    void visit(long entityId, int stateOrdinal);
+}
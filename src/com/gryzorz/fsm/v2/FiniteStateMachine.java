@@ -1,6 +1,9 @@
 package com.gryzorz.fsm.v2;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.*;
+import java.util.stream.Stream;
 
 /**
  * This is an implementation of a simple finite state machine.
@@ -17,20 +20,126 @@ import java.util.*;
  * There also is now a mechanism to allow a class to be informed of a state change (or a state
  * self loop if planned) : FiniteStateMachineListener.
  * <br>
- * You can add a listener with method addListener(...)
+ * You can add a listener with method addListener(...). Listeners are called by the thread processing the event :
+ * if they are slow, register them on an AsynchronousListenerDispatcher instead.<br>
+ * <br>
+ * When many machines follow the same transitions, create them from a shared FiniteStateMachineDefinition :
+ * each instance then costs a few dozen bytes instead of its own copy of the transitions.<br>
+ * <br>
+ * Attach a FiniteStateMachineFlightRecorder to keep the last events processed, to find out afterwards how the machine
+ * got into its state.<br>
+ * <br>
+ * getState() and isTransitionExisting(...) never take the monitor, but always see the last state committed
+ * by any thread. See ConcurrencyMode to process events without taking the monitor either.
  * 
  * @author Benoit Fernandez
  */
 public class FiniteStateMachine {
-    protected Object instanceMonitor = new Object(); //easier to read that the self-reference "this"
+    private static final VarHandle CURRENT_STATE;
+    private static final VarHandle CURRENT_ORDINAL;
+    private static final VarHandle DEFINITION;
+    private static final VarHandle LISTENERS;
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            CURRENT_STATE = lookup.findVarHandle(FiniteStateMachine.class, "currentState", State.class);
+            CURRENT_ORDINAL = lookup.findVarHandle(FiniteStateMachine.class, "currentOrdinal", int.class);
+            DEFINITION = lookup.findVarHandle(FiniteStateMachine.class, "definition", FiniteStateMachineDefinition.class);
+            LISTENERS = lookup.findVarHandle(FiniteStateMachine.class, "listeners", Subscriptions.class);
+        } catch(ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    /* by class, true if it overrides one of the deprecated _notifyStateChanged(...), _notifyStateLoop(...) or
+       _notifyUnexistingTransition(...) : notifications then go through them, see _notify(...) */
+    private static final ClassValue<Boolean> OVERRIDES_HOOKS = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            for(Class<?> c = type; c != FiniteStateMachine.class; c = c.getSuperclass()) {
+                if(_declares(c, "_notifyStateChanged", State.class, Event.class, State.class)
+                   || _declares(c, "_notifyStateLoop", State.class, Event.class)
+                   || _declares(c, "_notifyUnexistingTransition", State.class, Event.class))
+                    return Boolean.TRUE;
+            }
+            return Boolean.FALSE;
+        }
+    };
+    
+    protected Object instanceMonitor; //easier to read that the self-reference "this"
     
+    /* interpreted machines, created by FiniteStateMachineBuilder.createFSM(...) */
     protected State currentState = null;
-    protected Map<State, List<Transition>> stateMap = new HashMap<State, List<Transition>>();
+    protected Map<State, List<Transition>> stateMap = null;
+    
+    /* compiled machines, created from a FiniteStateMachineDefinition : the current state is only an ordinal, offset by
+       the ordinalBase of the version it belongs to, so the ordinal alone tells the version. Moving to the next version
+       writes the ordinal first, then definition, which only moves forward : readers read definition first, then the
+       ordinal, and resolve the version with FiniteStateMachineDefinition.owner(...).
+       Both current state fields and definition are written with release semantics and read with acquire semantics */
+    protected FiniteStateMachineDefinition definition = null;
+    protected int currentOrdinal = TransitionTable.NO_TRANSITION;
+    protected int stateEnteredAt; //only maintained when the definition has metrics, see FiniteStateMachineMetrics.now()
     
-    protected FiniteStateMachine() {}
+    protected FiniteStateMachine() {
+        instanceMonitor = new Object();
+        stateMap = new LinkedHashMap<State, List<Transition>>();
+    }
+    
+    /**
+     * Creates a lightweight instance sharing the transitions of a definition.<br>
+     * The instance is its own monitor and only allocates a snapshot of its listeners when one is added,
+     * see FiniteStateMachineDefinition for its memory footprint.
+     */
+    FiniteStateMachine(FiniteStateMachineDefinition definition, int initialOrdinal) {
+        instanceMonitor = this;
+        this.definition = definition;
+        this.currentOrdinal = definition.ordinalBase + initialOrdinal;
+        definition.instanceCount.increment();
+        if(definition.metrics != null)
+            stateEnteredAt = definition.metrics.now();
+    }
     
     void setInitialState(State initialState) {
-        currentState = initialState;
+        CURRENT_STATE.setRelease(this, initialState);
+    }
+    
+    /**
+     * Freezes the transitions registered so far into a private FiniteStateMachineDefinition.<br>
+     * From now on, processEvent(...) finds the transition to follow with a single array access,
+     * and no transition can be added anymore.
+     */
+    void compile(FiniteStateMachineBuilder options) {
+        synchronized (instanceMonitor) {
+            definition = createDefinition(currentState, options);
+            Subscriptions before;
+            do { //listeners are now notified by ordinals
+                before = listeners;
+            } while(!LISTENERS.compareAndSet(this, before, Subscriptions.recompile(before, definition.table)));
+            CURRENT_ORDINAL.setRelease(this, 0);
+            definition.instanceCount.increment();
+            if(definition.metrics != null)
+                stateEnteredAt = definition.metrics.now();
+        }
+    }
+    
+    /**
+     * @param options the builder holding the options of the definition
+     */
+    FiniteStateMachineDefinition createDefinition(State initialState, FiniteStateMachineBuilder options) {
+        synchronized (instanceMonitor) {
+            return new FiniteStateMachineDefinition(TransitionTable.compile(stateMap, initialState, options.minimizationEnabled, options.timeouts), options);
+        }
+    }
+    
+    /**
+     * @param ordinalBase the ordinal instances store for the state of ordinal 0, see FiniteStateMachineDefinition.publishSuccessor(...)
+     * @param version the version of the definition
+     */
+    FiniteStateMachineDefinition createDefinition(State initialState, FiniteStateMachineBuilder options, int ordinalBase, int version) {
+        synchronized (instanceMonitor) {
+            return new FiniteStateMachineDefinition(TransitionTable.compile(stateMap, initialState, options.minimizationEnabled, options.timeouts),
+                                                    options, ordinalBase, version);
+        }
     }
     
     void addTransition(State from, Event event, State to) throws FiniteStateMachineException {
@@ -57,6 +166,8 @@ public class FiniteStateMachine {
             }
             if(transitionAlreadyExist)
                 throw new TransitionAlreadyExistException(from, event);
+            if(definition != null)
+                throw new FiniteStateMachineException("addTransition : the machine has been compiled, its transitions cannot change anymore");
 
             list.add(new Transition(event, to));
         }
@@ -80,44 +191,342 @@ public class FiniteStateMachine {
      * from the current state reacting to the event.
      */
     public void processEvent(Event event) throws TransitionNotAllowedException {
-        boolean hasToThrowException = false;
+        if(processEventWithOutcome(event) == TransitionOutcome.UNEXISTING_TRANSITION) {
+            FiniteStateMachineFlightRecorder recorder = Subscriptions.recorderOf(listeners); //may be detached by another thread
+            if(recorder != null)
+                throw new TransitionNotAllowedException(getState(), event, recorder.getRecords(this));
+            throw new TransitionNotAllowedException(getState(), event);
+        }
+    }
+    
+    /**
+     * This method acts the same as processEvent(...) but without notification of an
+     * unsupported transition. This behavior can be preferred when many events are processed,
+     * and we only want to capture a certain state (in case of a SAX parser for example).
+     * @param event the event that happened
+     */
+    public void processEventWithoutErrorNotification(Event event) {
+        processEventWithOutcome(event);
+    }
+    
+    /**
+     * This method acts the same as processEvent(...), but returns the outcome of the event instead
+     * of throwing an exception when the transition is not allowed.<br>
+     * Listeners are notified exactly the same way.<br>
+     * Neither this method nor the notification of listeners allocate anything, so it is the one to use
+     * when processing a huge number of events, many of them being ignored (in case of a SAX parser for
+     * example) : steady-state processing then creates no garbage at all.
+     * @param event the event that happened
+     * @return what the event produced : a state change, a state loop, or nothing if no transition
+     * exist from the current state reacting to the event
+     */
+    public TransitionOutcome processEventWithOutcome(Event event) {
+        if(definition != null && definition.concurrencyMode == ConcurrencyMode.LOCK_FREE)
+            return _processEventLockFree(event, null);
+        
         synchronized (instanceMonitor) {
+            return _processEventLocked(event, false);
+        }
+    }
+    
+    /**
+     * processEventWithOutcome(...) for a caller that is the only one to ever process events on this machine,
+     * a FiniteStateMachineMailbox : the monitor is not taken, so nothing is pinned or blocked while the
+     * transition and the listeners run. The caller must publish each event safely from one call to the next.
+     */
+    TransitionOutcome processEventSerially(Event event) {
+        if(definition != null && definition.concurrencyMode == ConcurrencyMode.LOCK_FREE)
+            return _processEventLockFree(event, null);
+        return _processEventLocked(event, false);
+    }
+
+    /**
+     * Fires the timeout event of a state, only if no transition was taken since the timeout was armed.
+     * @param entry the entry of the TimingWheel the machine must still be attached to
+     * @param expected the ordinal of the state that timed out
+     * @param armedAt the value of TimingWheel.Entry.changedAt when the timeout was armed
+     * @return the outcome, or null if the machine left the state, or reentered it, in the meantime
+     */
+    TransitionOutcome processTimeout(TimingWheel.Entry entry, Event event, int expected, long armedAt) {
+        if(definition.concurrencyMode == ConcurrencyMode.LOCK_FREE) {
+            if(getTimeout() != entry || entry.changedAt != armedAt)
+                return null;
+            return _processEventLockFree(event, expected, null);
+        }
+        synchronized (instanceMonitor) {
+            if(currentOrdinal != expected || getTimeout() != entry || entry.changedAt != armedAt)
+                return null;
+            return _processEventLocked(event, false);
+        }
+    }
+
+    /**
+     * Processes all the events of the array, in order, taking the monitor of the machine only once.<br>
+     * Each event is processed as processEventWithoutErrorNotification(...) would : the events for which no
+     * transition exists are counted as rejected, and the following events are processed anyway.<br>
+     * Listeners are notified of each event, except FiniteStateMachineBatchListener which are notified
+     * once at the end of the batch.
+     * @param events the events that happened
+     * @return how many events were accepted, and the index of the first rejected one
+     */
+    public BatchResult processEvents(Event[] events) {
+        return processEvents(events, 0, events.length);
+    }
+    
+    /**
+     * Acts the same as processEvents(Event[]) on a slice of the array.
+     * @param events the array holding the events that happened
+     * @param offset the index of the first event to process
+     * @param length the number of events to process
+     * @return how many events were accepted, and the index, relative to offset, of the first rejected one
+     */
+    public BatchResult processEvents(Event[] events, int offset, int length) {
+        if(offset < 0 || length < 0 || length > events.length - offset)
+            throw new IndexOutOfBoundsException("offset " + offset + " and length " + length + " for " + events.length + " events");
+        
+        BatchResult result = new BatchResult();
+        if(definition != null && definition.concurrencyMode == ConcurrencyMode.LOCK_FREE) {
+            for(int i = offset, end = offset + length; i < end; i++) {
+                _processEventLockFree(events[i], result);
+            }
+            _notifyBatchProcessed(result);
+        } else {
+            State from;
+            State to;
+            synchronized (instanceMonitor) {
+                from = getState();
+                for(int i = offset, end = offset + length; i < end; i++) {
+                    result.record(_processEventLocked(events[i], true));
+                }
+                to = getState();
+            }
+            _notifyBatchProcessed(from, to, result);
+        }
+        return result;
+    }
+    
+    /**
+     * Acts the same as processEvents(Event[]) on the events of an Iterable, a List for example.
+     * @param events the events that happened
+     * @return how many events were accepted, and the index of the first rejected one
+     */
+    public BatchResult processEvents(Iterable<Event> events) {
+        return _processEvents(events.spliterator());
+    }
+    
+    /**
+     * Acts the same as processEvents(Event[]) on the events of a Stream.<br>
+     * The stream is consumed sequentially by the calling thread, while holding the monitor of the machine.
+     * @param events the events that happened
+     * @return how many events were accepted, and the index of the first rejected one
+     */
+    public BatchResult processEvents(Stream<Event> events) {
+        return _processEvents(events.sequential().spliterator());
+    }
+    
+    private BatchResult _processEvents(Spliterator<Event> events) {
+        final BatchResult result = new BatchResult();
+        if(definition != null && definition.concurrencyMode == ConcurrencyMode.LOCK_FREE) {
+            events.forEachRemaining(event -> _processEventLockFree(event, result));
+            _notifyBatchProcessed(result);
+        } else {
+            State from;
+            State to;
+            synchronized (instanceMonitor) {
+                from = getState();
+                events.forEachRemaining(event -> result.record(_processEventLocked(event, true)));
+                to = getState();
+            }
+            _notifyBatchProcessed(from, to, result);
+        }
+        return result;
+    }
+    
+    /**
+     * Processes one event, the caller must hold the monitor of the machine.
+     * @param inBatch true to leave FiniteStateMachineBatchListener out of the notification
+     */
+    private TransitionOutcome _processEventLocked(Event event, boolean inBatch) {
+        State stateBefore;
+        State stateAfter = null;
+        int from = TransitionTable.NO_TRANSITION;
+        int eventOrdinal = TransitionTable.NO_TRANSITION;
+        TransitionTable table = null;
+        FiniteStateMachineDefinition definition = this.definition;
+        if(definition != null) {
+            if(definition.successor != null) //a next version was published, move to it before processing the event
+                definition = _migrate(definition, currentOrdinal);
+            table = definition.table;
+            TransitionDispatcher dispatcher = definition.dispatcher;
+            int base = definition.ordinalBase;
+            from = currentOrdinal - base;
+            eventOrdinal = dispatcher.eventOrdinal(event);
+            int next = dispatcher.nextState(from, eventOrdinal);
+            stateBefore = table.states[from];
+            if(next != TransitionTable.NO_TRANSITION) {
+                CURRENT_ORDINAL.setRelease(this, base + next);
+                stateAfter = table.states[next];
+                TimingWheel.Entry timeout = Subscriptions.timeoutOf(listeners); //may be detached by another thread
+                if(timeout != null)
+                    timeout.transitionTaken();
+            }
+            if(definition.metrics != null)
+                _recordMetrics(definition.metrics, from, eventOrdinal, next);
+        } else {
+            stateBefore = currentState;
             List<Transition> list = stateMap.get(currentState);
             if(list != null) { //in case there is no transition starting from the currentstate
-                for(Transition transition : list) {
+                for(int i = 0, n = list.size(); i < n; i++) {
+                    Transition transition = list.get(i);
                     if(transition.getEvent() == event) {
-                        State stateBefore = currentState;
-                        currentState = transition.getDestinationState();
-                        State stateAfter = currentState;
-                        if(stateBefore != stateAfter) { //state change
-                            _notifyStateChanged(stateBefore, event, stateAfter);
-                        } else { //state loop
-                            _notifyStateLoop(currentState, event);
-                        }
+                        stateAfter = transition.getDestinationState();
                         break;
                     }
                 }
-            } else { //there are no transitions from the current state reacting to this event
-                _notifyUnexistingTransition(currentState, event);
-                hasToThrowException = true;
             }
         }
-        if(hasToThrowException) {
-            throw new TransitionNotAllowedException(currentState, event);
+        
+        if(stateAfter == null) { //there are no transitions from the current state reacting to this event
+            _notify(TransitionOutcome.UNEXISTING_TRANSITION, stateBefore, event, null, table, from, eventOrdinal, inBatch);
+            return TransitionOutcome.UNEXISTING_TRANSITION;
+        }
+        if(definition == null)
+            CURRENT_STATE.setRelease(this, stateAfter);
+        if(stateBefore != stateAfter) { //state change
+            FiniteStateMachineBroadcaster.Member broadcast = Subscriptions.broadcastOf(listeners); //may be unregistered by another thread
+            if(broadcast != null)
+                broadcast.stateChanged();
+            _notify(TransitionOutcome.STATE_CHANGED, stateBefore, event, stateAfter, table, from, eventOrdinal, inBatch);
+            return TransitionOutcome.STATE_CHANGED;
         }
+        _notify(TransitionOutcome.STATE_LOOP, stateAfter, event, stateAfter, table, from, eventOrdinal, inBatch); //state loop
+        return TransitionOutcome.STATE_LOOP;
     }
     
     /**
-     * This method acts the same as processEvent(...) but without notification of an
-     * unsupported transition. This behavior can be preferred when many events are processed,
-     * and we only want to capture a certain state (in case of a SAX parser for example).
-     * @param event the event that happened
+     * processEventWithOutcome(...) for ConcurrencyMode.LOCK_FREE : the transition is committed with a
+     * compare-and-set on currentOrdinal, then the listeners are notified without any lock held.
+     * @param batch the batch the event is part of, null if none : the event is then recorded in it, along with the states it
+     * went from and to, and FiniteStateMachineBatchListener are left out of the notification
      */
-    public void processEventWithoutErrorNotification(Event event) {
-        try {
-            processEvent(event);
-        } catch(TransitionNotAllowedException e) {
-            //we do not notify the client
+    private TransitionOutcome _processEventLockFree(Event event, BatchResult batch) {
+        return _processEventLockFree(event, TransitionTable.NO_TRANSITION, batch);
+    }
+    
+    /**
+     * @param expected the ordinal, as stored, of the state the event is meant for, or NO_TRANSITION for any state
+     * @return the outcome, or null if the machine was not in the expected state
+     */
+    private TransitionOutcome _processEventLockFree(Event event, int expected, BatchResult batch) {
+        boolean inBatch = batch != null;
+        FiniteStateMachineDefinition definition = null;
+        TransitionDispatcher dispatcher = null;
+        int eventOrdinal = TransitionTable.NO_TRANSITION;
+        int stored;
+        int from;
+        int next;
+        while(true) {
+            FiniteStateMachineDefinition current = (FiniteStateMachineDefinition) DEFINITION.getAcquire(this); //before the ordinal
+            stored = (int) CURRENT_ORDINAL.getAcquire(this);
+            if(expected != TransitionTable.NO_TRANSITION && stored != expected)
+                return null;
+            current = current.owner(stored);
+            if(current.successor != null) { //a next version was published : move to it, or see the move of another thread
+                _migrate(current, stored);
+                continue;
+            }
+            if(current != definition) {
+                definition = current;
+                dispatcher = current.dispatcher;
+                eventOrdinal = dispatcher.eventOrdinal(event);
+            }
+            from = stored - definition.ordinalBase;
+            next = dispatcher.nextState(from, eventOrdinal);
+            if(next == TransitionTable.NO_TRANSITION) {
+                if(definition.metrics != null)
+                    definition.metrics.recordUnexistingTransition(from);
+                if(inBatch)
+                    batch.record(TransitionOutcome.UNEXISTING_TRANSITION, definition.table.states[from], definition.table.states[from]);
+                _notify(TransitionOutcome.UNEXISTING_TRANSITION, definition.table.states[from], event, null, definition.table, from, eventOrdinal, inBatch);
+                return TransitionOutcome.UNEXISTING_TRANSITION;
+            }
+            if(next == from || CURRENT_ORDINAL.compareAndSet(this, stored, definition.ordinalBase + next))
+                break; //the ordinals of two versions never collide, so an ordinal seen again is the same state of the same version
+        }
+        
+        TransitionTable table = definition.table;
+        TimingWheel.Entry timeout = Subscriptions.timeoutOf(listeners); //may be detached by another thread
+        if(timeout != null)
+            timeout.transitionTaken();
+        if(definition.metrics != null)
+            _recordMetrics(definition.metrics, from, eventOrdinal, next);
+        if(inBatch) //the states this transition committed, whatever other threads did before and after it
+            batch.record(next != from ? TransitionOutcome.STATE_CHANGED : TransitionOutcome.STATE_LOOP, table.states[from], table.states[next]);
+        if(next != from) { //state change
+            FiniteStateMachineBroadcaster.Member broadcast = Subscriptions.broadcastOf(listeners); //may be unregistered by another thread
+            if(broadcast != null)
+                broadcast.stateChanged();
+            _notify(TransitionOutcome.STATE_CHANGED, table.states[from], event, table.states[next], table, from, eventOrdinal, inBatch);
+            return TransitionOutcome.STATE_CHANGED;
+        }
+        _notify(TransitionOutcome.STATE_LOOP, table.states[next], event, table.states[next], table, from, eventOrdinal, inBatch); //state loop
+        return TransitionOutcome.STATE_LOOP;
+    }
+    
+    /**
+     * Moves the machine to the latest version of its definition, following the state mapping of each version
+     * in between. No listener is notified, their subscriptions are indexed again for the new table.<br>
+     * In ConcurrencyMode.LOCKED the caller holds the monitor, in LOCK_FREE the ordinal is moved with a compare-and-set.
+     * @param definition the version owning the stored ordinal, which has a successor
+     * @param stored the ordinal stored by the machine
+     * @return the latest version, or null if another thread changed the ordinal first
+     */
+    private FiniteStateMachineDefinition _migrate(FiniteStateMachineDefinition definition, int stored) {
+        FiniteStateMachineDefinition target = definition;
+        int ordinal = stored - definition.ordinalBase;
+        FiniteStateMachineDefinition.Successor successor;
+        while((successor = target.successor) != null) {
+            ordinal = successor.ordinals[ordinal];
+            target = successor.definition;
+        }
+        if(definition.concurrencyMode == ConcurrencyMode.LOCK_FREE) {
+            if(!CURRENT_ORDINAL.compareAndSet(this, stored, target.ordinalBase + ordinal))
+                return null;
+        } else {
+            CURRENT_ORDINAL.setRelease(this, target.ordinalBase + ordinal);
+        }
+        FiniteStateMachineDefinition seen;
+        do { //after the ordinal, and never backward if a later move of another thread is already visible
+            seen = (FiniteStateMachineDefinition) DEFINITION.getAcquire(this);
+        } while(seen.ordinalBase < target.ordinalBase && !DEFINITION.compareAndSet(this, seen, target));
+        definition.instanceCount.decrement();
+        target.instanceCount.increment();
+        if(target.metrics != null)
+            stateEnteredAt = target.metrics.now();
+        
+        Subscriptions before;
+        do {
+            before = listeners;
+        } while(!LISTENERS.compareAndSet(this, before, Subscriptions.migrate(before, target)));
+        TimingWheel.Entry timeout = Subscriptions.timeoutOf(listeners); //may be detached by another thread
+        if(timeout != null)
+            timeout.transitionTaken();
+        FiniteStateMachineBroadcaster.Member broadcast = Subscriptions.broadcastOf(listeners); //may be unregistered by another thread
+        if(broadcast != null)
+            broadcast.stateChanged();
+        return target;
+    }
+    
+    private void _recordMetrics(FiniteStateMachineMetrics metrics, int from, int eventOrdinal, int next) {
+        if(next == TransitionTable.NO_TRANSITION) {
+            metrics.recordUnexistingTransition(from);
+            return;
+        }
+        metrics.recordTransition(from, eventOrdinal);
+        if(next != from) {
+            int now = metrics.now();
+            metrics.recordDwellTime(from, stateEnteredAt, now);
+            stateEnteredAt = now;
         }
     }
     
@@ -155,8 +564,16 @@ public class FiniteStateMachine {
      * @return true if a transition exist
      */
     public boolean isTransitionExisting(Event event) {
+        FiniteStateMachineDefinition definition = (FiniteStateMachineDefinition) DEFINITION.getAcquire(this); //before the ordinal
+        if(definition != null) {
+            int stored = (int) CURRENT_ORDINAL.getAcquire(this);
+            definition = definition.owner(stored);
+            TransitionTable table = definition.table;
+            return table.nextState(stored - definition.ordinalBase, table.eventOrdinal(event)) != TransitionTable.NO_TRANSITION;
+        }
+        
         boolean transitionExist = false;
-        List<Transition> list = stateMap.get(currentState);
+        List<Transition> list = stateMap.get((State) CURRENT_STATE.getAcquire(this));
         if(list != null) { //in case there is no transition starting from the currentstate
             for(Transition transition : list) {
                 if(transition.getEvent() == event) {
@@ -173,41 +590,285 @@ public class FiniteStateMachine {
      * @return the current state
      */
     public State getState() {
-        return currentState;
+        FiniteStateMachineDefinition definition = (FiniteStateMachineDefinition) DEFINITION.getAcquire(this); //before the ordinal
+        if(definition != null) {
+            int stored = (int) CURRENT_ORDINAL.getAcquire(this);
+            definition = definition.owner(stored);
+            return definition.table.states[stored - definition.ordinalBase];
+        }
+        return (State) CURRENT_STATE.getAcquire(this);
+    }
+    
+    /**
+     * @param definition a version of the definition of this compiled machine
+     * @return the ordinal of the current state in that version, or NO_TRANSITION if the machine is on another version
+     */
+    int getStateOrdinal(FiniteStateMachineDefinition definition) {
+        int ordinal = (int) CURRENT_ORDINAL.getAcquire(this) - definition.ordinalBase;
+        return ordinal >= 0 && ordinal < definition.table.states.length ? ordinal : TransitionTable.NO_TRANSITION;
+    }
+    
+    /**
+     * Retrieves the definition this state machine was created from, or the version of it the machine moved to
+     * since, see FiniteStateMachineDefinition.publishSuccessor(...)
+     * @return the definition, or null if the machine was built by createFSM(...) and is still interpreted
+     */
+    public FiniteStateMachineDefinition getDefinition() {
+        FiniteStateMachineDefinition definition = (FiniteStateMachineDefinition) DEFINITION.getAcquire(this); //before the ordinal
+        return definition == null ? null : definition.owner((int) CURRENT_ORDINAL.getAcquire(this));
     }
     
     
     /**************************************************************************
      *                           listeners part                               *
      *************************************************************************/
-    protected List<FiniteStateMachineListener> listeners = new ArrayList<FiniteStateMachineListener>();
+    private volatile Subscriptions listeners = null; //replaced as a whole by each change, null until the first listener
     
+    /**
+     * Adds a listener receiving every notification.<br>
+     * Listeners can be added and removed at any time, from any thread, even while events are processed :
+     * the listeners are an immutable snapshot, replaced as a whole, so each event is notified to the listeners
+     * registered when its notification starts.
+     */
     public void addListener(FiniteStateMachineListener listener) {
-        listeners.add(listener);
+        addListener(listener, null);
+    }
+    
+    /**
+     * Adds a listener only receiving the notifications its subscription matches : eventOccurred(...) and
+     * the specific method are only called for them.<br>
+     * On a compiled machine, or an instance of a definition, subscriptions are evaluated once for every
+     * (state, event) couple when the listener is added, and notifying an event only iterates the listeners
+     * interested in it. This index costs a reference per couple, shared by all the instances of the definition
+     * that add the same listeners in the same order.
+     * @param listener the listener
+     * @param subscription the notifications to receive, null for all of them
+     */
+    public void addListener(FiniteStateMachineListener listener, FiniteStateMachineSubscription subscription) {
+        Subscriptions before;
+        do {
+            before = listeners;
+        } while(!LISTENERS.compareAndSet(this, before, Subscriptions.add(before, listener, subscription, getDefinition())));
     }
     
+    /**
+     * Removes the first registration of the listener, like List.remove(...).
+     */
     public void removeListener(FiniteStateMachineListener listener) {
-        listeners.remove(listener);
+        Subscriptions before;
+        do {
+            before = listeners;
+        } while(!LISTENERS.compareAndSet(this, before, Subscriptions.remove(before, listener, getDefinition())));
     }
 
-    protected void _notifyStateChanged(State from, Event event, State to) {
-        for(FiniteStateMachineListener listener : listeners) {
-            listener.eventOccurred(from, event, to);
-            listener.stateChanged(from, event, to);
+    /**
+     * Attaches the machine to a FiniteStateMachineFlightRecorder, or detaches it : the recorder is kept in the
+     * snapshot of the listeners, read at each notification anyway.
+     * @param expected the recorder the machine must be attached to, null if it must not be attached to any
+     * @param recorder the recorder to attach it to, null to detach it
+     * @return false if the machine was not attached to the expected recorder
+     */
+    boolean replaceRecorder(FiniteStateMachineFlightRecorder expected, FiniteStateMachineFlightRecorder recorder) {
+        Subscriptions before;
+        do {
+            before = listeners;
+            if(Subscriptions.recorderOf(before) != expected)
+                return false;
+        } while(!LISTENERS.compareAndSet(this, before, Subscriptions.attach(before, recorder, Subscriptions.timeoutOf(before),
+                                                                            Subscriptions.broadcastOf(before))));
+        return true;
+    }
+
+    /**
+     * Attaches the machine to a TimingWheel, or detaches it, the same way as replaceRecorder(...) : the entry is told
+     * about every transition taken.
+     * @param expected the entry the machine must have, null if it must not be attached to any wheel
+     * @param timeout the entry to attach it with, null to detach it
+     * @return false if the machine did not have the expected entry
+     */
+    boolean replaceTimeout(TimingWheel.Entry expected, TimingWheel.Entry timeout) {
+        Subscriptions before;
+        do {
+            before = listeners;
+            if(Subscriptions.timeoutOf(before) != expected)
+                return false;
+        } while(!LISTENERS.compareAndSet(this, before, Subscriptions.attach(before, Subscriptions.recorderOf(before), timeout,
+                                                                            Subscriptions.broadcastOf(before))));
+        return true;
+    }
+
+    /**
+     * Registers the machine to a FiniteStateMachineBroadcaster, or unregisters it, the same way as replaceRecorder(...) :
+     * the member is told about every state change.
+     * @param expected the member the machine must have, null if it must not be registered to any broadcaster
+     * @param broadcast the member to register it with, null to unregister it
+     * @return false if the machine did not have the expected member
+     */
+    boolean replaceBroadcast(FiniteStateMachineBroadcaster.Member expected, FiniteStateMachineBroadcaster.Member broadcast) {
+        Subscriptions before;
+        do {
+            before = listeners;
+            if(Subscriptions.broadcastOf(before) != expected)
+                return false;
+        } while(!LISTENERS.compareAndSet(this, before, Subscriptions.attach(before, Subscriptions.recorderOf(before),
+                                                                            Subscriptions.timeoutOf(before), broadcast)));
+        return true;
+    }
+
+    /**
+     * @return the entry of the TimingWheel the machine is attached to, null if none
+     */
+    TimingWheel.Entry getTimeout() {
+        return Subscriptions.timeoutOf(listeners);
+    }
+
+    /**
+     * @return the member of the FiniteStateMachineBroadcaster the machine is registered to, null if none
+     */
+    FiniteStateMachineBroadcaster.Member getBroadcast() {
+        return Subscriptions.broadcastOf(listeners);
+    }
+
+    /**
+     * @param table the table the ordinals belong to, null if the machine is not compiled
+     * @param fromOrdinal the ordinal of the state before the event, NO_TRANSITION if the machine is not compiled
+     * @param eventOrdinal the ordinal of the event, NO_TRANSITION if the table does not know it
+     * @param inBatch true to leave FiniteStateMachineBatchListener out of the notification
+     */
+    private void _notify(TransitionOutcome outcome, State from, Event event, State to, TransitionTable table,
+                         int fromOrdinal, int eventOrdinal, boolean inBatch) {
+        Subscriptions subscriptions = listeners;
+        if(getClass() != FiniteStateMachine.class && OVERRIDES_HOOKS.get(getClass())) {
+            if(subscriptions != null && subscriptions.recorder != null)
+                subscriptions.recorder.record(this, outcome, from, event, to);
+            _notifyThroughHooks(outcome, from, event, to);
+            return;
+        }
+        if(subscriptions == null)
+            return;
+        if(subscriptions.recorder != null)
+            subscriptions.recorder.record(this, outcome, from, event, to);
+        if(!subscriptions.filtered) {
+            _deliver(subscriptions.listeners, null, outcome, from, event, to, inBatch);
+        } else if(subscriptions.cells != null && subscriptions.table == table && fromOrdinal != TransitionTable.NO_TRANSITION) { //only the interested listeners
+            int column = eventOrdinal == TransitionTable.NO_TRANSITION ? subscriptions.columns - 1 : eventOrdinal;
+            _deliver(subscriptions.cells[fromOrdinal * subscriptions.columns + column], null, outcome, from, event, to, inBatch);
+            if(eventOrdinal == TransitionTable.NO_TRANSITION && subscriptions.unknownEventListeners != null)
+                _deliver(subscriptions.unknownEventListeners, subscriptions.unknownEventFilters, outcome, from, event, to, inBatch);
+        } else { //interpreted machine, or listeners not indexed yet for the version just moved to : subscriptions are matched at each notification
+            _deliver(subscriptions.listeners, subscriptions.filters, outcome, from, event, to, inBatch);
         }
     }
     
-    protected void _notifyStateLoop(State state, Event event) {
-        for(FiniteStateMachineListener listener : listeners) {
-            listener.eventOccurred(state, event, state);
-            listener.stateLoop(state, event);
+    @SuppressWarnings("deprecation")
+    private void _notifyThroughHooks(TransitionOutcome outcome, State from, Event event, State to) {
+        switch(outcome) {
+            case STATE_CHANGED:
+                _notifyStateChanged(from, event, to);
+                break;
+            case STATE_LOOP:
+                _notifyStateLoop(from, event);
+                break;
+            default:
+                _notifyUnexistingTransition(from, event);
         }
     }
     
+    /**
+     * Notifies the listeners of a state change.<br>
+     * Subclasses overriding this method, _notifyStateLoop(...) or _notifyUnexistingTransition(...) have every
+     * notification go through these three methods, which notify the listeners unless overridden : their listeners
+     * are not indexed by subscription anymore, and their FiniteStateMachineBatchListener are also told about each
+     * event of a batch. The flight recorder still records every event.
+     * @deprecated add a FiniteStateMachineListener instead, these hooks will be removed in the next release
+     */
+    @Deprecated
+    protected void _notifyStateChanged(State from, Event event, State to) {
+        _notifyAll(TransitionOutcome.STATE_CHANGED, from, event, to);
+    }
+    
+    /**
+     * Notifies the listeners of a state loop, see _notifyStateChanged(...).
+     * @deprecated add a FiniteStateMachineListener instead, these hooks will be removed in the next release
+     */
+    @Deprecated
+    protected void _notifyStateLoop(State state, Event event) {
+        _notifyAll(TransitionOutcome.STATE_LOOP, state, event, state);
+    }
+    
+    /**
+     * Notifies the listeners of an event no transition reacts to, see _notifyStateChanged(...).
+     * @deprecated add a FiniteStateMachineListener instead, these hooks will be removed in the next release
+     */
+    @Deprecated
     protected void _notifyUnexistingTransition(State from, Event event) {
-        for(FiniteStateMachineListener listener : listeners) {
-            listener.eventOccurred(from, event, null);
-            listener.unexistingTransition(from, event);
+        _notifyAll(TransitionOutcome.UNEXISTING_TRANSITION, from, event, null);
+    }
+    
+    /**
+     * Notifies the listeners without their index : subscriptions are matched at each notification
+     */
+    private void _notifyAll(TransitionOutcome outcome, State from, Event event, State to) {
+        Subscriptions subscriptions = listeners;
+        if(subscriptions != null)
+            _deliver(subscriptions.listeners, subscriptions.filtered ? subscriptions.filters : null, outcome, from, event, to, false);
+    }
+    
+    private static boolean _declares(Class<?> type, String name, Class<?>... parameterTypes) {
+        try {
+            type.getDeclaredMethod(name, parameterTypes);
+            return true;
+        } catch(NoSuchMethodException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * @param filters the subscriptions of the listeners, to match at each notification, or null to notify them all
+     */
+    private static void _deliver(FiniteStateMachineListener[] targets, FiniteStateMachineSubscription[] filters,
+                                 TransitionOutcome outcome, State from, Event event, State to, boolean inBatch) {
+        for(int i = 0; i < targets.length; i++) { //no iterator, notifying must not allocate
+            FiniteStateMachineListener listener = targets[i];
+            if(inBatch && listener instanceof FiniteStateMachineBatchListener)
+                continue; //notified once the batch is over
+            if(filters != null && filters[i] != null && !filters[i].matches(from, event, to, outcome))
+                continue;
+            listener.eventOccurred(from, event, to);
+            switch(outcome) {
+                case STATE_CHANGED:
+                    listener.stateChanged(from, event, to);
+                    break;
+                case STATE_LOOP:
+                    listener.stateLoop(from, event);
+                    break;
+                default:
+                    listener.unexistingTransition(from, event);
+            }
+        }
+    }
+    
+    /**
+     * _notifyBatchProcessed(...) of a batch processed in ConcurrencyMode.LOCK_FREE : the states are the ones its own
+     * events went from and to, other threads may have changed the state in between
+     */
+    private void _notifyBatchProcessed(BatchResult result) {
+        if(result.getProcessedCount() == 0) {
+            State state = getState();
+            _notifyBatchProcessed(state, state, result);
+        } else {
+            _notifyBatchProcessed(result.from, result.to, result);
+        }
+    }
+
+    protected void _notifyBatchProcessed(State from, State to, BatchResult result) {
+        Subscriptions subscriptions = listeners;
+        if(subscriptions == null)
+            return;
+        for(int i = 0; i < subscriptions.listeners.length; i++) {
+            FiniteStateMachineListener listener = subscriptions.listeners[i];
+            if(listener instanceof FiniteStateMachineBatchListener)
+                ((FiniteStateMachineBatchListener) listener).eventsProcessed(from, to, result);
         }
     }
 }
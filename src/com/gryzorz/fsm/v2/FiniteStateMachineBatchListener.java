@@ -0,0 +1,22 @@
+package com.gryzorz.fsm.v2;
+
+/**
+ * A FiniteStateMachineListener that prefers to be informed once per batch of events.<br>
+ * When events are injected with one of the FiniteStateMachine.processEvents(...) methods, listeners
+ * implementing this interface are not called for each event : they only receive eventsProcessed(...)
+ * once the whole batch has been processed.<br>
+ * Events injected one at a time are still notified through the usual FiniteStateMachineListener methods.
+ * 
+ * @author Benoit Fernandez
+ */
+public interface FiniteStateMachineBatchListener extends FiniteStateMachineListener {
+    
+    /**
+     * Called once all the events of a batch have been processed.
+     * @param from the state of the FiniteStateMachine before the first event of the batch
+     * @param to the state of the FiniteStateMachine after the last event of the batch, the same as
+     * "from" if no event changed the state or if the changes made a loop
+     * @param result how many events were processed, accepted and rejected
+     */
+    void eventsProcessed(State from, State to, BatchResult result);
+}
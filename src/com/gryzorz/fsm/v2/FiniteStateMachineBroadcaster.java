@@ -0,0 +1,298 @@
+package com.gryzorz.fsm.v2;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Feeds one stream of events to many machines, only processing each event on the machines able to react to it.<br>
+ * register(...) each machine, then broadcast(...) the events : the broadcaster keeps, for each event, the machines
+ * whose current state has a transition on it, so broadcasting an event costs the number of machines it reaches,
+ * whatever the number of machines registered. The others are not called at all : no unexistingTransition
+ * notification, no TransitionNotAllowedException.<br>
+ * <br>
+ * A registered machine tells the broadcaster each time it changes state, so the index stays right whoever processes
+ * its events : broadcast(...), processEvent(...) called directly, or a TimingWheel. A machine changing
+ * state at the very moment an event is broadcast may still receive it while it no longer reacts to it, or miss it
+ * while it just started to : such an event is processed as usual, with the outcome processEventWithOutcome(...) gives.<br>
+ * <br>
+ * Compiled machines, and instances of a definition, read the events of their states from the transition table, the
+ * table of the next version once they move to it, see FiniteStateMachineDefinition.publishSuccessor(...).
+ * Interpreted machines are looked up each time they change state, so a transition added to one of them after it was
+ * registered is only seen once it enters that state again. A machine can only be registered to one broadcaster at a
+ * time. Machines driven by a FiniteStateMachineMailbox must not be registered, as the broadcaster would process events
+ * concurrently with the mailbox.<br>
+ * <br>
+ * Every method can be called from any thread. The index is guarded by the monitor of the broadcaster, which is never
+ * held while an event is processed, so listeners can broadcast or register machines themselves.
+ *
+ * @author Benoit Fernandez
+ */
+public class FiniteStateMachineBroadcaster {
+    private static final Event[] NO_EVENT = new Event[0];
+
+    /* guarded by the monitor of the broadcaster */
+    private final Map<Event, Bucket> buckets = new IdentityHashMap<Event, Bucket>();
+    private final Map<TransitionTable, Event[][]> reactions = new IdentityHashMap<TransitionTable, Event[][]>(); //events of each state ordinal
+    private int machineCount = 0;
+
+    /**
+     * Creates an empty broadcaster.
+     */
+    public FiniteStateMachineBroadcaster() {
+    }
+
+    /**
+     * Starts sending the broadcast events to a machine, from the state it is in.
+     * @param fsm the machine
+     * @throws FiniteStateMachineException if the machine is null, or already registered to a broadcaster
+     */
+    public void register(FiniteStateMachine fsm) throws FiniteStateMachineException {
+        if(fsm == null)
+            throw new FiniteStateMachineException("register : cannot register a null machine");
+        Member member = new Member(this, fsm, fsm.definition != null);
+        synchronized (fsm.instanceMonitor) { //never while holding the monitor of the broadcaster : the machine calls it holding its own
+            if(!fsm.replaceBroadcast(null, member))
+                throw new FiniteStateMachineException("register : the machine is already registered to a FiniteStateMachineBroadcaster");
+        }
+        synchronized (this) {
+            machineCount++;
+        }
+        _reindex(member);
+    }
+
+    /**
+     * Stops sending the broadcast events to a machine.
+     * @return false if the machine was not registered to this broadcaster
+     */
+    public boolean unregister(FiniteStateMachine fsm) {
+        Member member;
+        synchronized (fsm.instanceMonitor) {
+            member = fsm.getBroadcast();
+            if(member == null || member.broadcaster != this)
+                return false;
+            fsm.replaceBroadcast(member, null);
+        }
+        synchronized (this) {
+            member.unregistered = true;
+            _unindex(member);
+            machineCount--;
+        }
+        return true;
+    }
+
+    /**
+     * Processes an event on every registered machine whose current state reacts to it, in no particular order.<br>
+     * A RuntimeException thrown by a listener does not stop the broadcast, it is thrown once every machine received the event.
+     * @return the number of machines which took a transition, loops included
+     */
+    public int broadcast(Event event) {
+        Member[] targets;
+        int count;
+        synchronized (this) {
+            Bucket bucket = buckets.get(event);
+            if(bucket == null)
+                return 0;
+            count = bucket.size;
+            targets = Arrays.copyOf(bucket.members, count); //machines leave the bucket while they process the event
+        }
+
+        int taken = 0;
+        RuntimeException failure = null;
+        for(int i = 0; i < count; i++) {
+            try {
+                if(targets[i].fsm.processEventWithOutcome(event) != TransitionOutcome.UNEXISTING_TRANSITION)
+                    taken++;
+            } catch(RuntimeException e) {
+                if(failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if(failure != null)
+            throw failure;
+        return taken;
+    }
+
+    /**
+     * @return the number of registered machines
+     */
+    public synchronized int getMachineCount() {
+        return machineCount;
+    }
+
+    /**
+     * @return the number of registered machines whose current state reacts to the event, those broadcast(event) would reach
+     */
+    public synchronized int getReactingCount(Event event) {
+        Bucket bucket = buckets.get(event);
+        return bucket == null ? 0 : bucket.size;
+    }
+
+
+    /**************************************************************************
+     *                             index part                                 *
+     *************************************************************************/
+
+    private static Event[][] _reactions(TransitionTable table) {
+        Event[][] reactions = new Event[table.states.length][];
+        Event[] scratch = new Event[table.eventCount];
+        for(int state = 0; state < reactions.length; state++) {
+            int count = 0;
+            for(int event = 0; event < table.eventCount; event++) {
+                if(table.nextState(state, event) != TransitionTable.NO_TRANSITION)
+                    scratch[count++] = table.events[event];
+            }
+            reactions[state] = count == 0 ? NO_EVENT : Arrays.copyOf(scratch, count);
+        }
+        return reactions;
+    }
+
+    /**
+     * Moves a machine to the buckets of the state it is in now, if it is not already there.
+     */
+    private void _reindex(Member member) {
+        FiniteStateMachine fsm = member.fsm;
+        while(true) {
+            //read the state outside of the monitor : an interpreted machine is read under its own
+            State state;
+            Event[] events = null;
+            TransitionTable table = null;
+            FiniteStateMachineDefinition definition = null;
+            int ordinal = TransitionTable.NO_TRANSITION;
+            if(member.compiled) {
+                definition = fsm.getDefinition();
+                ordinal = fsm.getStateOrdinal(definition);
+                if(ordinal == TransitionTable.NO_TRANSITION)
+                    continue; //moved to the next version of its definition meanwhile
+                table = definition.table;
+                state = table.states[ordinal];
+            } else {
+                state = fsm.getState();
+                events = _reactions(fsm, state);
+            }
+            synchronized (this) {
+                if(member.unregistered || member.state == state && member.table == table)
+                    return; //a same state may react to other events in the next version of a definition
+                if(member.compiled ? fsm.getStateOrdinal(definition) != ordinal : fsm.getState() != state)
+                    continue; //changed again meanwhile, index the latest state
+                if(member.compiled) {
+                    Event[][] tableReactions = reactions.get(table);
+                    if(tableReactions == null) {
+                        tableReactions = _reactions(table);
+                        reactions.put(table, tableReactions);
+                    }
+                    events = tableReactions[ordinal];
+                }
+                _unindex(member);
+                member.state = state;
+                member.table = table;
+                if(member.buckets.length < events.length) {
+                    member.buckets = new Bucket[events.length];
+                    member.positions = new int[events.length];
+                }
+                for(int i = 0; i < events.length; i++) {
+                    Bucket bucket = buckets.get(events[i]);
+                    if(bucket == null) {
+                        bucket = new Bucket();
+                        buckets.put(events[i], bucket);
+                    }
+                    member.buckets[i] = bucket;
+                    member.positions[i] = bucket.add(member, i);
+                }
+                member.bucketCount = events.length;
+                return;
+            }
+        }
+    }
+
+    private static Event[] _reactions(FiniteStateMachine fsm, State state) {
+        synchronized (fsm.instanceMonitor) {
+            List<Transition> list = fsm.stateMap.get(state);
+            if(list == null || list.isEmpty())
+                return NO_EVENT;
+            Event[] events = new Event[list.size()];
+            for(int i = 0; i < events.length; i++) {
+                events[i] = list.get(i).getEvent();
+            }
+            return events;
+        }
+    }
+
+    /**
+     * Removes a machine from all its buckets, must be called holding the monitor.
+     */
+    private void _unindex(Member member) {
+        for(int i = 0; i < member.bucketCount; i++) {
+            Bucket bucket = member.buckets[i];
+            bucket.remove(member.positions[i]);
+            member.buckets[i] = null;
+        }
+        member.bucketCount = 0;
+        member.state = null;
+        member.table = null;
+    }
+
+    /**
+     * A registered machine, called by the machine each time it changes state.
+     */
+    static final class Member {
+        final FiniteStateMachineBroadcaster broadcaster;
+        final FiniteStateMachine fsm;
+        final boolean compiled;
+
+        /* guarded by the monitor of the broadcaster */
+        State state = null; //the state the buckets were chosen for, null while in no bucket
+        TransitionTable table = null; //the table of that state, null for interpreted machines
+        Bucket[] buckets = new Bucket[2];
+        int[] positions = new int[2]; //the index of the machine in each of its buckets
+        int bucketCount = 0;
+        boolean unregistered = false;
+
+        Member(FiniteStateMachineBroadcaster broadcaster, FiniteStateMachine fsm, boolean compiled) {
+            this.broadcaster = broadcaster;
+            this.fsm = fsm;
+            this.compiled = compiled;
+        }
+
+        void stateChanged() {
+            broadcaster._reindex(this);
+        }
+    }
+
+    /**
+     * The machines reacting to an event, in no order : removing one moves the last one to its place.
+     */
+    private static final class Bucket {
+        Member[] members = new Member[4];
+        int[] slots = new int[4]; //the index of this bucket in the buckets of each member
+        int size = 0;
+
+        /**
+         * @return the index of the member in this bucket
+         */
+        int add(Member member, int slot) {
+            if(size == members.length) {
+                members = Arrays.copyOf(members, size * 2);
+                slots = Arrays.copyOf(slots, size * 2);
+            }
+            members[size] = member;
+            slots[size] = slot;
+            return size++;
+        }
+
+        void remove(int index) {
+            int last = --size;
+            if(index != last) {
+                Member moved = members[last];
+                members[index] = moved;
+                slots[index] = slots[last];
+                moved.positions[slots[index]] = index;
+            }
+            members[last] = null;
+        }
+    }
+}
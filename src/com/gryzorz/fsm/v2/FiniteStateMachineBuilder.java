@@ -1,5 +1,8 @@
 package com.gryzorz.fsm.v2;
 
+import java.time.Duration;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 /**
  * This class handles the creation of a FiniteStateMachine.<br>
@@ -9,23 +12,164 @@ package com.gryzorz.fsm.v2;
  * 2) Instanciate a FiniteStateMachineBuilder<br>
  * 3) use method addTransition(...) as often as you need to build the correct transitions according to your drawing<br>
  * 4) use method createFSM(...) specifying the initial state to retrieve the instance of your state machine<br>
- * 5) see FiniteStateMachine to see how to use it
+ * 5) see FiniteStateMachine to see how to use it<br>
+ * <br>
+ * If you need many state machines sharing the same transitions, use method createDefinition(...) at step 4
+ * instead, and create each machine with FiniteStateMachineDefinition.newInstance().<br>
+ * For generated graphs of millions of transitions, see FiniteStateMachineBulkBuilder.
  * 
  * @author Benoit Fernandez
  */
 public class FiniteStateMachineBuilder {
     private FiniteStateMachine fsm = new FiniteStateMachine();
+    ConcurrencyMode concurrencyMode = ConcurrencyMode.LOCKED;
+    boolean metricsEnabled = false;
+    boolean minimizationEnabled = false;
+    boolean dispatcherGenerationEnabled = false;
+    final Map<State, StateTimeout> timeouts = new IdentityHashMap<State, StateTimeout>();
     
     public void addTransition(State from, Event event, State to) throws FiniteStateMachineException {
         fsm.addTransition(from, event, to);
     }
     
+    /**
+     * Makes a state fire an event by itself when the machine stays in it for too long, an order waiting
+     * for its payment for example.<br>
+     * The delay starts each time a transition enters the state, or loops on it, and the event is processed
+     * like any other once it elapses, unless a transition was taken in the meantime. Timeouts are fired by a
+     * TimingWheel the machines are attached to : see TimingWheel.attach(...).<br>
+     * A timeout on a state no transition leads to or starts from is ignored. As timeouts are kept by state
+     * ordinal, createFSM(...) then returns a compiled machine, like createCompiledFSM(...), and minimization
+     * only merges states having the same timeout.
+     * @param state the state that times out
+     * @param delay how long the machine may stay in the state
+     * @param event the event fired when the delay elapsed
+     * @throws FiniteStateMachineException if an argument is null, if the delay is not positive, or if the
+     * state already has a timeout
+     */
+    public void addTimeout(State state, Duration delay, Event event) throws FiniteStateMachineException {
+        if(state == null)
+            throw new FiniteStateMachineException("addTimeout : cannot add a timeout to a null state");
+        if(delay == null || delay.isNegative() || delay.isZero())
+            throw new FiniteStateMachineException("addTimeout : the delay must be positive : " + delay);
+        if(event == null)
+            throw new FiniteStateMachineException("addTimeout : cannot add a timeout with a null event");
+        if(timeouts.containsKey(state))
+            throw new FiniteStateMachineException("addTimeout : state " + state + " already has a timeout");
+        long delayNanos;
+        try {
+            delayNanos = delay.toNanos();
+        } catch(ArithmeticException e) {
+            delayNanos = Long.MAX_VALUE;
+        }
+        timeouts.put(state, new StateTimeout(delayNanos, event));
+    }
+    
+    /**
+     * Chooses how compiled machines and definitions created afterwards by this builder protect their
+     * current state against concurrent events. Machines created by createFSM(...) are always LOCKED.
+     * @param concurrencyMode the mode, LOCKED by default
+     * @throws FiniteStateMachineException if the mode is null
+     */
+    public void setConcurrencyMode(ConcurrencyMode concurrencyMode) throws FiniteStateMachineException {
+        if(concurrencyMode == null)
+            throw new FiniteStateMachineException("setConcurrencyMode : the concurrency mode cannot be null");
+        this.concurrencyMode = concurrencyMode;
+    }
+    
+    /**
+     * Enables FiniteStateMachineMetrics on the compiled machines and definitions created afterwards by this builder.
+     * Machines created by createFSM(...) never have metrics.
+     * @param metricsEnabled true to count transitions and measure dwell times, false by default
+     */
+    public void setMetricsEnabled(boolean metricsEnabled) {
+        this.metricsEnabled = metricsEnabled;
+    }
+    
+    /**
+     * Removes the states that cannot be reached from the initial state, and merges the states that no
+     * sequence of events can tell apart, in the machines and definitions created afterwards by this builder.<br>
+     * This is meant for large generated graphs : it costs O(e.n.log(n)) for n states and e events when the
+     * machine is created, then saves memory and cache on every instance.<br>
+     * Listeners of a minimized machine receive the state standing for each group of merged states : see
+     * FiniteStateMachineDefinition.getMinimization() for the mapping and how much the graph shrank.
+     * As merged states only exist in a compiled table, createFSM(...) then returns a compiled machine,
+     * like createCompiledFSM(...).
+     * @param minimizationEnabled true to minimize, false by default
+     */
+    public void setMinimizationEnabled(boolean minimizationEnabled) {
+        this.minimizationEnabled = minimizationEnabled;
+    }
+    
+    /**
+     * Generates, for each compiled machine and definition created afterwards by this builder, a class
+     * dedicated to its transitions : nested switches on the state and event ordinals, that the JIT compiles
+     * to jump tables and constants. It notifies listeners exactly the same way as the generic table, and
+     * only beats it on small graphs fed with predictable sequences of events : on random sequences, its
+     * branches are mispredicted and it is slower, see DispatcherBenchmark.<br>
+     * Graphs with more than 16 events, or too many transitions to keep the generated code compiled, fall back
+     * to the generic table, as does a JVM refusing to define the class : see
+     * FiniteStateMachineDefinition.isDispatcherGenerated(). When many definitions are processed by the same
+     * code, the JIT cannot inline their generated classes anymore and the generic table is faster.
+     * @param dispatcherGenerationEnabled true to generate, false by default
+     */
+    public void setDispatcherGenerationEnabled(boolean dispatcherGenerationEnabled) {
+        this.dispatcherGenerationEnabled = dispatcherGenerationEnabled;
+    }
+    
     public FiniteStateMachine createFSM(State initialState) throws FiniteStateMachineException {
         if(initialState == null)
             throw new FiniteStateMachineException("Cannot create a FiniteStateMachnie without an initial State");
 
         fsm.setInitialState(initialState);
+        if(fsm.definition != null || minimizationEnabled || !timeouts.isEmpty()) //the initial state is part of a compiled table
+            fsm.compile(this);
         
         return fsm;
     }
+    
+    /**
+     * Acts the same as createFSM(...), but also freezes the transitions registered so far
+     * into a compact table where each State and each Event is given an ordinal.<br>
+     * Processing an event then costs a single array access, no matter how many transitions
+     * start from the current state.<br>
+     * Once compiled, calling addTransition(...) is still validated the same way, but
+     * fails with a FiniteStateMachineException as the machine cannot evolve anymore.
+     * @param initialState the state the machine starts in
+     * @return the compiled FiniteStateMachine
+     * @throws FiniteStateMachineException if the initial state is null
+     */
+    public FiniteStateMachine createCompiledFSM(State initialState) throws FiniteStateMachineException {
+        FiniteStateMachine fsm = createFSM(initialState);
+        if(fsm.definition == null) //createFSM(...) already compiles it when minimization or timeouts are enabled
+            fsm.compile(this);
+        return fsm;
+    }
+    
+    /**
+     * Creates an immutable FiniteStateMachineDefinition from the transitions registered so far.<br>
+     * The definition can then create any number of lightweight FiniteStateMachine instances,
+     * all sharing the same transitions.<br>
+     * The builder is not affected : transitions added afterwards are only part of the next
+     * definition created.
+     * @param initialState the state every instance starts in
+     * @return the definition
+     * @throws FiniteStateMachineException if the initial state is null
+     */
+    public FiniteStateMachineDefinition createDefinition(State initialState) throws FiniteStateMachineException {
+        if(initialState == null)
+            throw new FiniteStateMachineException("Cannot create a FiniteStateMachineDefinition without an initial State");
+        
+        return fsm.createDefinition(initialState, this);
+    }
+
+    /**
+     * Creates the next version of a definition, see FiniteStateMachineDefinition.publishSuccessor(...)
+     */
+    FiniteStateMachineDefinition createDefinition(State initialState, int ordinalBase, int version) throws FiniteStateMachineException {
+        if(initialState == null)
+            throw new FiniteStateMachineException("Cannot create a FiniteStateMachineDefinition without an initial State");
+
+        return fsm.createDefinition(initialState, this, ordinalBase, version);
+    }
 }
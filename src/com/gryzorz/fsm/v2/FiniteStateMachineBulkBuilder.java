@@ -0,0 +1,379 @@
+package com.gryzorz.fsm.v2;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * This class handles the creation of the FiniteStateMachineDefinition of a huge generated graph, millions of
+ * transitions, from any number of threads :<br>
+ * 1) instanciate a FiniteStateMachineBulkBuilder, and choose its options as on a FiniteStateMachineBuilder<br>
+ * 2) use method addTransition(...) from as many threads as you need<br>
+ * 3) once they are all done, use method createDefinition(...) specifying the initial state<br>
+ * <br>
+ * FiniteStateMachineBuilder checks each new transition against the transitions of its origin state one by one,
+ * holding the monitor of the machine : building is quadratic in the fan-out of the states, and single threaded.
+ * Here the transitions are spread over SHARD_COUNT shards by origin state, each one a hash table of its (state, event)
+ * couples guarded by its own monitor : adding a transition costs a single lookup whatever the fan-out, and threads
+ * adding transitions from different states seldom wait for each other. A transition added twice is kept once, a
+ * transition leading somewhere else than the one already added for the same state and event is refused.<br>
+ * <br>
+ * createDefinition(...) gives the ordinals and fills the transition table shard by shard, in a ForkJoinPool : the
+ * origin states of a shard get consecutive ordinals, so each shard fills its own rows of the table. Ordinals then
+ * depend on how the states hash rather than on the order they were added in, and so does the fingerprint of the
+ * definition : save the definition with FiniteStateMachineDefinitionFile once built, and load it at each start.
+ *
+ * @author Benoit Fernandez
+ */
+public class FiniteStateMachineBulkBuilder {
+    static final int SHARD_COUNT = 64;
+
+    private final Shard[] shards = new Shard[SHARD_COUNT];
+    private final FiniteStateMachineBuilder options = new FiniteStateMachineBuilder(); //only holds the options, never any transition
+
+    public FiniteStateMachineBulkBuilder() {
+        for(int i = 0; i < SHARD_COUNT; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    /**
+     * Adds a transition. Can be called from any thread, concurrently with other calls to addTransition(...).
+     * @return true if the transition was added, false if this very transition was already added
+     * @throws TransitionAlreadyExistException if the origin state already has a transition to another state on this event
+     */
+    public boolean addTransition(State from, Event event, State to) throws FiniteStateMachineException {
+        if(from == null)
+            throw new FiniteStateMachineException("addTransition : cannot add a transition with a null origin state");
+        if(event == null)
+            throw new FiniteStateMachineException("addTransition : cannot add a transition with a null event");
+        if(to == null)
+            throw new FiniteStateMachineException("addTransition : cannot add a transition with a null destination state");
+
+        Shard shard = shards[_shard(from)];
+        synchronized (shard) {
+            return shard.add(from, event, to);
+        }
+    }
+
+    /**
+     * @return the number of distinct transitions added so far
+     */
+    public int getTransitionCount() {
+        int count = 0;
+        for(Shard shard : shards) {
+            synchronized (shard) {
+                count += shard.size;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * See FiniteStateMachineBuilder.addTimeout(...)
+     */
+    public synchronized void addTimeout(State state, Duration delay, Event event) throws FiniteStateMachineException {
+        options.addTimeout(state, delay, event);
+    }
+
+    /**
+     * See FiniteStateMachineBuilder.setConcurrencyMode(...)
+     */
+    public synchronized void setConcurrencyMode(ConcurrencyMode concurrencyMode) throws FiniteStateMachineException {
+        options.setConcurrencyMode(concurrencyMode);
+    }
+
+    /**
+     * See FiniteStateMachineBuilder.setMetricsEnabled(...)
+     */
+    public synchronized void setMetricsEnabled(boolean metricsEnabled) {
+        options.setMetricsEnabled(metricsEnabled);
+    }
+
+    /**
+     * See FiniteStateMachineBuilder.setMinimizationEnabled(...)
+     */
+    public synchronized void setMinimizationEnabled(boolean minimizationEnabled) {
+        options.setMinimizationEnabled(minimizationEnabled);
+    }
+
+    /**
+     * See FiniteStateMachineBuilder.setDispatcherGenerationEnabled(...)
+     */
+    public synchronized void setDispatcherGenerationEnabled(boolean dispatcherGenerationEnabled) {
+        options.setDispatcherGenerationEnabled(dispatcherGenerationEnabled);
+    }
+
+    /**
+     * Acts the same as createDefinition(State, ForkJoinPool) in the common ForkJoinPool.
+     */
+    public FiniteStateMachineDefinition createDefinition(State initialState) throws FiniteStateMachineException {
+        return createDefinition(initialState, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates an immutable FiniteStateMachineDefinition from the transitions added so far, using the threads of a pool.<br>
+     * Transitions added while it runs may be left out. The builder is not affected : transitions added afterwards
+     * are only part of the next definition created.
+     * @param initialState the state every instance starts in
+     * @param pool the threads to build with
+     * @return the definition
+     * @throws FiniteStateMachineException if the initial state is null, or if the states and events are too many
+     * for a transition table
+     */
+    public synchronized FiniteStateMachineDefinition createDefinition(final State initialState, ForkJoinPool pool) throws FiniteStateMachineException {
+        if(initialState == null)
+            throw new FiniteStateMachineException("Cannot create a FiniteStateMachineDefinition without an initial State");
+
+        //the transitions of each shard, and its origin states and events in local ordinals ; the initial state is left out, its ordinal is 0
+        final State[][] froms = new State[SHARD_COUNT][];
+        final Event[][] events = new Event[SHARD_COUNT][];
+        final State[][] tos = new State[SHARD_COUNT][];
+        final int[] counts = new int[SHARD_COUNT];
+        final IdentityOrdinalMap[] fromOrdinals = new IdentityOrdinalMap[SHARD_COUNT];
+        final List<State>[] fromStates = _lists(SHARD_COUNT);
+        final int[][] localFroms = new int[SHARD_COUNT][];
+        final List<Event>[] localEvents = _lists(SHARD_COUNT);
+        final int[][] localEventOrdinals = new int[SHARD_COUNT][];
+        _inParallel(pool, new IntConsumer() {
+            public void accept(int k) {
+                Shard shard = shards[k];
+                synchronized (shard) { //arrays are only appended to, or replaced by bigger copies
+                    froms[k] = shard.froms;
+                    events[k] = shard.events;
+                    tos[k] = shard.tos;
+                    counts[k] = shard.size;
+                }
+                int count = counts[k];
+                IdentityOrdinalMap stateMap = new IdentityOrdinalMap(count);
+                IdentityOrdinalMap eventMap = new IdentityOrdinalMap(count);
+                localFroms[k] = new int[count];
+                localEventOrdinals[k] = new int[count];
+                for(int i = 0; i < count; i++) {
+                    State from = froms[k][i];
+                    localFroms[k][i] = from == initialState ? TransitionTable.NO_TRANSITION : _register(stateMap, fromStates[k], from);
+                    localEventOrdinals[k][i] = _register(eventMap, localEvents[k], events[k][i]);
+                }
+                fromOrdinals[k] = stateMap;
+            }
+        });
+
+        //origin states : the initial state, then the origin states of each shard, in a row
+        final int[] fromBases = new int[SHARD_COUNT];
+        int stateBase = 1;
+        int eventTotal = 0;
+        for(int k = 0; k < SHARD_COUNT; k++) {
+            fromBases[k] = stateBase;
+            stateBase += fromStates[k].size();
+            eventTotal += localEvents[k].size();
+        }
+        IdentityOrdinalMap eventOrdinals = new IdentityOrdinalMap(eventTotal);
+        List<Event> eventList = new ArrayList<Event>();
+        final int[][] eventRemaps = new int[SHARD_COUNT][];
+        for(int k = 0; k < SHARD_COUNT; k++) {
+            eventRemaps[k] = new int[localEvents[k].size()];
+            for(int e = 0; e < eventRemaps[k].length; e++) {
+                eventRemaps[k][e] = _register(eventOrdinals, eventList, localEvents[k].get(e));
+            }
+        }
+
+        //destinations : an origin state of the shard owning it, or a state without transition, numbered per shard for now
+        final int[][] destinations = new int[SHARD_COUNT][];
+        final List<State>[] sinks = _lists(SHARD_COUNT);
+        _inParallel(pool, new IntConsumer() {
+            public void accept(int k) {
+                int count = counts[k];
+                int[] resolved = new int[count];
+                Map<State, Integer> sinkOrdinals = new IdentityHashMap<State, Integer>();
+                for(int i = 0; i < count; i++) {
+                    State to = tos[k][i];
+                    if(to == initialState) {
+                        resolved[i] = 0;
+                        continue;
+                    }
+                    int owner = _shard(to);
+                    int local = fromOrdinals[owner].get(to);
+                    if(local != IdentityOrdinalMap.ABSENT) {
+                        resolved[i] = fromBases[owner] + local;
+                        continue;
+                    }
+                    Integer sink = sinkOrdinals.get(to);
+                    if(sink == null) {
+                        sink = sinks[k].size();
+                        sinkOrdinals.put(to, sink);
+                        sinks[k].add(to);
+                    }
+                    resolved[i] = -2 - sink;
+                }
+                destinations[k] = resolved;
+            }
+        });
+
+        //states without transition : after all the origin states
+        int sinkTotal = 0;
+        for(int k = 0; k < SHARD_COUNT; k++) {
+            sinkTotal += sinks[k].size();
+        }
+        IdentityOrdinalMap sinkOrdinals = new IdentityOrdinalMap(sinkTotal);
+        final List<State> sinkList = new ArrayList<State>();
+        final int[][] sinkRemaps = new int[SHARD_COUNT][];
+        for(int k = 0; k < SHARD_COUNT; k++) {
+            sinkRemaps[k] = new int[sinks[k].size()];
+            for(int s = 0; s < sinkRemaps[k].length; s++) {
+                sinkRemaps[k][s] = stateBase + _register(sinkOrdinals, sinkList, sinks[k].get(s));
+            }
+        }
+        final int stateCount = stateBase + sinkList.size();
+        final int eventCount = eventList.size();
+        if((long) stateCount * eventCount > Integer.MAX_VALUE)
+            throw new FiniteStateMachineException("createDefinition : " + stateCount + " states and " + eventCount + " events do not fit in a transition table");
+
+        //the table, each shard filling the rows of its origin states
+        final State[] states = new State[stateCount];
+        final int[] table = new int[stateCount * eventCount];
+        states[0] = initialState;
+        Arrays.fill(table, 0, eventCount, TransitionTable.NO_TRANSITION);
+        for(int s = 0; s < sinkList.size(); s++) {
+            states[stateBase + s] = sinkList.get(s);
+        }
+        Arrays.fill(table, stateBase * eventCount, table.length, TransitionTable.NO_TRANSITION);
+        _inParallel(pool, new IntConsumer() {
+            public void accept(int k) {
+                int base = fromBases[k];
+                List<State> shardStates = fromStates[k];
+                for(int s = 0; s < shardStates.size(); s++) {
+                    states[base + s] = shardStates.get(s);
+                }
+                Arrays.fill(table, base * eventCount, (base + shardStates.size()) * eventCount, TransitionTable.NO_TRANSITION);
+                int[] resolved = destinations[k];
+                for(int i = 0; i < counts[k]; i++) {
+                    int from = localFroms[k][i] == TransitionTable.NO_TRANSITION ? 0 : base + localFroms[k][i];
+                    int to = resolved[i] >= 0 ? resolved[i] : sinkRemaps[k][-2 - resolved[i]];
+                    table[from * eventCount + eventRemaps[k][localEventOrdinals[k][i]]] = to;
+                }
+            }
+        });
+
+        IdentityOrdinalMap stateOrdinals = new IdentityOrdinalMap(stateCount);
+        for(int s = 0; s < stateCount; s++) {
+            stateOrdinals.put(states[s], s);
+        }
+        TransitionTable transitions = new TransitionTable(stateOrdinals, states, eventOrdinals,
+                                                          eventList.toArray(new Event[eventCount]), table, null);
+        if(options.minimizationEnabled)
+            transitions = TransitionTable.minimize(transitions, options.timeouts);
+        return new FiniteStateMachineDefinition(transitions, options);
+    }
+
+    private static <T> int _register(IdentityOrdinalMap ordinals, List<T> list, T element) {
+        int ordinal = ordinals.putIfAbsent(element);
+        if(ordinal == list.size())
+            list.add(element);
+        return ordinal;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> List<T>[] _lists(int count) {
+        List<T>[] lists = (List<T>[]) new List<?>[count];
+        for(int i = 0; i < count; i++) {
+            lists[i] = new ArrayList<T>();
+        }
+        return lists;
+    }
+
+    /**
+     * Runs a phase of createDefinition(...) once per shard, in the pool, and waits for all of them
+     */
+    private static void _inParallel(ForkJoinPool pool, final IntConsumer phase) {
+        final List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>(SHARD_COUNT);
+        for(int k = 0; k < SHARD_COUNT; k++) {
+            final int shard = k;
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    phase.accept(shard);
+                }
+            });
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    /**
+     * @return the shard holding the transitions starting from the state
+     */
+    private static int _shard(State state) {
+        return System.identityHashCode(state) & (SHARD_COUNT - 1); //low bits : the hash tables index with the high bits of the hash
+    }
+
+    /**
+     * The transitions starting from the states of a shard, in the order they were added, and an open addressing
+     * index of their (state, event) couples. Guarded by its own monitor.
+     */
+    private static final class Shard {
+        State[] froms = new State[16];
+        Event[] events = new Event[16];
+        State[] tos = new State[16];
+        int size = 0;
+        private int[] index = new int[32]; //the index of a transition plus one, 0 for a free slot
+        private int shift = 27;
+
+        /**
+         * @return false if the transition was already added
+         */
+        boolean add(State from, Event event, State to) throws TransitionAlreadyExistException {
+            int mask = index.length - 1;
+            int slot = _slot(from, event);
+            int transition;
+            while((transition = index[slot]) != 0) {
+                transition--;
+                if(froms[transition] == from && events[transition] == event) {
+                    if(tos[transition] == to)
+                        return false;
+                    throw new TransitionAlreadyExistException(from, event);
+                }
+                slot = (slot + 1) & mask;
+            }
+            if(size == froms.length) {
+                froms = Arrays.copyOf(froms, size * 2);
+                events = Arrays.copyOf(events, size * 2);
+                tos = Arrays.copyOf(tos, size * 2);
+            }
+            froms[size] = from;
+            events[size] = event;
+            tos[size] = to;
+            index[slot] = ++size;
+            if(size * 2 > index.length) //load factor kept under 0.5
+                _grow();
+            return true;
+        }
+
+        private void _grow() {
+            index = new int[index.length * 2];
+            shift--;
+            int mask = index.length - 1;
+            for(int transition = 0; transition < size; transition++) {
+                int slot = _slot(froms[transition], events[transition]);
+                while(index[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                index[slot] = transition + 1;
+            }
+        }
+
+        private int _slot(State from, Event event) {
+            return ((System.identityHashCode(from) * 31 + System.identityHashCode(event)) * 0x9E3779B9) >>> shift; //fibonacci hashing
+        }
+    }
+}
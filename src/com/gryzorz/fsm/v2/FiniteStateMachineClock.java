@@ -0,0 +1,21 @@
+package com.gryzorz.fsm.v2;
+
+/**
+ * The time source of a TimingWheel.<br>
+ * SYSTEM follows System.nanoTime() ; tests use a ManualClock instead, to decide exactly when time passes.
+ *
+ * @author Benoit Fernandez
+ */
+public interface FiniteStateMachineClock {
+    /** the monotonic clock of the JVM, System.nanoTime() */
+    FiniteStateMachineClock SYSTEM = new FiniteStateMachineClock() {
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * @return the current time in nanoseconds, only meaningful compared to other values of the same clock
+     */
+    long nanoTime();
+}
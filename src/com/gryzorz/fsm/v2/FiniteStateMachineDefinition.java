@@ -0,0 +1,417 @@
+package com.gryzorz.fsm.v2;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This is the immutable description of a FiniteStateMachine : its states, its events, the transitions
+ * between them and its initial state.<br>
+ * See FiniteStateMachineBuilder.createDefinition(...) to build one.<br>
+ * <br>
+ * A definition is meant to be built once and shared : call newInstance() to create as many
+ * FiniteStateMachine as you need, one per session or per order for example. All of them share the
+ * transition table of the definition, so each instance only holds its current state ordinal, a pointer
+ * to this definition and a few references that stay null until they are used.<br>
+ * <br>
+ * Memory footprint of an instance that has no listener, on a 64 bits HotSpot JVM :<br>
+ *  - with compressed oops (the default for heaps under 32 GB) : 12 bytes of header, 5 references of 4 bytes
+ *  and 2 ints (the ordinal and the time it was entered, used by metrics), that is 40 bytes<br>
+ *  - without compressed oops : 12 bytes of header, 5 references of 8 bytes and 2 ints, that is 60 bytes, 64 once aligned<br>
+ * The references are the definition, the snapshot of the listeners, and three protected fields FiniteStateMachine
+ * keeps for its subclasses : the monitor, which is the instance itself, and the current state and transitions of
+ * interpreted machines, which stay null. Adding listeners to an instance costs an immutable snapshot of them, shared
+ * by all the instances that add the same listeners in the same order, see FiniteStateMachine.addListener(...).
+ * Attaching it to a FiniteStateMachineFlightRecorder, a TimingWheel or a FiniteStateMachineBroadcaster costs it a
+ * snapshot of its own instead, of 56 bytes, as that snapshot also holds what it is attached to.<br>
+ * <br>
+ * The ConcurrencyMode of the definition, chosen on the builder, applies to all its instances, and its
+ * FiniteStateMachineMetrics, if enabled on the builder, aggregate what happens to all of them.<br>
+ * <br>
+ * When the rules change, publishSuccessor(...) publishes the next version of a definition while events keep
+ * flowing : each instance moves to it by itself, on its next event, see publishSuccessor(...).<br>
+ * <br>
+ * A definition never changes once created, apart from the link to its successor, so it can be shared between
+ * any number of threads without any synchronization.
+ *
+ * @author Benoit Fernandez
+ */
+public final class FiniteStateMachineDefinition {
+    final TransitionTable table;
+    final ConcurrencyMode concurrencyMode;
+    final FiniteStateMachineMetrics metrics;
+    final TransitionDispatcher dispatcher; //the table itself, unless a specialized class was generated
+    final long[] timeoutNanos; //by state ordinal, 0 when the state has no timeout, null when no state has one
+    final Event[] timeoutEvents;
+    volatile Subscriptions.Memo subscriptionMemo = null; //the listeners last added to an instance, to share their snapshot
+    volatile Subscriptions.Memo removalMemo = null; //the listeners last removed from an instance, to share their snapshot
+    volatile Subscriptions.Memo migrationMemo = null; //the listeners last recompiled for an instance migrating to this version
+    private final long fingerprint;
+
+    /* versions : instances store ordinalBase + the ordinal of their state, so that the ordinals of two versions never
+       collide, and the version an instance is on can always be told from its ordinal alone, see owner(...) */
+    final int ordinalBase;
+    final int version;
+    final LongAdder instanceCount = new LongAdder(); //created from this version or migrated to it, minus migrated away
+    volatile Successor successor = null;
+    private int fleetCount = 0; //open FiniteStateMachineFleet following this version, guarded by the monitor of the definition
+
+    /**
+     * @param options the builder holding the options chosen for this definition
+     */
+    FiniteStateMachineDefinition(TransitionTable table, FiniteStateMachineBuilder options) {
+        this(table, options, 0, 1);
+    }
+
+    /**
+     * @param ordinalBase the ordinal instances store for the state of ordinal 0
+     * @param version 1 for a first version, then one more for each successor
+     */
+    FiniteStateMachineDefinition(TransitionTable table, FiniteStateMachineBuilder options, int ordinalBase, int version) {
+        this.ordinalBase = ordinalBase;
+        this.version = version;
+        this.table = table;
+        this.concurrencyMode = options.concurrencyMode;
+        this.metrics = options.metricsEnabled ? new FiniteStateMachineMetrics(table, instanceCount) : null;
+        TransitionDispatcher generated = options.dispatcherGenerationEnabled ? DispatcherGenerator.generate(table) : null;
+        this.dispatcher = generated != null ? generated : table;
+        long[] delays = null;
+        Event[] events = null;
+        for(Map.Entry<State, StateTimeout> entry : options.timeouts.entrySet()) {
+            int ordinal = table.stateOrdinal(entry.getKey());
+            if(ordinal == TransitionTable.NO_TRANSITION)
+                continue; //the state cannot be entered
+            if(delays == null) {
+                delays = new long[table.states.length];
+                events = new Event[table.states.length];
+            }
+            delays[ordinal] = entry.getValue().delayNanos; //merged states all have the same timeout
+            events[ordinal] = entry.getValue().event;
+        }
+        this.timeoutNanos = delays;
+        this.timeoutEvents = events;
+        this.fingerprint = _fingerprint(table);
+    }
+    
+    /**
+     * FNV-1a hash of the names of the states and events, in ordinal order, and of the transition table.
+     * Ordinals follow the order in which transitions were added, so the same builder code always
+     * produces the same fingerprint, in any JVM.
+     */
+    private static long _fingerprint(TransitionTable table) {
+        long hash = 0xCBF29CE484222325L;
+        hash = _hash(hash, table.states.length);
+        for(State state : table.states) {
+            hash = _hash(hash, state.name);
+        }
+        hash = _hash(hash, table.eventCount);
+        for(Event event : table.events) {
+            hash = _hash(hash, event.name);
+        }
+        for(int next : table.table) {
+            hash = _hash(hash, next);
+        }
+        return hash;
+    }
+    
+    private static long _hash(long hash, String value) {
+        hash = _hash(hash, value.length());
+        for(int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * 0x100000001B3L;
+        }
+        return hash;
+    }
+    
+    private static long _hash(long hash, int value) {
+        for(int shift = 0; shift < 32; shift += 8) {
+            hash = (hash ^ ((value >>> shift) & 0xFF)) * 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Creates a new FiniteStateMachine following this definition, starting in the initial state.<br>
+     * This is very cheap, see the class documentation for the memory cost of an instance.
+     * @return the new state machine
+     */
+    public FiniteStateMachine newInstance() {
+        return new FiniteStateMachine(this, 0);
+    }
+
+    /**
+     * Creates a new FiniteStateMachine following this definition, already in the given state,
+     * to restore a machine saved earlier for example.
+     * @param currentState the state the machine is in
+     * @return the new state machine
+     * @throws FiniteStateMachineException if the state is not part of this definition
+     */
+    public FiniteStateMachine newInstance(State currentState) throws FiniteStateMachineException {
+        return new FiniteStateMachine(this, stateOrdinal(currentState));
+    }
+
+    /**
+     * Creates a FiniteStateMachineRecognizer running this definition over bytes or chars, to find the
+     * tokens or patterns it describes in large texts, files or buffers without creating an Event per symbol.<br>
+     * For example, to map digits to an event DIGIT : for(char c = '0'; c &lt;= '9'; c++) symbolEvents[c] = DIGIT;
+     * @param symbolEvents the event each byte or char from 0 to 0xFF stands for, and optionally a 257th one
+     * for all the chars above 0xFF (FiniteStateMachineRecognizer.OTHER_CHARS). Null entries, and events
+     * no transition reacts to, make the recognizer restart from the initial state.
+     * @param acceptStates the states whose entering is reported as a match
+     * @return the recognizer
+     * @throws FiniteStateMachineException if the symbol table does not have 256 or 257 entries, or if an
+     * accept state is not part of this definition
+     */
+    public FiniteStateMachineRecognizer newRecognizer(Event[] symbolEvents, State... acceptStates) throws FiniteStateMachineException {
+        if(symbolEvents == null || (symbolEvents.length != FiniteStateMachineRecognizer.OTHER_CHARS
+                                    && symbolEvents.length != FiniteStateMachineRecognizer.OTHER_CHARS + 1))
+            throw new FiniteStateMachineException("newRecognizer : the symbol table must have 256 or 257 entries");
+        boolean[] accepting = new boolean[table.states.length];
+        for(State state : acceptStates) {
+            accepting[stateOrdinal(state)] = true;
+        }
+        return new FiniteStateMachineRecognizer(this, symbolEvents, accepting);
+    }
+
+    /**
+     * Acts the same as runInParallel(State, Event[], ForkJoinPool) in the common ForkJoinPool.
+     */
+    public FiniteStateMachineParallelRun runInParallel(State from, Event[] events) throws FiniteStateMachineException {
+        return runInParallel(from, events, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Finds the states a machine of this definition goes through when it processes a huge sequence of events,
+     * using all the threads of a ForkJoinPool, when a single machine could only use one.<br>
+     * The events are split in chunks, each chunk being run from every state it could start in until these
+     * converge, see SpeculativeRunner : the result is exactly what processEventWithoutErrorNotification(...)
+     * would give, event after event, and events no transition reacts to leave the state unchanged.<br>
+     * This only computes states : no machine is changed, and no listener nor metrics are notified. To go on
+     * from there, create an instance with newInstance(run.getFinalState()).<br>
+     * Machines whose states never converge, a permutation of their states for example, gain nothing, and
+     * cost about a sequential run.
+     * @param from the state the machine is in before the first event
+     * @param events the events, which must not change during the run
+     * @param pool the threads to run the chunks with
+     * @return the final state, and the state at the beginning of each chunk
+     * @throws FiniteStateMachineException if the state is not part of this definition
+     */
+    public FiniteStateMachineParallelRun runInParallel(State from, Event[] events, ForkJoinPool pool) throws FiniteStateMachineException {
+        return SpeculativeRunner.run(this, stateOrdinal(from), events, pool);
+    }
+
+    /**
+     * Publishes the next version of this definition, while its instances keep processing events.<br>
+     * No instance is stopped nor changed now : each one moves to the next version by itself, atomically, at its next
+     * event, before processing it. Its state becomes the one stateMapping gives, and the event is then processed with
+     * the transitions of the next version. Instances that receive no event stay on this version, getInstanceCount()
+     * tells how many. An instance two versions behind follows both mappings at once.<br>
+     * Moving an instance notifies no listener : listeners keep listening, with their subscriptions evaluated for the
+     * next version. Timeouts are re-armed for the state the instance is mapped to. Snapshot writers and journals follow
+     * a single version and refuse the instances that moved.<br>
+     * The entities of a FiniteStateMachineFleet do not move : a version cannot have a successor while a fleet that is
+     * not closed follows it.
+     * @param builder the builder holding the transitions and the options of the next version, with the same concurrency mode
+     * @param initialState the state the instances created from the next version start in
+     * @param stateMapping the state of the next version each state of this one becomes. States it does not map, or all
+     * of them if it is null, become the very same State object, which the next version must then know
+     * @return the next version, to create new instances from
+     * @throws FiniteStateMachineException if this version already has a successor, if a fleet follows it, if the
+     * concurrency modes differ, or if a state of this version has no counterpart in the next one
+     */
+    public synchronized FiniteStateMachineDefinition publishSuccessor(FiniteStateMachineBuilder builder, State initialState,
+                                                                      Map<State, State> stateMapping) throws FiniteStateMachineException {
+        if(successor != null)
+            throw new FiniteStateMachineException("publishSuccessor : version " + version + " already has a successor, publish on the latest version");
+        if(fleetCount > 0)
+            throw new FiniteStateMachineException("publishSuccessor : version " + version + " is followed by " + fleetCount + " FiniteStateMachineFleet, whose entities cannot move, close them first");
+        if(builder == null)
+            throw new FiniteStateMachineException("publishSuccessor : the builder cannot be null");
+        if(builder.concurrencyMode != concurrencyMode)
+            throw new FiniteStateMachineException("publishSuccessor : the next version must keep concurrency mode " + concurrencyMode);
+        long nextBase = (long) ordinalBase + table.states.length;
+        FiniteStateMachineDefinition next = builder.createDefinition(initialState, (int) Math.min(nextBase, Integer.MAX_VALUE), version + 1);
+        if(nextBase + next.table.states.length > Integer.MAX_VALUE)
+            throw new FiniteStateMachineException("publishSuccessor : too many states across the versions of this definition");
+
+        int[] ordinals = new int[table.states.length];
+        for(int i = 0; i < ordinals.length; i++) {
+            State state = table.states[i];
+            State mapped = stateMapping != null && stateMapping.containsKey(state) ? stateMapping.get(state) : state;
+            ordinals[i] = mapped == null ? TransitionTable.NO_TRANSITION : next.table.stateOrdinal(mapped);
+            if(ordinals[i] == TransitionTable.NO_TRANSITION)
+                throw new FiniteStateMachineException("publishSuccessor : State " + state + " has no counterpart in the next version, map it to one of its states");
+        }
+        successor = new Successor(next, ordinals);
+        return next;
+    }
+
+    /**
+     * Called by a FiniteStateMachineFleet created from this version
+     * @throws IllegalArgumentException if this version has a successor
+     */
+    synchronized void fleetStarted() {
+        if(successor != null)
+            throw new IllegalArgumentException("definition version " + version + " has a successor, create the fleet from the latest version");
+        fleetCount++;
+    }
+
+    /**
+     * Called by a FiniteStateMachineFleet created from this version, once closed
+     */
+    synchronized void fleetClosed() {
+        fleetCount--;
+    }
+
+    /**
+     * @param ordinal an ordinal stored by an instance of this version, or of a later one
+     * @return the version owning the ordinal
+     */
+    FiniteStateMachineDefinition owner(int ordinal) {
+        FiniteStateMachineDefinition owner = this;
+        while(ordinal - owner.ordinalBase >= owner.table.states.length) {
+            owner = owner.successor.definition;
+        }
+        return owner;
+    }
+
+    /**
+     * @return the ordinal of the state in this definition
+     * @throws FiniteStateMachineException if the state is not part of this definition
+     */
+    int stateOrdinal(State state) throws FiniteStateMachineException {
+        int ordinal = table.stateOrdinal(state);
+        if(ordinal == TransitionTable.NO_TRANSITION)
+            throw new FiniteStateMachineException("State " + state + " is not part of this definition");
+        return ordinal;
+    }
+
+    /**
+     * A 64 bits hash of the states, events and transitions of this definition, in the order they were
+     * added to the builder. Two definitions built the same way have the same fingerprint, even in
+     * different JVMs, which makes it possible to check that saved states still mean the same thing.
+     * @return the fingerprint
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return the state every new instance starts in
+     */
+    public State getInitialState() {
+        return table.states[0];
+    }
+
+    /**
+     * @return the way instances protect their current state against concurrent events
+     */
+    public ConcurrencyMode getConcurrencyMode() {
+        return concurrencyMode;
+    }
+
+    /**
+     * @return the metrics of all the instances of this definition, or null if they were not enabled on the builder
+     */
+    public FiniteStateMachineMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return how the graph was shrunk and which original states each state stands for,
+     * or null if minimization was not enabled on the builder
+     */
+    public FiniteStateMachineMinimization getMinimization() {
+        return table.minimization;
+    }
+
+    /**
+     * @return true if events are dispatched by a class generated for this definition, false if they are
+     * dispatched by the generic table, see FiniteStateMachineBuilder.setDispatcherGenerationEnabled(...)
+     */
+    public boolean isDispatcherGenerated() {
+        return dispatcher != table;
+    }
+
+    /**
+     * @param state a state of this definition
+     * @return how long instances may stay in the state before its timeout event is fired, or null if the
+     * state has no timeout, see FiniteStateMachineBuilder.addTimeout(...)
+     * @throws FiniteStateMachineException if the state is not part of this definition
+     */
+    public Duration getTimeout(State state) throws FiniteStateMachineException {
+        int ordinal = stateOrdinal(state);
+        if(timeoutNanos == null || timeoutNanos[ordinal] == 0)
+            return null;
+        return Duration.ofNanos(timeoutNanos[ordinal]);
+    }
+
+    /**
+     * @return the number of distinct states known by this definition
+     */
+    public int getStateCount() {
+        return table.states.length;
+    }
+
+    /**
+     * @return the number of distinct events having at least one transition in this definition
+     */
+    public int getEventCount() {
+        return table.eventCount;
+    }
+
+    /**
+     * @return the states of this definition, by ordinal, the initial state first
+     */
+    public List<State> getStates() {
+        return Collections.unmodifiableList(Arrays.asList(table.states));
+    }
+
+    /**
+     * @return the events having at least one transition in this definition, by ordinal
+     */
+    public List<Event> getEvents() {
+        return Collections.unmodifiableList(Arrays.asList(table.events));
+    }
+
+    /**
+     * @return 1 for a definition created by a builder, one more for each publishSuccessor(...) since
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the next version published by publishSuccessor(...), or null if this is the latest
+     */
+    public FiniteStateMachineDefinition getSuccessor() {
+        Successor successor = this.successor;
+        return successor == null ? null : successor.definition;
+    }
+
+    /**
+     * Instances are counted when created from this definition, or when they move to it from the previous version,
+     * and no longer counted when they move to the next one : once a successor is published, this is the number of
+     * instances still on this version. Instances that are not used anymore keep being counted.
+     * @return the number of instances on this version
+     */
+    public long getInstanceCount() {
+        return instanceCount.sum();
+    }
+
+    /**
+     * The next version of a definition, and the state of that version each state of the previous one becomes
+     */
+    static final class Successor {
+        final FiniteStateMachineDefinition definition;
+        final int[] ordinals; //by ordinal in the previous version
+
+        Successor(FiniteStateMachineDefinition definition, int[] ordinals) {
+            this.definition = definition;
+            this.ordinals = ordinals;
+        }
+    }
+}
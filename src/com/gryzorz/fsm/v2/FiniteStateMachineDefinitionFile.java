@@ -0,0 +1,254 @@
+package com.gryzorz.fsm.v2;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Saves a FiniteStateMachineDefinition into a compact binary file, and loads it back, so that a huge generated
+ * graph is built once instead of at each start of the JVM.<br>
+ * <br>
+ * File layout, little endian :<br>
+ *  - a header of HEADER_SIZE bytes : MAGIC, VERSION, the fingerprint of the definition, its number of states and
+ *  of events, the number of events only fired by timeouts, the number of transitions, of timeouts, and the size
+ *  of the names<br>
+ *  - the transitions of each state, in ordinal order : stateCount + 1 int offsets, then the transitions, one int
+ *  event ordinal and one int destination ordinal each<br>
+ *  - the timeouts : the int ordinal of the state, the int ordinal of the event, the long delay in nanoseconds<br>
+ *  - the names of the states, of the events, then of the events only fired by timeouts : an int length, then the
+ *  UTF-8 bytes of the name<br>
+ * <br>
+ * A transition costs 8 bytes. The file is memory-mapped, the transitions are copied from it in bulk then spread in
+ * the table, and the fingerprint of the loaded definition is checked against the saved one, which also catches a
+ * damaged file. Options are not saved : the concurrency mode, metrics and dispatcher generation are chosen when
+ * loading. The states merged by a minimization are not saved either, only the state standing for them.
+ *
+ * @author Benoit Fernandez
+ */
+public final class FiniteStateMachineDefinitionFile {
+    static final int MAGIC = 0x444D5346; //"FSMD" once written little endian
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 40;
+
+    private FiniteStateMachineDefinitionFile() {}
+
+    /**
+     * Saves a definition, replacing the file if it exists.
+     * @param definition the definition
+     * @param file the file to write
+     * @return the size of the file, in bytes
+     * @throws FiniteStateMachineException if the definition does not fit in a file of 2 GB
+     * @throws IOException if the file cannot be written
+     */
+    public static long write(FiniteStateMachineDefinition definition, Path file) throws FiniteStateMachineException, IOException {
+        TransitionTable table = definition.table;
+        int stateCount = table.states.length;
+        int eventCount = table.eventCount;
+        int transitionCount = 0;
+        for(int next : table.table) {
+            if(next != TransitionTable.NO_TRANSITION)
+                transitionCount++;
+        }
+        int timeoutCount = 0;
+        List<Event> timeoutEvents = new ArrayList<Event>(); //fired by timeouts, no transition reacts to them
+        if(definition.timeoutNanos != null) {
+            for(int s = 0; s < stateCount; s++) {
+                if(definition.timeoutNanos[s] == 0)
+                    continue;
+                timeoutCount++;
+                Event event = definition.timeoutEvents[s];
+                if(table.eventOrdinal(event) == TransitionTable.NO_TRANSITION && !timeoutEvents.contains(event))
+                    timeoutEvents.add(event);
+            }
+        }
+        byte[][] names = new byte[stateCount + eventCount + timeoutEvents.size()][];
+        long namesLength = 0;
+        for(int i = 0; i < names.length; i++) {
+            String name = i < stateCount ? table.states[i].name
+                        : i < stateCount + eventCount ? table.events[i - stateCount].name
+                        : timeoutEvents.get(i - stateCount - eventCount).name;
+            names[i] = name.getBytes(StandardCharsets.UTF_8);
+            namesLength += 4 + names[i].length;
+        }
+        long size = HEADER_SIZE + 4L * (stateCount + 1) + 8L * transitionCount + 16L * timeoutCount + namesLength;
+        if(size > Integer.MAX_VALUE)
+            throw new FiniteStateMachineException("write : the definition needs " + size + " bytes, more than a file can map");
+
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                                   StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(definition.getFingerprint())
+                  .putInt(stateCount).putInt(eventCount).putInt(timeoutEvents.size())
+                  .putInt(transitionCount).putInt(timeoutCount).putInt((int) namesLength);
+            int offset = 0;
+            buffer.putInt(offset);
+            for(int s = 0; s < stateCount; s++) {
+                for(int e = 0; e < eventCount; e++) {
+                    if(table.table[s * eventCount + e] != TransitionTable.NO_TRANSITION)
+                        offset++;
+                }
+                buffer.putInt(offset);
+            }
+            for(int s = 0; s < stateCount; s++) {
+                for(int e = 0; e < eventCount; e++) {
+                    int next = table.table[s * eventCount + e];
+                    if(next != TransitionTable.NO_TRANSITION)
+                        buffer.putInt(e).putInt(next);
+                }
+            }
+            for(int s = 0; timeoutCount > 0 && s < stateCount; s++) {
+                if(definition.timeoutNanos[s] == 0)
+                    continue;
+                Event event = definition.timeoutEvents[s];
+                int ordinal = table.eventOrdinal(event);
+                buffer.putInt(s).putInt(ordinal != TransitionTable.NO_TRANSITION ? ordinal : eventCount + timeoutEvents.indexOf(event))
+                      .putLong(definition.timeoutNanos[s]);
+            }
+            for(byte[] name : names) {
+                buffer.putInt(name.length).put(name);
+            }
+            buffer.force();
+        }
+        return size;
+    }
+
+    /**
+     * Acts the same as read(Path, FiniteStateMachineBuilder, Map, Map) with the default options, creating all the
+     * states and events.
+     */
+    public static FiniteStateMachineDefinition read(Path file) throws FiniteStateMachineException, IOException {
+        return read(file, new FiniteStateMachineBuilder(), null, null);
+    }
+
+    /**
+     * Loads a definition saved by write(...).<br>
+     * The states and events are created from their saved names, unless the maps given provide them : pass the
+     * constants of your code there, so that the loaded definition reacts to them.
+     * @param file the file to read
+     * @param options the builder holding the options of the definition, its transitions are ignored
+     * @param states the State to use for each name, may be null
+     * @param events the Event to use for each name, may be null
+     * @return the definition, with the same fingerprint as the one saved
+     * @throws FiniteStateMachineException if the file is not a definition file, is damaged, or if the maps give the
+     * same State or Event for two names
+     * @throws IOException if the file cannot be read
+     */
+    public static FiniteStateMachineDefinition read(Path file, FiniteStateMachineBuilder options, Map<String, State> states,
+                                                    Map<String, Event> events) throws FiniteStateMachineException, IOException {
+        if(options == null)
+            throw new IllegalArgumentException("options cannot be null");
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size < HEADER_SIZE)
+                throw new FiniteStateMachineException("Definition file " + file + " is too short to be a definition file");
+            if(size > Integer.MAX_VALUE)
+                throw new FiniteStateMachineException("Definition file " + file + " is too large to be a definition file");
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if(buffer.getInt() != MAGIC)
+                throw new FiniteStateMachineException("Definition file " + file + " is not a definition file");
+            int version = buffer.getInt();
+            if(version != VERSION)
+                throw new FiniteStateMachineException("Definition file " + file + " has an unsupported version : " + version);
+            long fingerprint = buffer.getLong();
+            int stateCount = buffer.getInt();
+            int eventCount = buffer.getInt();
+            int timeoutEventCount = buffer.getInt();
+            int transitionCount = buffer.getInt();
+            int timeoutCount = buffer.getInt();
+            int namesLength = buffer.getInt();
+            if(stateCount < 1 || eventCount < 0 || timeoutEventCount < 0 || transitionCount < 0 || timeoutCount < 0 || namesLength < 0
+               || (long) stateCount * eventCount > Integer.MAX_VALUE
+               || HEADER_SIZE + 4L * (stateCount + 1) + 8L * transitionCount + 16L * timeoutCount + namesLength != size)
+                throw new FiniteStateMachineException("Definition file " + file + " is damaged : its sizes do not match");
+
+            //transitions, copied in bulk
+            int position = HEADER_SIZE;
+            int[] offsets = new int[stateCount + 1];
+            buffer.slice(position, offsets.length * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(offsets);
+            position += offsets.length * 4;
+            int[] transitions = new int[transitionCount * 2];
+            buffer.slice(position, transitions.length * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(transitions);
+            position += transitions.length * 4;
+            int[] table = new int[stateCount * eventCount];
+            Arrays.fill(table, TransitionTable.NO_TRANSITION);
+            if(offsets[0] != 0 || offsets[stateCount] != transitionCount)
+                throw new FiniteStateMachineException("Definition file " + file + " is damaged : invalid transition offsets");
+            for(int s = 0; s < stateCount; s++) {
+                if(offsets[s + 1] < offsets[s])
+                    throw new FiniteStateMachineException("Definition file " + file + " is damaged : invalid transition offsets");
+                for(int t = offsets[s]; t < offsets[s + 1]; t++) {
+                    int event = transitions[2 * t];
+                    int next = transitions[2 * t + 1];
+                    if(event < 0 || event >= eventCount || next < 0 || next >= stateCount)
+                        throw new FiniteStateMachineException("Definition file " + file + " is damaged : invalid transition of state " + s);
+                    table[s * eventCount + event] = next;
+                }
+            }
+
+            //names
+            int timeoutsPosition = position;
+            position += 16 * timeoutCount;
+            State[] stateArray = new State[stateCount];
+            Event[] eventArray = new Event[eventCount + timeoutEventCount];
+            IdentityOrdinalMap stateOrdinals = new IdentityOrdinalMap(stateCount);
+            IdentityOrdinalMap eventOrdinals = new IdentityOrdinalMap(eventCount);
+            byte[] bytes = new byte[namesLength];
+            buffer.get(position, bytes);
+            for(int i = 0, at = 0; i < stateCount + eventArray.length; i++) {
+                int length = at + 4 <= namesLength ? buffer.getInt(position + at) : -1;
+                if(length < 0 || length > namesLength - at - 4)
+                    throw new FiniteStateMachineException("Definition file " + file + " is damaged : invalid names");
+                String name = new String(bytes, at + 4, length, StandardCharsets.UTF_8);
+                at += 4 + length;
+                if(i < stateCount) {
+                    State state = states == null ? null : states.get(name);
+                    stateArray[i] = state != null ? state : new State(name);
+                    if(stateOrdinals.get(stateArray[i]) != IdentityOrdinalMap.ABSENT)
+                        throw new FiniteStateMachineException("Definition file " + file + " : State " + name + " is given for two names");
+                    stateOrdinals.put(stateArray[i], i);
+                } else {
+                    Event event = events == null ? null : events.get(name);
+                    eventArray[i - stateCount] = event != null ? event : new Event(name);
+                    if(i - stateCount < eventCount) {
+                        if(eventOrdinals.get(eventArray[i - stateCount]) != IdentityOrdinalMap.ABSENT)
+                            throw new FiniteStateMachineException("Definition file " + file + " : Event " + name + " is given for two names");
+                        eventOrdinals.put(eventArray[i - stateCount], i - stateCount);
+                    }
+                }
+            }
+
+            //options, and timeouts keyed by the states just created
+            FiniteStateMachineBuilder loaded = new FiniteStateMachineBuilder();
+            loaded.concurrencyMode = options.concurrencyMode;
+            loaded.metricsEnabled = options.metricsEnabled;
+            loaded.dispatcherGenerationEnabled = options.dispatcherGenerationEnabled;
+            for(int i = 0; i < timeoutCount; i++) {
+                int at = timeoutsPosition + 16 * i;
+                int state = buffer.getInt(at);
+                int event = buffer.getInt(at + 4);
+                long delayNanos = buffer.getLong(at + 8);
+                if(state < 0 || state >= stateCount || event < 0 || event >= eventArray.length || delayNanos <= 0)
+                    throw new FiniteStateMachineException("Definition file " + file + " is damaged : invalid timeout " + i);
+                loaded.timeouts.put(stateArray[state], new StateTimeout(delayNanos, eventArray[event]));
+            }
+
+            TransitionTable transitionTable = new TransitionTable(stateOrdinals, stateArray, eventOrdinals,
+                                                                  Arrays.copyOf(eventArray, eventCount), table, null);
+            FiniteStateMachineDefinition definition = new FiniteStateMachineDefinition(transitionTable, loaded);
+            if(definition.getFingerprint() != fingerprint)
+                throw new FiniteStateMachineException("Definition file " + file + " is damaged : fingerprint " + Long.toHexString(definition.getFingerprint())
+                                                      + " instead of " + Long.toHexString(fingerprint));
+            return definition;
+        }
+    }
+}
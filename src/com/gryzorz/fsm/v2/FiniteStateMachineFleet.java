@@ -0,0 +1,402 @@
+package com.gryzorz.fsm.v2;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a very large number of entities, all following the same FiniteStateMachineDefinition,
+ * without creating a FiniteStateMachine object per entity.<br>
+ * <br>
+ * Entities are addressed by a long id and are partitioned by id between a fixed number of shards.
+ * Each shard owns a worker thread, which is the only one to ever read or write the states of its
+ * entities : states are stored as ordinals in primitive arrays (about 24 bytes per entity) and
+ * processing an event takes no lock at all. Producers hand events to a shard through a bounded ring
+ * buffer, so throughput grows with the number of shards as long as there are cores to run them.<br>
+ * <br>
+ * An entity does not need to be declared : it starts in the initial state of the definition the
+ * first time an event is submitted for it. Events of the same entity are processed in the order
+ * they were submitted by a given thread. Like processEventWithoutErrorNotification(...), an event
+ * without transition from the current state of its entity is ignored and counted as rejected.<br>
+ * <br>
+ * The fleet does not notify any FiniteStateMachineListener : it is meant for raw throughput.
+ * Use FiniteStateMachine instances when you need listeners. For the same reason its entities never move to
+ * a next version of the definition : FiniteStateMachineDefinition.publishSuccessor(...) is refused until
+ * the fleet is closed.
+ *
+ * @author Benoit Fernandez
+ */
+public class FiniteStateMachineFleet {
+    private static final int SPINS_BEFORE_PARKING = 100;
+    private static final long PARK_NANOS = 20000L;
+
+    private final FiniteStateMachineDefinition definition;
+    private final Shard[] shards;
+    private volatile boolean closed = false; //only set under the monitor of the fleet
+
+    /**
+     * Creates the fleet and starts one daemon worker thread per shard.
+     * @param definition the definition all entities follow, a version that has no successor
+     * @param shardCount the number of shards, usually the number of cores dedicated to the fleet
+     * @param queueCapacity the number of pending events each shard can hold before submit(...) blocks,
+     * rounded up to a power of 2
+     */
+    public FiniteStateMachineFleet(FiniteStateMachineDefinition definition, int shardCount, int queueCapacity) {
+        if(definition == null)
+            throw new IllegalArgumentException("definition cannot be null");
+        if(shardCount < 1)
+            throw new IllegalArgumentException("shardCount must be positive : " + shardCount);
+        if(queueCapacity < 1 || queueCapacity > (1 << 30))
+            throw new IllegalArgumentException("queueCapacity must be between 1 and 2^30 : " + queueCapacity);
+
+        definition.fleetStarted();
+        this.definition = definition;
+        this.shards = new Shard[shardCount];
+        for(int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(definition.table, definition.metrics, queueCapacity);
+            Thread worker = new Thread(shards[i], "fsm-fleet-shard-" + i);
+            worker.setDaemon(true);
+            shards[i].worker = worker;
+        }
+        for(Shard shard : shards) {
+            shard.worker.start();
+        }
+    }
+
+    /**
+     * Hands an event to the shard owning the entity. It is processed asynchronously by the worker
+     * of the shard ; this method only blocks while the queue of the shard is full.
+     * @param entityId the id of the entity the event happened to
+     * @param event the event that happened
+     * @throws IllegalStateException if the fleet is closed
+     */
+    public void submit(long entityId, Event event) {
+        _checkOpen();
+        _shardOf(entityId).offer(entityId, definition.table.eventOrdinal(event));
+    }
+
+    /**
+     * Submits a batch of events, events[i] happening to entity entityIds[i].
+     * @param entityIds the ids of the entities
+     * @param events the events, in the same order
+     * @param offset the index of the first couple to submit
+     * @param length the number of couples to submit
+     * @throws IllegalStateException if the fleet is closed
+     */
+    public void submitAll(long[] entityIds, Event[] events, int offset, int length) {
+        _checkOpen();
+        if(offset < 0 || length < 0 || length > entityIds.length - offset || length > events.length - offset)
+            throw new IndexOutOfBoundsException("offset " + offset + " and length " + length + " for "
+                                                + entityIds.length + " ids and " + events.length + " events");
+        TransitionTable table = definition.table;
+        for(int i = offset, end = offset + length; i < end; i++) {
+            _shardOf(entityIds[i]).offer(entityIds[i], table.eventOrdinal(events[i]));
+        }
+    }
+
+    /**
+     * Submits the same event to many entities.
+     * @param entityIds the ids of the entities the event happened to
+     * @param event the event that happened
+     * @throws IllegalStateException if the fleet is closed
+     */
+    public void submitAll(long[] entityIds, Event event) {
+        _checkOpen();
+        int eventOrdinal = definition.table.eventOrdinal(event);
+        for(long entityId : entityIds) {
+            _shardOf(entityId).offer(entityId, eventOrdinal);
+        }
+    }
+
+    /**
+     * Puts an entity back in a given state, without following any transition, to restore a saved fleet
+     * for example. Like events, it is applied asynchronously by the worker of the shard, in order with
+     * the events submitted by the same thread.
+     * @param entityId the id of the entity
+     * @param state the state the entity must be in
+     * @throws FiniteStateMachineException if the state is not part of the definition of the fleet
+     * @throws IllegalStateException if the fleet is closed
+     */
+    public void restore(long entityId, State state) throws FiniteStateMachineException {
+        restore(entityId, definition.stateOrdinal(state));
+    }
+
+    void restore(long entityId, int stateOrdinal) {
+        _checkOpen();
+        _shardOf(entityId).offer(entityId, Shard.RESTORE - stateOrdinal);
+    }
+
+    /**
+     * Calls the visitor for each entity that received at least one event, shard after shard.
+     * Only exact under the same conditions as getState(...)
+     */
+    void forEachEntity(EntityStateVisitor visitor) {
+        for(Shard shard : shards) {
+            shard.entities.forEach(visitor);
+        }
+    }
+
+    /**
+     * Waits until every event submitted before this call has been processed. Returns at once when the fleet is
+     * closed, as close() processed them all.
+     */
+    public void flush() {
+        for(Shard shard : shards) {
+            shard.flush();
+        }
+    }
+
+    /**
+     * Processes the pending events then stops the worker threads. The fleet cannot be used anymore : submitting
+     * or restoring throws an IllegalStateException. It no longer prevents its definition from getting a successor.<br>
+     * An event submitted by another thread while the fleet closes is either refused, or processed before its
+     * submit(...) returns.
+     * @throws InterruptedException if interrupted while waiting for the workers to stop
+     */
+    public void close() throws InterruptedException {
+        synchronized (this) {
+            if(!closed) {
+                closed = true;
+                definition.fleetClosed();
+            }
+        }
+        flush();
+        for(Shard shard : shards) {
+            shard.running = false;
+            LockSupport.unpark(shard.worker);
+        }
+        for(Shard shard : shards) {
+            shard.worker.join();
+        }
+    }
+
+    /**
+     * Retrieves the current state of an entity.<br>
+     * The states are owned by the workers : this reads a state the entity was in recently, and is only exact when no
+     * event is being submitted and flush() has returned since the last submission.
+     * @param entityId the id of the entity
+     * @return its current state, the initial state if no event was ever submitted for it
+     */
+    public State getState(long entityId) {
+        int ordinal = _shardOf(entityId).entities.get(entityId);
+        return definition.table.states[ordinal == EntityStateMap.ABSENT ? 0 : ordinal];
+    }
+
+    /**
+     * @return the definition all entities follow
+     */
+    public FiniteStateMachineDefinition getDefinition() {
+        return definition;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @return the number of entities that received at least one event, exact under the same conditions as getState(...)
+     */
+    public long getEntityCount() {
+        long count = 0;
+        for(Shard shard : shards) {
+            count += shard.entityCount;
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of processed events that produced a state change or a state loop
+     */
+    public long getAcceptedCount() {
+        long count = 0;
+        for(Shard shard : shards) {
+            count += shard.processedCount - shard.rejectedCount;
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of processed events for which no transition existed
+     */
+    public long getRejectedCount() {
+        long count = 0;
+        for(Shard shard : shards) {
+            count += shard.rejectedCount;
+        }
+        return count;
+    }
+
+    private void _checkOpen() {
+        if(closed)
+            throw new IllegalStateException("The fleet is closed");
+    }
+
+    private Shard _shardOf(long entityId) {
+        long hash = (entityId * 0x9E3779B97F4A7C15L) >>> 32; //ids are often sequential, spread them
+        return shards[(int) ((hash * shards.length) >>> 32)];
+    }
+
+    private static int _backOff(int idle) {
+        if(idle < SPINS_BEFORE_PARKING) {
+            Thread.onSpinWait();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        return idle + 1;
+    }
+
+
+    /**
+     * A partition of the entities, with the queue of events waiting for them.<br>
+     * The queue is a bounded multi-producer ring buffer : a slot can be written when its sequence equals
+     * the producer position, and read when it equals the consumer position + 1.<br>
+     * Once the worker is stopped, a producer that got past the closed check processes the events still
+     * queued itself, see _drainStopped(...) : the compare-and-set of the tail comes before its read of running,
+     * so the last drain of the worker, which reads the tail after running, sees every event of the producers
+     * that read running as true.
+     */
+    private static final class Shard implements Runnable {
+        private static final int BATCH_SIZE = 1024;
+        /** queued instead of an event ordinal, RESTORE - ordinal sets the state of the entity to ordinal */
+        static final int RESTORE = -2;
+
+        final TransitionTable table;
+        final FiniteStateMachineMetrics metrics;
+        final EntityStateMap entities = new EntityStateMap(1024);
+        Thread worker;
+        volatile boolean running = true;
+
+        private final int mask;
+        private final AtomicLongArray sequences;
+        private final long[] entityIds;
+        private final int[] eventOrdinals;
+        private final AtomicLong tail = new AtomicLong();
+        private volatile long head = 0;
+
+        /* only written by the worker, once per batch */
+        volatile long processedCount = 0;
+        volatile long rejectedCount = 0;
+        volatile int entityCount = 0; //the size of entities, which only the worker may read
+
+        Shard(TransitionTable table, FiniteStateMachineMetrics metrics, int queueCapacity) {
+            this.table = table;
+            this.metrics = metrics;
+            int size = Integer.highestOneBit(queueCapacity);
+            if(size < queueCapacity)
+                size <<= 1;
+            mask = size - 1;
+            sequences = new AtomicLongArray(size);
+            for(int i = 0; i < size; i++) {
+                sequences.set(i, i);
+            }
+            entityIds = new long[size];
+            eventOrdinals = new int[size];
+        }
+
+        void offer(long entityId, int eventOrdinal) {
+            long position;
+            int index;
+            int idle = 0;
+            while(true) {
+                position = tail.get();
+                index = (int) position & mask;
+                long available = sequences.get(index) - position;
+                if(available == 0) {
+                    if(tail.compareAndSet(position, position + 1))
+                        break;
+                } else if(available < 0) { //the queue is full
+                    if(!running)
+                        _drainStopped(position - mask); //frees the slot
+                    idle = _backOff(idle);
+                }
+            }
+            entityIds[index] = entityId;
+            eventOrdinals[index] = eventOrdinal;
+            sequences.lazySet(index, position + 1);
+            if(!running) //the fleet was closed while submitting, the worker may have missed the event
+                _drainStopped(position + 1);
+        }
+
+        /**
+         * Processes, in the thread of a producer, the events queued once the worker has stopped
+         * @param target the position the queue must be drained up to, excluded
+         */
+        private void _drainStopped(long target) {
+            int idle = 0;
+            while(worker.isAlive()) { //its last drain happens before it dies
+                idle = _backOff(idle);
+            }
+            synchronized(this) {
+                while(head < target) {
+                    if(_drainBatch() == 0) //another producer is writing its slot
+                        idle = _backOff(idle);
+                }
+            }
+        }
+
+        void flush() {
+            long target = tail.get();
+            int idle = 0;
+            while(head < target) {
+                idle = _backOff(idle);
+            }
+        }
+
+        public void run() {
+            int idle = 0;
+            while(running) {
+                if(_drainBatch() > 0) {
+                    idle = 0;
+                } else {
+                    idle = _backOff(idle);
+                }
+            }
+            long target = tail.get(); //the events claimed before the producers could see the worker stop
+            while(head < target) {
+                if(_drainBatch() == 0)
+                    idle = _backOff(idle);
+            }
+        }
+
+        private int _drainBatch() {
+            TransitionTable table = this.table;
+            EntityStateMap entities = this.entities;
+            long start = head;
+            long position = start;
+            long end = start + BATCH_SIZE;
+            long rejected = 0;
+            long restored = 0;
+            while(position < end) {
+                int index = (int) position & mask;
+                if(sequences.get(index) != position + 1)
+                    break;
+                int slot = entities.slotOf(entityIds[index], 0);
+                int from = entities.stateAt(slot);
+                int eventOrdinal = eventOrdinals[index];
+                if(eventOrdinal < TransitionTable.NO_TRANSITION) { //not an event, a state to restore
+                    entities.setStateAt(slot, RESTORE - eventOrdinal);
+                    restored++;
+                } else {
+                    int next = table.nextState(from, eventOrdinal);
+                    if(next == TransitionTable.NO_TRANSITION) {
+                        rejected++;
+                        if(metrics != null)
+                            metrics.recordUnexistingTransition(from);
+                    } else {
+                        entities.setStateAt(slot, next);
+                        if(metrics != null)
+                            metrics.recordTransition(from, eventOrdinal);
+                    }
+                }
+                sequences.lazySet(index, position + mask + 1);
+                position++;
+            }
+            int count = (int) (position - start);
+            processedCount += count - restored;
+            rejectedCount += rejected;
+            entityCount = entities.size();
+            head = position;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package com.gryzorz.fsm.v2;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Keeps the last transitions of machines, to find out which events led a machine into an unexpected state
+ * without logging everything.<br>
+ * Attach each machine with attach(...) : from then on, every event it processes is recorded, the transition it
+ * took or the rejection, with the time it happened. A recorder can be attached to one machine, or shared by many
+ * (all the machines of a shard, of a mailbox...) : it then keeps the last records of all of them.<br>
+ * <br>
+ * Records are kept in a ring of a fixed capacity, in primitive and reference arrays allocated once : recording
+ * writes a few array slots and allocates nothing, so the recorder can stay attached in production. A record only
+ * refers to the State and Event objects of the machine, names are only looked at when dumping. Threads recording
+ * concurrently each take a slot with an atomic increment : give each busy shard its own recorder rather than
+ * sharing one between cores. Reading the clock is usually the biggest part of the cost of a record : where
+ * System.nanoTime() is slow, as on some virtual machines, give the recorder a coarser clock.<br>
+ * <br>
+ * Read the records on demand with getRecords(...) or dump(...). When processEvent(...) throws a
+ * TransitionNotAllowedException, the exception carries the last records of its machine, and its message lists them.<br>
+ * <br>
+ * Each recorder can also emit JDK Flight Recorder events, one out of every jfrSamplingInterval events it records :
+ * com.gryzorz.fsm.Transition for the transitions taken and com.gryzorz.fsm.RejectedEvent for the events without
+ * transition. They only cost something while a recording enables them, see jdk.jfr.
+ *
+ * @author Benoit Fernandez
+ */
+public class FiniteStateMachineFlightRecorder {
+    private static final VarHandle NEXT;
+    private static final VarHandle SEQUENCES = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final EventType TRANSITION_TYPE;
+    private static final EventType REJECTED_TYPE;
+    static {
+        try {
+            NEXT = MethodHandles.lookup().findVarHandle(FiniteStateMachineFlightRecorder.class, "next", long.class);
+            TRANSITION_TYPE = EventType.getEventType(TransitionEvent.class);
+            REJECTED_TYPE = EventType.getEventType(RejectedEventEvent.class);
+        } catch(ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    private static final long WRITING = -1L;
+
+    private final FiniteStateMachineClock clock;
+    private final int mask;
+    private final int jfrSamplingInterval;
+
+    /* the ring : slot i holds the record of sequence sequences[i], WRITING while it is being overwritten */
+    private final long[] sequences;
+    private final long[] times;
+    private final FiniteStateMachine[] machines;
+    private final State[] froms;
+    private final Event[] events;
+    private final State[] tos;
+    private final TransitionOutcome[] outcomes;
+    private volatile long next = 0; //the sequence of the next record
+    private int unsampled = 0; //events recorded since the last JFR event, approximate when machines record concurrently
+
+    /**
+     * Creates a recorder on the system clock, emitting no JFR event.
+     * @param capacity the number of records kept, rounded up to a power of 2
+     */
+    public FiniteStateMachineFlightRecorder(int capacity) {
+        this(FiniteStateMachineClock.SYSTEM, capacity, 0);
+    }
+
+    /**
+     * @param clock the time source of the records, a ManualClock for tests
+     * @param capacity the number of records kept, rounded up to a power of 2
+     * @param jfrSamplingInterval emit a JFR event for one out of every jfrSamplingInterval events recorded, 1 for all
+     * of them, 0 for none
+     */
+    public FiniteStateMachineFlightRecorder(FiniteStateMachineClock clock, int capacity, int jfrSamplingInterval) {
+        if(clock == null)
+            throw new IllegalArgumentException("clock cannot be null");
+        if(capacity <= 0 || capacity > 1 << 30)
+            throw new IllegalArgumentException("capacity must be between 1 and 2^30 : " + capacity);
+        if(jfrSamplingInterval < 0)
+            throw new IllegalArgumentException("jfrSamplingInterval cannot be negative : " + jfrSamplingInterval);
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity)
+            size <<= 1;
+        this.clock = clock;
+        this.mask = size - 1;
+        this.jfrSamplingInterval = jfrSamplingInterval;
+        this.sequences = new long[size];
+        Arrays.fill(sequences, WRITING);
+        this.times = new long[size];
+        this.machines = new FiniteStateMachine[size];
+        this.froms = new State[size];
+        this.events = new Event[size];
+        this.tos = new State[size];
+        this.outcomes = new TransitionOutcome[size];
+    }
+
+    /**
+     * Starts recording the events processed by a machine.
+     * @param fsm the machine
+     * @throws FiniteStateMachineException if the machine is null, or is already attached to a recorder
+     */
+    public void attach(FiniteStateMachine fsm) throws FiniteStateMachineException {
+        if(fsm == null)
+            throw new FiniteStateMachineException("attach : cannot attach a null machine");
+        if(!fsm.replaceRecorder(null, this))
+            throw new FiniteStateMachineException("attach : the machine is already attached to a FiniteStateMachineFlightRecorder");
+    }
+
+    /**
+     * Stops recording the events processed by a machine. Its records are kept until overwritten.
+     * @param fsm the machine
+     * @return false if the machine was not attached to this recorder
+     */
+    public boolean detach(FiniteStateMachine fsm) {
+        return fsm.replaceRecorder(this, null);
+    }
+
+    /**
+     * @return the number of records kept
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return the number of events recorded since the recorder was created, including the ones overwritten since
+     */
+    public long getRecordCount() {
+        return next;
+    }
+
+    /**
+     * @return the records kept, oldest first
+     */
+    public List<Record> getRecords() {
+        return getRecords(null);
+    }
+
+    /**
+     * Reads the records kept while machines may still be recording : a record overwritten while it is read is left out.
+     * @param fsm the machine whose records to return, null for the records of all machines
+     * @return the records kept, oldest first
+     */
+    public List<Record> getRecords(FiniteStateMachine fsm) {
+        long end = next;
+        long start = Math.max(0L, end - (mask + 1));
+        ArrayList<Record> records = new ArrayList<Record>();
+        for(long sequence = start; sequence < end; sequence++) {
+            int slot = (int) sequence & mask;
+            if((long) SEQUENCES.getAcquire(sequences, slot) != sequence) //not written yet, or already overwritten
+                continue;
+            FiniteStateMachine machine = machines[slot];
+            Record record = new Record(sequence, times[slot], machine, froms[slot], events[slot], tos[slot], outcomes[slot]);
+            VarHandle.loadLoadFence();
+            if((long) SEQUENCES.getVolatile(sequences, slot) != sequence) //overwritten while read
+                continue;
+            if(fsm == null || machine == fsm)
+                records.add(record);
+        }
+        return Collections.unmodifiableList(records);
+    }
+
+    /**
+     * Writes the records kept, oldest first, one per line.
+     * @param out where to write them
+     * @throws IOException if out throws it
+     */
+    public void dump(Appendable out) throws IOException {
+        for(Record record : getRecords()) {
+            out.append(record.toString()).append(System.lineSeparator());
+        }
+    }
+
+    /**
+     * Records an event processed by a machine attached to this recorder.
+     * @param to the state after the event, null if the event was rejected
+     */
+    void record(FiniteStateMachine fsm, TransitionOutcome outcome, State from, Event event, State to) {
+        long time = clock.nanoTime();
+        long sequence = (long) NEXT.getAndAdd(this, 1L);
+        int slot = (int) sequence & mask;
+        SEQUENCES.setOpaque(sequences, slot, WRITING);
+        VarHandle.storeStoreFence(); //readers see the slot as being written before seeing any of its new fields
+        times[slot] = time;
+        machines[slot] = fsm;
+        froms[slot] = from;
+        events[slot] = event;
+        tos[slot] = to;
+        outcomes[slot] = outcome;
+        SEQUENCES.setRelease(sequences, slot, sequence);
+
+        if(jfrSamplingInterval != 0 && ++unsampled >= jfrSamplingInterval) {
+            unsampled = 0;
+            _emit(outcome, from, event, to);
+        }
+    }
+
+    private static void _emit(TransitionOutcome outcome, State from, Event event, State to) {
+        if(outcome == TransitionOutcome.UNEXISTING_TRANSITION) {
+            if(!REJECTED_TYPE.isEnabled())
+                return;
+            RejectedEventEvent jfrEvent = new RejectedEventEvent();
+            jfrEvent.state = from.name;
+            jfrEvent.event = event.name;
+            jfrEvent.commit();
+        } else {
+            if(!TRANSITION_TYPE.isEnabled())
+                return;
+            TransitionEvent jfrEvent = new TransitionEvent();
+            jfrEvent.from = from.name;
+            jfrEvent.event = event.name;
+            jfrEvent.to = to.name;
+            jfrEvent.stateChanged = outcome == TransitionOutcome.STATE_CHANGED;
+            jfrEvent.commit();
+        }
+    }
+
+    /**
+     * One event processed by a machine
+     */
+    public static final class Record {
+        private final long sequence;
+        private final long nanoTime;
+        private final FiniteStateMachine machine;
+        private final State from;
+        private final Event event;
+        private final State to;
+        private final TransitionOutcome outcome;
+
+        Record(long sequence, long nanoTime, FiniteStateMachine machine, State from, Event event, State to, TransitionOutcome outcome) {
+            this.sequence = sequence;
+            this.nanoTime = nanoTime;
+            this.machine = machine;
+            this.from = from;
+            this.event = event;
+            this.to = to;
+            this.outcome = outcome;
+        }
+
+        /** @return the rank of the record among all the events recorded by its recorder */
+        public long getSequence() { return sequence; }
+        /** @return the time of the clock of the recorder when the event was processed */
+        public long getNanoTime() { return nanoTime; }
+        public FiniteStateMachine getMachine() { return machine; }
+        public State getFrom() { return from; }
+        public Event getEvent() { return event; }
+        /** @return the state after the event, null if it was rejected */
+        public State getTo() { return to; }
+        public TransitionOutcome getOutcome() { return outcome; }
+
+        @Override
+        public String toString() {
+            return "#" + sequence + " at " + nanoTime + " : " + from + " --" + event + "--> "
+                   + (to == null ? "rejected" : to.toString()) + " [machine " + Integer.toHexString(System.identityHashCode(machine)) + "]";
+        }
+    }
+
+    /**
+     * The JFR event of a transition taken
+     */
+    @Name("com.gryzorz.fsm.Transition")
+    @Label("FSM Transition")
+    @Category("Finite State Machine")
+    @Description("A transition taken by a machine attached to a FiniteStateMachineFlightRecorder, sampled")
+    static final class TransitionEvent extends jdk.jfr.Event {
+        @Label("From")
+        String from;
+        @Label("Event")
+        String event;
+        @Label("To")
+        String to;
+        @Label("State Changed")
+        boolean stateChanged;
+    }
+
+    /**
+     * The JFR event of an event without transition from the current state
+     */
+    @Name("com.gryzorz.fsm.RejectedEvent")
+    @Label("FSM Rejected Event")
+    @Category("Finite State Machine")
+    @Description("An event without transition from the state of a machine attached to a FiniteStateMachineFlightRecorder, sampled")
+    static final class RejectedEventEvent extends jdk.jfr.Event {
+        @Label("State")
+        String state;
+        @Label("Event")
+        String event;
+    }
+}
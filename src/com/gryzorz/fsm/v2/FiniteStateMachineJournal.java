@@ -0,0 +1,507 @@
+package com.gryzorz.fsm.v2;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Write-ahead journal of the transitions followed by FiniteStateMachine instances of a definition.<br>
+ * <br>
+ * Every accepted event (state change or state loop) of the attached machines is appended as a record
+ * of 16 bytes : the id of the machine, the ordinal of the event and the ordinal of the resulting state.
+ * Events without transition change nothing and are not journaled. FiniteStateMachineJournalReader
+ * rebuilds the states from the journal after a restart.<br>
+ * <br>
+ * The journal is a directory of segments, files holding a fixed number of records. Segments are filled
+ * with zeros when they are created, ahead of time, so that writing a record never grows a file, and are
+ * memory-mapped : appending costs an atomic increment and three memory writes. A single flusher thread
+ * forces to disk everything appended since its previous sync, so all the records appended while the disk
+ * was busy share the next sync (group commit) : the number of syncs per second depends on the disk, not
+ * on the number of events.<br>
+ * <br>
+ * With durableOnReturn, the listener returned by attach(...) waits until its record is on disk, so that
+ * processEvent(...) only returns once the transition is durable, at the cost of the latency of one sync.
+ * Without it, records become durable a moment later, and sync() waits for all the records appended so far.
+ * processEvents(...) batches wait for each accepted event when durableOnReturn is set : prefer sync() after
+ * the batch.<br>
+ * <br>
+ * The records of a machine are in the order its events were processed, as long as the machine is
+ * ConcurrencyMode.LOCKED, or only receives events from one thread at a time.
+ *
+ * @author Benoit Fernandez
+ */
+public class FiniteStateMachineJournal implements AutoCloseable {
+    static final int MAGIC = 0x4A4D5346; //"FSMJ" once written little endian
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 16;
+    static final int MARKER_OFFSET = 12; //resulting state ordinal + 1, written last : 0 means not written yet
+    static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    static final int DEFAULT_RECORDS_PER_SEGMENT = 1 << 20;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int SPINS_BEFORE_PARKING = 100;
+    private static final long PARK_NANOS = 20000L;
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final Path directory;
+    private final FiniteStateMachineDefinition definition;
+    private final int recordsPerSegment;
+    private final boolean durableOnReturn;
+
+    private final AtomicLong next; //sequence of the next record to append
+    private volatile long durable; //sequence of the first record not known to be on disk, only written by the flusher
+    private volatile Segment current; //the segment holding the latest claimed record
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>(); //open segments by index, guarded by this
+    private volatile IOException failure = null;
+    private volatile boolean closed = false;
+    private final Thread flusher;
+
+    /**
+     * Opens the journal, creating it if needed, with segments of one million records that
+     * processEvent(...) waits for, see durableOnReturn.
+     * @param directory the directory holding the segments
+     * @param definition the definition all journaled machines follow
+     * @throws FiniteStateMachineException if the journal was written with another definition
+     * @throws IOException if the directory or its segments cannot be read or written
+     */
+    public FiniteStateMachineJournal(Path directory, FiniteStateMachineDefinition definition) throws FiniteStateMachineException, IOException {
+        this(directory, definition, DEFAULT_RECORDS_PER_SEGMENT, true);
+    }
+
+    /**
+     * Opens the journal, creating it if needed. New records are appended after the last one written : opening
+     * reads the markers of every segment to find it, as replaying does, and deletes the segments that follow it.
+     * @param directory the directory holding the segments
+     * @param definition the definition all journaled machines follow
+     * @param recordsPerSegment the number of records per segment, ignored if the journal already exists
+     * @param durableOnReturn true if the listeners returned by attach(...) wait until their record is on disk
+     * @throws FiniteStateMachineException if the journal was written with another definition
+     * @throws IOException if the directory or its segments cannot be read or written
+     */
+    public FiniteStateMachineJournal(Path directory, FiniteStateMachineDefinition definition, int recordsPerSegment, boolean durableOnReturn)
+            throws FiniteStateMachineException, IOException {
+        if(definition == null)
+            throw new IllegalArgumentException("definition cannot be null");
+        if(recordsPerSegment < 1 || recordsPerSegment > (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE)
+            throw new IllegalArgumentException("recordsPerSegment must be between 1 and 2^27 : " + recordsPerSegment);
+        this.directory = directory;
+        this.definition = definition;
+        this.durableOnReturn = durableOnReturn;
+        Files.createDirectories(directory);
+
+        List<Path> files = segmentFiles(directory);
+        long end;
+        if(files.isEmpty()) {
+            this.recordsPerSegment = recordsPerSegment;
+            current = _segment(0, true);
+            end = 0;
+        } else {
+            //the end is the first record never written, wherever it is : FiniteStateMachineJournalReader stops there too
+            long first = segmentIndex(files.get(0));
+            int size = 0;
+            Segment segment = null;
+            int count = 0;
+            for(int i = 0; i < files.size(); i++) {
+                Path file = files.get(i);
+                if(segmentIndex(file) != first + i)
+                    throw new FiniteStateMachineException("Journal segment " + file + " does not follow the previous one");
+                if(segment != null)
+                    segment.channel.close(); //full, only read
+                segment = new Segment(first + i, FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE));
+                int records = checkHeader(segment.buffer, file, definition, segment.index);
+                if(i > 0 && records != size)
+                    throw new FiniteStateMachineException("Journal segment " + file + " holds " + records + " records instead of " + size);
+                size = records;
+                count = _writtenCount(segment.buffer, size);
+                if(count < size) { //the following segments were prepared ahead of time, or written after a hole lost in a crash
+                    for(int j = i + 1; j < files.size(); j++) {
+                        Files.delete(files.get(j));
+                    }
+                    break;
+                }
+            }
+            this.recordsPerSegment = size;
+            _truncateTail(segment, count);
+            segments.put(segment.index, segment);
+            current = segment; //even if full : the next segment is created by the first append
+            end = segment.index * size + count;
+        }
+        next = new AtomicLong(end);
+        durable = end;
+
+        flusher = new Thread(new Runnable() {
+            public void run() {
+                _flush();
+            }
+        }, "fsm-journal-flusher-" + threadCount.incrementAndGet());
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Journals the accepted events of a machine, by adding a listener to it.
+     * @param machineId the id under which the machine is journaled, and will be replayed
+     * @param fsm the machine, created from the definition of this journal
+     * @return the listener, to stop journaling the machine with removeListener(...)
+     * @throws FiniteStateMachineException if the machine does not follow the definition of this journal
+     */
+    public FiniteStateMachineListener attach(long machineId, FiniteStateMachine fsm) throws FiniteStateMachineException {
+        if(fsm.getDefinition() != definition)
+            throw new FiniteStateMachineException("attach : the machine " + machineId + " does not follow the definition of this journal");
+        FiniteStateMachineListener listener = new JournalListener(machineId);
+        fsm.addListener(listener);
+        return listener;
+    }
+
+    /**
+     * Appends a record without waiting for it to be on disk, for machines that are not attached, the
+     * entities of a FiniteStateMachineFleet for example.
+     * @param machineId the id of the machine
+     * @param event the accepted event
+     * @param to the state the machine is in after the event
+     * @return the sequence of the record, see awaitDurable(...)
+     * @throws FiniteStateMachineException if the event or the state is not part of the definition of this journal
+     */
+    public long append(long machineId, Event event, State to) throws FiniteStateMachineException {
+        int eventOrdinal = definition.table.eventOrdinal(event);
+        if(eventOrdinal == TransitionTable.NO_TRANSITION)
+            throw new FiniteStateMachineException("append : Event " + event + " is not part of the definition of this journal");
+        return _append(machineId, eventOrdinal, definition.stateOrdinal(to));
+    }
+
+    /**
+     * Waits until a record is on disk.
+     * @param sequence the sequence of the record, as returned by append(...)
+     * @throws UncheckedIOException if the journal could not be written to disk
+     * @throws IllegalStateException if the journal was closed before the record could be written to disk
+     */
+    public void awaitDurable(long sequence) {
+        int idle = 0;
+        while(durable <= sequence) {
+            if(failure != null)
+                throw new UncheckedIOException("The journal could not be written to disk", failure);
+            if(closed && !flusher.isAlive() && durable <= sequence)
+                throw new IllegalStateException("The journal was closed before record " + sequence + " was written to disk");
+            idle = _backOff(idle);
+        }
+    }
+
+    /**
+     * Waits until every record appended before this call is on disk.
+     */
+    public void sync() {
+        awaitDurable(next.get() - 1);
+    }
+
+    /**
+     * @return the number of records in the journal, including those written before it was opened
+     */
+    public long getRecordCount() {
+        return next.get();
+    }
+
+    /**
+     * @return the number of records known to be on disk
+     */
+    public long getDurableCount() {
+        return durable;
+    }
+
+    /**
+     * Writes the pending records to disk, then stops the flusher thread and closes the segments.
+     * Records appended afterwards are rejected with an IllegalStateException.
+     * Waits for the flusher thread even if interrupted, as the segments cannot be closed while it writes to them :
+     * the interrupt status is then restored.
+     * @throws IOException if the journal could not be written to disk
+     */
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(flusher);
+        boolean interrupted = false;
+        while(flusher.isAlive()) {
+            try {
+                flusher.join();
+            } catch(InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+        synchronized(this) {
+            for(Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+            segments.clear();
+        }
+        if(failure != null)
+            throw failure;
+    }
+
+
+    /**************************************************************************
+     *                               appending                                *
+     *************************************************************************/
+
+    private long _append(long machineId, int eventOrdinal, int stateOrdinal) {
+        if(closed)
+            throw new IllegalStateException("The journal is closed");
+        long sequence = next.getAndIncrement();
+        long index = sequence / recordsPerSegment;
+        Segment segment = current;
+        if(segment.index != index) {
+            try {
+                segment = _segment(index, true);
+            } catch(IOException e) {
+                failure = e;
+                throw new UncheckedIOException("The journal could not create segment " + index, e);
+            }
+        }
+        int offset = HEADER_SIZE + (int) (sequence - index * recordsPerSegment) * RECORD_SIZE;
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.putLong(offset, machineId);
+        buffer.putInt(offset + 8, eventOrdinal);
+        INTS.setRelease(buffer, offset + MARKER_OFFSET, stateOrdinal + 1); //publishes the record to the flusher
+        return sequence;
+    }
+
+    /**
+     * @param advance true if the segment is needed to append a record, false if it is only prepared ahead of time
+     * @return the segment, created and preallocated if it does not exist yet
+     */
+    private synchronized Segment _segment(long index, boolean advance) throws IOException {
+        Segment segment = segments.get(index);
+        if(segment == null) {
+            Path file = directory.resolve(String.format("%s%012d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long size = HEADER_SIZE + (long) recordsPerSegment * RECORD_SIZE;
+            ByteBuffer zeros = ByteBuffer.allocateDirect((int) Math.min(size, 1 << 20));
+            for(long position = 0; position < size; position += zeros.limit()) {
+                zeros.clear().limit((int) Math.min(zeros.capacity(), size - position));
+                while(zeros.hasRemaining()) {
+                    channel.write(zeros, position + zeros.position());
+                }
+            }
+            segment = new Segment(index, channel);
+            segment.buffer.order(ByteOrder.LITTLE_ENDIAN)
+                          .putInt(MAGIC).putInt(VERSION).putLong(definition.getFingerprint())
+                          .putLong(index).putInt(recordsPerSegment);
+            segment.buffer.force();
+            segments.put(index, segment);
+        }
+        if(advance && (current == null || index > current.index))
+            current = segment;
+        return segment;
+    }
+
+    /**
+     * @return the number of records written at the start of a segment, before the first one never written
+     */
+    private static int _writtenCount(MappedByteBuffer buffer, int recordsPerSegment) {
+        int count = 0;
+        while(count < recordsPerSegment && buffer.getInt(HEADER_SIZE + count * RECORD_SIZE + MARKER_OFFSET) != 0) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Zeros what follows the end of a segment written before the journal was opened : a record written after
+     * a record that never made it to disk must not be replayed after a crash.
+     * @param count the number of records of the segment
+     */
+    private static void _truncateTail(Segment segment, int count) {
+        MappedByteBuffer buffer = segment.buffer;
+        for(int offset = HEADER_SIZE + count * RECORD_SIZE; offset < buffer.limit(); offset += 8) {
+            buffer.putLong(offset, 0L);
+        }
+        buffer.force();
+    }
+
+
+    /**************************************************************************
+     *                                flushing                                *
+     *************************************************************************/
+
+    private void _flush() {
+        int idle = 0;
+        try {
+            while(true) {
+                long from = durable;
+                long to = _writtenUpTo(from, next.get());
+                if(to > from) {
+                    _force(from, to);
+                    durable = to;
+                    _closeDurableSegments(to);
+                    _prepareNextSegment(to);
+                    idle = 0;
+                } else if(closed && from == next.get()) {
+                    return;
+                } else {
+                    idle = _backOff(idle);
+                }
+            }
+        } catch(IOException e) {
+            failure = e;
+        }
+    }
+
+    /**
+     * @return the sequence of the first record not written yet, at most claimed
+     */
+    private long _writtenUpTo(long from, long claimed) throws IOException {
+        long sequence = from;
+        while(sequence < claimed) {
+            long index = sequence / recordsPerSegment;
+            MappedByteBuffer buffer = _segment(index, false).buffer;
+            long last = Math.min(claimed, (index + 1) * recordsPerSegment);
+            while(sequence < last) {
+                int offset = HEADER_SIZE + (int) (sequence - index * recordsPerSegment) * RECORD_SIZE;
+                if((int) INTS.getAcquire(buffer, offset + MARKER_OFFSET) == 0)
+                    return sequence;
+                sequence++;
+            }
+        }
+        return sequence;
+    }
+
+    private void _force(long from, long to) throws IOException {
+        long sequence = from;
+        while(sequence < to) {
+            long index = sequence / recordsPerSegment;
+            long last = Math.min(to, (index + 1) * recordsPerSegment);
+            int offset = HEADER_SIZE + (int) (sequence - index * recordsPerSegment) * RECORD_SIZE;
+            _segment(index, false).buffer.force(offset, (int) (last - sequence) * RECORD_SIZE);
+            sequence = last;
+        }
+    }
+
+    private synchronized void _closeDurableSegments(long durable) throws IOException {
+        Iterator<Segment> iterator = segments.values().iterator();
+        while(iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if(segment.index >= current.index || (segment.index + 1) * recordsPerSegment > durable)
+                return;
+            segment.channel.close(); //the mapping stays valid until it is garbage collected
+            iterator.remove();
+        }
+    }
+
+    private void _prepareNextSegment(long durable) throws IOException {
+        long index = current.index;
+        if(durable - index * recordsPerSegment > recordsPerSegment / 2)
+            _segment(index + 1, false);
+    }
+
+    private static int _backOff(int idle) {
+        if(idle < SPINS_BEFORE_PARKING) {
+            Thread.onSpinWait();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        return idle + 1;
+    }
+
+
+    /**************************************************************************
+     *                         segment files and header                       *
+     *************************************************************************/
+
+    /**
+     * @return the segment files of the journal, in the order they were written
+     */
+    static List<Path> segmentFiles(Path directory) throws IOException {
+        List<Path> files = new ArrayList<Path>();
+        if(!Files.isDirectory(directory))
+            return files;
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for(Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files); //indexes are zero padded
+        return files;
+    }
+
+    static long segmentIndex(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Checks the header of a segment, and leaves the buffer little endian.
+     * @return the number of records per segment of the journal
+     */
+    static int checkHeader(MappedByteBuffer buffer, Path file, FiniteStateMachineDefinition definition, long index) throws FiniteStateMachineException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if(buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+            throw new FiniteStateMachineException("Journal segment " + file + " is not a journal segment");
+        if(buffer.getInt(4) != VERSION)
+            throw new FiniteStateMachineException("Journal segment " + file + " has an unsupported version : " + buffer.getInt(4));
+        if(buffer.getLong(8) != definition.getFingerprint())
+            throw new FiniteStateMachineException("Journal segment " + file + " was written with another definition : fingerprint "
+                                                  + Long.toHexString(buffer.getLong(8)) + " instead of " + Long.toHexString(definition.getFingerprint()));
+        if(buffer.getLong(16) != index)
+            throw new FiniteStateMachineException("Journal segment " + file + " holds segment " + buffer.getLong(16));
+        int recordsPerSegment = buffer.getInt(24);
+        if(recordsPerSegment < 1 || buffer.limit() != HEADER_SIZE + (long) recordsPerSegment * RECORD_SIZE)
+            throw new FiniteStateMachineException("Journal segment " + file + " is truncated");
+        return recordsPerSegment;
+    }
+
+    private static final class Segment {
+        final long index;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+
+        Segment(long index, FileChannel channel) throws IOException {
+            this.index = index;
+            this.channel = channel;
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        }
+    }
+
+    private final class JournalListener extends DefaultFiniteStateMachineListener {
+        private final long machineId;
+
+        JournalListener(long machineId) {
+            this.machineId = machineId;
+        }
+
+        public void stateChanged(State from, Event event, State to) {
+            _record(event, to);
+        }
+
+        public void stateLoop(State state, Event event) {
+            _record(event, state);
+        }
+
+        private void _record(Event event, State to) {
+            TransitionTable table = definition.table;
+            int eventOrdinal = table.eventOrdinal(event);
+            int stateOrdinal = table.stateOrdinal(to);
+            if(eventOrdinal == TransitionTable.NO_TRANSITION || stateOrdinal == TransitionTable.NO_TRANSITION)
+                throw new IllegalStateException("the machine " + machineId + " moved to a version of its definition this journal does not follow");
+            long sequence = _append(machineId, eventOrdinal, stateOrdinal);
+            if(durableOnReturn)
+                awaitDurable(sequence);
+        }
+    }
+}
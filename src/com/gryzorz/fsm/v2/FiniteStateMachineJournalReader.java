@@ -0,0 +1,114 @@
+package com.gryzorz.fsm.v2;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rebuilds the states of machines from a FiniteStateMachineJournal, after a restart for example.<br>
+ * <br>
+ * Segments are memory-mapped read only and scanned sequentially. Since each record holds the state
+ * its machine reached, replaying does not follow any transition and does not notify any listener :
+ * the last record of each machine gives its state, which is kept in a primitive map, then applied
+ * once per machine. Replay stops at the first record that was never written, which after a crash is
+ * the end of what the journal had written to disk.<br>
+ * <br>
+ * Machines that have no record in the journal are in the initial state of the definition. Combined
+ * with a FiniteStateMachineSnapshotReader, replay the journal segments written after the snapshot.
+ *
+ * @author Benoit Fernandez
+ */
+public class FiniteStateMachineJournalReader {
+    private final FiniteStateMachineDefinition definition;
+    private final List<Path> files;
+
+    /**
+     * Opens a journal and checks that it was written with the definition.
+     * @param directory the directory holding the segments
+     * @param definition the definition the journal was written with
+     * @throws FiniteStateMachineException if a segment is invalid or was written with another definition
+     * @throws IOException if the segments cannot be read
+     */
+    public FiniteStateMachineJournalReader(Path directory, FiniteStateMachineDefinition definition) throws FiniteStateMachineException, IOException {
+        if(definition == null)
+            throw new IllegalArgumentException("definition cannot be null");
+        this.definition = definition;
+        this.files = FiniteStateMachineJournal.segmentFiles(directory);
+        for(int i = 0; i < files.size(); i++) {
+            Path file = files.get(i);
+            long index = FiniteStateMachineJournal.segmentIndex(file);
+            if(index != FiniteStateMachineJournal.segmentIndex(files.get(0)) + i)
+                throw new FiniteStateMachineException("Journal segment " + file + " does not follow the previous one");
+            FiniteStateMachineJournal.checkHeader(_map(file), file, definition, index);
+        }
+    }
+
+    /**
+     * Rebuilds the machines of the journal.
+     * @return the machines that have at least one record, by id, each in the state of its last record
+     * @throws FiniteStateMachineException if a segment is invalid
+     * @throws IOException if the segments cannot be read
+     */
+    public Map<Long, FiniteStateMachine> replay() throws FiniteStateMachineException, IOException {
+        EntityStateMap states = _replay();
+        final Map<Long, FiniteStateMachine> machines = new HashMap<Long, FiniteStateMachine>(states.size() * 4 / 3 + 1);
+        states.forEach(new EntityStateVisitor() {
+            public void visit(long entityId, int stateOrdinal) {
+                machines.put(entityId, new FiniteStateMachine(definition, stateOrdinal));
+            }
+        });
+        return machines;
+    }
+
+    /**
+     * Puts every entity of the journal back in the state of its last record. Like events, the states are
+     * applied asynchronously by the workers of the fleet : call flush() on the fleet to wait for them.
+     * @param fleet the fleet, following the definition of this journal
+     * @return the number of entities restored
+     * @throws FiniteStateMachineException if the fleet does not follow the definition of this journal, or a segment is invalid
+     * @throws IOException if the segments cannot be read
+     */
+    public long replayInto(final FiniteStateMachineFleet fleet) throws FiniteStateMachineException, IOException {
+        if(fleet.getDefinition() != definition)
+            throw new FiniteStateMachineException("replayInto : the fleet does not follow the definition of this journal");
+        EntityStateMap states = _replay();
+        states.forEach(new EntityStateVisitor() {
+            public void visit(long entityId, int stateOrdinal) {
+                fleet.restore(entityId, stateOrdinal);
+            }
+        });
+        return states.size();
+    }
+
+    /**
+     * Reads all the records, in order, and keeps the last state of each machine.
+     */
+    private EntityStateMap _replay() throws FiniteStateMachineException, IOException {
+        EntityStateMap states = new EntityStateMap(1024);
+        int stateCount = definition.table.states.length;
+        for(Path file : files) {
+            MappedByteBuffer buffer = _map(file);
+            FiniteStateMachineJournal.checkHeader(buffer, file, definition, FiniteStateMachineJournal.segmentIndex(file));
+            for(int offset = FiniteStateMachineJournal.HEADER_SIZE, end = buffer.limit(); offset < end; offset += FiniteStateMachineJournal.RECORD_SIZE) {
+                int marker = buffer.getInt(offset + FiniteStateMachineJournal.MARKER_OFFSET);
+                if(marker == 0)
+                    return states; //never written, the end of the journal
+                if(marker < 0 || marker > stateCount)
+                    throw new FiniteStateMachineException("Journal segment " + file + " holds an invalid state ordinal : " + (marker - 1));
+                states.put(buffer.getLong(offset), marker - 1);
+            }
+        }
+        return states;
+    }
+
+    private static MappedByteBuffer _map(Path file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+}
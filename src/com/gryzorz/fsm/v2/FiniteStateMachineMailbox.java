@@ -0,0 +1,233 @@
+package com.gryzorz.fsm.v2;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Turns a FiniteStateMachine into an actor : events are submitted without waiting, queued in the mailbox
+ * of the machine, and processed one at a time, in the order they were submitted, by an Executor.<br>
+ * <br>
+ * submit(...) returns at once a CompletableFuture of the TransitionOutcome, completed once the transition is
+ * made and the listeners have been notified. A listener throwing a RuntimeException completes the future
+ * exceptionally, and the next events are processed anyway.<br>
+ * <br>
+ * Events are processed without taking the monitor of the machine, so virtual threads running them are never
+ * pinned to their carrier, and a slow listener only delays the events of its own machine. This is only safe
+ * because the mailbox is the only one to process events : once a machine has a mailbox, do not call its
+ * processEvent(...) methods anymore.<br>
+ * <br>
+ * A mailbox is small, a few dozen bytes, and holds no thread : when it is empty, it costs nothing, and when
+ * an event arrives, a task draining it is handed to the executor. The task processes up to BATCH_SIZE events
+ * before handing itself back to the executor, so that busy machines do not starve the others. The default
+ * executor runs each task in a virtual thread when the JVM has them, in the common ForkJoinPool otherwise.<br>
+ * <br>
+ * A mailbox may be bounded : when it already holds its capacity of pending events, the BackPressurePolicy
+ * decides whether submit(...) waits for room (BLOCK) or fails the future with a RejectedExecutionException
+ * (DROP). CALLER_RUNS would process events out of order, and is refused.
+ *
+ * @author Benoit Fernandez
+ */
+public class FiniteStateMachineMailbox {
+    /** events processed by a task before it hands itself back to the executor */
+    public static final int BATCH_SIZE = 64;
+    private static final int SPINS_BEFORE_PARKING = 100;
+    private static final long PARK_NANOS = 50000L;
+
+    private static final VarHandle SIZE;
+    private static final VarHandle TAIL;
+    private static final VarHandle DROPPED_COUNT;
+    private static final VarHandle NEXT;
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            SIZE = lookup.findVarHandle(FiniteStateMachineMailbox.class, "size", int.class);
+            TAIL = lookup.findVarHandle(FiniteStateMachineMailbox.class, "tail", Node.class);
+            DROPPED_COUNT = lookup.findVarHandle(FiniteStateMachineMailbox.class, "droppedCount", long.class);
+            NEXT = lookup.findVarHandle(Node.class, "next", Node.class);
+        } catch(ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final FiniteStateMachine fsm;
+    private final Executor executor;
+    private final int capacity;
+    private final BackPressurePolicy backPressurePolicy;
+    private final Runnable drain = new Runnable() {
+        public void run() {
+            _drain();
+        }
+    };
+
+    /* multiple producers, single consumer linked queue : producers swap the tail, the draining task
+       alone moves the head. size counts the events submitted and not processed yet : the producer that
+       makes it leave 0 schedules the draining task, which stops when it brings it back to 0 */
+    private int size = 0;
+    private Node tail;
+    private Node head;
+    private long droppedCount = 0;
+
+    /**
+     * Creates an unbounded mailbox, drained by the default executor.
+     * @param fsm the machine, which must not receive events but through this mailbox
+     */
+    public FiniteStateMachineMailbox(FiniteStateMachine fsm) {
+        this(fsm, defaultExecutor(), Integer.MAX_VALUE, BackPressurePolicy.BLOCK);
+    }
+
+    /**
+     * @param fsm the machine, which must not receive events but through this mailbox
+     * @param executor runs the tasks draining the mailbox, see defaultExecutor()
+     * @param capacity the maximum number of pending events, Integer.MAX_VALUE for an unbounded mailbox
+     * @param backPressurePolicy what submit(...) does when the mailbox is full, BLOCK or DROP
+     */
+    public FiniteStateMachineMailbox(FiniteStateMachine fsm, Executor executor, int capacity, BackPressurePolicy backPressurePolicy) {
+        if(fsm == null)
+            throw new IllegalArgumentException("fsm cannot be null");
+        if(executor == null)
+            throw new IllegalArgumentException("executor cannot be null");
+        if(capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive : " + capacity);
+        if(backPressurePolicy == null || backPressurePolicy == BackPressurePolicy.CALLER_RUNS)
+            throw new IllegalArgumentException("backPressurePolicy must be BLOCK or DROP : " + backPressurePolicy);
+        this.fsm = fsm;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.backPressurePolicy = backPressurePolicy;
+        head = tail = new Node(null, null);
+    }
+
+    /**
+     * @return an executor starting a virtual thread per task when the JVM has them (Java 21 and later),
+     * the common ForkJoinPool otherwise
+     */
+    public static Executor defaultExecutor() {
+        return DefaultExecutor.INSTANCE;
+    }
+
+    private static final class DefaultExecutor {
+        static final Executor INSTANCE = _create();
+
+        private static Executor _create() {
+            try {
+                return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch(ReflectiveOperationException e) { //no virtual threads in this JVM
+                return ForkJoinPool.commonPool();
+            }
+        }
+    }
+
+    /**
+     * Queues an event, to be processed by the machine after all the events submitted before.
+     * @param event the event that happened
+     * @return the outcome of the event, once processed and notified to the listeners of the machine
+     */
+    public CompletableFuture<TransitionOutcome> submit(Event event) {
+        CompletableFuture<TransitionOutcome> future = new CompletableFuture<TransitionOutcome>();
+        int pending;
+        int idle = 0;
+        while(true) {
+            pending = (int) SIZE.getVolatile(this);
+            if(pending < capacity) {
+                if(SIZE.compareAndSet(this, pending, pending + 1))
+                    break;
+            } else if(backPressurePolicy == BackPressurePolicy.DROP) {
+                DROPPED_COUNT.getAndAdd(this, 1L);
+                future.completeExceptionally(new RejectedExecutionException("The mailbox of the machine is full : " + capacity + " pending events"));
+                return future;
+            } else {
+                idle = _backOff(idle);
+            }
+        }
+        Node node = new Node(event, future);
+        Node previous = (Node) TAIL.getAndSet(this, node);
+        NEXT.setRelease(previous, node);
+        if(pending == 0)
+            _schedule();
+        return future;
+    }
+
+    /**
+     * @return the number of events submitted and not processed yet
+     */
+    public int getPendingCount() {
+        return (int) SIZE.getVolatile(this);
+    }
+
+    /**
+     * @return the number of events refused because the mailbox was full, with policy DROP
+     */
+    public long getDroppedCount() {
+        return (long) DROPPED_COUNT.getVolatile(this);
+    }
+
+    /**
+     * @return the machine processing the events of this mailbox
+     */
+    public FiniteStateMachine getMachine() {
+        return fsm;
+    }
+
+    private void _schedule() {
+        try {
+            executor.execute(drain);
+        } catch(RejectedExecutionException e) { //the executor is shut down : the events are not lost, the caller processes them
+            _drain();
+        }
+    }
+
+    /**
+     * Processes up to BATCH_SIZE events, only ever run by one thread at a time
+     */
+    private void _drain() {
+        for(int processed = 1; ; processed++) {
+            Node next;
+            int idle = 0;
+            while((next = (Node) NEXT.getAcquire(head)) == null) { //counted in size, but not linked yet
+                idle = _backOff(idle);
+            }
+            head = next;
+            Event event = next.event;
+            CompletableFuture<TransitionOutcome> future = next.future;
+            next.event = null;
+            next.future = null;
+            try {
+                future.complete(fsm.processEventSerially(event));
+            } catch(Throwable t) { //a listener failed : the mailbox must go on, or it would never be drained again
+                future.completeExceptionally(t);
+            }
+            if((int) SIZE.getAndAdd(this, -1) == 1)
+                return; //empty, the next event submitted schedules a new task
+            if(processed == BATCH_SIZE) {
+                _schedule();
+                return;
+            }
+        }
+    }
+
+    private static int _backOff(int idle) {
+        if(idle < SPINS_BEFORE_PARKING) {
+            Thread.onSpinWait();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        return idle + 1;
+    }
+
+    private static final class Node {
+        Event event;
+        CompletableFuture<TransitionOutcome> future;
+        volatile Node next;
+
+        Node(Event event, CompletableFuture<TransitionOutcome> future) {
+            this.event = event;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.gryzorz.fsm.v2;
+
+/**
+ * Receives the matches found by a FiniteStateMachineRecognizer, in the order they end.
+ *
+ * @author Benoit Fernandez
+ */
+public interface FiniteStateMachineMatchListener {
+
+    /**
+     * Called each time a transition enters, or loops on, one of the accept states of the recognizer.
+     * @param state the accept state
+     * @param start the offset of the first symbol of the match
+     * @param end the offset following the last symbol of the match
+     * @return true to go on scanning, false to stop the scan right after this match
+     */
+    boolean matched(State state, long start, long end);
+}
@@ -0,0 +1,306 @@
+package com.gryzorz.fsm.v2;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts what happens to all the FiniteStateMachine instances of a FiniteStateMachineDefinition :<br>
+ *  - how many times each transition, identified by its origin state and its event, was followed<br>
+ *  - how many times an event had no transition from each state (unexistingTransition)<br>
+ *  - how long instances stayed in each state before leaving it, as a histogram with fixed buckets,
+ *  see DWELL_TIME_BUCKETS<br>
+ * <br>
+ * Enable it with FiniteStateMachineBuilder.setMetricsEnabled(true) before creating the definition,
+ * then read it with FiniteStateMachineDefinition.getMetrics(). When metrics are disabled, the only
+ * cost left on processEvent(...) is a null check.<br>
+ * <br>
+ * Counters are striped LongAdder, created the first time they are incremented, so that threads processing
+ * events of different instances do not contend on the same memory. Dwell times have a resolution of one
+ * millisecond and are measured between two state changes of an instance : a state loop does not restart
+ * the clock. With ConcurrencyMode.LOCK_FREE, concurrent state changes of the same instance may blur the
+ * dwell time of that instance, never the counters.<br>
+ * <br>
+ * FiniteStateMachineFleet also feeds the counters of its definition, but not the dwell times.<br>
+ * The figures are available through snapshot(), and through JMX once registerMBean(...) has been called.
+ *
+ * @author Benoit Fernandez
+ */
+public class FiniteStateMachineMetrics implements FiniteStateMachineMetricsMBean {
+    /**
+     * Upper bounds, in milliseconds and excluded, of the dwell time histogram buckets :
+     * 1 ms, 10 ms, 100 ms, 1 s, 10 s, 1 min, 10 min, 1 h. A last bucket counts longer dwell times.
+     */
+    public static final long[] DWELL_TIME_BUCKETS = {1L, 10L, 100L, 1000L, 10000L, 60000L, 600000L, 3600000L};
+
+    private final TransitionTable table;
+    private final long epochNanos = System.nanoTime();
+    private final AtomicReferenceArray<LongAdder> transitionCounts;
+    private final AtomicReferenceArray<LongAdder> unexistingTransitionCounts;
+    private final AtomicReferenceArray<LongAdder[]> dwellTimes;
+    private final LongAdder instanceCount; //owned by the definition, never reset
+
+    FiniteStateMachineMetrics(TransitionTable table, LongAdder instanceCount) {
+        this.table = table;
+        this.instanceCount = instanceCount;
+        this.transitionCounts = new AtomicReferenceArray<LongAdder>(table.table.length);
+        this.unexistingTransitionCounts = new AtomicReferenceArray<LongAdder>(table.states.length);
+        this.dwellTimes = new AtomicReferenceArray<LongAdder[]>(table.states.length);
+    }
+
+    /**
+     * @return the current time, in milliseconds since the creation of these metrics, wrapping around after
+     * 49 days : an int is enough to measure dwell times shorter than that
+     */
+    int now() {
+        return (int) ((System.nanoTime() - epochNanos) / 1000000L);
+    }
+
+    void recordTransition(int from, int event) {
+        int cell = from * table.eventCount + event;
+        LongAdder counter = transitionCounts.get(cell);
+        if(counter == null)
+            counter = _install(transitionCounts, cell);
+        counter.increment();
+    }
+
+    void recordUnexistingTransition(int from) {
+        LongAdder counter = unexistingTransitionCounts.get(from);
+        if(counter == null)
+            counter = _install(unexistingTransitionCounts, from);
+        counter.increment();
+    }
+
+    /**
+     * @param state the state that was left
+     * @param enteredAt the value of now() when it was entered
+     * @param leftAt the value of now() when it was left
+     */
+    void recordDwellTime(int state, int enteredAt, int leftAt) {
+        long dwellTime = (leftAt - enteredAt) & 0xFFFFFFFFL; //unsigned difference survives the wrap around
+        LongAdder[] histogram = dwellTimes.get(state);
+        if(histogram == null) {
+            LongAdder[] created = new LongAdder[DWELL_TIME_BUCKETS.length + 1];
+            for(int i = 0; i < created.length; i++) {
+                created[i] = new LongAdder();
+            }
+            histogram = dwellTimes.compareAndSet(state, null, created) ? created : dwellTimes.get(state);
+        }
+        int bucket = 0;
+        while(bucket < DWELL_TIME_BUCKETS.length && dwellTime >= DWELL_TIME_BUCKETS[bucket]) {
+            bucket++;
+        }
+        histogram[bucket].increment();
+    }
+
+    private static LongAdder _install(AtomicReferenceArray<LongAdder> counters, int index) {
+        LongAdder created = new LongAdder();
+        return counters.compareAndSet(index, null, created) ? created : counters.get(index);
+    }
+
+
+    /**************************************************************************
+     *                              reading                                   *
+     *************************************************************************/
+
+    /**
+     * Takes a consistent enough copy of all the figures : each counter is read once, but counters
+     * still being incremented while the snapshot is taken may be off by the events in flight.
+     * @return the copy
+     */
+    public Snapshot snapshot() {
+        int cellCount = transitionCounts.length();
+        long[] transitions = new long[cellCount];
+        for(int i = 0; i < cellCount; i++) {
+            LongAdder counter = transitionCounts.get(i);
+            transitions[i] = counter == null ? 0 : counter.sum();
+        }
+        int stateCount = table.states.length;
+        long[] unexisting = new long[stateCount];
+        long[][] histograms = new long[stateCount][DWELL_TIME_BUCKETS.length + 1];
+        for(int s = 0; s < stateCount; s++) {
+            LongAdder counter = unexistingTransitionCounts.get(s);
+            unexisting[s] = counter == null ? 0 : counter.sum();
+            LongAdder[] histogram = dwellTimes.get(s);
+            if(histogram != null) {
+                for(int b = 0; b < histogram.length; b++) {
+                    histograms[s][b] = histogram[b].sum();
+                }
+            }
+        }
+        return new Snapshot(table, transitions, unexisting, histograms);
+    }
+
+    /**
+     * Sets all counters and histograms back to 0, except the instance count, which is not a counter of events.
+     */
+    public void reset() {
+        for(int i = 0; i < transitionCounts.length(); i++) {
+            LongAdder counter = transitionCounts.get(i);
+            if(counter != null)
+                counter.reset();
+        }
+        for(int s = 0; s < unexistingTransitionCounts.length(); s++) {
+            LongAdder counter = unexistingTransitionCounts.get(s);
+            if(counter != null)
+                counter.reset();
+            LongAdder[] histogram = dwellTimes.get(s);
+            if(histogram != null) {
+                for(LongAdder bucket : histogram) {
+                    bucket.reset();
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers these metrics in the platform MBeanServer, under
+     * com.gryzorz.fsm:type=FiniteStateMachineMetrics,name=[name]
+     * @param name the name identifying the definition, quoted if needed
+     * @return the name under which the MBean was registered, to unregister it
+     * @throws JMException if the name is invalid or already registered
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName("com.gryzorz.fsm:type=FiniteStateMachineMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    public long getTransitionCount() {
+        return snapshot().getTransitionCount();
+    }
+
+    public long getUnexistingTransitionCount() {
+        return snapshot().getUnexistingTransitionCount();
+    }
+
+    public String[] getTransitionCounts() {
+        return snapshot().describeTransitionCounts();
+    }
+
+    public String[] getUnexistingTransitionCounts() {
+        return snapshot().describeUnexistingTransitionCounts();
+    }
+
+    public String[] getDwellTimeHistograms() {
+        return snapshot().describeDwellTimeHistograms();
+    }
+
+    public long getInstanceCount() {
+        return instanceCount.sum();
+    }
+
+
+    /**
+     * Immutable copy of the metrics at a given time, see FiniteStateMachineMetrics.snapshot()
+     */
+    public static class Snapshot {
+        private final TransitionTable table;
+        private final long[] transitionCounts;
+        private final long[] unexistingTransitionCounts;
+        private final long[][] dwellTimeHistograms;
+
+        Snapshot(TransitionTable table, long[] transitionCounts, long[] unexistingTransitionCounts, long[][] dwellTimeHistograms) {
+            this.table = table;
+            this.transitionCounts = transitionCounts;
+            this.unexistingTransitionCounts = unexistingTransitionCounts;
+            this.dwellTimeHistograms = dwellTimeHistograms;
+        }
+
+        /**
+         * @return how many times the transition starting from the state and reacting to the event was followed,
+         * 0 if there is no such transition
+         */
+        public long getTransitionCount(State from, Event event) {
+            int state = table.stateOrdinal(from);
+            int next = state == TransitionTable.NO_TRANSITION ? TransitionTable.NO_TRANSITION : table.nextState(state, table.eventOrdinal(event));
+            if(next == TransitionTable.NO_TRANSITION)
+                return 0;
+            return transitionCounts[state * table.eventCount + table.eventOrdinal(event)];
+        }
+
+        /**
+         * @return how many transitions were followed, all states and events together
+         */
+        public long getTransitionCount() {
+            long total = 0;
+            for(long count : transitionCounts) {
+                total += count;
+            }
+            return total;
+        }
+
+        /**
+         * @return how many events had no transition while the machine was in this state
+         */
+        public long getUnexistingTransitionCount(State from) {
+            int state = table.stateOrdinal(from);
+            return state == TransitionTable.NO_TRANSITION ? 0 : unexistingTransitionCounts[state];
+        }
+
+        /**
+         * @return how many events had no transition, all states together
+         */
+        public long getUnexistingTransitionCount() {
+            long total = 0;
+            for(long count : unexistingTransitionCounts) {
+                total += count;
+            }
+            return total;
+        }
+
+        /**
+         * @return the number of times instances left the state, per dwell time bucket : index i counts dwell
+         * times under DWELL_TIME_BUCKETS[i] (and above the previous bound), the last index counts longer ones
+         */
+        public long[] getDwellTimeHistogram(State state) {
+            int ordinal = table.stateOrdinal(state);
+            if(ordinal == TransitionTable.NO_TRANSITION)
+                return new long[DWELL_TIME_BUCKETS.length + 1];
+            return dwellTimeHistograms[ordinal].clone();
+        }
+
+        String[] describeTransitionCounts() {
+            List<String> lines = new ArrayList<String>();
+            for(int cell = 0; cell < transitionCounts.length; cell++) {
+                if(transitionCounts[cell] > 0) {
+                    int from = cell / table.eventCount;
+                    int event = cell % table.eventCount;
+                    lines.add(table.states[from] + " -" + table.events[event] + "-> " + table.states[table.table[cell]]
+                              + " : " + transitionCounts[cell]);
+                }
+            }
+            return lines.toArray(new String[lines.size()]);
+        }
+
+        String[] describeUnexistingTransitionCounts() {
+            List<String> lines = new ArrayList<String>();
+            for(int s = 0; s < unexistingTransitionCounts.length; s++) {
+                if(unexistingTransitionCounts[s] > 0)
+                    lines.add(table.states[s] + " : " + unexistingTransitionCounts[s]);
+            }
+            return lines.toArray(new String[lines.size()]);
+        }
+
+        String[] describeDwellTimeHistograms() {
+            List<String> lines = new ArrayList<String>();
+            for(int s = 0; s < dwellTimeHistograms.length; s++) {
+                long[] histogram = dwellTimeHistograms[s];
+                long total = 0;
+                StringBuilder line = new StringBuilder().append(table.states[s]).append(" :");
+                for(int b = 0; b < histogram.length; b++) {
+                    total += histogram[b];
+                    line.append(b < DWELL_TIME_BUCKETS.length ? " <" + DWELL_TIME_BUCKETS[b] + "ms=" : " more=").append(histogram[b]);
+                }
+                if(total > 0)
+                    lines.add(line.toString());
+            }
+            return lines.toArray(new String[lines.size()]);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.gryzorz.fsm.v2;
+
+/**
+ * JMX view of FiniteStateMachineMetrics, see FiniteStateMachineMetrics.registerMBean(...)
+ *
+ * @author Benoit Fernandez
+ */
+public interface FiniteStateMachineMetricsMBean {
+
+    /**
+     * @return how many transitions were followed, all states and events together
+     */
+    long getTransitionCount();
+
+    /**
+     * @return how many events had no transition from the current state, all states together
+     */
+    long getUnexistingTransitionCount();
+
+    /**
+     * @return one line per transition followed at least once : "from -event-> to : count"
+     */
+    String[] getTransitionCounts();
+
+    /**
+     * @return one line per state in which at least one event had no transition : "state : count"
+     */
+    String[] getUnexistingTransitionCounts();
+
+    /**
+     * @return one line per state left at least once, with the count of each dwell time bucket
+     */
+    String[] getDwellTimeHistograms();
+
+    /**
+     * @return the number of instances on the version of the definition these metrics belong to, still counting the ones
+     * not used anymore : once a successor is published, the instances that have not moved to it yet, see
+     * FiniteStateMachineDefinition.getInstanceCount()
+     */
+    long getInstanceCount();
+
+    /**
+     * Sets all counters and histograms back to 0, except the instance count.
+     */
+    void reset();
+}
@@ -0,0 +1,112 @@
+package com.gryzorz.fsm.v2;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tells how FiniteStateMachineBuilder.setMinimizationEnabled(true) shrank a machine, and which of the
+ * original states each remaining state stands for.<br>
+ * <br>
+ * Listeners of a minimized machine only ever receive the remaining states, called representatives :
+ * use getMergedStates(...) to know which original states a representative stands for, and
+ * getRepresentative(...) to find the state that stands for an original one. All the methods taking
+ * a State, on the machine and its definition, also accept the original states.
+ *
+ * @author Benoit Fernandez
+ */
+public final class FiniteStateMachineMinimization {
+    private final IdentityOrdinalMap stateOrdinals;
+    private final State[] states;
+    private final State[] members; //the original states, grouped by representative, each group starting with its representative
+    private final int[] memberStart;
+    private final State[] unreachableStates;
+    private final int originalTransitionCount;
+    private final int transitionCount;
+
+    FiniteStateMachineMinimization(IdentityOrdinalMap stateOrdinals, State[] states, State[] members, int[] memberStart,
+                                   State[] unreachableStates, int originalTransitionCount, int transitionCount) {
+        this.stateOrdinals = stateOrdinals;
+        this.states = states;
+        this.members = members;
+        this.memberStart = memberStart;
+        this.unreachableStates = unreachableStates;
+        this.originalTransitionCount = originalTransitionCount;
+        this.transitionCount = transitionCount;
+    }
+
+    /**
+     * @param original a state given to the builder
+     * @return the state standing for it in the minimized machine, itself if it was not merged,
+     * or null if it was unreachable or unknown
+     */
+    public State getRepresentative(State original) {
+        int ordinal = stateOrdinals.get(original);
+        return ordinal == IdentityOrdinalMap.ABSENT ? null : states[ordinal];
+    }
+
+    /**
+     * @param representative a state of the minimized machine
+     * @return the original states it stands for, starting with itself, or an empty list if it is not a representative
+     */
+    public List<State> getMergedStates(State representative) {
+        int ordinal = stateOrdinals.get(representative);
+        if(ordinal == IdentityOrdinalMap.ABSENT || states[ordinal] != representative)
+            return Collections.emptyList();
+        return Collections.unmodifiableList(Arrays.asList(members).subList(memberStart[ordinal], memberStart[ordinal + 1]));
+    }
+
+    /**
+     * @return the states given to the builder that cannot be reached from the initial state, and were removed
+     */
+    public List<State> getUnreachableStates() {
+        return Collections.unmodifiableList(Arrays.asList(unreachableStates));
+    }
+
+    /**
+     * @return the number of states given to the builder, the initial state included
+     */
+    public int getOriginalStateCount() {
+        return members.length + unreachableStates.length;
+    }
+
+    /**
+     * @return the number of states left once minimized
+     */
+    public int getStateCount() {
+        return states.length;
+    }
+
+    /**
+     * @return the number of unreachable states removed
+     */
+    public int getUnreachableStateCount() {
+        return unreachableStates.length;
+    }
+
+    /**
+     * @return the number of reachable states that were merged into another one
+     */
+    public int getMergedStateCount() {
+        return members.length - states.length;
+    }
+
+    /**
+     * @return the number of transitions given to the builder
+     */
+    public int getOriginalTransitionCount() {
+        return originalTransitionCount;
+    }
+
+    /**
+     * @return the number of transitions left once minimized
+     */
+    public int getTransitionCount() {
+        return transitionCount;
+    }
+
+    public String toString() {
+        return getOriginalStateCount() + " states -> " + getStateCount() + " (" + getUnreachableStateCount() + " unreachable, "
+               + getMergedStateCount() + " merged), " + originalTransitionCount + " transitions -> " + transitionCount;
+    }
+}
@@ -0,0 +1,75 @@
+package com.gryzorz.fsm.v2;
+
+/**
+ * The states a machine goes through when it processes a huge sequence of events, computed by
+ * FiniteStateMachineDefinition.runInParallel(...).<br>
+ * The events were split in chunks, run by different threads : this tells the state the machine was in
+ * at the beginning of each chunk, exactly as a single machine processing the events one after the
+ * other would have been, and the state it ends in.
+ *
+ * @author Benoit Fernandez
+ */
+public final class FiniteStateMachineParallelRun {
+    private final State[] states;
+    private final int[] offsets;
+    private final int[] boundaries;
+    private final int speculationMissCount;
+
+    FiniteStateMachineParallelRun(State[] states, int[] offsets, int[] boundaries, int speculationMissCount) {
+        this.states = states;
+        this.offsets = offsets;
+        this.boundaries = boundaries;
+        this.speculationMissCount = speculationMissCount;
+    }
+
+    /**
+     * @return the state the machine was in before the first event
+     */
+    public State getInitialState() {
+        return states[boundaries[0]];
+    }
+
+    /**
+     * @return the state the machine is in after the last event
+     */
+    public State getFinalState() {
+        return states[boundaries[boundaries.length - 1]];
+    }
+
+    /**
+     * @return the number of chunks the events were split in
+     */
+    public int getChunkCount() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * @param chunk from 0 to getChunkCount(), the last one standing for the end of the events
+     * @return the index of the first event of the chunk
+     */
+    public int getChunkOffset(int chunk) {
+        return offsets[chunk];
+    }
+
+    /**
+     * @param chunk from 0 to getChunkCount(), the last one standing for the end of the events
+     * @return the state the machine was in before the first event of the chunk, the final state for the last one
+     */
+    public State getBoundaryState(int chunk) {
+        return states[boundaries[chunk]];
+    }
+
+    /**
+     * @return the number of chunks whose candidate start states did not converge, and that had to be run
+     * again once their actual start state was known
+     */
+    public int getSpeculationMissCount() {
+        return speculationMissCount;
+    }
+
+    @Override
+    public String toString() {
+        return offsets[offsets.length - 1] + " events in " + getChunkCount() + " chunks (" + speculationMissCount
+               + " missed) : " + getInitialState() + " -> " + getFinalState();
+    }
+}
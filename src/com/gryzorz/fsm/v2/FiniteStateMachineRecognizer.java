@@ -0,0 +1,259 @@
+package com.gryzorz.fsm.v2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Runs a FiniteStateMachineDefinition directly over bytes or chars, the way a lexer does, and reports
+ * where it enters its accept states.<br>
+ * See FiniteStateMachineDefinition.newRecognizer(...) to create one.<br>
+ * <br>
+ * Each symbol, a byte or a char up to 0xFF, is mapped to an Event by a 256 entries table ; an optional
+ * 257th entry stands for all the chars above 0xFF. Symbols mapped to the same event share a class, so
+ * the transitions are stored in a table with one row per state and one column per class, usually a few
+ * dozen bytes wide instead of 256. Scanning then costs, per symbol, a load of its class and a load of
+ * the next cell : no Event, no listener call and no allocation, except for matches. While the machine
+ * is idle in its initial state, which is most of the time when looking for rare patterns, the symbols
+ * that leave it there are skipped by a tight loop whose loads do not depend on each other.<br>
+ * <br>
+ * When no transition reacts to a symbol, the recognizer restarts from the initial state and feeds it
+ * the same symbol, which is what a lexer does between two tokens ; the restarts are computed once, when
+ * the recognizer is created. A match is reported each time a transition enters, or loops on, an accept
+ * state : it starts at the symbol that left the initial state. To find every occurrence of a pattern,
+ * overlapping ones included, the definition must itself loop on any prefix, as a searching automaton does.<br>
+ * <br>
+ * A recognizer never changes once created, and can scan from any number of threads at the same time.
+ * It does not notify the listeners of the FiniteStateMachine instances, nor their metrics.
+ *
+ * @author Benoit Fernandez
+ */
+public final class FiniteStateMachineRecognizer {
+    /** index, in the symbol table given to newRecognizer(...), of the event standing for the chars above 0xFF */
+    public static final int OTHER_CHARS = 256;
+
+    private static final int STARTS = 1; //the symbol starts a match : it leaves the initial state
+    private static final int ACCEPT = 2; //the transition enters an accept state
+    private static final int FLAG_BITS = 2;
+    private static final int MAPPED_CHUNK_SIZE = 1 << 30;
+
+    private final FiniteStateMachineDefinition definition;
+    private final int[] classes; //symbol -> class, the last one for chars above 0xFF
+    private final int classCount;
+    private final int[] cells; //[state * classCount + class] -> (next state * classCount) << FLAG_BITS | flags
+    private final int[] initialCells; //symbol -> its cell from the initial state, 0 if it leaves the machine idle there
+
+    /**
+     * @param symbolEvents 256 or 257 events, by symbol, see OTHER_CHARS, null for the symbols no transition reacts to
+     * @param accepting by state ordinal, true for the accept states
+     */
+    FiniteStateMachineRecognizer(FiniteStateMachineDefinition definition, Event[] symbolEvents, boolean[] accepting) {
+        this.definition = definition;
+        TransitionTable table = definition.table;
+
+        //symbols mapped to the same event, or to no known event, share a class
+        classes = new int[OTHER_CHARS + 1];
+        Map<Event, Integer> eventClasses = new IdentityHashMap<Event, Integer>();
+        int[] classEvents = new int[OTHER_CHARS + 2];
+        classEvents[0] = TransitionTable.NO_TRANSITION;
+        int count = 1;
+        for(int symbol = 0; symbol <= OTHER_CHARS; symbol++) {
+            Event event = symbol < symbolEvents.length ? symbolEvents[symbol] : null;
+            int eventOrdinal = event == null ? TransitionTable.NO_TRANSITION : table.eventOrdinal(event);
+            if(eventOrdinal == TransitionTable.NO_TRANSITION)
+                continue;
+            Integer eventClass = eventClasses.get(event);
+            if(eventClass == null) {
+                eventClass = count;
+                classEvents[count++] = eventOrdinal;
+                eventClasses.put(event, eventClass);
+            }
+            classes[symbol] = eventClass;
+        }
+        classCount = count;
+        int stateCount = table.states.length;
+        if((long) stateCount * classCount > Integer.MAX_VALUE >>> FLAG_BITS)
+            throw new IllegalArgumentException(stateCount + " states and " + classCount + " symbol classes are too many for a recognizer");
+
+        //the restarts are part of the table : a missing transition is the one of the initial state
+        cells = new int[stateCount * classCount];
+        for(int state = 0; state < stateCount; state++) {
+            for(int symbolClass = 0; symbolClass < classCount; symbolClass++) {
+                int next = table.nextState(state, classEvents[symbolClass]);
+                int flags = state == 0 ? STARTS : 0;
+                if(next == TransitionTable.NO_TRANSITION) {
+                    next = table.nextState(0, classEvents[symbolClass]);
+                    flags = STARTS;
+                }
+                if(next == TransitionTable.NO_TRANSITION) { //the initial state does not react either : the symbol is skipped
+                    next = 0;
+                    flags = 0;
+                } else if(accepting[next]) {
+                    flags |= ACCEPT;
+                }
+                cells[state * classCount + symbolClass] = (next * classCount) << FLAG_BITS | flags;
+            }
+        }
+        initialCells = new int[OTHER_CHARS + 1];
+        for(int symbol = 0; symbol <= OTHER_CHARS; symbol++) {
+            initialCells[symbol] = cells[classes[symbol]];
+        }
+    }
+
+    /**
+     * @return the definition this recognizer runs
+     */
+    public FiniteStateMachineDefinition getDefinition() {
+        return definition;
+    }
+
+    /**
+     * @return the number of classes the symbols were grouped in, including the class of the symbols
+     * no transition reacts to
+     */
+    public int getSymbolClassCount() {
+        return classCount;
+    }
+
+    /**
+     * Scans the chars of a sequence, a String or a CharBuffer for example.
+     * @param text the chars to scan
+     * @param listener receives the matches, with char offsets, may be null to only count them
+     * @return the number of matches, up to the one the listener stopped at
+     */
+    public long scan(CharSequence text, FiniteStateMachineMatchListener listener) {
+        Scan scan = new Scan();
+        int[] classes = this.classes;
+        int[] cells = this.cells;
+        int[] initialCells = this.initialCells;
+        int row = 0;
+        long start = 0;
+        for(int i = 0, length = text.length(); i < length; i++) {
+            int cell = 0;
+            if(row == 0) { //idle in the initial state
+                while(i < length && (cell = initialCells[Math.min(text.charAt(i), OTHER_CHARS)]) == 0)
+                    i++;
+                if(i == length)
+                    break;
+            } else {
+                cell = cells[row + classes[Math.min(text.charAt(i), OTHER_CHARS)]];
+            }
+            row = cell >>> FLAG_BITS;
+            if((cell & STARTS) != 0)
+                start = i;
+            if((cell & ACCEPT) != 0 && !_matched(scan, listener, row, start, i + 1L))
+                break;
+        }
+        return scan.matches;
+    }
+
+    /**
+     * Scans the bytes of a buffer, from its position to its limit, without moving them.
+     * Heap buffers are read through their array, direct and mapped buffers in place.
+     * @param buffer the bytes to scan
+     * @param listener receives the matches, with the indexes of the bytes in the buffer, may be null to only count them
+     * @return the number of matches, up to the one the listener stopped at
+     */
+    public long scan(ByteBuffer buffer, FiniteStateMachineMatchListener listener) {
+        Scan scan = new Scan();
+        _scan(scan, buffer, buffer.position(), buffer.limit(), 0, listener);
+        return scan.matches;
+    }
+
+    /**
+     * Scans a whole file, memory mapped a chunk of 1 GB at a time, so files of any size can be scanned
+     * without reading them into the heap.
+     * @param file the file to scan
+     * @param listener receives the matches, with offsets in the file, may be null to only count them
+     * @return the number of matches, up to the one the listener stopped at
+     * @throws IOException if the file cannot be mapped
+     */
+    public long scan(Path file, FiniteStateMachineMatchListener listener) throws IOException {
+        Scan scan = new Scan();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for(long offset = 0; offset < size && !scan.stopped; offset += MAPPED_CHUNK_SIZE) {
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(MAPPED_CHUNK_SIZE, size - offset));
+                _scan(scan, chunk, 0, chunk.limit(), offset, listener);
+            }
+        }
+        return scan.matches;
+    }
+
+    /**
+     * Scans buffer[from, to), resuming where the previous chunk of the same scan left
+     * @param base the offset of the first byte of the buffer, in the whole scan
+     */
+    private void _scan(Scan scan, ByteBuffer buffer, int from, int to, long base, FiniteStateMachineMatchListener listener) {
+        int[] classes = this.classes;
+        int[] cells = this.cells;
+        int[] initialCells = this.initialCells;
+        int row = scan.row;
+        long start = scan.start;
+        if(buffer.hasArray()) {
+            byte[] array = buffer.array();
+            int shift = buffer.arrayOffset();
+            for(int i = from + shift, end = to + shift; i < end; i++) {
+                int cell = 0;
+                if(row == 0) { //idle in the initial state
+                    while(i < end && (cell = initialCells[array[i] & 0xFF]) == 0)
+                        i++;
+                    if(i == end)
+                        break;
+                } else {
+                    cell = cells[row + classes[array[i] & 0xFF]];
+                }
+                row = cell >>> FLAG_BITS;
+                if((cell & STARTS) != 0)
+                    start = base + i - shift;
+                if((cell & ACCEPT) != 0 && !_matched(scan, listener, row, start, base + i - shift + 1))
+                    break;
+            }
+        } else {
+            for(int i = from; i < to; i++) {
+                int cell = 0;
+                if(row == 0) { //idle in the initial state
+                    while(i < to && (cell = initialCells[buffer.get(i) & 0xFF]) == 0)
+                        i++;
+                    if(i == to)
+                        break;
+                } else {
+                    cell = cells[row + classes[buffer.get(i) & 0xFF]];
+                }
+                row = cell >>> FLAG_BITS;
+                if((cell & STARTS) != 0)
+                    start = base + i;
+                if((cell & ACCEPT) != 0 && !_matched(scan, listener, row, start, base + i + 1))
+                    break;
+            }
+        }
+        scan.row = row;
+        scan.start = start;
+    }
+
+    /**
+     * @return false if the listener stopped the scan
+     */
+    private boolean _matched(Scan scan, FiniteStateMachineMatchListener listener, int row, long start, long end) {
+        scan.matches++;
+        if(listener == null || listener.matched(definition.table.states[row / classCount], start, end))
+            return true;
+        scan.stopped = true;
+        return false;
+    }
+
+    /**
+     * Where a scan stands between two chunks
+     */
+    private static final class Scan {
+        int row = 0;
+        long start = 0;
+        long matches = 0;
+        boolean stopped = false;
+    }
+}
@@ -0,0 +1,145 @@
+package com.gryzorz.fsm.v2;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a snapshot saved by FiniteStateMachineSnapshotWriter.<br>
+ * <br>
+ * The file is memory-mapped read only and records are read in place when they are asked for : opening
+ * a snapshot costs the same whatever its size, and restoring a machine is a couple of memory reads.<br>
+ * A snapshot can only be read with a definition having the same fingerprint as the one it was written
+ * with, see FiniteStateMachineDefinition.getFingerprint() : otherwise the saved ordinals could designate
+ * other states than the saved ones.<br>
+ * <br>
+ * A reader never changes once opened, so it can be shared between threads, to restore parts of the
+ * snapshot in parallel for example.
+ *
+ * @author Benoit Fernandez
+ */
+public class FiniteStateMachineSnapshotReader {
+    private static final int RECORDS_PER_CHUNK = 1 << 27; //keeps a chunk under the 2 GB limit of a mapping
+
+    private final FiniteStateMachineDefinition definition;
+    private final MappedByteBuffer[] chunks;
+    private final long recordCount;
+
+    /**
+     * Opens and checks a snapshot.
+     * @param file the snapshot file
+     * @param definition the definition the snapshot was written with
+     * @throws FiniteStateMachineException if the file is not a snapshot, or was written with another definition
+     * @throws IOException if the file cannot be read
+     */
+    public FiniteStateMachineSnapshotReader(Path file, FiniteStateMachineDefinition definition) throws FiniteStateMachineException, IOException {
+        if(definition == null)
+            throw new IllegalArgumentException("definition cannot be null");
+        this.definition = definition;
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size < FiniteStateMachineSnapshotWriter.HEADER_SIZE)
+                throw new FiniteStateMachineException("Snapshot " + file + " is too short to be a snapshot");
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, FiniteStateMachineSnapshotWriter.HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if(header.getInt() != FiniteStateMachineSnapshotWriter.MAGIC)
+                throw new FiniteStateMachineException("Snapshot " + file + " is not a snapshot");
+            int version = header.getInt();
+            if(version != FiniteStateMachineSnapshotWriter.VERSION)
+                throw new FiniteStateMachineException("Snapshot " + file + " has an unsupported version : " + version);
+            long fingerprint = header.getLong();
+            if(fingerprint != definition.getFingerprint())
+                throw new FiniteStateMachineException("Snapshot " + file + " was written with another definition : fingerprint "
+                                                      + Long.toHexString(fingerprint) + " instead of " + Long.toHexString(definition.getFingerprint()));
+            header.getInt(); //state count, covered by the fingerprint
+            if(header.getInt() != FiniteStateMachineSnapshotWriter.RECORD_SIZE)
+                throw new FiniteStateMachineException("Snapshot " + file + " has an unsupported record size");
+            recordCount = header.getLong();
+            if(recordCount < 0 || FiniteStateMachineSnapshotWriter.HEADER_SIZE + recordCount * FiniteStateMachineSnapshotWriter.RECORD_SIZE > size)
+                throw new FiniteStateMachineException("Snapshot " + file + " is truncated");
+
+            chunks = new MappedByteBuffer[(int) ((recordCount + RECORDS_PER_CHUNK - 1) / RECORDS_PER_CHUNK)];
+            for(int i = 0; i < chunks.length; i++) {
+                long first = (long) i * RECORDS_PER_CHUNK;
+                long records = Math.min(RECORDS_PER_CHUNK, recordCount - first);
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                                        FiniteStateMachineSnapshotWriter.HEADER_SIZE + first * FiniteStateMachineSnapshotWriter.RECORD_SIZE,
+                                        records * FiniteStateMachineSnapshotWriter.RECORD_SIZE);
+                chunks[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+    }
+
+    /**
+     * @return the number of saved entities
+     */
+    public long getEntityCount() {
+        return recordCount;
+    }
+
+    /**
+     * @param index the index of the record, from 0 to getEntityCount() excluded
+     * @return the id of the entity saved by this record
+     */
+    public long getEntityId(long index) {
+        return _chunkOf(index).getLong(_offsetOf(index));
+    }
+
+    /**
+     * @param index the index of the record, from 0 to getEntityCount() excluded
+     * @return the state of the entity saved by this record
+     */
+    public State getState(long index) {
+        return definition.table.states[_ordinalAt(index)];
+    }
+
+    /**
+     * Recreates the machine saved by a record, in its saved state.
+     * @param index the index of the record, from 0 to getEntityCount() excluded
+     * @return the new state machine
+     */
+    public FiniteStateMachine newInstance(long index) {
+        return new FiniteStateMachine(definition, _ordinalAt(index));
+    }
+
+    /**
+     * Puts every saved entity of the fleet back in its saved state. Like events, the states are applied
+     * asynchronously by the workers of the fleet : call flush() on the fleet to wait for them.
+     * @param fleet the fleet, following the definition of this snapshot
+     * @throws FiniteStateMachineException if the fleet does not follow the definition of this snapshot
+     */
+    public void restoreInto(FiniteStateMachineFleet fleet) throws FiniteStateMachineException {
+        if(fleet.getDefinition() != definition)
+            throw new FiniteStateMachineException("restoreInto : the fleet does not follow the definition of this snapshot");
+        int stateCount = definition.table.states.length;
+        for(MappedByteBuffer chunk : chunks) {
+            for(int offset = 0, end = chunk.limit(); offset < end; offset += FiniteStateMachineSnapshotWriter.RECORD_SIZE) {
+                int ordinal = chunk.getInt(offset + 8);
+                if(ordinal < 0 || ordinal >= stateCount)
+                    throw new IllegalStateException("Snapshot record " + offset / FiniteStateMachineSnapshotWriter.RECORD_SIZE
+                                                    + " of a chunk holds an invalid state ordinal : " + ordinal);
+                fleet.restore(chunk.getLong(offset), ordinal);
+            }
+        }
+    }
+
+    private int _ordinalAt(long index) {
+        int ordinal = _chunkOf(index).getInt(_offsetOf(index) + 8);
+        if(ordinal < 0 || ordinal >= definition.table.states.length)
+            throw new IllegalStateException("Snapshot record " + index + " holds an invalid state ordinal : " + ordinal);
+        return ordinal;
+    }
+
+    private MappedByteBuffer _chunkOf(long index) {
+        if(index < 0 || index >= recordCount)
+            throw new IndexOutOfBoundsException("index " + index + " for " + recordCount + " records");
+        return chunks[(int) (index / RECORDS_PER_CHUNK)];
+    }
+
+    private static int _offsetOf(long index) {
+        return (int) (index % RECORDS_PER_CHUNK) * FiniteStateMachineSnapshotWriter.RECORD_SIZE;
+    }
+}
@@ -0,0 +1,170 @@
+package com.gryzorz.fsm.v2;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Saves the current states of many machines following the same FiniteStateMachineDefinition into a
+ * compact binary file, to restore them quickly with FiniteStateMachineSnapshotReader after a restart
+ * instead of replaying their history.<br>
+ * <br>
+ * File layout, little endian :<br>
+ *  - a header of HEADER_SIZE bytes : MAGIC, VERSION, the fingerprint of the definition, its number of
+ *  states, the size of a record and the number of records<br>
+ *  - then one record of RECORD_SIZE bytes per machine : its long entity id and the int ordinal of its state<br>
+ * <br>
+ * Records are written straight into memory-mapped chunks of the file, so writing a machine costs a few
+ * memory writes and no system call. The file grows one chunk at a time while machines are written, and
+ * is truncated to its exact size by close(). The header only counts the records once flush() or close()
+ * has been called, so a snapshot interrupted in the middle is read as the last flushed one.<br>
+ * <br>
+ * A writer is not thread safe.
+ *
+ * @author Benoit Fernandez
+ */
+public class FiniteStateMachineSnapshotWriter implements AutoCloseable {
+    static final int MAGIC = 0x534D5346; //"FSMS" once written little endian
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 12;
+    static final int COUNT_OFFSET = 24;
+    private static final long CHUNK_SIZE = RECORD_SIZE << 20; //12 MB, about a million records
+
+    private final FiniteStateMachineDefinition definition;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private MappedByteBuffer chunk;
+    private long chunkStart;
+    private long recordCount = 0;
+    private boolean closed = false;
+
+    /**
+     * Creates the file, or empties it if it already exists, and writes its header.
+     * @param file the file to write
+     * @param definition the definition all written machines follow
+     * @throws IOException if the file cannot be created or mapped
+     */
+    public FiniteStateMachineSnapshotWriter(Path file, FiniteStateMachineDefinition definition) throws IOException {
+        if(definition == null)
+            throw new IllegalArgumentException("definition cannot be null");
+        this.definition = definition;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putLong(definition.getFingerprint())
+              .putInt(definition.getStateCount()).putInt(RECORD_SIZE).putLong(0L);
+        _map(HEADER_SIZE);
+    }
+
+    /**
+     * Saves the current state of a machine.
+     * @param entityId the id under which the machine will be restored
+     * @param fsm the machine, created from the definition of this writer
+     * @throws FiniteStateMachineException if the machine does not follow the definition of this writer
+     * @throws IOException if the file cannot grow
+     */
+    public void write(long entityId, FiniteStateMachine fsm) throws FiniteStateMachineException, IOException {
+        int ordinal = fsm.getDefinition() == definition ? fsm.getStateOrdinal(definition) : TransitionTable.NO_TRANSITION;
+        if(ordinal == TransitionTable.NO_TRANSITION) //or it moved to the next version of the definition meanwhile
+            throw new FiniteStateMachineException("write : the machine of entity " + entityId + " does not follow the definition of this snapshot");
+        _write(entityId, ordinal);
+    }
+
+    /**
+     * Saves the state of an entity.
+     * @param entityId the id of the entity
+     * @param state its current state
+     * @throws FiniteStateMachineException if the state is not part of the definition of this writer
+     * @throws IOException if the file cannot grow
+     */
+    public void write(long entityId, State state) throws FiniteStateMachineException, IOException {
+        _write(entityId, definition.stateOrdinal(state));
+    }
+
+    /**
+     * Saves the states of all the entities of a fleet.<br>
+     * Entities still in the initial state are skipped : they are in that state anyway until they receive
+     * an event, restored or not. The fleet should be flushed, with no event being submitted.
+     * @param fleet the fleet, following the definition of this writer
+     * @return the number of entities written
+     * @throws FiniteStateMachineException if the fleet does not follow the definition of this writer
+     * @throws IOException if the file cannot grow
+     */
+    public long writeAll(FiniteStateMachineFleet fleet) throws FiniteStateMachineException, IOException {
+        if(fleet.getDefinition() != definition)
+            throw new FiniteStateMachineException("writeAll : the fleet does not follow the definition of this snapshot");
+        long before = recordCount;
+        try {
+            fleet.forEachEntity(new EntityStateVisitor() {
+                public void visit(long entityId, int stateOrdinal) {
+                    if(stateOrdinal == 0)
+                        return;
+                    try {
+                        _write(entityId, stateOrdinal);
+                    } catch(IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+        } catch(UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return recordCount - before;
+    }
+
+    /**
+     * @return the number of records written so far
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Makes the records written so far part of the snapshot, and forces them to the storage device.
+     * @throws IOException if the file cannot be written
+     */
+    public void flush() throws IOException {
+        chunk.force();
+        header.putLong(COUNT_OFFSET, recordCount);
+        header.force();
+    }
+
+    /**
+     * Flushes the snapshot and truncates the file to its exact size. The writer cannot be used anymore.
+     * @throws IOException if the file cannot be written
+     */
+    public void close() throws IOException {
+        if(closed)
+            return;
+        closed = true;
+        try {
+            flush();
+            channel.truncate(HEADER_SIZE + recordCount * RECORD_SIZE);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void _write(long entityId, int stateOrdinal) throws IOException {
+        if(closed)
+            throw new IOException("write : the snapshot is closed");
+        if(chunk.remaining() < RECORD_SIZE)
+            _map(chunkStart + chunk.position());
+        chunk.putLong(entityId).putInt(stateOrdinal);
+        recordCount++;
+    }
+
+    private void _map(long start) throws IOException {
+        if(chunk != null)
+            chunk.force(); //do not let the page cache pile up dirty chunks
+        chunk = channel.map(FileChannel.MapMode.READ_WRITE, start, CHUNK_SIZE);
+        chunk.order(ByteOrder.LITTLE_ENDIAN);
+        chunkStart = start;
+    }
+}
@@ -0,0 +1,67 @@
+package com.gryzorz.fsm.v2;
+
+/**
+ * Selects the notifications a listener receives, see FiniteStateMachine.addListener(listener, subscription).<br>
+ * Each criterion is optional : a null one matches anything. For example, to only hear about payments
+ * that changed the state of an order :<br>
+ * <code>new FiniteStateMachineSubscription(null, PAY, null, TransitionOutcome.STATE_CHANGED)</code><br>
+ * <br>
+ * The to-state is the state after the transition, the from-state itself for a loop, and no state at all
+ * for an unexisting transition. States and events are compared by identity, like transitions.<br>
+ * A subscription never changes once created, and can be shared by any number of machines.
+ *
+ * @author Benoit Fernandez
+ */
+public final class FiniteStateMachineSubscription {
+    /** matches every notification */
+    public static final FiniteStateMachineSubscription ALL = new FiniteStateMachineSubscription(null, null, null, null);
+
+    final State from;
+    final Event event;
+    final State to;
+    final TransitionOutcome outcome;
+
+    /**
+     * @param from the state the machine was in, or null for any state
+     * @param event the event processed, or null for any event
+     * @param to the state the machine is in afterwards, or null for any state
+     * @param outcome the kind of outcome, or null for any outcome
+     */
+    public FiniteStateMachineSubscription(State from, Event event, State to, TransitionOutcome outcome) {
+        this.from = from;
+        this.event = event;
+        this.to = to;
+        this.outcome = outcome;
+    }
+
+    /**
+     * @return true if the listener must be told about this notification
+     */
+    public boolean matches(State from, Event event, State to, TransitionOutcome outcome) {
+        return (this.from == null || this.from == from)
+            && (this.event == null || this.event == event)
+            && (this.to == null || this.to == to)
+            && (this.outcome == null || this.outcome == outcome);
+    }
+
+    public State getFrom() {
+        return from;
+    }
+
+    public Event getEvent() {
+        return event;
+    }
+
+    public State getTo() {
+        return to;
+    }
+
+    public TransitionOutcome getOutcome() {
+        return outcome;
+    }
+
+    @Override
+    public String toString() {
+        return "subscription from " + from + " on " + event + " to " + to + " with outcome " + outcome;
+    }
+}
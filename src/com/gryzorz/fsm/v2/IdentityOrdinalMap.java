@@ -0,0 +1,87 @@
+package com.gryzorz.fsm.v2;
+
+/**
+ * Small open addressing map associating an object, compared by identity, to a dense ordinal.<br>
+ * It is filled once while compiling a TransitionTable and is read-only afterwards, so lookups
+ * are safe from any thread once the table has been published.<br>
+ * Unlike an IdentityHashMap&lt;Object, Integer&gt;, a lookup neither boxes nor allocates anything.
+ *
+ * @author Benoit Fernandez
+ */
+final class IdentityOrdinalMap {
+    static final int ABSENT = -1;
+
+    private final Object[] keys;
+    private final int[] values;
+    private final int mask;
+    private final int shift;
+    private int size = 0;
+
+    /**
+     * @param expectedSize the number of keys that will be put in the map, it never grows
+     */
+    IdentityOrdinalMap(int expectedSize) {
+        int capacity = 2;
+        int bits = 1;
+        while(capacity < expectedSize * 2) { //load factor kept under 0.5
+            capacity <<= 1;
+            bits++;
+        }
+        shift = 32 - bits;
+        keys = new Object[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Associates the key to the next free ordinal if it is not already known
+     * @return the ordinal of the key
+     */
+    int putIfAbsent(Object key) {
+        int index = indexFor(key);
+        while(keys[index] != null) {
+            if(keys[index] == key)
+                return values[index];
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        values[index] = size;
+        return size++;
+    }
+
+    /**
+     * Associates the key to a given ordinal, for maps where several keys share the same ordinal.
+     * The key must not be known yet.
+     */
+    void put(Object key, int ordinal) {
+        int index = indexFor(key);
+        while(keys[index] != null) {
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        values[index] = ordinal;
+        size++;
+    }
+
+    /**
+     * @return the ordinal of the key, or ABSENT if the key is unknown
+     */
+    int get(Object key) {
+        int index = indexFor(key);
+        Object candidate;
+        while((candidate = keys[index]) != null) {
+            if(candidate == key)
+                return values[index];
+            index = (index + 1) & mask;
+        }
+        return ABSENT;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int indexFor(Object key) {
+        return (System.identityHashCode(key) * 0x9E3779B9) >>> shift; //fibonacci hashing, keeps the well mixed high bits
+    }
+}
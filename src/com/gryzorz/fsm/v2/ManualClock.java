@@ -0,0 +1,35 @@
+package com.gryzorz.fsm.v2;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A FiniteStateMachineClock that only moves when told to, so that tests of timeouts are deterministic :<br>
+ * <code>clock.advance(Duration.ofMinutes(15)); wheel.advance();</code> fires every timeout that elapsed
+ * within these 15 minutes, without waiting for them.
+ *
+ * @author Benoit Fernandez
+ */
+public class ManualClock implements FiniteStateMachineClock {
+    private final AtomicLong nanos = new AtomicLong();
+
+    /**
+     * Creates a clock reading 0.
+     */
+    public ManualClock() {
+    }
+
+    /**
+     * @param elapsed the time that passes, must not be negative
+     * @return the new time, in nanoseconds
+     */
+    public long advance(Duration elapsed) {
+        if(elapsed.isNegative())
+            throw new IllegalArgumentException("a clock cannot go back in time : " + elapsed);
+        return nanos.addAndGet(elapsed.toNanos());
+    }
+
+    public long nanoTime() {
+        return nanos.get();
+    }
+}
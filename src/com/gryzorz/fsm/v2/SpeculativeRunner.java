@@ -0,0 +1,239 @@
+package com.gryzorz.fsm.v2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a definition over a huge sequence of events with several threads, and still finds the exact
+ * states a single machine would go through, see FiniteStateMachineDefinition.runInParallel(...).<br>
+ * <br>
+ * The events are split in chunks. The first chunk is run from the known initial state. Every other
+ * chunk is run, at the same time, from all the states its first event could find the machine in : each
+ * of these candidates is followed event after event, and candidates that reach the same state are merged,
+ * as they cannot part again. In most real machines, a few dozen events are enough for all of them to
+ * converge, and the rest of the chunk is run from a single state, as fast as a sequential run. Once all the
+ * chunks are run, composing the mapping of each chunk from the known initial state gives the exact state at
+ * each chunk boundary.<br>
+ * <br>
+ * Candidates are all the states of small definitions. For larger ones, they are the states that the last
+ * LOOKBACK events of the previous chunk lead to, from any state, which still contains the right one.
+ * Events no transition reacts to leave the state unchanged, as processEventWithoutErrorNotification(...) does.<br>
+ * A chunk whose candidates do not converge soon enough (a machine that is a permutation of its states
+ * never converges), or whose candidates are too many, gives up : it is run again from its actual start
+ * state while composing, so the result is always exact, and at worst about as fast as a sequential run.
+ *
+ * @author Benoit Fernandez
+ */
+final class SpeculativeRunner {
+    /** below this many events per chunk, splitting costs more than it saves */
+    static final int MIN_CHUNK_LENGTH = 1 << 16;
+    /** chunks per thread of the pool, so that a slow chunk does not keep the other threads idle */
+    static final int CHUNKS_PER_THREAD = 4;
+    /** largest number of candidate start states followed through a chunk */
+    static final int MAX_CANDIDATES = 256;
+    /** number of events before a chunk used to find its candidates in large definitions, and given to
+        the candidates of a chunk to converge before checking they can still make it within the budget */
+    static final int LOOKBACK = 1024;
+    /** a chunk gives up once following its candidates costs this many times a sequential run of the chunk */
+    static final int SPECULATION_BUDGET = 4;
+
+    private final TransitionDispatcher dispatcher;
+    private final int stateCount;
+    private final Event[] events;
+
+    private SpeculativeRunner(FiniteStateMachineDefinition definition, Event[] events) {
+        this.dispatcher = definition.dispatcher;
+        this.stateCount = definition.table.states.length;
+        this.events = events;
+    }
+
+    static FiniteStateMachineParallelRun run(FiniteStateMachineDefinition definition, int initialOrdinal, Event[] events, ForkJoinPool pool) {
+        SpeculativeRunner runner = new SpeculativeRunner(definition, events);
+        int chunkCount = (int) Math.max(1, Math.min((long) pool.getParallelism() * CHUNKS_PER_THREAD, events.length / MIN_CHUNK_LENGTH));
+        final int[] offsets = new int[chunkCount + 1];
+        for(int chunk = 0; chunk <= chunkCount; chunk++) {
+            offsets[chunk] = (int) ((long) events.length * chunk / chunkCount);
+        }
+
+        //every chunk but the first one maps its candidate start states to its end states, null if it gave up
+        final int[][] starts = new int[chunkCount][];
+        final int[][] ends = new int[chunkCount][];
+        if(chunkCount > 1) {
+            final List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>(chunkCount - 1);
+            for(int chunk = 1; chunk < chunkCount; chunk++) {
+                final int index = chunk;
+                tasks.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        runner._speculate(offsets[index - 1], offsets[index], offsets[index + 1], starts, ends, index);
+                    }
+                });
+            }
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        }
+
+        //the first chunk, then the composition
+        int[] boundaries = new int[chunkCount + 1];
+        boundaries[0] = initialOrdinal;
+        int state = runner._run(initialOrdinal, offsets[0], offsets[1]);
+        int misses = 0;
+        for(int chunk = 1; chunk < chunkCount; chunk++) {
+            boundaries[chunk] = state;
+            int candidate = starts[chunk] == null ? -1 : Arrays.binarySearch(starts[chunk], state);
+            if(candidate >= 0) {
+                state = ends[chunk][candidate];
+            } else {
+                state = runner._run(state, offsets[chunk], offsets[chunk + 1]);
+                misses++;
+            }
+        }
+        boundaries[chunkCount] = state;
+        return new FiniteStateMachineParallelRun(definition.table.states, offsets, boundaries, misses);
+    }
+
+    /**
+     * Sequential run of events[from, to) from one state
+     * @return the ordinal of the state after the last event
+     */
+    private int _run(int state, int from, int to) {
+        TransitionDispatcher dispatcher = this.dispatcher;
+        for(int i = from; i < to; i++) {
+            int next = dispatcher.nextState(state, dispatcher.eventOrdinal(events[i]));
+            if(next != TransitionTable.NO_TRANSITION)
+                state = next;
+        }
+        return state;
+    }
+
+    /**
+     * Runs events[from, to) from every candidate start state, and stores the mapping, sorted by start state
+     * @param previous the first event of the previous chunk, the lookback never goes further
+     */
+    private void _speculate(int previous, int from, int to, int[][] starts, int[][] ends, int chunk) {
+        Merger merger = new Merger(stateCount);
+        int[] candidates;
+        if(stateCount <= MAX_CANDIDATES) {
+            candidates = new int[stateCount];
+            for(int state = 0; state < stateCount; state++) {
+                candidates[state] = state;
+            }
+        } else {
+            candidates = _image(merger, Math.max(previous, from - LOOKBACK), from, to - from);
+            if(candidates == null)
+                return;
+            Arrays.sort(candidates);
+        }
+
+        //each candidate points to the active state it was merged in
+        int[] active = candidates.clone();
+        int activeCount = active.length;
+        int[] owner = new int[candidates.length];
+        for(int i = 0; i < owner.length; i++) {
+            owner[i] = i;
+        }
+        long budget = (long) SPECULATION_BUDGET * (to - from);
+        int i = from;
+        for(; i < to && activeCount > 1; i++) {
+            int eventOrdinal = dispatcher.eventOrdinal(events[i]);
+            for(int j = 0; j < activeCount; j++) {
+                int next = dispatcher.nextState(active[j], eventOrdinal);
+                if(next != TransitionTable.NO_TRANSITION)
+                    active[j] = next;
+            }
+            budget -= activeCount;
+            if(budget < 0)
+                return;
+            if(i - from >= LOOKBACK && (long) activeCount * (to - i) > budget)
+                return; //had time to converge, and would not finish within the budget at this rate
+            int merged = merger.merge(active, activeCount);
+            if(merged < activeCount) {
+                for(int c = 0; c < owner.length; c++) {
+                    owner[c] = merger.slot[owner[c]];
+                }
+                activeCount = merged;
+            }
+        }
+        if(activeCount == 1) //converged, the rest of the chunk is a plain sequential run
+            active[0] = _run(active[0], i, to);
+
+        int[] chunkEnds = new int[candidates.length];
+        for(int c = 0; c < candidates.length; c++) {
+            chunkEnds[c] = active[owner[c]];
+        }
+        ends[chunk] = chunkEnds;
+        starts[chunk] = candidates;
+    }
+
+    /**
+     * @return the distinct states events[from, to) lead to from any state, or null if they are more than
+     * MAX_CANDIDATES or if finding them costs more than the budget
+     */
+    private int[] _image(Merger merger, int from, int to, long budget) {
+        int[] active = new int[stateCount];
+        for(int state = 0; state < stateCount; state++) {
+            active[state] = state;
+        }
+        int activeCount = stateCount;
+        int i = from;
+        for(; i < to && activeCount > 1; i++) {
+            int eventOrdinal = dispatcher.eventOrdinal(events[i]);
+            for(int j = 0; j < activeCount; j++) {
+                int next = dispatcher.nextState(active[j], eventOrdinal);
+                if(next != TransitionTable.NO_TRANSITION)
+                    active[j] = next;
+            }
+            budget -= activeCount;
+            if(budget < 0)
+                return null;
+            activeCount = merger.merge(active, activeCount);
+        }
+        if(activeCount == 1) //converged, the rest of the lookback still moves the single state
+            active[0] = _run(active[0], i, to);
+        return activeCount > MAX_CANDIDATES ? null : Arrays.copyOf(active, activeCount);
+    }
+
+    /**
+     * Removes the duplicates of an array of states in O(length), with marks that never need to be cleared
+     */
+    private static final class Merger {
+        private final int[] mark; //by state, the epoch it was last seen in
+        private final int[] position; //by state, where it was kept in the last epoch
+        final int[] slot; //by former position, the position it was merged in
+        private int epoch = 0;
+
+        Merger(int stateCount) {
+            mark = new int[stateCount];
+            position = new int[stateCount];
+            slot = new int[stateCount];
+        }
+
+        /**
+         * @return the number of distinct states, now at the beginning of the array, in their first order
+         */
+        int merge(int[] states, int count) {
+            epoch++;
+            int kept = 0;
+            for(int j = 0; j < count; j++) {
+                int state = states[j];
+                if(mark[state] == epoch) {
+                    slot[j] = position[state];
+                } else {
+                    mark[state] = epoch;
+                    position[state] = kept;
+                    slot[j] = kept;
+                    states[kept++] = state;
+                }
+            }
+            return kept;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.gryzorz.fsm.v2;
+
+import java.util.Arrays;
+
+/**
+ * Shrinks a TransitionTable without changing how it reacts to any sequence of events :<br>
+ * 1) states that cannot be reached from the initial state are removed<br>
+ * 2) states that no sequence of events can tell apart are merged, with Hopcroft's partition refinement<br>
+ * <br>
+ * Two states are told apart when some sequence of events is accepted from one of them and not from the
+ * other : missing transitions lead to an implicit dead state, which starts alone in its own block. States
+ * that differ by something else than their transitions, their timeouts, are given different classes, and
+ * start in different blocks.
+ * Each merged state is represented by the member that has the smallest ordinal, so the initial state
+ * represents its own block and keeps ordinal 0. The original states stay known to the new table, under
+ * the ordinal of their representative.<br>
+ * <br>
+ * Refinement runs in O(e.n.log(n)) time for n states and e events, and O(e.n) memory, which is the
+ * size of the table anyway.
+ *
+ * @author Benoit Fernandez
+ */
+final class StateMinimizer {
+    private StateMinimizer() {}
+
+    static TransitionTable minimize(TransitionTable full) {
+        return minimize(full, null);
+    }
+
+    /**
+     * @param stateClasses by original ordinal, a class from 0 : states of different classes are never merged.
+     * Null puts all the states in the same class
+     */
+    static TransitionTable minimize(TransitionTable full, int[] stateClasses) {
+        int k = full.eventCount;
+        int total = full.states.length;
+
+        //1) breadth first walk from the initial state, reachable states are renumbered in the order they are found
+        int[] reachableIndex = new int[total];
+        Arrays.fill(reachableIndex, TransitionTable.NO_TRANSITION);
+        int[] reachable = new int[total];
+        int n = 0;
+        reachableIndex[0] = 0;
+        reachable[n++] = 0;
+        for(int head = 0; head < n; head++) {
+            int row = reachable[head] * k;
+            for(int e = 0; e < k; e++) {
+                int to = full.table[row + e];
+                if(to != TransitionTable.NO_TRANSITION && reachableIndex[to] == TransitionTable.NO_TRANSITION) {
+                    reachableIndex[to] = n;
+                    reachable[n++] = to;
+                }
+            }
+        }
+
+        //2) complete transition function over the reachable states plus the dead state, and its inverse
+        int dead = n;
+        int size = n + 1;
+        int[] delta = new int[size * k];
+        for(int s = 0; s < n; s++) {
+            int row = reachable[s] * k;
+            for(int e = 0; e < k; e++) {
+                int to = full.table[row + e];
+                delta[s * k + e] = to == TransitionTable.NO_TRANSITION ? dead : reachableIndex[to];
+            }
+        }
+        Arrays.fill(delta, dead * k, size * k, dead);
+        //predecessors of state t by event e are predecessors[predecessorStart[e * size + t] .. predecessorStart[e * size + t + 1]]
+        int[] predecessorStart = new int[k * size + 1];
+        for(int s = 0; s < size; s++) {
+            for(int e = 0; e < k; e++) {
+                predecessorStart[e * size + delta[s * k + e] + 1]++;
+            }
+        }
+        for(int i = 1; i < predecessorStart.length; i++) {
+            predecessorStart[i] += predecessorStart[i - 1];
+        }
+        int[] predecessors = new int[size * k];
+        int[] cursor = Arrays.copyOf(predecessorStart, k * size);
+        for(int s = 0; s < size; s++) {
+            for(int e = 0; e < k; e++) {
+                predecessors[cursor[e * size + delta[s * k + e]]++] = s;
+            }
+        }
+        cursor = null;
+        delta = null;
+
+        //3) partition refinement : the states of each block are contiguous in elements, marked ones first
+        int[] elements = new int[size];
+        int[] location = new int[size];
+        int[] blockOf = new int[size];
+        int[] first = new int[size];
+        int[] end = new int[size];
+        int[] marked = new int[size];
+        boolean[] waiting = new boolean[size];
+        int[] work = new int[size];
+        int workSize = 0;
+        //reachable states start in one block per class, the dead state alone in the last one
+        int blockCount = 0;
+        int[] classBlock = new int[n + 1];
+        Arrays.fill(classBlock, TransitionTable.NO_TRANSITION);
+        int[] classOf = new int[n];
+        if(stateClasses != null) {
+            int[] classIndex = new int[total + 1];
+            Arrays.fill(classIndex, TransitionTable.NO_TRANSITION);
+            int classCount = 0;
+            for(int s = 0; s < n; s++) { //classes renumbered densely, in the order they are found
+                int stateClass = stateClasses[reachable[s]];
+                if(classIndex[stateClass] == TransitionTable.NO_TRANSITION)
+                    classIndex[stateClass] = classCount++;
+                classOf[s] = classIndex[stateClass];
+            }
+        }
+        for(int s = 0; s < n; s++) {
+            if(classBlock[classOf[s]] == TransitionTable.NO_TRANSITION)
+                classBlock[classOf[s]] = blockCount++;
+            blockOf[s] = classBlock[classOf[s]];
+            end[blockOf[s]]++;
+        }
+        int deadBlock = blockCount++;
+        blockOf[dead] = deadBlock;
+        end[deadBlock] = 1;
+        for(int block = 0, position = 0; block < blockCount; block++) {
+            first[block] = position;
+            position += end[block];
+            end[block] = first[block];
+        }
+        for(int s = 0; s < size; s++) {
+            int position = end[blockOf[s]]++;
+            elements[position] = s;
+            location[s] = position;
+        }
+        for(int block = 1; block < blockCount; block++) { //all the initial blocks but one split the others
+            work[workSize++] = block;
+            waiting[block] = true;
+        }
+
+        int[] splitter = new int[size];
+        int[] touched = new int[size];
+        while(workSize > 0) {
+            int block = work[--workSize];
+            waiting[block] = false;
+            int splitterSize = end[block] - first[block];
+            System.arraycopy(elements, first[block], splitter, 0, splitterSize); //the block may split while in use
+            for(int e = 0; e < k; e++) {
+                int touchedCount = 0;
+                for(int i = 0; i < splitterSize; i++) {
+                    int t = e * size + splitter[i];
+                    for(int p = predecessorStart[t], last = predecessorStart[t + 1]; p < last; p++) {
+                        //a state has a single successor by e, so it is never marked twice for the same splitter
+                        int state = predecessors[p];
+                        int y = blockOf[state];
+                        int position = first[y] + marked[y];
+                        int swapped = elements[position];
+                        elements[location[state]] = swapped;
+                        location[swapped] = location[state];
+                        elements[position] = state;
+                        location[state] = position;
+                        if(marked[y]++ == 0)
+                            touched[touchedCount++] = y;
+                    }
+                }
+                for(int i = 0; i < touchedCount; i++) {
+                    int y = touched[i];
+                    int markedCount = marked[y];
+                    marked[y] = 0;
+                    int remaining = end[y] - first[y] - markedCount;
+                    if(remaining == 0)
+                        continue;
+                    int z = blockCount++;
+                    first[z] = first[y];
+                    end[z] = first[y] + markedCount;
+                    first[y] = end[z];
+                    for(int position = first[z]; position < end[z]; position++) {
+                        blockOf[elements[position]] = z;
+                    }
+                    int added = waiting[y] || markedCount <= remaining ? z : y;
+                    work[workSize++] = added;
+                    waiting[added] = true;
+                }
+            }
+        }
+
+        //4) one state per block of reachable states, ordered by the smallest original ordinal of their members
+        int[] blockOrdinal = new int[blockCount];
+        Arrays.fill(blockOrdinal, TransitionTable.NO_TRANSITION);
+        int[] memberCounts = new int[n];
+        int stateCount = 0;
+        for(int original = 0; original < total; original++) {
+            if(reachableIndex[original] == TransitionTable.NO_TRANSITION)
+                continue;
+            int block = blockOf[reachableIndex[original]];
+            if(blockOrdinal[block] == TransitionTable.NO_TRANSITION)
+                blockOrdinal[block] = stateCount++;
+            memberCounts[blockOrdinal[block]]++;
+        }
+        int[] memberStart = new int[stateCount + 1];
+        for(int ordinal = 0; ordinal < stateCount; ordinal++) {
+            memberStart[ordinal + 1] = memberStart[ordinal] + memberCounts[ordinal];
+        }
+        State[] members = new State[n];
+        State[] unreachable = new State[total - n];
+        int unreachableCount = 0;
+        int[] memberCursor = Arrays.copyOf(memberStart, stateCount);
+        State[] states = new State[stateCount];
+        int[] representative = new int[stateCount];
+        IdentityOrdinalMap stateOrdinals = new IdentityOrdinalMap(n);
+        for(int original = 0; original < total; original++) {
+            if(reachableIndex[original] == TransitionTable.NO_TRANSITION) {
+                unreachable[unreachableCount++] = full.states[original];
+                continue;
+            }
+            int ordinal = blockOrdinal[blockOf[reachableIndex[original]]];
+            if(memberCursor[ordinal] == memberStart[ordinal]) {
+                states[ordinal] = full.states[original];
+                representative[ordinal] = original;
+            }
+            members[memberCursor[ordinal]++] = full.states[original];
+            stateOrdinals.put(full.states[original], ordinal);
+        }
+
+        int[] table = new int[stateCount * k];
+        int transitionCount = 0;
+        for(int ordinal = 0; ordinal < stateCount; ordinal++) {
+            int row = representative[ordinal] * k;
+            for(int e = 0; e < k; e++) {
+                int to = full.table[row + e];
+                if(to != TransitionTable.NO_TRANSITION) {
+                    to = blockOrdinal[blockOf[reachableIndex[to]]];
+                    transitionCount++;
+                }
+                table[ordinal * k + e] = to;
+            }
+        }
+        int originalTransitionCount = 0;
+        for(int to : full.table) {
+            if(to != TransitionTable.NO_TRANSITION)
+                originalTransitionCount++;
+        }
+
+        FiniteStateMachineMinimization minimization = new FiniteStateMachineMinimization(
+                stateOrdinals, states, members, memberStart, unreachable, originalTransitionCount, transitionCount);
+        return new TransitionTable(stateOrdinals, states, full.eventOrdinals, full.events, table, minimization);
+    }
+}
@@ -0,0 +1,32 @@
+package com.gryzorz.fsm.v2;
+
+/**
+ * The timeout of a state, see FiniteStateMachineBuilder.addTimeout(...) : the event fired once the machine
+ * stayed that long in the state.<br>
+ * Two timeouts are equal when they have the same delay and the same event, so that states with equal timeouts
+ * can still be merged by StateMinimizer.
+ *
+ * @author Benoit Fernandez
+ */
+final class StateTimeout {
+    final long delayNanos;
+    final Event event;
+
+    StateTimeout(long delayNanos, Event event) {
+        this.delayNanos = delayNanos;
+        this.event = event;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if(!(other instanceof StateTimeout))
+            return false;
+        StateTimeout timeout = (StateTimeout) other;
+        return delayNanos == timeout.delayNanos && event == timeout.event;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(delayNanos) * 31 + System.identityHashCode(event);
+    }
+}
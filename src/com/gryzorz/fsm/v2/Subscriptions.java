@@ -0,0 +1,315 @@
+package com.gryzorz.fsm.v2;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the listeners of a FiniteStateMachine : adding or removing a listener replaces the
+ * whole snapshot, so notifying never takes a lock, and never sees a list while it is being changed.<br>
+ * <br>
+ * When some listeners were added with a FiniteStateMachineSubscription, and the machine is compiled, the
+ * snapshot also holds, for each (state, event) couple of the table, the array of the listeners interested in
+ * its notification : the outcome and the destination of a couple never change, so subscriptions are evaluated
+ * once, here, and notifying only iterates the listeners that asked for it. Couples reaching the same listeners
+ * share the same array, one column stands for all the events the table does not know.<br>
+ * <br>
+ * A snapshot only depends on the table, not on the machine : when the instances of a definition all add, or all
+ * remove, the same listener, each one reuses the listeners and the index built for the previous one, see Memo.<br>
+ * <br>
+ * The snapshot also carries what the machine is attached to, if anything : its FiniteStateMachineFlightRecorder, the
+ * entry of its TimingWheel and its member of a FiniteStateMachineBroadcaster. They are read along with the listeners
+ * when an event is processed, and cost the instances no field of their own. A snapshot carrying any of them belongs
+ * to a single machine.
+ *
+ * @author Benoit Fernandez
+ */
+final class Subscriptions {
+    private static final int ANY = -1; //the subscription does not filter on this criterion
+    private static final int NEVER = -2; //the subscription names a state or event unknown to the table
+    private static final FiniteStateMachineListener[] NO_LISTENER = new FiniteStateMachineListener[0];
+    private static final FiniteStateMachineSubscription[] NO_FILTER = new FiniteStateMachineSubscription[0];
+    private static final Subscriptions EMPTY = new Subscriptions(NO_LISTENER, NO_FILTER, null, null);
+
+    final FiniteStateMachineListener[] listeners; //in the order they were added
+    final FiniteStateMachineSubscription[] filters; //same order, null for the listeners receiving everything
+    final boolean filtered;
+    final TransitionTable table; //the table cells index, null if not compiled
+    /** [from * (eventCount + 1) + event], the last column for the unknown events ; null if not filtered or not compiled */
+    final FiniteStateMachineListener[][] cells;
+    final int columns;
+    /** listeners whose subscription names an event the table does not know, matched at each unknown event, null if none */
+    final FiniteStateMachineListener[] unknownEventListeners;
+    final FiniteStateMachineSubscription[] unknownEventFilters;
+    final FiniteStateMachineFlightRecorder recorder; //null if the machine is not attached to a recorder
+    final TimingWheel.Entry timeout; //null if the machine is not attached to a TimingWheel
+    final FiniteStateMachineBroadcaster.Member broadcast; //null if the machine is not registered to a broadcaster
+
+    /**
+     * Copies a snapshot, attached to other objects
+     */
+    private Subscriptions(Subscriptions source, FiniteStateMachineFlightRecorder recorder, TimingWheel.Entry timeout,
+                          FiniteStateMachineBroadcaster.Member broadcast) {
+        this.listeners = source.listeners;
+        this.filters = source.filters;
+        this.filtered = source.filtered;
+        this.table = source.table;
+        this.cells = source.cells;
+        this.columns = source.columns;
+        this.unknownEventListeners = source.unknownEventListeners;
+        this.unknownEventFilters = source.unknownEventFilters;
+        this.recorder = recorder;
+        this.timeout = timeout;
+        this.broadcast = broadcast;
+    }
+
+    /**
+     * @param attached the snapshot whose recorder, timeout and broadcast to keep, null if none
+     */
+    private Subscriptions(FiniteStateMachineListener[] listeners, FiniteStateMachineSubscription[] filters, TransitionTable table,
+                          Subscriptions attached) {
+        this.recorder = attached == null ? null : attached.recorder;
+        this.timeout = attached == null ? null : attached.timeout;
+        this.broadcast = attached == null ? null : attached.broadcast;
+        this.listeners = listeners;
+        this.filters = filters;
+        boolean filtered = false;
+        for(FiniteStateMachineSubscription filter : filters) {
+            filtered |= filter != null;
+        }
+        this.filtered = filtered;
+        this.table = table;
+        if(!filtered || table == null) {
+            cells = null;
+            columns = 0;
+            unknownEventListeners = null;
+            unknownEventFilters = null;
+            return;
+        }
+
+        //the ordinals each subscription names
+        int n = listeners.length;
+        int[] fromOrdinals = new int[n];
+        int[] eventOrdinals = new int[n];
+        int[] toOrdinals = new int[n];
+        int unknownEventCount = 0;
+        for(int i = 0; i < n; i++) {
+            FiniteStateMachineSubscription filter = filters[i];
+            if(filter == null)
+                continue;
+            fromOrdinals[i] = filter.from == null ? ANY : _ordinal(table.stateOrdinal(filter.from));
+            eventOrdinals[i] = filter.event == null ? ANY : _ordinal(table.eventOrdinal(filter.event));
+            toOrdinals[i] = filter.to == null ? ANY : _ordinal(table.stateOrdinal(filter.to));
+            if(eventOrdinals[i] == NEVER)
+                unknownEventCount++;
+        }
+
+        int eventCount = table.eventCount;
+        int stateCount = table.states.length;
+        columns = eventCount + 1;
+        cells = new FiniteStateMachineListener[stateCount * columns][];
+        Map<BitSet, FiniteStateMachineListener[]> shared = new HashMap<BitSet, FiniteStateMachineListener[]>();
+        BitSet matched = new BitSet(n);
+        for(int from = 0; from < stateCount; from++) {
+            for(int event = 0; event < columns; event++) {
+                int next = event == eventCount ? TransitionTable.NO_TRANSITION : table.nextState(from, event);
+                TransitionOutcome outcome = next == TransitionTable.NO_TRANSITION ? TransitionOutcome.UNEXISTING_TRANSITION
+                                          : next == from ? TransitionOutcome.STATE_LOOP : TransitionOutcome.STATE_CHANGED;
+                matched.clear();
+                for(int i = 0; i < n; i++) {
+                    FiniteStateMachineSubscription filter = filters[i];
+                    if(filter != null) {
+                        if(filter.outcome != null && filter.outcome != outcome)
+                            continue;
+                        if(fromOrdinals[i] != ANY && fromOrdinals[i] != from)
+                            continue;
+                        if(eventOrdinals[i] != ANY && eventOrdinals[i] != event)
+                            continue; //the unknown events column is matched at each notification for them
+                        if(toOrdinals[i] != ANY && toOrdinals[i] != next)
+                            continue;
+                    }
+                    matched.set(i);
+                }
+                FiniteStateMachineListener[] cell = shared.get(matched);
+                if(cell == null) {
+                    cell = new FiniteStateMachineListener[matched.cardinality()];
+                    for(int i = matched.nextSetBit(0), j = 0; i >= 0; i = matched.nextSetBit(i + 1)) {
+                        cell[j++] = listeners[i];
+                    }
+                    shared.put((BitSet) matched.clone(), cell);
+                }
+                cells[from * columns + event] = cell;
+            }
+        }
+
+        if(unknownEventCount == 0) {
+            unknownEventListeners = null;
+            unknownEventFilters = null;
+            return;
+        }
+        unknownEventListeners = new FiniteStateMachineListener[unknownEventCount];
+        unknownEventFilters = new FiniteStateMachineSubscription[unknownEventCount];
+        for(int i = 0, j = 0; i < n; i++) {
+            if(filters[i] != null && eventOrdinals[i] == NEVER) {
+                unknownEventListeners[j] = listeners[i];
+                unknownEventFilters[j++] = filters[i];
+            }
+        }
+    }
+
+    private static int _ordinal(int ordinal) {
+        return ordinal == TransitionTable.NO_TRANSITION ? NEVER : ordinal;
+    }
+
+    /**
+     * @param definition the definition of the machine, null if it is not compiled
+     * @param subscription null, or a subscription with no criterion, to receive everything
+     * @return the snapshot with one more listener
+     */
+    static Subscriptions add(Subscriptions before, FiniteStateMachineListener listener, FiniteStateMachineSubscription subscription,
+                             FiniteStateMachineDefinition definition) {
+        if(subscription != null && subscription.from == null && subscription.event == null
+                                && subscription.to == null && subscription.outcome == null)
+            subscription = null;
+        Memo memo = definition == null ? null : definition.subscriptionMemo;
+        if(memo != null && _sameListeners(memo.before, before) && memo.listener == listener && memo.subscription == subscription)
+            return _reattach(memo.after, before);
+
+        int n = before == null ? 0 : before.listeners.length;
+        FiniteStateMachineListener[] listeners = before == null ? new FiniteStateMachineListener[1] : Arrays.copyOf(before.listeners, n + 1);
+        FiniteStateMachineSubscription[] filters = before == null ? new FiniteStateMachineSubscription[1] : Arrays.copyOf(before.filters, n + 1);
+        listeners[n] = listener;
+        filters[n] = subscription;
+        Subscriptions after = new Subscriptions(listeners, filters, definition == null ? null : definition.table, null);
+        if(definition != null)
+            definition.subscriptionMemo = new Memo(before, listener, subscription, after);
+        return _reattach(after, before);
+    }
+
+    /**
+     * @param definition the definition of the machine, null if it is not compiled
+     * @return the snapshot without the first registration of the listener, null if nothing is left
+     */
+    static Subscriptions remove(Subscriptions before, FiniteStateMachineListener listener, FiniteStateMachineDefinition definition) {
+        if(before == null)
+            return null;
+        Memo memo = definition == null ? null : definition.removalMemo;
+        if(memo != null && _sameListeners(memo.before, before) && memo.listener == listener)
+            return _reattach(memo.after, before);
+
+        int n = before.listeners.length;
+        for(int i = 0; i < n; i++) {
+            if(listener == null ? before.listeners[i] == null : listener.equals(before.listeners[i])) {
+                Subscriptions after;
+                if(n == 1) {
+                    after = null;
+                } else {
+                    FiniteStateMachineListener[] listeners = new FiniteStateMachineListener[n - 1];
+                    FiniteStateMachineSubscription[] filters = new FiniteStateMachineSubscription[n - 1];
+                    System.arraycopy(before.listeners, 0, listeners, 0, i);
+                    System.arraycopy(before.listeners, i + 1, listeners, i, n - 1 - i);
+                    System.arraycopy(before.filters, 0, filters, 0, i);
+                    System.arraycopy(before.filters, i + 1, filters, i, n - 1 - i);
+                    after = new Subscriptions(listeners, filters, definition == null ? null : definition.table, null);
+                }
+                if(definition != null)
+                    definition.removalMemo = new Memo(before, listener, null, after);
+                return _reattach(after, before);
+            }
+        }
+        return before;
+    }
+
+    /**
+     * @return the same listeners, indexed for the table the machine was just compiled to
+     */
+    static Subscriptions recompile(Subscriptions before, TransitionTable table) {
+        return before == null ? null : new Subscriptions(before.listeners, before.filters, table, before);
+    }
+
+    /**
+     * @param recorder the recorder the machine is attached to from now on, null to detach it
+     * @param timeout the entry of the wheel the machine is attached to from now on, null to detach it
+     * @param broadcast the member of the broadcaster the machine is registered to from now on, null to unregister it
+     * @return the same listeners, along with what the machine is attached to, null if there is nothing
+     */
+    static Subscriptions attach(Subscriptions before, FiniteStateMachineFlightRecorder recorder, TimingWheel.Entry timeout,
+                                FiniteStateMachineBroadcaster.Member broadcast) {
+        if(recorder == null && timeout == null && broadcast == null && (before == null || before.listeners.length == 0))
+            return null;
+        return new Subscriptions(before == null ? EMPTY : before, recorder, timeout, broadcast);
+    }
+
+    static FiniteStateMachineFlightRecorder recorderOf(Subscriptions subscriptions) {
+        return subscriptions == null ? null : subscriptions.recorder;
+    }
+
+    static TimingWheel.Entry timeoutOf(Subscriptions subscriptions) {
+        return subscriptions == null ? null : subscriptions.timeout;
+    }
+
+    static FiniteStateMachineBroadcaster.Member broadcastOf(Subscriptions subscriptions) {
+        return subscriptions == null ? null : subscriptions.broadcast;
+    }
+
+    /**
+     * @return true if the two snapshots have the same listeners, indexed for the same table, whatever they are attached to
+     */
+    private static boolean _sameListeners(Subscriptions a, Subscriptions b) {
+        if(a == b)
+            return true;
+        boolean aEmpty = a == null || a.listeners.length == 0;
+        boolean bEmpty = b == null || b.listeners.length == 0;
+        if(aEmpty || bEmpty)
+            return aEmpty && bEmpty;
+        return a.listeners == b.listeners && a.filters == b.filters && a.table == b.table;
+    }
+
+    /**
+     * @param shared listeners built for, or shared with, the instances of a definition, null if none
+     * @param before the snapshot of the machine, whose recorder, timeout and broadcast to keep
+     * @return the shared listeners, attached to what the machine is attached to
+     */
+    private static Subscriptions _reattach(Subscriptions shared, Subscriptions before) {
+        FiniteStateMachineFlightRecorder recorder = recorderOf(before);
+        TimingWheel.Entry timeout = timeoutOf(before);
+        FiniteStateMachineBroadcaster.Member broadcast = broadcastOf(before);
+        if(recorderOf(shared) == recorder && timeoutOf(shared) == timeout && broadcastOf(shared) == broadcast)
+            return shared;
+        return attach(shared, recorder, timeout, broadcast);
+    }
+
+    /**
+     * @param definition the version of its definition a machine just moved to
+     * @return the same listeners, indexed for the table of that version
+     */
+    static Subscriptions migrate(Subscriptions before, FiniteStateMachineDefinition definition) {
+        if(before == null || !before.filtered)
+            return before; //nothing indexed by ordinals
+        Memo memo = definition.migrationMemo;
+        if(memo != null && _sameListeners(memo.before, before))
+            return _reattach(memo.after, before);
+        Subscriptions after = new Subscriptions(before.listeners, before.filters, definition.table, null);
+        definition.migrationMemo = new Memo(before, null, null, after);
+        return _reattach(after, before);
+    }
+
+    /**
+     * The last snapshot built for the instances of a definition, reused when the next instance adds, or removes, the
+     * same listener
+     */
+    static final class Memo {
+        final Subscriptions before;
+        final FiniteStateMachineListener listener;
+        final FiniteStateMachineSubscription subscription;
+        final Subscriptions after;
+
+        Memo(Subscriptions before, FiniteStateMachineListener listener, FiniteStateMachineSubscription subscription, Subscriptions after) {
+            this.before = before;
+            this.listener = listener;
+            this.subscription = subscription;
+            this.after = after;
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package com.gryzorz.fsm.v2;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fires the timeouts of the states, see FiniteStateMachineBuilder.addTimeout(...), for any number of machines
+ * with a single thread and no task per machine.<br>
+ * Attach each machine with attach(...) : from then on, each transition it takes re-arms the timeout of the
+ * state it is in, and cancels the previous one.<br>
+ * <br>
+ * Timeouts are kept in a hierarchical timing wheel : 7 levels of 64 slots, the first one holding the timeouts
+ * due within the next 64 ticks, one slot per tick, each next one 64 times coarser. Arming or cancelling a
+ * timeout unlinks and links an entry in a slot, which costs the same whatever the number of machines. A
+ * transition only stamps the time on the entry of its machine and pushes it on a lock-free stack : the
+ * thread advancing the wheel re-arms all the entries pushed since its last tick at once. Each tick then only
+ * looks at one slot, and the entries of a coarser slot are moved down a level once every 64 ticks of the
+ * level below, so every timeout moves at most 6 times before it is due.<br>
+ * <br>
+ * Call advance() from your own scheduler, or start() a daemon thread calling it every tick. The due
+ * timeouts are fired by that thread, in a batch, by processing the timeout event like any other event :
+ * listeners are notified as usual. A timeout never fires early, and fires late by at most one tick plus
+ * the time between two calls to advance(). It does not fire if a transition was taken meanwhile, though
+ * in ConcurrencyMode.LOCK_FREE, a transition looping on the state at the very moment the timeout fires may
+ * not prevent it. For deterministic tests, build the wheel on a ManualClock, and call advance() after
+ * moving the clock.<br>
+ * <br>
+ * An attached machine costs an entry of about 80 bytes, and a snapshot of its listeners of its own, see
+ * FiniteStateMachineDefinition. Machines driven by a FiniteStateMachineMailbox
+ * must not be attached, as the wheel would process events concurrently with the mailbox.
+ *
+ * @author Benoit Fernandez
+ */
+public class TimingWheel {
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 7; //2^42 ticks, 139 years of 1 ms
+    private static final int NOT_LINKED = -1;
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private static final VarHandle DIRTY_HEAD;
+    private static final VarHandle DIRTY;
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            DIRTY_HEAD = lookup.findVarHandle(TimingWheel.class, "dirtyHead", Entry.class);
+            DIRTY = lookup.findVarHandle(Entry.class, "dirty", int.class);
+        } catch(ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    final FiniteStateMachineClock clock;
+    private final long tickNanos;
+    private final long origin; //the time of tick 0
+
+    /* only touched by the thread holding the monitor of the wheel */
+    private final Entry[] slots = new Entry[LEVELS << WHEEL_BITS]; //[level << WHEEL_BITS | slot], doubly linked lists
+    private final int[] levelCounts = new int[LEVELS];
+    private final ArrayList<Entry> expired = new ArrayList<Entry>();
+    private long currentTick = 0;
+    private int armedCount = 0;
+    private Thread ticker = null;
+
+    private Entry dirtyHead = null; //entries whose machine took a transition since the last advance(), linked by nextDirty
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a wheel ticking every millisecond on the system clock. Call start() to have it fire timeouts by itself.
+     */
+    public TimingWheel() {
+        this(FiniteStateMachineClock.SYSTEM, Duration.ofMillis(1));
+    }
+
+    /**
+     * @param clock the time source, a ManualClock for tests
+     * @param tick the resolution of the wheel : timeouts are rounded up to a multiple of it
+     */
+    public TimingWheel(FiniteStateMachineClock clock, Duration tick) {
+        if(clock == null)
+            throw new IllegalArgumentException("clock cannot be null");
+        if(tick == null || tick.isNegative() || tick.isZero())
+            throw new IllegalArgumentException("tick must be positive : " + tick);
+        this.clock = clock;
+        this.tickNanos = tick.toNanos();
+        this.origin = clock.nanoTime();
+    }
+
+    /**
+     * Starts timing the states of a machine. The timeout of the state it is in starts now.
+     * @param fsm a compiled machine, or an instance of a definition, having timeouts
+     * @throws FiniteStateMachineException if the machine is null, has no timeout, or is already attached to a wheel
+     */
+    public void attach(FiniteStateMachine fsm) throws FiniteStateMachineException {
+        if(fsm == null)
+            throw new FiniteStateMachineException("attach : cannot attach a null machine");
+        FiniteStateMachineDefinition definition = fsm.getDefinition();
+        if(definition == null || definition.timeoutNanos == null)
+            throw new FiniteStateMachineException("attach : the machine has no timeout, see FiniteStateMachineBuilder.addTimeout(...)");
+        synchronized (fsm.instanceMonitor) {
+            Entry entry = new Entry(this, fsm);
+            if(!fsm.replaceTimeout(null, entry))
+                throw new FiniteStateMachineException("attach : the machine is already attached to a TimingWheel");
+            entry.transitionTaken();
+        }
+    }
+
+    /**
+     * Stops timing the states of a machine : its pending timeout will not fire.
+     * @param fsm the machine
+     * @return false if the machine was not attached to this wheel
+     */
+    public boolean detach(FiniteStateMachine fsm) {
+        synchronized (fsm.instanceMonitor) {
+            Entry entry = fsm.getTimeout();
+            if(entry == null || entry.wheel != this)
+                return false;
+            fsm.replaceTimeout(entry, null);
+            entry.detached = true;
+            _markDirty(entry); //unlinked by the next advance()
+        }
+        return true;
+    }
+
+    /**
+     * Moves the wheel to the current time of its clock, and fires the timeouts due meanwhile.<br>
+     * A RuntimeException thrown by a listener does not stop the batch, it is thrown once all the timeouts are fired.
+     * @return the number of timeout events processed
+     */
+    public synchronized int advance() {
+        long target = Math.floorDiv(clock.nanoTime() - origin, tickNanos);
+        _drainDirty();
+        while(currentTick < target) {
+            //the next tick that can matter : every tick when the first level is used, else the next rotation of the lowest used level
+            int lowest = 0;
+            while(lowest < LEVELS && levelCounts[lowest] == 0) {
+                lowest++;
+            }
+            long next = lowest == LEVELS ? target + 1 : (currentTick | ((1L << (WHEEL_BITS * lowest)) - 1)) + 1;
+            if(next > target) {
+                currentTick = target;
+                break;
+            }
+            currentTick = next;
+            if((currentTick & WHEEL_MASK) == 0) { //coarser slots move down, the coarsest first as they may land in the finer ones
+                int top = 1;
+                while(top < LEVELS - 1 && (currentTick & ((1L << (WHEEL_BITS * (top + 1))) - 1)) == 0) {
+                    top++;
+                }
+                for(int level = top; level > 0; level--) {
+                    _relink(level, (int) (currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+                }
+            }
+            _relink(0, (int) currentTick & WHEEL_MASK); //due now : to the expired batch
+        }
+        return _fireExpired();
+    }
+
+    /**
+     * @return the number of timeouts waiting in the wheel, not counting the transitions taken since the last advance()
+     */
+    public synchronized int getArmedCount() {
+        return armedCount;
+    }
+
+    /**
+     * Acts the same as start(ThreadFactory) with a daemon thread.
+     */
+    public void start() {
+        start(null);
+    }
+
+    /**
+     * Starts a thread calling advance() every tick, until close().<br>
+     * A RuntimeException thrown by a listener is handed to the uncaught exception handler of the thread.
+     * @param threadFactory the factory creating the thread, or null for a daemon thread
+     */
+    public synchronized void start(ThreadFactory threadFactory) {
+        if(ticker != null || closed)
+            throw new IllegalStateException("The wheel is already started, or closed");
+        Runnable loop = new Runnable() {
+            public void run() {
+                _tick();
+            }
+        };
+        if(threadFactory != null) {
+            ticker = threadFactory.newThread(loop);
+        } else {
+            ticker = new Thread(loop, "fsm-timing-wheel-" + threadCount.incrementAndGet());
+            ticker.setDaemon(true);
+        }
+        ticker.start();
+    }
+
+    /**
+     * Stops the thread started by start(), if any. Timeouts are then only fired by explicit calls to advance().
+     * @throws InterruptedException if interrupted while waiting for the thread to stop
+     */
+    public void close() throws InterruptedException {
+        closed = true;
+        Thread thread;
+        synchronized (this) {
+            thread = ticker;
+        }
+        if(thread != null) {
+            LockSupport.unpark(thread);
+            thread.join();
+        }
+    }
+
+    private void _tick() {
+        while(!closed) {
+            try {
+                advance();
+            } catch(RuntimeException e) {
+                Thread.UncaughtExceptionHandler handler = Thread.currentThread().getUncaughtExceptionHandler();
+                if(handler != null)
+                    handler.uncaughtException(Thread.currentThread(), e);
+            }
+            LockSupport.parkNanos(tickNanos);
+        }
+    }
+
+
+    /**************************************************************************
+     *                             wheel internals                            *
+     *************************************************************************/
+
+
+    private void _markDirty(Entry entry) {
+        if(!DIRTY.compareAndSet(entry, 0, 1))
+            return; //already pushed, the wheel will read its latest state
+        Entry head;
+        do {
+            head = (Entry) DIRTY_HEAD.getVolatile(this);
+            entry.nextDirty = head;
+        } while(!DIRTY_HEAD.compareAndSet(this, head, entry));
+    }
+
+    /**
+     * Re-arms the entries of all the machines that took a transition since the last call
+     */
+    private void _drainDirty() {
+        Entry entry = (Entry) DIRTY_HEAD.getAndSet(this, null);
+        while(entry != null) {
+            Entry nextDirty = entry.nextDirty;
+            entry.nextDirty = null;
+            DIRTY.setVolatile(entry, 0); //before reading the state : a later transition pushes the entry again
+            _rearm(entry);
+            entry = nextDirty;
+        }
+    }
+
+    private void _rearm(Entry entry) {
+        if(entry.slot != NOT_LINKED)
+            _unlink(entry);
+        if(entry.detached)
+            return;
+        long changedAt = entry.changedAt; //stamped before the entry was pushed, read before the state it stamps
+        FiniteStateMachineDefinition definition = entry.fsm.getDefinition();
+        int ordinal = entry.fsm.getStateOrdinal(definition);
+        if(ordinal == TransitionTable.NO_TRANSITION)
+            return; //moved to the next version of its definition meanwhile, which pushes the entry again
+        long delay = definition.timeoutNanos == null ? 0 : definition.timeoutNanos[ordinal];
+        if(delay == 0)
+            return; //the state has no timeout
+        entry.armedOrdinal = definition.ordinalBase + ordinal;
+        entry.armedEvent = definition.timeoutEvents[ordinal];
+        entry.armedAt = changedAt;
+        long due = changedAt - origin;
+        due = delay > Long.MAX_VALUE - due ? Long.MAX_VALUE : due + delay;
+        entry.deadlineTick = -Math.floorDiv(-due, tickNanos); //rounded up, never early
+        _link(entry);
+    }
+
+    /**
+     * Puts the entry in the finest level whose current rotation holds its deadline, or in the expired batch if it is due
+     */
+    private void _link(Entry entry) {
+        long deadline = entry.deadlineTick;
+        if(deadline <= currentTick) {
+            expired.add(entry);
+            return;
+        }
+        long rotationEnd = ((currentTick >>> (WHEEL_BITS * LEVELS)) + 1 << (WHEEL_BITS * LEVELS)) - 1;
+        long placed = Math.min(deadline, rotationEnd); //beyond the wheel : placed at its end, then placed again
+        int level = 0;
+        while((placed >>> (WHEEL_BITS * (level + 1))) != (currentTick >>> (WHEEL_BITS * (level + 1)))) {
+            level++;
+        }
+        int slot = level << WHEEL_BITS | (int) (placed >>> (WHEEL_BITS * level)) & WHEEL_MASK;
+        Entry head = slots[slot];
+        entry.next = head;
+        entry.previous = null;
+        if(head != null)
+            head.previous = entry;
+        slots[slot] = entry;
+        entry.slot = slot;
+        levelCounts[level]++;
+        armedCount++;
+    }
+
+    private void _unlink(Entry entry) {
+        if(entry.previous == null) {
+            slots[entry.slot] = entry.next;
+        } else {
+            entry.previous.next = entry.next;
+        }
+        if(entry.next != null)
+            entry.next.previous = entry.previous;
+        levelCounts[entry.slot >>> WHEEL_BITS]--;
+        armedCount--;
+        entry.previous = null;
+        entry.next = null;
+        entry.slot = NOT_LINKED;
+    }
+
+    /**
+     * Empties a slot whose time has come : its entries move to a finer level, or to the expired batch
+     */
+    private void _relink(int level, int slot) {
+        int index = level << WHEEL_BITS | slot;
+        Entry entry = slots[index];
+        slots[index] = null;
+        while(entry != null) {
+            Entry next = entry.next;
+            levelCounts[level]--;
+            armedCount--;
+            entry.previous = null;
+            entry.next = null;
+            entry.slot = NOT_LINKED;
+            _link(entry);
+            entry = next;
+        }
+    }
+
+    private int _fireExpired() {
+        int fired = 0;
+        RuntimeException failure = null;
+        for(int i = 0; i < expired.size(); i++) {
+            Entry entry = expired.get(i);
+            if(entry.detached)
+                continue;
+            try {
+                if(entry.fsm.processTimeout(entry, entry.armedEvent, entry.armedOrdinal, entry.armedAt) != null)
+                    fired++;
+            } catch(RuntimeException e) {
+                if(failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        expired.clear();
+        _drainDirty(); //the timeout events may have entered states that time out too
+        if(failure != null)
+            throw failure;
+        return fired;
+    }
+
+    /**
+     * The timeout of one attached machine, linked in a slot of the wheel while armed
+     */
+    static final class Entry {
+        final TimingWheel wheel;
+        final FiniteStateMachine fsm;
+        volatile long changedAt; //time of the last transition taken, written by the threads processing events
+        volatile boolean detached = false;
+        int dirty = 0; //1 while pushed on the stack of the wheel, only accessed through DIRTY
+        Entry nextDirty;
+
+        /* only touched by the thread holding the monitor of the wheel */
+        Entry previous;
+        Entry next;
+        int slot = NOT_LINKED;
+        long deadlineTick;
+        int armedOrdinal; //as stored by the machine, see FiniteStateMachineDefinition.ordinalBase
+        Event armedEvent;
+        long armedAt;
+
+        Entry(TimingWheel wheel, FiniteStateMachine fsm) {
+            this.wheel = wheel;
+            this.fsm = fsm;
+        }
+
+        /**
+         * Called by the machine after each transition, in the monitor of the machine unless it is LOCK_FREE
+         */
+        void transitionTaken() {
+            changedAt = wheel.clock.nanoTime();
+            wheel._markDirty(this);
+        }
+    }
+}
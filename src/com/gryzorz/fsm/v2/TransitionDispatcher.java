@@ -0,0 +1,24 @@
+package com.gryzorz.fsm.v2;
+
+/**
+ * Finds the transition to follow in a compiled FiniteStateMachine.<br>
+ * TransitionTable is the generic implementation ; DispatcherGenerator writes a specialized one per
+ * definition when FiniteStateMachineBuilder.setDispatcherGenerationEnabled(true) was called.
+ * Both return exactly the same ordinals.
+ *
+ * @author Benoit Fernandez
+ */
+interface TransitionDispatcher {
+
+    /**
+     * @return the ordinal of the event, or TransitionTable.NO_TRANSITION if no transition reacts to this event
+     */
+    int eventOrdinal(Event event);
+
+    /**
+     * @param state the ordinal of the origin state
+     * @param event the ordinal of the event, may be TransitionTable.NO_TRANSITION
+     * @return the ordinal of the destination state, or TransitionTable.NO_TRANSITION
+     */
+    int nextState(int state, int event);
+}
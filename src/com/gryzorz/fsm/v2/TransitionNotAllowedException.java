@@ -1,5 +1,8 @@
 package com.gryzorz.fsm.v2;
 
+import java.util.Collections;
+import java.util.List;
+
 
 /**
  * @author Benoit Fernandez
@@ -7,9 +10,30 @@ package com.gryzorz.fsm.v2;
 public class TransitionNotAllowedException extends FiniteStateMachineException {
     public State from = null;
     public Event event = null;
+    /** the last events processed by the machine, this one included, if it is attached to a FiniteStateMachineFlightRecorder */
+    public List<FiniteStateMachineFlightRecorder.Record> history = Collections.emptyList();
     public TransitionNotAllowedException(State from, Event event) {
         super("There is no transition from state " + from + " reacting to event " + event);
         this.from = from;
         this.event = event;
     }
+
+    /**
+     * @param history the last events processed by the machine, oldest first, listed in the message
+     */
+    public TransitionNotAllowedException(State from, Event event, List<FiniteStateMachineFlightRecorder.Record> history) {
+        super(_message(from, event, history));
+        this.from = from;
+        this.event = event;
+        this.history = history;
+    }
+
+    private static String _message(State from, Event event, List<FiniteStateMachineFlightRecorder.Record> history) {
+        StringBuilder message = new StringBuilder("There is no transition from state ").append(from).append(" reacting to event ").append(event);
+        message.append(", last events processed :");
+        for(FiniteStateMachineFlightRecorder.Record record : history) {
+            message.append(System.lineSeparator()).append("  ").append(record);
+        }
+        return message.toString();
+    }
 }
@@ -0,0 +1,18 @@
+package com.gryzorz.fsm.v2;
+
+/**
+ * The 3 possible results of an event injected into a FiniteStateMachine,
+ * see FiniteStateMachineListener for details on each scenario.
+ * 
+ * @author Benoit Fernandez
+ */
+public enum TransitionOutcome {
+    /** the event produced a change from a state A to a state B */
+    STATE_CHANGED,
+    
+    /** the event produced a foreseen loop on the same state A */
+    STATE_LOOP,
+    
+    /** no transition reacts to the event from the current state, the state did not change */
+    UNEXISTING_TRANSITION
+}
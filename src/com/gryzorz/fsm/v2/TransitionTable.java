@@ -0,0 +1,147 @@
+package com.gryzorz.fsm.v2;
+
+import java.util.*;
+
+/**
+ * Frozen, read-only form of the transitions of a FiniteStateMachine.<br>
+ * Every State and every Event known by the machine receives a dense ordinal, starting from 0,
+ * in the order they were first seen (the initial state always gets ordinal 0).<br>
+ * The destination of each (state, event) couple is then stored in a single int array, so
+ * finding the transition to follow is a single array access, no matter how many events a
+ * state reacts to : <code>table[state * eventCount + event]</code><br>
+ * Once built, a TransitionTable never changes and can be shared by any number of threads.<br>
+ * It is also the generic TransitionDispatcher, used when no specialized one was generated.
+ *
+ * @author Benoit Fernandez
+ */
+final class TransitionTable implements TransitionDispatcher {
+    /** value stored in the table when no transition exists for a (state, event) couple */
+    static final int NO_TRANSITION = -1;
+
+    final State[] states;
+    final Event[] events;
+    final int eventCount;
+    final int[] table;
+    /** how the table was shrunk, null if it was not minimized */
+    final FiniteStateMachineMinimization minimization;
+
+    private final IdentityOrdinalMap stateOrdinals;
+    final IdentityOrdinalMap eventOrdinals;
+
+    TransitionTable(IdentityOrdinalMap stateOrdinals, State[] states, IdentityOrdinalMap eventOrdinals,
+                    Event[] events, int[] table, FiniteStateMachineMinimization minimization) {
+        this.stateOrdinals = stateOrdinals;
+        this.states = states;
+        this.eventOrdinals = eventOrdinals;
+        this.events = events;
+        this.eventCount = events.length;
+        this.table = table;
+        this.minimization = minimization;
+    }
+
+    /**
+     * Builds the table from the transitions registered in a FiniteStateMachine.
+     * @param stateMap the transitions, grouped by origin state
+     * @param initialState the initial state, which receives ordinal 0
+     */
+    static TransitionTable compile(Map<State, List<Transition>> stateMap, State initialState) {
+        int transitionCount = 0;
+        for(List<Transition> list : stateMap.values()) {
+            transitionCount += list.size();
+        }
+
+        //first pass : assign ordinals
+        IdentityOrdinalMap stateOrdinals = new IdentityOrdinalMap(1 + stateMap.size() + transitionCount);
+        IdentityOrdinalMap eventOrdinals = new IdentityOrdinalMap(transitionCount);
+        List<State> stateList = new ArrayList<State>();
+        List<Event> eventList = new ArrayList<Event>();
+        _register(stateOrdinals, stateList, initialState);
+        for(Map.Entry<State, List<Transition>> entry : stateMap.entrySet()) {
+            _register(stateOrdinals, stateList, entry.getKey());
+            for(Transition transition : entry.getValue()) {
+                _register(eventOrdinals, eventList, transition.getEvent());
+                _register(stateOrdinals, stateList, transition.getDestinationState());
+            }
+        }
+
+        //second pass : fill the table
+        int eventCount = eventList.size();
+        int[] table = new int[stateList.size() * eventCount];
+        Arrays.fill(table, NO_TRANSITION);
+        for(Map.Entry<State, List<Transition>> entry : stateMap.entrySet()) {
+            int from = stateOrdinals.get(entry.getKey());
+            for(Transition transition : entry.getValue()) {
+                int event = eventOrdinals.get(transition.getEvent());
+                table[from * eventCount + event] = stateOrdinals.get(transition.getDestinationState());
+            }
+        }
+
+        return new TransitionTable(stateOrdinals, stateList.toArray(new State[stateList.size()]),
+                                   eventOrdinals, eventList.toArray(new Event[eventList.size()]), table, null);
+    }
+
+    /**
+     * Builds the table, then removes its unreachable states and merges its equivalent states if asked to,
+     * see StateMinimizer.
+     * @param timeouts the timeouts of the states : only states having equal timeouts can be merged
+     */
+    static TransitionTable compile(Map<State, List<Transition>> stateMap, State initialState, boolean minimize,
+                                   Map<State, StateTimeout> timeouts) {
+        TransitionTable table = compile(stateMap, initialState);
+        return minimize ? minimize(table, timeouts) : table;
+    }
+
+    /**
+     * Removes the unreachable states of a table and merges its equivalent states, see StateMinimizer.
+     * @param timeouts the timeouts of the states : only states having equal timeouts can be merged
+     */
+    static TransitionTable minimize(TransitionTable table, Map<State, StateTimeout> timeouts) {
+        int[] stateClasses = null;
+        if(!timeouts.isEmpty()) {
+            stateClasses = new int[table.states.length];
+            Map<StateTimeout, Integer> classes = new HashMap<StateTimeout, Integer>();
+            for(Map.Entry<State, StateTimeout> entry : timeouts.entrySet()) {
+                int ordinal = table.stateOrdinal(entry.getKey());
+                if(ordinal == NO_TRANSITION)
+                    continue;
+                Integer stateClass = classes.get(entry.getValue());
+                if(stateClass == null) {
+                    stateClass = classes.size() + 1; //0 is the class of the states without timeout
+                    classes.put(entry.getValue(), stateClass);
+                }
+                stateClasses[ordinal] = stateClass;
+            }
+        }
+        return StateMinimizer.minimize(table, stateClasses);
+    }
+
+    private static <T> void _register(IdentityOrdinalMap ordinals, List<T> list, T element) {
+        if(ordinals.putIfAbsent(element) == list.size())
+            list.add(element);
+    }
+
+    /**
+     * @return the ordinal of the state, or NO_TRANSITION if the state is unknown to this table
+     */
+    int stateOrdinal(State state) {
+        return stateOrdinals.get(state);
+    }
+
+    /**
+     * @return the ordinal of the event, or NO_TRANSITION if no transition reacts to this event
+     */
+    public int eventOrdinal(Event event) {
+        return eventOrdinals.get(event);
+    }
+
+    /**
+     * @param state the ordinal of the origin state
+     * @param event the ordinal of the event, may be NO_TRANSITION
+     * @return the ordinal of the destination state, or NO_TRANSITION
+     */
+    public int nextState(int state, int event) {
+        if(event == NO_TRANSITION)
+            return NO_TRANSITION;
+        return table[state * eventCount + event];
+    }
+}
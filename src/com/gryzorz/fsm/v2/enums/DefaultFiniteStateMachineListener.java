@@ -0,0 +1,26 @@
+package com.gryzorz.fsm.v2.enums;
+
+/**
+ * Exists only to provide a default empty implementation of interface FiniteStateMachineListener,
+ * in case you can afford the luxury to inherit it !
+ * 
+ * @author Benoit Fernandez
+ */
+public abstract class DefaultFiniteStateMachineListener<S extends Enum<S>, E extends Enum<E>> implements FiniteStateMachineListener<S, E> {
+
+    public void eventOccurred(S from, E event, S to) {
+        
+    }
+
+    public void stateChanged(S from, E event, S to) {
+        
+    }
+
+    public void stateLoop(S state, E event) {
+        
+    }
+
+    public void unexistingTransition(S from, E event) {
+        
+    }
+}
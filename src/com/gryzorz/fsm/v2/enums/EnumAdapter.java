@@ -0,0 +1,142 @@
+package com.gryzorz.fsm.v2.enums;
+
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.State;
+
+/**
+ * Translates between enum constants and the State / Event objects of com.gryzorz.fsm.v2.<br>
+ * Each constant is given a single EnumState or EnumEvent, created once : as v2 matches states and
+ * events by identity, always get them from the same adapter, for example the one of your
+ * FiniteStateMachineBuilder.<br>
+ * <br>
+ * This lets an enum-typed graph use what only exists in v2 (definitions, fleets, journals, snapshots),
+ * through FiniteStateMachineBuilder.toFiniteStateMachineBuilder(), and typed listeners listen to v2
+ * machines, through toListener(...). Translating back never hashes : it reads the constant held by
+ * the EnumState or EnumEvent.
+ *
+ * @author Benoit Fernandez
+ */
+public final class EnumAdapter<S extends Enum<S>, E extends Enum<E>> {
+    private final Class<S> stateType;
+    private final Class<E> eventType;
+    private final EnumState<S>[] states; //by ordinal
+    private final EnumEvent<E>[] events; //by ordinal
+
+    @SuppressWarnings("unchecked")
+    public EnumAdapter(Class<S> stateType, Class<E> eventType) {
+        if(stateType == null || !stateType.isEnum())
+            throw new IllegalArgumentException("the state type must be an enum : " + stateType);
+        if(eventType == null || !eventType.isEnum())
+            throw new IllegalArgumentException("the event type must be an enum : " + eventType);
+        this.stateType = stateType;
+        this.eventType = eventType;
+        S[] stateValues = stateType.getEnumConstants();
+        states = (EnumState<S>[]) new EnumState<?>[stateValues.length];
+        for(int i = 0; i < stateValues.length; i++) {
+            states[i] = new EnumState<S>(stateValues[i]);
+        }
+        E[] eventValues = eventType.getEnumConstants();
+        events = (EnumEvent<E>[]) new EnumEvent<?>[eventValues.length];
+        for(int i = 0; i < eventValues.length; i++) {
+            events[i] = new EnumEvent<E>(eventValues[i]);
+        }
+    }
+
+    public Class<S> getStateType() {
+        return stateType;
+    }
+
+    public Class<E> getEventType() {
+        return eventType;
+    }
+
+    /**
+     * @return the State standing for the constant, always the same one, or null if the constant is null
+     */
+    public EnumState<S> toState(S state) {
+        return state == null ? null : states[state.ordinal()];
+    }
+
+    /**
+     * @return the Event standing for the constant, always the same one, or null if the constant is null
+     */
+    public EnumEvent<E> toEvent(E event) {
+        return event == null ? null : events[event.ordinal()];
+    }
+
+    /**
+     * @return the constant the state stands for, or null if the state was not created by this adapter
+     */
+    public S fromState(State state) {
+        if(!(state instanceof EnumState))
+            return null;
+        Enum<?> value = ((EnumState<?>) state).getValue();
+        if(value.getDeclaringClass() != stateType || states[value.ordinal()] != state)
+            return null;
+        return stateType.cast(value);
+    }
+
+    /**
+     * @return the constant the event stands for, or null if the event was not created by this adapter
+     */
+    public E fromEvent(Event event) {
+        if(!(event instanceof EnumEvent))
+            return null;
+        Enum<?> value = ((EnumEvent<?>) event).getValue();
+        if(value.getDeclaringClass() != eventType || events[value.ordinal()] != event)
+            return null;
+        return eventType.cast(value);
+    }
+
+    /**
+     * Wraps a typed listener, so that it can be added to a v2 FiniteStateMachine built from the
+     * states and events of this adapter.
+     * @param listener the typed listener
+     * @return the v2 listener to add to the machine
+     */
+    public com.gryzorz.fsm.v2.FiniteStateMachineListener toListener(final FiniteStateMachineListener<S, E> listener) {
+        return new com.gryzorz.fsm.v2.FiniteStateMachineListener() {
+            public void eventOccurred(State from, Event event, State to) {
+                listener.eventOccurred(fromState(from), fromEvent(event), fromState(to));
+            }
+
+            public void stateChanged(State from, Event event, State to) {
+                listener.stateChanged(fromState(from), fromEvent(event), fromState(to));
+            }
+
+            public void stateLoop(State state, Event event) {
+                listener.stateLoop(fromState(state), fromEvent(event));
+            }
+
+            public void unexistingTransition(State from, Event event) {
+                listener.unexistingTransition(fromState(from), fromEvent(event));
+            }
+        };
+    }
+
+    /**
+     * Wraps a v2 listener, so that it can be added to a typed FiniteStateMachine : it receives the
+     * states and events of this adapter.
+     * @param listener the v2 listener
+     * @return the typed listener to add to the machine
+     */
+    public FiniteStateMachineListener<S, E> fromListener(final com.gryzorz.fsm.v2.FiniteStateMachineListener listener) {
+        return new FiniteStateMachineListener<S, E>() {
+            public void eventOccurred(S from, E event, S to) {
+                listener.eventOccurred(toState(from), toEvent(event), toState(to));
+            }
+
+            public void stateChanged(S from, E event, S to) {
+                listener.stateChanged(toState(from), toEvent(event), toState(to));
+            }
+
+            public void stateLoop(S state, E event) {
+                listener.stateLoop(toState(state), toEvent(event));
+            }
+
+            public void unexistingTransition(S from, E event) {
+                listener.unexistingTransition(toState(from), toEvent(event));
+            }
+        };
+    }
+}
@@ -0,0 +1,25 @@
+package com.gryzorz.fsm.v2.enums;
+
+import com.gryzorz.fsm.v2.Event;
+
+/**
+ * The Event standing for an enum constant, so that enum-typed graphs can be used with the
+ * State / Event API of com.gryzorz.fsm.v2 : see EnumAdapter.
+ * 
+ * @author Benoit Fernandez
+ */
+public final class EnumEvent<E extends Enum<E>> extends Event {
+    private final E value;
+    
+    EnumEvent(E value) {
+        super(value.name());
+        this.value = value;
+    }
+    
+    /**
+     * @return the enum constant this event stands for
+     */
+    public E getValue() {
+        return value;
+    }
+}
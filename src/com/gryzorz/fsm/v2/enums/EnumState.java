@@ -0,0 +1,25 @@
+package com.gryzorz.fsm.v2.enums;
+
+import com.gryzorz.fsm.v2.State;
+
+/**
+ * The State standing for an enum constant, so that enum-typed graphs can be used with the
+ * State / Event API of com.gryzorz.fsm.v2 : see EnumAdapter.
+ * 
+ * @author Benoit Fernandez
+ */
+public final class EnumState<S extends Enum<S>> extends State {
+    private final S value;
+    
+    EnumState(S value) {
+        super(value.name());
+        this.value = value;
+    }
+    
+    /**
+     * @return the enum constant this state stands for
+     */
+    public S getValue() {
+        return value;
+    }
+}
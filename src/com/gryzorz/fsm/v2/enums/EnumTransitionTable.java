@@ -0,0 +1,48 @@
+package com.gryzorz.fsm.v2.enums;
+
+import java.util.EnumSet;
+
+import com.gryzorz.fsm.v2.ConcurrencyMode;
+
+/**
+ * The frozen transitions shared by the FiniteStateMachine instances created by a FiniteStateMachineBuilder.<br>
+ * States and events are their own ordinals : table[state.ordinal() * eventCount + event.ordinal()] is
+ * the ordinal of the destination state, or NO_TRANSITION.
+ *
+ * @author Benoit Fernandez
+ */
+final class EnumTransitionTable<S extends Enum<S>, E extends Enum<E>> {
+    static final int NO_TRANSITION = -1;
+
+    final S[] states; //by ordinal
+    final int eventCount;
+    final int[] table;
+    final EnumSet<E>[] acceptedEvents; //by state ordinal, never modified
+    final EnumAdapter<S, E> adapter;
+    final ConcurrencyMode concurrencyMode;
+
+    @SuppressWarnings("unchecked")
+    EnumTransitionTable(EnumAdapter<S, E> adapter, int[] table, ConcurrencyMode concurrencyMode) {
+        this.adapter = adapter;
+        this.states = adapter.getStateType().getEnumConstants();
+        E[] events = adapter.getEventType().getEnumConstants();
+        this.eventCount = events.length;
+        this.table = table;
+        this.concurrencyMode = concurrencyMode;
+        acceptedEvents = (EnumSet<E>[]) new EnumSet<?>[states.length];
+        for(int s = 0; s < states.length; s++) {
+            acceptedEvents[s] = EnumSet.noneOf(adapter.getEventType());
+            for(int e = 0; e < eventCount; e++) {
+                if(table[s * eventCount + e] != NO_TRANSITION)
+                    acceptedEvents[s].add(events[e]);
+            }
+        }
+    }
+
+    /**
+     * @return the ordinal of the destination state, or NO_TRANSITION, also for a null event
+     */
+    int nextState(int state, E event) {
+        return event == null ? NO_TRANSITION : table[state * eventCount + event.ordinal()];
+    }
+}
@@ -0,0 +1,233 @@
+package com.gryzorz.fsm.v2.enums;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import com.gryzorz.fsm.v2.ConcurrencyMode;
+import com.gryzorz.fsm.v2.TransitionNotAllowedException;
+import com.gryzorz.fsm.v2.TransitionOutcome;
+
+/**
+ * A finite state machine whose states and events are the constants of two enums.<br>
+ * See FiniteStateMachineBuilder to build one. It behaves exactly like a compiled
+ * com.gryzorz.fsm.v2.FiniteStateMachine : same outcomes, same notifications in the same order,
+ * same ConcurrencyMode guarantees. It only differs in how it finds the transition to follow :
+ * the ordinals of the current state and of the event index a shared array, with no hashing,
+ * no boxing and no cast.<br>
+ * <br>
+ * processEvent(...) throws the v2 TransitionNotAllowedException, holding the State and Event standing
+ * for the constants, see EnumAdapter.
+ *
+ * @author Benoit Fernandez
+ */
+public class FiniteStateMachine<S extends Enum<S>, E extends Enum<E>> {
+    private static final VarHandle CURRENT_ORDINAL;
+    private static final VarHandle LISTENERS;
+    static {
+        try {
+            CURRENT_ORDINAL = MethodHandles.lookup().findVarHandle(FiniteStateMachine.class, "currentOrdinal", int.class);
+            LISTENERS = MethodHandles.lookup().findVarHandle(FiniteStateMachine.class, "listeners", FiniteStateMachineListener[].class);
+        } catch(ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final EnumTransitionTable<S, E> table;
+    private int currentOrdinal; //written with release semantics, read with acquire semantics
+
+    FiniteStateMachine(EnumTransitionTable<S, E> table, int initialOrdinal) {
+        this.table = table;
+        this.currentOrdinal = initialOrdinal;
+    }
+
+
+    /**************************************************************************
+     *                           public methods                               *
+     *************************************************************************/
+
+
+    /**
+     * Use this method to notify the state machine of the events happening.
+     * @param event the event that happened
+     * @throws TransitionNotAllowedException the exception thrown in case no transition exist
+     * from the current state reacting to the event.
+     */
+    public void processEvent(E event) throws TransitionNotAllowedException {
+        if(processEventWithOutcome(event) == TransitionOutcome.UNEXISTING_TRANSITION) {
+            throw new TransitionNotAllowedException(table.adapter.toState(getState()), table.adapter.toEvent(event));
+        }
+    }
+
+    /**
+     * This method acts the same as processEvent(...) but without notification of an
+     * unsupported transition.
+     * @param event the event that happened
+     */
+    public void processEventWithoutErrorNotification(E event) {
+        processEventWithOutcome(event);
+    }
+
+    /**
+     * This method acts the same as processEvent(...), but returns the outcome of the event instead
+     * of throwing an exception when the transition is not allowed. It never allocates.
+     * @param event the event that happened
+     * @return what the event produced : a state change, a state loop, or nothing if no transition
+     * exist from the current state reacting to the event
+     */
+    public TransitionOutcome processEventWithOutcome(E event) {
+        if(table.concurrencyMode == ConcurrencyMode.LOCK_FREE)
+            return _processEventLockFree(event);
+
+        synchronized (this) {
+            return _processEventLocked(event);
+        }
+    }
+
+    private TransitionOutcome _processEventLocked(E event) {
+        int from = currentOrdinal;
+        int next = table.nextState(from, event);
+        if(next == EnumTransitionTable.NO_TRANSITION) {
+            _notifyUnexistingTransition(table.states[from], event);
+            return TransitionOutcome.UNEXISTING_TRANSITION;
+        }
+        CURRENT_ORDINAL.setRelease(this, next);
+        if(next != from) { //state change
+            _notifyStateChanged(table.states[from], event, table.states[next]);
+            return TransitionOutcome.STATE_CHANGED;
+        }
+        _notifyStateLoop(table.states[next], event); //state loop
+        return TransitionOutcome.STATE_LOOP;
+    }
+
+    /**
+     * See ConcurrencyMode.LOCK_FREE : the transition is committed with a compare-and-set on
+     * currentOrdinal, then the listeners are notified without any lock held.
+     */
+    private TransitionOutcome _processEventLockFree(E event) {
+        int from;
+        int next;
+        do {
+            from = (int) CURRENT_ORDINAL.getAcquire(this);
+            next = table.nextState(from, event);
+            if(next == EnumTransitionTable.NO_TRANSITION) {
+                _notifyUnexistingTransition(table.states[from], event);
+                return TransitionOutcome.UNEXISTING_TRANSITION;
+            }
+        } while(next != from && !CURRENT_ORDINAL.compareAndSet(this, from, next));
+
+        if(next != from) { //state change
+            _notifyStateChanged(table.states[from], event, table.states[next]);
+            return TransitionOutcome.STATE_CHANGED;
+        }
+        _notifyStateLoop(table.states[next], event); //state loop
+        return TransitionOutcome.STATE_LOOP;
+    }
+
+    /**
+     * This method can be used to know preventively if there is a transition existing from the
+     * current state reacting to the event given in parameters.<br>
+     * The same warnings as com.gryzorz.fsm.v2.FiniteStateMachine.isTransitionExisting(...) apply :
+     * it is provided for graphic purpose only.
+     * @param event the event to be tested
+     * @return true if a transition exist
+     */
+    public boolean isTransitionExisting(E event) {
+        return table.nextState((int) CURRENT_ORDINAL.getAcquire(this), event) != EnumTransitionTable.NO_TRANSITION;
+    }
+
+    /**
+     * @return the events a transition reacts to from the current state, in a new set the caller may modify
+     */
+    public EnumSet<E> getAcceptedEvents() {
+        return table.acceptedEvents[(int) CURRENT_ORDINAL.getAcquire(this)].clone();
+    }
+
+    /**
+     * Retrieves the currentState of the state machine
+     * @return the current state
+     */
+    public S getState() {
+        return table.states[(int) CURRENT_ORDINAL.getAcquire(this)];
+    }
+
+    /**
+     * @return the adapter giving the State and Event standing for each constant
+     */
+    public EnumAdapter<S, E> getAdapter() {
+        return table.adapter;
+    }
+
+
+    /**************************************************************************
+     *                           listeners part                               *
+     *************************************************************************/
+    /* copy-on-write : replaced as a whole by each change, so listeners can be added and removed while events are notified */
+    private volatile FiniteStateMachineListener<S, E>[] listeners = null; //created with the first listener
+
+    @SuppressWarnings("unchecked")
+    public void addListener(FiniteStateMachineListener<S, E> listener) {
+        FiniteStateMachineListener<S, E>[] before;
+        FiniteStateMachineListener<S, E>[] after;
+        do {
+            before = listeners;
+            after = before == null ? (FiniteStateMachineListener<S, E>[]) new FiniteStateMachineListener<?, ?>[1] : Arrays.copyOf(before, before.length + 1);
+            after[after.length - 1] = listener;
+        } while(!LISTENERS.compareAndSet(this, before, after));
+    }
+
+    /**
+     * Removes the first registration of the listener.
+     */
+    @SuppressWarnings("unchecked")
+    public void removeListener(FiniteStateMachineListener<S, E> listener) {
+        FiniteStateMachineListener<S, E>[] before;
+        FiniteStateMachineListener<S, E>[] after;
+        do {
+            before = listeners;
+            int index = before == null ? -1 : Arrays.asList(before).indexOf(listener);
+            if(index < 0)
+                return;
+            after = null;
+            if(before.length > 1) {
+                after = (FiniteStateMachineListener<S, E>[]) new FiniteStateMachineListener<?, ?>[before.length - 1];
+                System.arraycopy(before, 0, after, 0, index);
+                System.arraycopy(before, index + 1, after, index, after.length - index);
+            }
+        } while(!LISTENERS.compareAndSet(this, before, after));
+    }
+
+    private void _notifyStateChanged(S from, E event, S to) {
+        FiniteStateMachineListener<S, E>[] listeners = this.listeners;
+        if(listeners == null)
+            return;
+        for(int i = 0; i < listeners.length; i++) { //no iterator, notifying must not allocate
+            FiniteStateMachineListener<S, E> listener = listeners[i];
+            listener.eventOccurred(from, event, to);
+            listener.stateChanged(from, event, to);
+        }
+    }
+
+    private void _notifyStateLoop(S state, E event) {
+        FiniteStateMachineListener<S, E>[] listeners = this.listeners;
+        if(listeners == null)
+            return;
+        for(int i = 0; i < listeners.length; i++) {
+            FiniteStateMachineListener<S, E> listener = listeners[i];
+            listener.eventOccurred(state, event, state);
+            listener.stateLoop(state, event);
+        }
+    }
+
+    private void _notifyUnexistingTransition(S from, E event) {
+        FiniteStateMachineListener<S, E>[] listeners = this.listeners;
+        if(listeners == null)
+            return;
+        for(int i = 0; i < listeners.length; i++) {
+            FiniteStateMachineListener<S, E> listener = listeners[i];
+            listener.eventOccurred(from, event, null);
+            listener.unexistingTransition(from, event);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.gryzorz.fsm.v2.enums;
+
+import java.util.Arrays;
+
+import com.gryzorz.fsm.v2.ConcurrencyMode;
+import com.gryzorz.fsm.v2.FiniteStateMachineException;
+import com.gryzorz.fsm.v2.TransitionAlreadyExistException;
+
+/**
+ * This class handles the creation of an enum-typed FiniteStateMachine, the same way
+ * com.gryzorz.fsm.v2.FiniteStateMachineBuilder does for State and Event objects :<br>
+ * 1) declare your states and your events as two enums<br>
+ * 2) instanciate a FiniteStateMachineBuilder with the two enum classes<br>
+ * 3) use method addTransition(...) as often as you need to build the correct transitions according to your drawing<br>
+ * 4) use method createFSM(...) specifying the initial state to retrieve the instance of your state machine<br>
+ * <br>
+ * Transitions are stored in an array indexed by the ordinals of the constants, so no transition is ever
+ * hashed. The machines created by createFSM(...) share a frozen copy of that array until a transition
+ * is added : transitions added afterwards are only part of the machines created next.<br>
+ * To use what only exists for State and Event objects, such as definitions and fleets, see
+ * toFiniteStateMachineBuilder().
+ *
+ * @author Benoit Fernandez
+ */
+public class FiniteStateMachineBuilder<S extends Enum<S>, E extends Enum<E>> {
+    private final EnumAdapter<S, E> adapter;
+    private final int eventCount;
+    private final int[] table;
+    private EnumTransitionTable<S, E> frozenTable = null; //shared by the machines created since the last change
+    private ConcurrencyMode concurrencyMode = ConcurrencyMode.LOCKED;
+
+    /**
+     * @param stateType the enum whose constants are the states
+     * @param eventType the enum whose constants are the events
+     */
+    public FiniteStateMachineBuilder(Class<S> stateType, Class<E> eventType) {
+        adapter = new EnumAdapter<S, E>(stateType, eventType);
+        eventCount = eventType.getEnumConstants().length;
+        table = new int[stateType.getEnumConstants().length * eventCount];
+        Arrays.fill(table, EnumTransitionTable.NO_TRANSITION);
+    }
+
+    public synchronized void addTransition(S from, E event, S to) throws FiniteStateMachineException {
+        if(from == null)
+            throw new FiniteStateMachineException("addTransition : cannot add a transition with a null origin state");
+        if(event == null)
+            throw new FiniteStateMachineException("addTransition : cannot add a transition with a null event");
+        if(to == null)
+            throw new FiniteStateMachineException("addTransition : cannot add a transition with a null destination state");
+        
+        int index = from.ordinal() * eventCount + event.ordinal();
+        if(table[index] != EnumTransitionTable.NO_TRANSITION)
+            throw new TransitionAlreadyExistException(adapter.toState(from), adapter.toEvent(event));
+        table[index] = to.ordinal();
+        frozenTable = null;
+    }
+
+    /**
+     * Chooses how the machines created afterwards by this builder protect their current state against
+     * concurrent events, see ConcurrencyMode.
+     * @param concurrencyMode the mode, LOCKED by default
+     * @throws FiniteStateMachineException if the mode is null
+     */
+    public synchronized void setConcurrencyMode(ConcurrencyMode concurrencyMode) throws FiniteStateMachineException {
+        if(concurrencyMode == null)
+            throw new FiniteStateMachineException("setConcurrencyMode : the concurrency mode cannot be null");
+        if(concurrencyMode != this.concurrencyMode)
+            frozenTable = null;
+        this.concurrencyMode = concurrencyMode;
+    }
+
+    /**
+     * @return the adapter giving the State and Event standing for each constant, shared by all the
+     * machines of this builder
+     */
+    public EnumAdapter<S, E> getAdapter() {
+        return adapter;
+    }
+
+    public synchronized FiniteStateMachine<S, E> createFSM(S initialState) throws FiniteStateMachineException {
+        if(initialState == null)
+            throw new FiniteStateMachineException("Cannot create a FiniteStateMachine without an initial State");
+        
+        if(frozenTable == null)
+            frozenTable = new EnumTransitionTable<S, E>(adapter, table.clone(), concurrencyMode);
+        return new FiniteStateMachine<S, E>(frozenTable, initialState.ordinal());
+    }
+
+    /**
+     * Creates a com.gryzorz.fsm.v2.FiniteStateMachineBuilder holding the transitions registered so far,
+     * between the State and Event objects of getAdapter(), with the same concurrency mode.<br>
+     * Transitions are added by state ordinal, then by event ordinal.
+     * @return the new builder, which does not follow the transitions added to this one afterwards
+     */
+    public synchronized com.gryzorz.fsm.v2.FiniteStateMachineBuilder toFiniteStateMachineBuilder() {
+        S[] states = adapter.getStateType().getEnumConstants();
+        E[] events = adapter.getEventType().getEnumConstants();
+        com.gryzorz.fsm.v2.FiniteStateMachineBuilder builder = new com.gryzorz.fsm.v2.FiniteStateMachineBuilder();
+        try {
+            builder.setConcurrencyMode(concurrencyMode);
+            for(int s = 0; s < states.length; s++) {
+                for(int e = 0; e < eventCount; e++) {
+                    int to = table[s * eventCount + e];
+                    if(to != EnumTransitionTable.NO_TRANSITION)
+                        builder.addTransition(adapter.toState(states[s]), adapter.toEvent(events[e]), adapter.toState(states[to]));
+                }
+            }
+        } catch(FiniteStateMachineException e) { //each transition was already validated by addTransition(...)
+            throw new IllegalStateException(e.getMessage());
+        }
+        return builder;
+    }
+}
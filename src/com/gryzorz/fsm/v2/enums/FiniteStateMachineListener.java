@@ -0,0 +1,44 @@
+package com.gryzorz.fsm.v2.enums;
+
+/**
+ * The enum-typed counterpart of com.gryzorz.fsm.v2.FiniteStateMachineListener : it is called
+ * in exactly the same order and the same situations, see that interface for the details.<br>
+ * When an event occurs, there are 3 different scenarios possible :<br>
+ * 1) the event produces a state change from state A to state B<br>
+ * 2) the event produces a loop on the same state A<br>
+ * 3) the even is not planned to happen while in current state<br>
+ * 
+ * @author Benoit Fernandez
+ */
+public interface FiniteStateMachineListener<S extends Enum<S>, E extends Enum<E>> {
+
+    /**
+     * Called each time an event is triggered, prior to the other 3 methods.
+     * @param from the state of the FiniteStateMachine when the event occurs
+     * @param event the event that occurs
+     * @param to the new state, the same as "from" for a loop, or null if no transition reacts to the event
+     */
+    void eventOccurred(S from, E event, S to);
+
+    /**
+     * Called only if the event produced a change of state that is not a loop.
+     * @param from the state before the event occurred
+     * @param event the event that occurred
+     * @param to the state after the event occurred
+     */
+    void stateChanged(S from, E event, S to);
+    
+    /**
+     * Called only if the event produced a loop that was foreseen.
+     * @param state the state before and after the event occurred
+     * @param event the event that occurred
+     */
+    void stateLoop(S state, E event);
+    
+    /**
+     * Called only if no transition starting from the current state reacts to the event.
+     * @param from the state of the state machine when the event occurred (and after it occurred)
+     * @param event the event that occurred
+     */
+    void unexistingTransition(S from, E event);
+}
@@ -0,0 +1,29 @@
+package com.gryzorz.fsm.v2.nfa;
+
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.State;
+
+/**
+ * Exists only to provide a default empty implementation of interface FiniteStateMachineListener,
+ * in case you can afford the luxury to inherit it !
+ * 
+ * @author Benoit Fernandez
+ */
+public abstract class DefaultFiniteStateMachineListener implements FiniteStateMachineListener {
+
+    public void eventOccurred(Event event) {
+        
+    }
+
+    public void stateExited(State state, Event event) {
+        
+    }
+
+    public void stateEntered(State state, Event event) {
+        
+    }
+
+    public void unexistingTransition(Event event) {
+        
+    }
+}
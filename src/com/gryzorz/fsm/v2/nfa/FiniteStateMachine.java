@@ -0,0 +1,240 @@
+package com.gryzorz.fsm.v2.nfa;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.State;
+import com.gryzorz.fsm.v2.TransitionNotAllowedException;
+import com.gryzorz.fsm.v2.TransitionOutcome;
+
+/**
+ * A nondeterministic finite state machine : it is in a set of states at once, its active states.<br>
+ * See FiniteStateMachineBuilder to build one. An event leads each active state reacting to it to all the
+ * states its transitions on this event reach, and to the states their epsilon transitions reach. The active
+ * states not reacting to the event are left. If no active state reacts to it, nothing changes, and the outcome
+ * is an unexisting transition, as for a deterministic machine.<br>
+ * <br>
+ * The active states are a bitset, and so is the set of states each (state, event) couple leads to, closed over
+ * epsilon transitions when the table is frozen : processing an event ORs one precomputed set per active state
+ * reacting to it, 64 states per instruction, and looks at no state that is not active. It never allocates.<br>
+ * <br>
+ * Events are processed holding the monitor of the machine, as in ConcurrencyMode.LOCKED, and so are the
+ * active states read. processEvent(...) throws a TransitionNotAllowedException whose from state is null,
+ * the machine being in several states at once.
+ *
+ * @author Benoit Fernandez
+ */
+public class FiniteStateMachine {
+    private static final VarHandle LISTENERS;
+    static {
+        try {
+            LISTENERS = MethodHandles.lookup().findVarHandle(FiniteStateMachine.class, "listeners", FiniteStateMachineListener[].class);
+        } catch(ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final NondeterministicTransitionTable table;
+    /* guarded by the monitor of the machine : the next active states are computed in spare, then the two are swapped.
+       spare is null while the states exited and entered are notified */
+    private long[] active;
+    private long[] spare;
+
+    FiniteStateMachine(NondeterministicTransitionTable table, long[] active) {
+        this.table = table;
+        this.active = active;
+        this.spare = new long[active.length];
+    }
+
+
+    /**************************************************************************
+     *                           public methods                               *
+     *************************************************************************/
+
+
+    /**
+     * Use this method to notify the state machine of the events happening.
+     * @param event the event that happened
+     * @throws TransitionNotAllowedException the exception thrown in case no active state
+     * reacts to the event.
+     */
+    public void processEvent(Event event) throws TransitionNotAllowedException {
+        if(processEventWithOutcome(event) == TransitionOutcome.UNEXISTING_TRANSITION) {
+            throw new TransitionNotAllowedException(null, event);
+        }
+    }
+
+    /**
+     * This method acts the same as processEvent(...) but without notification of an
+     * unsupported transition.
+     * @param event the event that happened
+     */
+    public void processEventWithoutErrorNotification(Event event) {
+        processEventWithOutcome(event);
+    }
+
+    /**
+     * This method acts the same as processEvent(...), but returns the outcome of the event instead
+     * of throwing an exception when no active state reacts to it.
+     * @param event the event that happened
+     * @return STATE_CHANGED if the active states changed, STATE_LOOP if the same states are active again,
+     * UNEXISTING_TRANSITION if no active state reacts to the event
+     */
+    public synchronized TransitionOutcome processEventWithOutcome(Event event) {
+        long[] before = active;
+        long[] after = spare;
+        if(after == null) //a listener processing an event while the previous states are notified
+            after = new long[before.length];
+        if(!table.step(before, table.eventOrdinal(event), after)) {
+            _notifyUnexistingTransition(event);
+            return TransitionOutcome.UNEXISTING_TRANSITION;
+        }
+        active = after;
+        spare = null;
+        if(Arrays.equals(before, after)) {
+            spare = before;
+            _notifyEventOccurred(event);
+            return TransitionOutcome.STATE_LOOP;
+        }
+        _notifyStatesChanged(before, after, event);
+        spare = before;
+        return TransitionOutcome.STATE_CHANGED;
+    }
+
+    /**
+     * This method can be used to know preventively if an active state reacts to the event given in parameters.<br>
+     * The same warnings as com.gryzorz.fsm.v2.FiniteStateMachine.isTransitionExisting(...) apply :
+     * it is provided for graphic purpose only.
+     * @param event the event to be tested
+     * @return true if a transition exist
+     */
+    public synchronized boolean isTransitionExisting(Event event) {
+        int ordinal = table.eventOrdinal(event);
+        if(ordinal == NondeterministicTransitionTable.NO_TRANSITION)
+            return false;
+        for(int w = 0; w < table.words; w++) {
+            if((active[w] & table.reacting[ordinal * table.words + w]) != 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the state is one of the active states
+     */
+    public synchronized boolean isActive(State state) {
+        Integer ordinal = table.stateOrdinals.get(state);
+        return ordinal != null && (active[ordinal >>> 6] & (1L << ordinal)) != 0;
+    }
+
+    /**
+     * @return the active states, in the order of their ordinals, in a new set the caller may modify
+     */
+    public synchronized Set<State> getActiveStates() {
+        Set<State> states = new LinkedHashSet<State>();
+        for(int w = 0; w < active.length; w++) {
+            long bits = active[w];
+            while(bits != 0) {
+                states.add(table.states[(w << 6) | Long.numberOfTrailingZeros(bits)]);
+                bits &= bits - 1;
+            }
+        }
+        return states;
+    }
+
+    /**
+     * @return the number of active states
+     */
+    public synchronized int getActiveCount() {
+        int count = 0;
+        for(int w = 0; w < active.length; w++) {
+            count += Long.bitCount(active[w]);
+        }
+        return count;
+    }
+
+
+    /**************************************************************************
+     *                           listeners part                               *
+     *************************************************************************/
+    /* copy-on-write : replaced as a whole by each change, so listeners can be added and removed while events are notified */
+    private volatile FiniteStateMachineListener[] listeners = null; //created with the first listener
+
+    public void addListener(FiniteStateMachineListener listener) {
+        FiniteStateMachineListener[] before;
+        FiniteStateMachineListener[] after;
+        do {
+            before = listeners;
+            after = before == null ? new FiniteStateMachineListener[1] : Arrays.copyOf(before, before.length + 1);
+            after[after.length - 1] = listener;
+        } while(!LISTENERS.compareAndSet(this, before, after));
+    }
+
+    /**
+     * Removes the first registration of the listener.
+     */
+    public void removeListener(FiniteStateMachineListener listener) {
+        FiniteStateMachineListener[] before;
+        FiniteStateMachineListener[] after;
+        do {
+            before = listeners;
+            int index = before == null ? -1 : Arrays.asList(before).indexOf(listener);
+            if(index < 0)
+                return;
+            after = null;
+            if(before.length > 1) {
+                after = new FiniteStateMachineListener[before.length - 1];
+                System.arraycopy(before, 0, after, 0, index);
+                System.arraycopy(before, index + 1, after, index, after.length - index);
+            }
+        } while(!LISTENERS.compareAndSet(this, before, after));
+    }
+
+    private void _notifyEventOccurred(Event event) {
+        FiniteStateMachineListener[] listeners = this.listeners;
+        if(listeners == null)
+            return;
+        for(int i = 0; i < listeners.length; i++) { //no iterator, notifying must not allocate
+            listeners[i].eventOccurred(event);
+        }
+    }
+
+    private void _notifyStatesChanged(long[] before, long[] after, Event event) {
+        FiniteStateMachineListener[] listeners = this.listeners;
+        if(listeners == null)
+            return;
+        for(int i = 0; i < listeners.length; i++) {
+            FiniteStateMachineListener listener = listeners[i];
+            listener.eventOccurred(event);
+            for(int w = 0; w < before.length; w++) {
+                long bits = before[w] & ~after[w];
+                while(bits != 0) {
+                    listener.stateExited(table.states[(w << 6) | Long.numberOfTrailingZeros(bits)], event);
+                    bits &= bits - 1;
+                }
+            }
+            for(int w = 0; w < after.length; w++) {
+                long bits = after[w] & ~before[w];
+                while(bits != 0) {
+                    listener.stateEntered(table.states[(w << 6) | Long.numberOfTrailingZeros(bits)], event);
+                    bits &= bits - 1;
+                }
+            }
+        }
+    }
+
+    private void _notifyUnexistingTransition(Event event) {
+        FiniteStateMachineListener[] listeners = this.listeners;
+        if(listeners == null)
+            return;
+        for(int i = 0; i < listeners.length; i++) {
+            FiniteStateMachineListener listener = listeners[i];
+            listener.eventOccurred(event);
+            listener.unexistingTransition(event);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.gryzorz.fsm.v2.nfa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.FiniteStateMachineException;
+import com.gryzorz.fsm.v2.State;
+import com.gryzorz.fsm.v2.TransitionAlreadyExistException;
+
+/**
+ * This class handles the creation of a nondeterministic FiniteStateMachine, the same way
+ * com.gryzorz.fsm.v2.FiniteStateMachineBuilder does for deterministic ones :<br>
+ * 1) instanciate a FiniteStateMachineBuilder<br>
+ * 2) use method addTransition(...) as often as you need : unlike the deterministic builder, a state may have
+ * any number of transitions on the same event, to different states<br>
+ * 3) use method addEpsilonTransition(...) for the states that are entered along with another one, without any event<br>
+ * 4) use method createFSM(...) specifying the initial states to retrieve the instance of your state machine<br>
+ * <br>
+ * Rule sets no longer need to be determinized first : the machine stays as small as the rules, where the equivalent
+ * deterministic machine may need a state for every combination of them.<br>
+ * States and events receive dense ordinals, in the order they are first seen. The machines created by createFSM(...)
+ * share a frozen table until a transition is added : transitions added afterwards are only part of the machines
+ * created next. The table holds a set of words longs for each (state, event) couple having transitions, words being
+ * the number of states divided by 64, rounded up.
+ *
+ * @author Benoit Fernandez
+ */
+public class FiniteStateMachineBuilder {
+    private final Map<State, Integer> stateOrdinals = new IdentityHashMap<State, Integer>();
+    private final List<State> states = new ArrayList<State>();
+    private final Map<Event, Integer> eventOrdinals = new IdentityHashMap<Event, Integer>();
+    private final List<Event> events = new ArrayList<Event>();
+    private final Map<Long, BitSet> targets = new HashMap<Long, BitSet>(); //by (from << 32 | event)
+    private final Map<Integer, BitSet> epsilonTargets = new HashMap<Integer, BitSet>(); //by from
+    private NondeterministicTransitionTable frozenTable = null; //shared by the machines created since the last change
+
+    public FiniteStateMachineBuilder() {
+    }
+
+    /**
+     * Adds a transition : in state from, the event also leads to state to.
+     * @throws TransitionAlreadyExistException if this very transition was already added
+     */
+    public synchronized void addTransition(State from, Event event, State to) throws FiniteStateMachineException {
+        if(from == null)
+            throw new FiniteStateMachineException("addTransition : cannot add a transition with a null origin state");
+        if(event == null)
+            throw new FiniteStateMachineException("addTransition : cannot add a transition with a null event");
+        if(to == null)
+            throw new FiniteStateMachineException("addTransition : cannot add a transition with a null destination state");
+
+        Long key = ((long) _stateOrdinal(from) << 32) | _eventOrdinal(event);
+        BitSet set = targets.get(key);
+        if(set == null) {
+            set = new BitSet();
+            targets.put(key, set);
+        }
+        int ordinal = _stateOrdinal(to);
+        if(set.get(ordinal))
+            throw new TransitionAlreadyExistException(from, event);
+        set.set(ordinal);
+        frozenTable = null;
+    }
+
+    /**
+     * Adds an epsilon transition : each time state from becomes active, state to becomes active as well, and so do the
+     * states reached from it by epsilon transitions. Listeners are told about their entry like any other.
+     * @throws FiniteStateMachineException if this very transition was already added
+     */
+    public synchronized void addEpsilonTransition(State from, State to) throws FiniteStateMachineException {
+        if(from == null)
+            throw new FiniteStateMachineException("addEpsilonTransition : cannot add a transition with a null origin state");
+        if(to == null)
+            throw new FiniteStateMachineException("addEpsilonTransition : cannot add a transition with a null destination state");
+
+        Integer key = _stateOrdinal(from);
+        BitSet set = epsilonTargets.get(key);
+        if(set == null) {
+            set = new BitSet();
+            epsilonTargets.put(key, set);
+        }
+        int ordinal = _stateOrdinal(to);
+        if(set.get(ordinal))
+            throw new FiniteStateMachineException("addEpsilonTransition : there is already an epsilon transition from state " + from + " to state " + to);
+        set.set(ordinal);
+        frozenTable = null;
+    }
+
+    /**
+     * @param initialStates the states active at first, along with the states their epsilon transitions lead to
+     * @throws FiniteStateMachineException if no initial state is given, or one of them is null
+     */
+    public synchronized FiniteStateMachine createFSM(State... initialStates) throws FiniteStateMachineException {
+        if(initialStates == null || initialStates.length == 0)
+            throw new FiniteStateMachineException("Cannot create a FiniteStateMachine without an initial State");
+        for(State initialState : initialStates) {
+            if(initialState == null)
+                throw new FiniteStateMachineException("Cannot create a FiniteStateMachine with a null initial State");
+            if(!stateOrdinals.containsKey(initialState)) {
+                _stateOrdinal(initialState);
+                frozenTable = null;
+            }
+        }
+
+        if(frozenTable == null)
+            frozenTable = _freeze();
+        NondeterministicTransitionTable table = frozenTable;
+        long[] active = new long[table.words];
+        for(State initialState : initialStates) {
+            int ordinal = stateOrdinals.get(initialState);
+            for(int w = 0; w < table.words; w++) {
+                active[w] |= table.closures[ordinal * table.words + w];
+            }
+        }
+        return new FiniteStateMachine(table, active);
+    }
+
+    private int _stateOrdinal(State state) {
+        Integer ordinal = stateOrdinals.get(state);
+        if(ordinal == null) {
+            ordinal = states.size();
+            stateOrdinals.put(state, ordinal);
+            states.add(state);
+        }
+        return ordinal;
+    }
+
+    private int _eventOrdinal(Event event) {
+        Integer ordinal = eventOrdinals.get(event);
+        if(ordinal == null) {
+            ordinal = events.size();
+            eventOrdinals.put(event, ordinal);
+            events.add(event);
+        }
+        return ordinal;
+    }
+
+    private NondeterministicTransitionTable _freeze() {
+        int stateCount = states.size();
+        int eventCount = events.size();
+        int words = (stateCount + 63) >>> 6;
+
+        //epsilon closures : each state, then what its epsilon transitions lead to, until nothing changes
+        long[] closures = new long[stateCount * words];
+        for(int s = 0; s < stateCount; s++) {
+            closures[s * words + (s >>> 6)] |= 1L << s;
+            BitSet set = epsilonTargets.get(s);
+            if(set != null) {
+                for(int t = set.nextSetBit(0); t >= 0; t = set.nextSetBit(t + 1)) {
+                    closures[s * words + (t >>> 6)] |= 1L << t;
+                }
+            }
+        }
+        if(!epsilonTargets.isEmpty()) {
+            boolean changed = true;
+            while(changed) {
+                changed = false;
+                for(int s = 0; s < stateCount; s++) {
+                    for(int w = 0; w < words; w++) {
+                        long bits = closures[s * words + w];
+                        while(bits != 0) {
+                            int t = (w << 6) | Long.numberOfTrailingZeros(bits);
+                            bits &= bits - 1;
+                            if(t != s)
+                                changed |= _or(closures, s * words, closures, t * words, words);
+                        }
+                    }
+                }
+            }
+        }
+
+        //successors of each (state, event) couple, closed
+        int[] rows = new int[stateCount * eventCount];
+        Arrays.fill(rows, NondeterministicTransitionTable.NO_TRANSITION);
+        long[] successors = new long[targets.size() * words];
+        long[] reacting = new long[eventCount * words];
+        int offset = 0;
+        for(Map.Entry<Long, BitSet> entry : targets.entrySet()) {
+            int from = (int) (entry.getKey() >>> 32);
+            int event = (int) (long) entry.getKey();
+            rows[from * eventCount + event] = offset;
+            reacting[event * words + (from >>> 6)] |= 1L << from;
+            BitSet set = entry.getValue();
+            for(int t = set.nextSetBit(0); t >= 0; t = set.nextSetBit(t + 1)) {
+                _or(successors, offset, closures, t * words, words);
+            }
+            offset += words;
+        }
+        return new NondeterministicTransitionTable(states.toArray(new State[stateCount]), events.toArray(new Event[eventCount]),
+                                                   rows, successors, reacting, closures);
+    }
+
+    /**
+     * target |= source, over words longs
+     * @return true if target changed
+     */
+    private static boolean _or(long[] target, int targetOffset, long[] source, int sourceOffset, int words) {
+        boolean changed = false;
+        for(int w = 0; w < words; w++) {
+            long before = target[targetOffset + w];
+            long after = before | source[sourceOffset + w];
+            if(after != before) {
+                target[targetOffset + w] = after;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,43 @@
+package com.gryzorz.fsm.v2.nfa;
+
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.State;
+
+/**
+ * The nondeterministic counterpart of com.gryzorz.fsm.v2.FiniteStateMachineListener.<br>
+ * When an event occurs, there are 2 different scenarios possible :<br>
+ * 1) at least one active state reacts to the event : the states that are not active anymore are exited,
+ * then the states that were not active before are entered, each group in the order of their ordinals.
+ * The states staying active are neither exited nor entered<br>
+ * 2) no active state reacts to the event : the active states do not change<br>
+ * 
+ * @author Benoit Fernandez
+ */
+public interface FiniteStateMachineListener {
+
+    /**
+     * Called each time an event is triggered, prior to the other 3 methods.
+     * @param event the event that occurs
+     */
+    void eventOccurred(Event event);
+
+    /**
+     * Called for each state active before the event, and not after.
+     * @param state the state exited
+     * @param event the event that occurred
+     */
+    void stateExited(State state, Event event);
+
+    /**
+     * Called for each state active after the event, and not before.
+     * @param state the state entered
+     * @param event the event that occurred
+     */
+    void stateEntered(State state, Event event);
+
+    /**
+     * Called only if no active state reacts to the event.
+     * @param event the event that occurred
+     */
+    void unexistingTransition(Event event);
+}
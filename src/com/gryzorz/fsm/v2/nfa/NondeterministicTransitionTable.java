@@ -0,0 +1,87 @@
+package com.gryzorz.fsm.v2.nfa;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.State;
+
+/**
+ * The frozen transitions shared by the FiniteStateMachine instances created by a FiniteStateMachineBuilder.<br>
+ * A set of states is a bitset of words longs, bit (ordinal % 64) of word (ordinal / 64) standing for the state
+ * of that ordinal. For each (state, event) couple having transitions, successors holds the set of the states it
+ * leads to, epsilon closure included : rows[state * eventCount + event] is the offset of that set, or NO_TRANSITION.
+ * reacting holds, for each event, the set of the states having at least one transition on it.
+ *
+ * @author Benoit Fernandez
+ */
+final class NondeterministicTransitionTable {
+    static final int NO_TRANSITION = -1;
+
+    final State[] states; //by ordinal
+    final Event[] events; //by ordinal
+    final Map<State, Integer> stateOrdinals;
+    final Map<Event, Integer> eventOrdinals;
+    final int eventCount;
+    final int words;
+    final int[] rows;
+    final long[] successors;
+    final long[] reacting; //[event * words + word]
+    final long[] closures; //[state * words + word], the states reached from each state by epsilon transitions, itself included
+
+    NondeterministicTransitionTable(State[] states, Event[] events, int[] rows, long[] successors, long[] reacting, long[] closures) {
+        this.states = states;
+        this.events = events;
+        this.eventCount = events.length;
+        this.words = (states.length + 63) >>> 6;
+        this.rows = rows;
+        this.successors = successors;
+        this.reacting = reacting;
+        this.closures = closures;
+        stateOrdinals = new IdentityHashMap<State, Integer>(states.length);
+        for(int s = 0; s < states.length; s++) {
+            stateOrdinals.put(states[s], s);
+        }
+        eventOrdinals = new IdentityHashMap<Event, Integer>(events.length);
+        for(int e = 0; e < events.length; e++) {
+            eventOrdinals.put(events[e], e);
+        }
+    }
+
+    /**
+     * @return the ordinal of the event, or NO_TRANSITION if no transition reacts to it
+     */
+    int eventOrdinal(Event event) {
+        Integer ordinal = eventOrdinals.get(event);
+        return ordinal == null ? NO_TRANSITION : ordinal;
+    }
+
+    /**
+     * Computes the states active after an event.
+     * @param active the states active before the event, left unchanged
+     * @param next receives the states active after the event, overwritten
+     * @return false if no active state reacts to the event, next is then left empty
+     */
+    boolean step(long[] active, int event, long[] next) {
+        for(int w = 0; w < words; w++) {
+            next[w] = 0;
+        }
+        if(event == NO_TRANSITION)
+            return false;
+        boolean reacted = false;
+        int reactingOffset = event * words;
+        for(int w = 0; w < words; w++) {
+            long bits = active[w] & reacting[reactingOffset + w];
+            while(bits != 0) {
+                int state = (w << 6) | Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                int offset = rows[state * eventCount + event];
+                for(int v = 0; v < words; v++) {
+                    next[v] |= successors[offset + v];
+                }
+                reacted = true;
+            }
+        }
+        return reacted;
+    }
+}
@@ -0,0 +1,110 @@
+package com.gryzorz.fsm.v2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Whichever thread delivers the records, a listener throwing must neither stop the delivery of the following records
+ * nor have any record delivered twice.
+ *
+ * @author Benoit Fernandez
+ */
+public class AsynchronousListenerDispatcherTest {
+    private State state;
+    private Event[] events;
+    private List<String> delivered;
+
+    @BeforeEach
+    public void setUp() {
+        state = new State("state");
+        events = new Event[5];
+        for(int i = 0; i < events.length; i++) {
+            events[i] = new Event("e" + i);
+        }
+        delivered = Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    @Test
+    public void consumerThreadHandsFailuresToItsHandlerAndGoesOn() throws Exception {
+        final List<Throwable> handled = Collections.synchronizedList(new ArrayList<Throwable>());
+        AsynchronousListenerDispatcher dispatcher = new AsynchronousListenerDispatcher(16, BackPressurePolicy.BLOCK, 2, runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            thread.setUncaughtExceptionHandler((t, e) -> handled.add(e));
+            return thread;
+        });
+        dispatcher.addListener(_failingOn("e1", "e3"));
+        _publish(dispatcher);
+        dispatcher.flush();
+
+        assertEquals(Arrays.asList("e0", "e1", "e2", "e3", "e4"), delivered);
+        assertEquals(Arrays.asList("e1", "e3"), Arrays.asList(handled.get(0).getMessage(), handled.get(1).getMessage()));
+        dispatcher.close();
+    }
+
+    /**
+     * The consumer thread stops at once : close() delivers every record itself, in batches of 2
+     */
+    @Test
+    public void closeDeliversEveryRecordOnceThenRethrows() throws Exception {
+        AsynchronousListenerDispatcher dispatcher = new AsynchronousListenerDispatcher(16, BackPressurePolicy.BLOCK, 2, runnable -> new Thread(() -> {}));
+        dispatcher.addListener(_failingOn("e1", "e3"));
+        _publish(dispatcher);
+        assertEquals(0, delivered.size());
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> dispatcher.close());
+        assertEquals("e1", e.getMessage());
+        assertEquals(1, e.getSuppressed().length);
+        assertEquals("e3", e.getSuppressed()[0].getMessage());
+        assertEquals(Arrays.asList("e0", "e1", "e2", "e3", "e4"), delivered);
+
+        dispatcher.stateLoop(state, new Event("late")); //delivered inline once closed
+        assertEquals(Arrays.asList("e0", "e1", "e2", "e3", "e4", "late"), delivered);
+        IllegalStateException inline = assertThrows(IllegalStateException.class, () -> dispatcher.stateLoop(state, events[1]));
+        assertEquals("e1", inline.getMessage());
+    }
+
+    @Test
+    public void errorIsRethrownByClose() throws Exception {
+        AsynchronousListenerDispatcher dispatcher = new AsynchronousListenerDispatcher(16, BackPressurePolicy.BLOCK, 4, runnable -> new Thread(() -> {}));
+        final AssertionError error = new AssertionError("e2");
+        dispatcher.addListener(new DefaultFiniteStateMachineListener() {
+            @Override
+            public void stateLoop(State state, Event event) {
+                delivered.add(event.toString());
+                if(event == events[2])
+                    throw error;
+            }
+        });
+        _publish(dispatcher);
+
+        assertSame(error, assertThrows(AssertionError.class, () -> dispatcher.close()));
+        assertEquals(Arrays.asList("e0", "e1", "e2", "e3", "e4"), delivered);
+    }
+
+    private void _publish(AsynchronousListenerDispatcher dispatcher) {
+        for(Event event : events) {
+            dispatcher.stateLoop(state, event);
+        }
+    }
+
+    private FiniteStateMachineListener _failingOn(final String... failing) {
+        return new DefaultFiniteStateMachineListener() {
+            @Override
+            public void stateLoop(State state, Event event) {
+                delivered.add(event.toString());
+                if(Arrays.asList(failing).contains(event.toString()))
+                    throw new IllegalStateException(event.toString());
+            }
+        };
+    }
+}
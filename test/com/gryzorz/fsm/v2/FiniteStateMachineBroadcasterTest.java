@@ -0,0 +1,120 @@
+package com.gryzorz.fsm.v2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A broadcast event must only reach the machines whose current state reacts to it, whoever moved them there.
+ *
+ * @author Benoit Fernandez
+ */
+public class FiniteStateMachineBroadcasterTest {
+    private State closed;
+    private State opened;
+    private State off;
+    private State on;
+    private Event open;
+    private Event close;
+    private Event toggle;
+    private FiniteStateMachineDefinition doors;
+    private FiniteStateMachineDefinition lights;
+    private FiniteStateMachineBroadcaster broadcaster;
+    private AtomicInteger unexisting;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        closed = new State("closed");
+        opened = new State("opened");
+        off = new State("off");
+        on = new State("on");
+        open = new Event("open");
+        close = new Event("close");
+        toggle = new Event("toggle");
+        doors = _doorBuilder().createDefinition(closed);
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        builder.addTransition(off, toggle, on);
+        builder.addTransition(on, toggle, off);
+        lights = builder.createDefinition(off);
+        broadcaster = new FiniteStateMachineBroadcaster();
+        unexisting = new AtomicInteger();
+    }
+
+    @Test
+    public void eventsOnlyReachTheMachinesReactingToThem() throws Exception {
+        FiniteStateMachine[] door = new FiniteStateMachine[10];
+        FiniteStateMachine[] light = new FiniteStateMachine[10];
+        for(int i = 0; i < 10; i++) {
+            door[i] = _registered(doors.newInstance());
+            light[i] = _registered(lights.newInstance());
+        }
+        door[0].processEvent(open); //processed directly : the index follows
+        assertEquals(9, broadcaster.getReactingCount(open));
+        assertEquals(1, broadcaster.getReactingCount(close));
+
+        assertEquals(9, broadcaster.broadcast(open));
+        for(int i = 0; i < 10; i++) {
+            assertSame(opened, door[i].getState());
+            assertSame(off, light[i].getState());
+        }
+        assertEquals(0, broadcaster.broadcast(open)); //no door is closed anymore
+        assertEquals(10, broadcaster.broadcast(toggle));
+        assertEquals(10, broadcaster.broadcast(close));
+        assertEquals(0, broadcaster.broadcast(new Event("unknown")));
+        for(int i = 0; i < 10; i++) {
+            assertSame(closed, door[i].getState());
+            assertSame(on, light[i].getState());
+        }
+        assertEquals(0, unexisting.get(), "a machine received an event it does not react to");
+        assertEquals(20, broadcaster.getMachineCount());
+    }
+
+    @Test
+    public void interpretedMachinesAreIndexedToo() throws Exception {
+        FiniteStateMachine interpreted = _registered(_doorBuilder().createFSM(closed));
+        FiniteStateMachine compiled = _registered(_doorBuilder().createCompiledFSM(opened)); //a builder creates a single machine
+        assertEquals(1, broadcaster.broadcast(close));
+        assertSame(closed, compiled.getState());
+        assertEquals(2, broadcaster.broadcast(open));
+        assertSame(opened, interpreted.getState());
+        assertEquals(0, unexisting.get());
+    }
+
+    @Test
+    public void unregisteredMachinesReceiveNothing() throws Exception {
+        FiniteStateMachine kept = _registered(doors.newInstance());
+        FiniteStateMachine removed = _registered(doors.newInstance());
+        assertTrue(broadcaster.unregister(removed));
+        assertFalse(broadcaster.unregister(removed));
+        assertEquals(1, broadcaster.broadcast(open));
+        assertSame(opened, kept.getState());
+        assertSame(closed, removed.getState());
+        assertEquals(1, broadcaster.getMachineCount());
+        assertThrows(FiniteStateMachineException.class, () -> new FiniteStateMachineBroadcaster().register(kept));
+    }
+
+    private FiniteStateMachineBuilder _doorBuilder() throws FiniteStateMachineException {
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        builder.addTransition(closed, open, opened);
+        builder.addTransition(opened, close, closed);
+        return builder;
+    }
+
+    private FiniteStateMachine _registered(FiniteStateMachine fsm) throws FiniteStateMachineException {
+        fsm.addListener(new DefaultFiniteStateMachineListener() {
+            @Override
+            public void unexistingTransition(State from, Event event) {
+                unexisting.incrementAndGet();
+            }
+        });
+        broadcaster.register(fsm);
+        return fsm;
+    }
+}
@@ -0,0 +1,110 @@
+package com.gryzorz.fsm.v2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * A graph built from several threads by a FiniteStateMachineBulkBuilder must behave as the same graph built by a
+ * FiniteStateMachineBuilder.
+ *
+ * @author Benoit Fernandez
+ */
+public class FiniteStateMachineBulkBuilderTest {
+    private static final int STATE_COUNT = 2000;
+    private static final int EVENT_COUNT = 8;
+    private static final int THREAD_COUNT = 4;
+
+    private final State[] states = new State[STATE_COUNT];
+    private final Event[] events = new Event[EVENT_COUNT];
+
+    public FiniteStateMachineBulkBuilderTest() {
+        for(int s = 0; s < STATE_COUNT; s++) {
+            states[s] = new State("s" + s);
+        }
+        for(int e = 0; e < EVENT_COUNT; e++) {
+            events[e] = new Event("e" + e);
+        }
+    }
+
+    /**
+     * @return the destination of the transition, or -1 : about one couple in 4 has none
+     */
+    private static int _next(int s, int e) {
+        return (s * 31 + e * 17) % 4 == 0 ? -1 : (s * 7 + e * 13 + 1) % STATE_COUNT;
+    }
+
+    @Test
+    public void concurrentlyBuiltGraphBehavesAsTheSequentialOne() throws Exception {
+        final FiniteStateMachineBulkBuilder bulk = new FiniteStateMachineBulkBuilder();
+        ExecutorService threads = Executors.newFixedThreadPool(THREAD_COUNT);
+        try {
+            List<Future<Integer>> added = new ArrayList<Future<Integer>>();
+            for(int t = 0; t < THREAD_COUNT; t++) {
+                final int thread = t;
+                added.add(threads.submit(() -> {
+                    int count = 0;
+                    for(int s = 0; s < STATE_COUNT; s++) { //every thread adds every transition, each one is kept once
+                        for(int e = (s + thread) % EVENT_COUNT, k = 0; k < EVENT_COUNT; e = (e + 1) % EVENT_COUNT, k++) {
+                            int next = _next(s, e);
+                            if(next >= 0 && bulk.addTransition(states[s], events[e], states[next]))
+                                count++;
+                        }
+                    }
+                    return count;
+                }));
+            }
+            int count = 0;
+            for(Future<Integer> thread : added) {
+                count += thread.get(60, TimeUnit.SECONDS);
+            }
+            assertEquals(bulk.getTransitionCount(), count);
+        } finally {
+            threads.shutdownNow();
+        }
+
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        int transitionCount = 0;
+        for(int s = 0; s < STATE_COUNT; s++) {
+            for(int e = 0; e < EVENT_COUNT; e++) {
+                if(_next(s, e) >= 0) {
+                    builder.addTransition(states[s], events[e], states[_next(s, e)]);
+                    transitionCount++;
+                }
+            }
+        }
+        assertEquals(transitionCount, bulk.getTransitionCount());
+
+        FiniteStateMachine expected = builder.createDefinition(states[0]).newInstance();
+        FiniteStateMachine actual = bulk.createDefinition(states[0]).newInstance();
+        assertSame(states[0], actual.getState());
+        Random random = new Random(42);
+        for(int i = 0; i < 100000; i++) {
+            Event event = events[random.nextInt(EVENT_COUNT)];
+            assertEquals(expected.processEventWithOutcome(event), actual.processEventWithOutcome(event), "event " + i);
+            assertSame(expected.getState(), actual.getState(), "event " + i);
+        }
+    }
+
+    @Test
+    public void conflictingTransitionsAreRefused() throws Exception {
+        FiniteStateMachineBulkBuilder bulk = new FiniteStateMachineBulkBuilder();
+        assertTrue(bulk.addTransition(states[0], events[0], states[1]));
+        assertFalse(bulk.addTransition(states[0], events[0], states[1]));
+        assertThrows(TransitionAlreadyExistException.class, () -> bulk.addTransition(states[0], events[0], states[2]));
+        assertThrows(FiniteStateMachineException.class, () -> bulk.addTransition(states[0], null, states[2]));
+        assertEquals(1, bulk.getTransitionCount());
+    }
+}
@@ -0,0 +1,120 @@
+package com.gryzorz.fsm.v2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Saving a definition then loading it back : same fingerprint, same transitions, same timeouts.
+ *
+ * @author Benoit Fernandez
+ */
+public class FiniteStateMachineDefinitionFileTest {
+    @TempDir
+    Path directory;
+
+    private State idle;
+    private State running;
+    private State failed;
+    private Event start;
+    private Event stop;
+    private Event crash;
+    private Event watchdog; //only fired by a timeout
+    private FiniteStateMachineDefinition definition;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        idle = new State("idle");
+        running = new State("running");
+        failed = new State("failed");
+        start = new Event("start");
+        stop = new Event("stop");
+        crash = new Event("crash");
+        watchdog = new Event("watchdog");
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        builder.addTransition(idle, start, running);
+        builder.addTransition(running, stop, idle);
+        builder.addTransition(running, crash, failed);
+        builder.addTransition(failed, start, running);
+        builder.addTimeout(running, Duration.ofSeconds(30), crash);
+        builder.addTimeout(failed, Duration.ofMinutes(5), watchdog);
+        definition = builder.createDefinition(idle);
+    }
+
+    @Test
+    public void loadedDefinitionKeepsTheFingerprint() throws Exception {
+        Path file = _write(directory.resolve("definition.fsm"));
+        FiniteStateMachineDefinition loaded = FiniteStateMachineDefinitionFile.read(file);
+        assertEquals(definition.getFingerprint(), loaded.getFingerprint());
+        assertEquals(definition.getStateCount(), loaded.getStateCount());
+        assertEquals(definition.getEventCount(), loaded.getEventCount());
+        assertEquals("idle", loaded.getInitialState().toString());
+        assertEquals(List.of("idle", "running", "failed"), _names(loaded.getStates()));
+        assertEquals(Duration.ofSeconds(30), loaded.getTimeout(loaded.getStates().get(1)));
+        assertNull(loaded.getTimeout(loaded.getInitialState()));
+    }
+
+    @Test
+    public void loadedDefinitionReactsToTheGivenConstants() throws Exception {
+        Path file = _write(directory.resolve("constants.fsm"));
+        Map<String, State> stateMap = new HashMap<String, State>();
+        for(State state : new State[] { idle, running, failed }) {
+            stateMap.put(state.toString(), state);
+        }
+        Map<String, Event> eventMap = new HashMap<String, Event>();
+        for(Event event : new Event[] { start, stop, crash, watchdog }) {
+            eventMap.put(event.toString(), event);
+        }
+        FiniteStateMachineBuilder options = new FiniteStateMachineBuilder();
+        options.setConcurrencyMode(ConcurrencyMode.LOCK_FREE);
+        FiniteStateMachineDefinition loaded = FiniteStateMachineDefinitionFile.read(file, options, stateMap, eventMap);
+        assertEquals(definition.getFingerprint(), loaded.getFingerprint());
+        assertSame(ConcurrencyMode.LOCK_FREE, loaded.getConcurrencyMode());
+        assertEquals(Duration.ofMinutes(5), loaded.getTimeout(failed));
+
+        FiniteStateMachine fsm = loaded.newInstance();
+        fsm.processEvent(start);
+        fsm.processEvent(crash);
+        assertSame(failed, fsm.getState());
+        assertEquals(TransitionOutcome.UNEXISTING_TRANSITION, fsm.processEventWithOutcome(stop));
+    }
+
+    @Test
+    public void damagedFileIsRefused() throws Exception {
+        Path file = _write(directory.resolve("damaged.fsm"));
+        byte[] bytes = Files.readAllBytes(file);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int stateCount = definition.getStateCount();
+        int firstDestination = FiniteStateMachineDefinitionFile.HEADER_SIZE + 4 * (stateCount + 1) + 4;
+        buffer.putInt(firstDestination, (buffer.getInt(firstDestination) + 1) % stateCount); //still a valid ordinal
+        Files.write(file, bytes);
+        assertThrows(FiniteStateMachineException.class, () -> FiniteStateMachineDefinitionFile.read(file));
+
+        Files.write(file, new byte[] { 1, 2, 3 });
+        assertThrows(FiniteStateMachineException.class, () -> FiniteStateMachineDefinitionFile.read(file));
+    }
+
+    private Path _write(Path file) throws Exception {
+        long size = FiniteStateMachineDefinitionFile.write(definition, file);
+        assertEquals(size, Files.size(file));
+        return file;
+    }
+
+    private static List<String> _names(List<State> states) {
+        return states.stream().map(State::toString).toList();
+    }
+}
@@ -0,0 +1,132 @@
+package com.gryzorz.fsm.v2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Entities of a fleet, and what the fleet accepts once closed.
+ *
+ * @author Benoit Fernandez
+ */
+public class FiniteStateMachineFleetTest {
+    private State off;
+    private State on;
+    private Event toggle;
+    private Event tick;
+    private FiniteStateMachineDefinition definition;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        off = new State("off");
+        on = new State("on");
+        toggle = new Event("toggle");
+        tick = new Event("tick");
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        builder.addTransition(off, toggle, on);
+        builder.addTransition(on, toggle, off);
+        builder.addTransition(off, tick, off);
+        builder.addTransition(on, tick, on);
+        definition = builder.createDefinition(off);
+    }
+
+    @Test
+    public void entitiesFollowTheirOwnEvents() throws Exception {
+        FiniteStateMachineFleet fleet = new FiniteStateMachineFleet(definition, 4, 64);
+        try {
+            for(long id = 0; id < 1000; id++) {
+                for(long i = 0; i < id % 3; i++) {
+                    fleet.submit(id, toggle);
+                }
+            }
+            fleet.submitAll(new long[] { 1, 2 }, new Event[] { new Event("unknown"), toggle }, 0, 2);
+            fleet.flush();
+            for(long id = 3; id < 1000; id++) {
+                assertSame(id % 3 == 1 ? on : off, fleet.getState(id), "entity " + id);
+            }
+            assertSame(on, fleet.getState(1));
+            assertSame(on, fleet.getState(2)); //toggled 3 times
+            assertSame(off, fleet.getState(5000)); //never submitted
+            assertEquals(1000 - 334, fleet.getEntityCount()); //ids 0, 3, 6... received nothing
+            assertEquals(1, fleet.getRejectedCount());
+        } finally {
+            fleet.close();
+        }
+    }
+
+    @Test
+    public void closedFleetRefusesEvents() throws Exception {
+        final FiniteStateMachineFleet fleet = new FiniteStateMachineFleet(definition, 2, 4);
+        fleet.submit(1, toggle);
+        fleet.close();
+        assertSame(on, fleet.getState(1));
+        assertThrows(IllegalStateException.class, () -> fleet.submit(1, toggle));
+        assertThrows(IllegalStateException.class, () -> fleet.submitAll(new long[] { 1 }, toggle));
+        assertThrows(IllegalStateException.class, () -> fleet.submitAll(new long[] { 1 }, new Event[] { toggle }, 0, 1));
+        assertThrows(IllegalStateException.class, () -> fleet.restore(1, off));
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> fleet.flush());
+        assertSame(on, fleet.getState(1));
+        fleet.close(); //closing twice is harmless
+    }
+
+    /**
+     * Producers keep submitting while the fleet closes : every event accepted by submit(...) must be processed
+     */
+    @Test
+    public void eventsSubmittedWhileClosingAreNotLost() throws Exception {
+        final FiniteStateMachineFleet fleet = new FiniteStateMachineFleet(definition, 2, 8);
+        ExecutorService producers = Executors.newFixedThreadPool(4);
+        try {
+            final CountDownLatch started = new CountDownLatch(4);
+            List<Future<Long>> submitted = new ArrayList<Future<Long>>();
+            for(int p = 0; p < 4; p++) {
+                final long entityId = p;
+                submitted.add(producers.submit(() -> {
+                    long count = 0;
+                    started.countDown();
+                    try {
+                        while(true) {
+                            fleet.submit(entityId, tick);
+                            count++;
+                        }
+                    } catch(IllegalStateException e) {
+                        return count;
+                    }
+                }));
+            }
+            started.await();
+            Thread.sleep(50);
+            fleet.close();
+            long count = 0;
+            for(Future<Long> producer : submitted) {
+                count += producer.get(10, TimeUnit.SECONDS);
+            }
+            assertEquals(count, fleet.getAcceptedCount());
+            assertTimeoutPreemptively(Duration.ofSeconds(5), () -> fleet.flush());
+        } finally {
+            producers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void definitionFollowedByAFleetGetsNoSuccessor() throws Exception {
+        FiniteStateMachineFleet fleet = new FiniteStateMachineFleet(definition, 1, 4);
+        FiniteStateMachineBuilder next = new FiniteStateMachineBuilder();
+        next.addTransition(off, toggle, on);
+        assertThrows(FiniteStateMachineException.class, () -> definition.publishSuccessor(next, off, null));
+        fleet.close();
+    }
+}
@@ -0,0 +1,166 @@
+package com.gryzorz.fsm.v2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * The records a FiniteStateMachineFlightRecorder keeps, and the JFR events it emits.
+ *
+ * @author Benoit Fernandez
+ */
+public class FiniteStateMachineFlightRecorderTest {
+    @TempDir
+    Path directory;
+
+    private ManualClock clock;
+    private State off;
+    private State on;
+    private Event toggle;
+    private Event stay;
+    private FiniteStateMachineDefinition definition;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        clock = new ManualClock();
+        off = new State("off");
+        on = new State("on");
+        toggle = new Event("toggle");
+        stay = new Event("stay");
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        builder.addTransition(off, toggle, on);
+        builder.addTransition(on, toggle, off);
+        builder.addTransition(on, stay, on);
+        definition = builder.createDefinition(off);
+    }
+
+    @Test
+    public void recordsTheLastEventsOldestFirst() throws Exception {
+        FiniteStateMachineFlightRecorder recorder = new FiniteStateMachineFlightRecorder(clock, 4, 0);
+        FiniteStateMachine fsm = definition.newInstance();
+        recorder.attach(fsm);
+        for(int i = 0; i < 6; i++) {
+            clock.advance(Duration.ofMillis(1));
+            fsm.processEvent(toggle); //on off on off on off
+        }
+        clock.advance(Duration.ofMillis(1));
+        assertEquals(TransitionOutcome.UNEXISTING_TRANSITION, fsm.processEventWithOutcome(stay));
+
+        assertEquals(7, recorder.getRecordCount());
+        List<FiniteStateMachineFlightRecorder.Record> records = recorder.getRecords();
+        assertEquals(4, records.size()); //the first three were overwritten
+        FiniteStateMachineFlightRecorder.Record first = records.get(0);
+        assertEquals(3, first.getSequence());
+        assertEquals(Duration.ofMillis(4).toNanos(), first.getNanoTime());
+        assertSame(fsm, first.getMachine());
+        assertSame(on, first.getFrom());
+        assertSame(toggle, first.getEvent());
+        assertSame(off, first.getTo());
+        assertSame(TransitionOutcome.STATE_CHANGED, first.getOutcome());
+        FiniteStateMachineFlightRecorder.Record last = records.get(3);
+        assertSame(off, last.getFrom());
+        assertSame(stay, last.getEvent());
+        assertNull(last.getTo());
+        assertSame(TransitionOutcome.UNEXISTING_TRANSITION, last.getOutcome());
+    }
+
+    @Test
+    public void sharedRecorderSeparatesItsMachines() throws Exception {
+        FiniteStateMachineFlightRecorder recorder = new FiniteStateMachineFlightRecorder(clock, 16, 0);
+        FiniteStateMachine a = definition.newInstance();
+        FiniteStateMachine b = definition.newInstance();
+        recorder.attach(a);
+        recorder.attach(b);
+        a.processEvent(toggle);
+        b.processEvent(toggle);
+        b.processEvent(stay);
+        assertEquals(1, recorder.getRecords(a).size());
+        assertEquals(2, recorder.getRecords(b).size());
+        assertSame(TransitionOutcome.STATE_LOOP, recorder.getRecords(b).get(1).getOutcome());
+
+        StringBuilder dump = new StringBuilder();
+        recorder.dump(dump);
+        assertEquals(3, dump.toString().split(System.lineSeparator()).length);
+    }
+
+    @Test
+    public void rejectedEventCarriesTheHistoryOfItsMachine() throws Exception {
+        FiniteStateMachineFlightRecorder recorder = new FiniteStateMachineFlightRecorder(clock, 8, 0);
+        FiniteStateMachine fsm = definition.newInstance();
+        recorder.attach(fsm);
+        fsm.processEvent(toggle);
+        fsm.processEvent(toggle);
+        TransitionNotAllowedException rejected = assertThrows(TransitionNotAllowedException.class, () -> fsm.processEvent(stay));
+        assertEquals(3, rejected.history.size());
+        assertSame(stay, rejected.history.get(2).getEvent());
+        assertTrue(rejected.getMessage().contains("last events processed"), rejected.getMessage());
+    }
+
+    @Test
+    public void recorderOutlivesListenersAndStopsOnceDetached() throws Exception {
+        FiniteStateMachineFlightRecorder recorder = new FiniteStateMachineFlightRecorder(clock, 8, 0);
+        FiniteStateMachine fsm = definition.newInstance();
+        FiniteStateMachineListener listener = new DefaultFiniteStateMachineListener() {};
+        fsm.addListener(listener);
+        recorder.attach(fsm);
+        assertThrows(FiniteStateMachineException.class, () -> new FiniteStateMachineFlightRecorder(1).attach(fsm));
+        fsm.removeListener(listener); //the last listener : the recorder stays attached
+        fsm.processEvent(toggle);
+        assertEquals(1, recorder.getRecordCount());
+
+        assertTrue(recorder.detach(fsm));
+        assertFalse(recorder.detach(fsm));
+        fsm.processEvent(toggle);
+        assertEquals(1, recorder.getRecordCount());
+        assertEquals(0, assertThrows(TransitionNotAllowedException.class, () -> fsm.processEvent(stay)).history.size());
+    }
+
+    @Test
+    public void jfrEventsAreSampled() throws Exception {
+        FiniteStateMachineFlightRecorder recorder = new FiniteStateMachineFlightRecorder(clock, 8, 2);
+        FiniteStateMachine fsm = definition.newInstance();
+        recorder.attach(fsm);
+        Path file = directory.resolve("recording.jfr");
+        try(Recording recording = new Recording()) {
+            recording.enable("com.gryzorz.fsm.Transition");
+            recording.enable("com.gryzorz.fsm.RejectedEvent");
+            recording.start();
+            for(int i = 0; i < 10; i++) {
+                fsm.processEvent(toggle);
+            }
+            for(int i = 0; i < 4; i++) {
+                fsm.processEventWithOutcome(stay); //off : rejected
+            }
+            recording.stop();
+            recording.dump(file);
+        }
+        int transitions = 0;
+        int rejections = 0;
+        for(RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            if(event.getEventType().getName().equals("com.gryzorz.fsm.Transition")) {
+                transitions++;
+                assertTrue(event.getBoolean("stateChanged"));
+            } else if(event.getEventType().getName().equals("com.gryzorz.fsm.RejectedEvent")) {
+                rejections++;
+                assertEquals("off", event.getString("state"));
+            }
+        }
+        assertEquals(5, transitions);
+        assertEquals(2, rejections);
+    }
+}
@@ -0,0 +1,111 @@
+package com.gryzorz.fsm.v2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Subclasses overriding the deprecated notification hooks must still have them called, and decide what listeners
+ * are told, as before listeners were indexed.
+ *
+ * @author Benoit Fernandez
+ */
+@SuppressWarnings("deprecation")
+public class FiniteStateMachineHooksTest {
+    private State closed;
+    private State opened;
+    private Event open;
+    private Event close;
+    private Event knock;
+    private List<String> calls;
+
+    @BeforeEach
+    public void setUp() {
+        closed = new State("closed");
+        opened = new State("opened");
+        open = new Event("open");
+        close = new Event("close");
+        knock = new Event("knock");
+        calls = new ArrayList<String>();
+    }
+
+    @Test
+    public void overriddenHookIsCalledAndItsSuperNotifiesListeners() throws Exception {
+        FiniteStateMachine fsm = _door(new FiniteStateMachine() {
+            @Override
+            protected void _notifyStateChanged(State from, Event event, State to) {
+                calls.add("hook " + from + " " + to);
+                super._notifyStateChanged(from, event, to);
+            }
+        });
+        fsm.addListener(_recorder());
+        fsm.addListener(_recorder(), new FiniteStateMachineSubscription(null, null, null, TransitionOutcome.STATE_LOOP));
+
+        fsm.processEventWithoutErrorNotification(open);
+        fsm.processEventWithoutErrorNotification(open);
+        fsm.processEventWithoutErrorNotification(knock);
+        assertEquals(Arrays.asList("hook closed opened", "changed closed opened",
+                                   "unexisting opened open",
+                                   "loop opened", "loop opened"), calls); //the subscription still filters the second listener
+    }
+
+    @Test
+    public void hookNotCallingSuperKeepsListenersUninformed() throws Exception {
+        FiniteStateMachine fsm = _door(new FiniteStateMachine() {
+            @Override
+            protected void _notifyUnexistingTransition(State from, Event event) {
+                calls.add("hook " + from + " " + event);
+            }
+        });
+        fsm.addListener(_recorder());
+        FiniteStateMachineFlightRecorder recorder = new FiniteStateMachineFlightRecorder(8);
+        recorder.attach(fsm);
+
+        fsm.processEventWithoutErrorNotification(close);
+        fsm.processEventWithoutErrorNotification(open);
+        assertEquals(Arrays.asList("hook closed close", "changed closed opened"), calls);
+        assertEquals(2, recorder.getRecordCount());
+    }
+
+    @Test
+    public void compiledSubclassStillCallsItsHooks() throws Exception {
+        FiniteStateMachine fsm = _door(new FiniteStateMachine() {
+            @Override
+            protected void _notifyStateLoop(State state, Event event) {
+                calls.add("hook " + state);
+            }
+        });
+        fsm.compile(new FiniteStateMachineBuilder());
+        fsm.addListener(_recorder());
+
+        fsm.processEventWithoutErrorNotification(knock);
+        fsm.processEventWithoutErrorNotification(open);
+        assertEquals(Arrays.asList("hook closed", "changed closed opened"), calls);
+    }
+
+    /**
+     * closed -open-> opened -close-> closed, and both loop on knock
+     */
+    private FiniteStateMachine _door(FiniteStateMachine fsm) throws FiniteStateMachineException {
+        fsm.addTransition(closed, open, opened);
+        fsm.addTransition(opened, close, closed);
+        fsm.addTransition(closed, knock, closed);
+        fsm.addTransition(opened, knock, opened);
+        fsm.setInitialState(closed);
+        return fsm;
+    }
+
+    private FiniteStateMachineListener _recorder() {
+        return new FiniteStateMachineListener() {
+            public void eventOccurred(State from, Event event, State to) {}
+            public void stateChanged(State from, Event event, State to) { calls.add("changed " + from + " " + to); }
+            public void stateLoop(State state, Event event) { calls.add("loop " + state); }
+            public void unexistingTransition(State from, Event event) { calls.add("unexisting " + from + " " + event); }
+        };
+    }
+}
@@ -0,0 +1,112 @@
+package com.gryzorz.fsm.v2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.nio.file.Path;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Appending, reopening and replaying a journal : replay must give the state of the last record of each machine,
+ * whatever segment it was appended to.
+ *
+ * @author Benoit Fernandez
+ */
+public class FiniteStateMachineJournalTest {
+    private static final int RECORDS_PER_SEGMENT = 16;
+
+    @TempDir
+    Path directory;
+
+    private State s0;
+    private State s1;
+    private Event toS0;
+    private Event toS1;
+    private FiniteStateMachineDefinition definition;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        s0 = new State("s0");
+        s1 = new State("s1");
+        toS0 = new Event("toS0");
+        toS1 = new Event("toS1");
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        builder.addTransition(s0, toS1, s1);
+        builder.addTransition(s1, toS0, s0);
+        definition = builder.createDefinition(s0);
+    }
+
+    @Test
+    public void replayGivesTheLastStateOfEachMachine() throws Exception {
+        try(FiniteStateMachineJournal journal = _open()) {
+            journal.append(0, toS1, s1);
+            journal.append(1, toS1, s1);
+            journal.append(0, toS0, s0);
+            journal.sync();
+            assertEquals(3, journal.getDurableCount());
+        }
+        Map<Long, FiniteStateMachine> machines = new FiniteStateMachineJournalReader(directory, definition).replay();
+        assertEquals(2, machines.size());
+        assertSame(s0, machines.get(0L).getState());
+        assertSame(s1, machines.get(1L).getState());
+    }
+
+    @Test
+    public void attachedMachinesAreJournaled() throws Exception {
+        try(FiniteStateMachineJournal journal = _open()) {
+            FiniteStateMachine fsm = definition.newInstance();
+            journal.attach(7, fsm);
+            fsm.processEvent(toS1);
+            fsm.processEvent(toS0);
+            fsm.processEvent(toS1);
+            assertEquals(3, journal.getDurableCount()); //durableOnReturn
+        }
+        assertSame(s1, new FiniteStateMachineJournalReader(directory, definition).replay().get(7L).getState());
+    }
+
+    /**
+     * Past half a segment, the next one is prepared ahead of time : reopening must still append after the last record
+     */
+    @Test
+    public void reopenedJournalAppendsAfterItsLastRecord() throws Exception {
+        _appendAndReopen(12);
+    }
+
+    @Test
+    public void reopenedJournalAppendsAfterAFullSegment() throws Exception {
+        _appendAndReopen(RECORDS_PER_SEGMENT);
+    }
+
+    @Test
+    public void reopenedJournalAppendsAcrossSegments() throws Exception {
+        _appendAndReopen(3 * RECORDS_PER_SEGMENT + 5);
+    }
+
+    private void _appendAndReopen(int count) throws Exception {
+        try(FiniteStateMachineJournal journal = _open()) {
+            for(int i = 0; i < count; i++) {
+                journal.append(i % 3, toS1, s1);
+            }
+            journal.sync();
+        }
+        try(FiniteStateMachineJournal journal = _open()) {
+            assertEquals(count, journal.getRecordCount());
+            journal.append(0, toS0, s0);
+            journal.sync();
+        }
+        try(FiniteStateMachineJournal journal = _open()) {
+            assertEquals(count + 1, journal.getRecordCount());
+        }
+        Map<Long, FiniteStateMachine> machines = new FiniteStateMachineJournalReader(directory, definition).replay();
+        assertSame(s0, machines.get(0L).getState());
+        assertSame(s1, machines.get(1L).getState());
+    }
+
+    private FiniteStateMachineJournal _open() throws Exception {
+        return new FiniteStateMachineJournal(directory, definition, RECORDS_PER_SEGMENT, true);
+    }
+}
@@ -0,0 +1,182 @@
+package com.gryzorz.fsm.v2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Many producers submitting to the same mailbox at once, and many mailboxes sharing the same executor : every event
+ * must be processed exactly once and in order, and its future completed.
+ *
+ * @author Benoit Fernandez
+ */
+public class FiniteStateMachineMailboxTest {
+    private static final int PRODUCER_COUNT = 8;
+    private static final int EVENT_COUNT = 20000; //per producer
+    private static final int MACHINE_COUNT = 100000;
+    private static final int MACHINE_EVENT_COUNT = 20; //per machine
+
+    @Test
+    public void unboundedMailboxProcessesEveryEventOnce() throws Exception {
+        _stress(Integer.MAX_VALUE, BackPressurePolicy.BLOCK);
+    }
+
+    @Test
+    public void boundedMailboxProcessesEveryEventOnce() throws Exception {
+        _stress(16, BackPressurePolicy.BLOCK);
+    }
+
+    @Test
+    public void manyMailboxesOnASharedPoolReachTheirOwnFinalState() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            _manyMachines(executor);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Virtual threads on Java 21 and later, the common ForkJoinPool before
+     */
+    @Test
+    public void manyMailboxesOnTheDefaultExecutorReachTheirOwnFinalState() throws Exception {
+        _manyMachines(FiniteStateMachineMailbox.defaultExecutor());
+    }
+
+    /**
+     * Each producer feeds its share of the machines a round at a time, so that most mailboxes are scheduled again and
+     * again, interleaved on the executor. Each machine gets its own random sequence of two events that do not commute,
+     * multiplying by 2 and adding 1 modulo 7 : a lost, repeated or reordered event changes its final state.
+     */
+    private void _manyMachines(Executor executor) throws Exception {
+        int n = 7;
+        State[] states = new State[n];
+        for(int i = 0; i < n; i++) {
+            states[i] = new State("s" + i);
+        }
+        Event twice = new Event("twice");
+        Event next = new Event("next");
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        for(int i = 0; i < n; i++) {
+            builder.addTransition(states[i], twice, states[2 * i % n]);
+            builder.addTransition(states[i], next, states[(i + 1) % n]);
+        }
+        FiniteStateMachineDefinition definition = builder.createDefinition(states[1]);
+
+        final FiniteStateMachineMailbox[] mailboxes = new FiniteStateMachineMailbox[MACHINE_COUNT];
+        final Event[][] sequences = new Event[MACHINE_COUNT][MACHINE_EVENT_COUNT];
+        int[] expected = new int[MACHINE_COUNT];
+        for(int m = 0; m < MACHINE_COUNT; m++) {
+            mailboxes[m] = new FiniteStateMachineMailbox(definition.newInstance(), executor, Integer.MAX_VALUE, BackPressurePolicy.BLOCK);
+            Random random = new Random(m);
+            int state = 1;
+            for(int i = 0; i < MACHINE_EVENT_COUNT; i++) {
+                boolean doubled = random.nextBoolean();
+                sequences[m][i] = doubled ? twice : next;
+                state = doubled ? 2 * state % n : (state + 1) % n;
+            }
+            expected[m] = state;
+        }
+
+        ExecutorService producers = Executors.newFixedThreadPool(PRODUCER_COUNT);
+        try {
+            List<Future<List<CompletableFuture<TransitionOutcome>>>> submitted = new ArrayList<Future<List<CompletableFuture<TransitionOutcome>>>>();
+            for(int p = 0; p < PRODUCER_COUNT; p++) {
+                final int producer = p;
+                submitted.add(producers.submit(() -> {
+                    List<CompletableFuture<TransitionOutcome>> last = new ArrayList<CompletableFuture<TransitionOutcome>>();
+                    for(int i = 0; i < MACHINE_EVENT_COUNT; i++) {
+                        for(int m = producer; m < MACHINE_COUNT; m += PRODUCER_COUNT) {
+                            CompletableFuture<TransitionOutcome> future = mailboxes[m].submit(sequences[m][i]);
+                            if(i == MACHINE_EVENT_COUNT - 1)
+                                last.add(future);
+                        }
+                    }
+                    return last;
+                }));
+            }
+            for(Future<List<CompletableFuture<TransitionOutcome>>> producer : submitted) {
+                for(CompletableFuture<TransitionOutcome> future : producer.get(60, TimeUnit.SECONDS)) {
+                    future.get(60, TimeUnit.SECONDS); //the events of a mailbox are processed in order : the last one is processed after all the others
+                }
+            }
+        } finally {
+            producers.shutdownNow();
+        }
+        for(int m = 0; m < MACHINE_COUNT; m++) {
+            assertEquals(states[expected[m]], mailboxes[m].getMachine().getState(), "machine " + m);
+        }
+    }
+
+    /**
+     * Each producer submits its own event, which loops on the only state : the listener counts the events of each producer
+     */
+    private void _stress(int capacity, BackPressurePolicy backPressurePolicy) throws Exception {
+        State state = new State("state");
+        final Event[] events = new Event[PRODUCER_COUNT];
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        for(int p = 0; p < PRODUCER_COUNT; p++) {
+            events[p] = new Event("producer" + p);
+            builder.addTransition(state, events[p], state);
+        }
+        FiniteStateMachine fsm = builder.createDefinition(state).newInstance();
+        final AtomicIntegerArray processed = new AtomicIntegerArray(PRODUCER_COUNT);
+        fsm.addListener(new DefaultFiniteStateMachineListener() {
+            @Override
+            public void stateLoop(State state, Event event) {
+                for(int p = 0; p < PRODUCER_COUNT; p++) {
+                    if(events[p] == event)
+                        processed.incrementAndGet(p);
+                }
+            }
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        ExecutorService producers = Executors.newFixedThreadPool(PRODUCER_COUNT);
+        try {
+            final FiniteStateMachineMailbox mailbox = new FiniteStateMachineMailbox(fsm, executor, capacity, backPressurePolicy);
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<List<CompletableFuture<TransitionOutcome>>>> submitted = new ArrayList<Future<List<CompletableFuture<TransitionOutcome>>>>();
+            for(int p = 0; p < PRODUCER_COUNT; p++) {
+                final Event event = events[p];
+                submitted.add(producers.submit(() -> {
+                    List<CompletableFuture<TransitionOutcome>> futures = new ArrayList<CompletableFuture<TransitionOutcome>>(EVENT_COUNT);
+                    start.await();
+                    for(int i = 0; i < EVENT_COUNT; i++) {
+                        futures.add(mailbox.submit(event));
+                    }
+                    return futures;
+                }));
+            }
+            start.countDown();
+
+            for(Future<List<CompletableFuture<TransitionOutcome>>> producer : submitted) {
+                List<CompletableFuture<TransitionOutcome>> futures = producer.get(60, TimeUnit.SECONDS);
+                for(CompletableFuture<TransitionOutcome> future : futures) {
+                    assertEquals(TransitionOutcome.STATE_LOOP, future.get(60, TimeUnit.SECONDS));
+                }
+            }
+            for(int p = 0; p < PRODUCER_COUNT; p++) {
+                assertEquals(EVENT_COUNT, processed.get(p), "events of producer " + p);
+            }
+            assertEquals(0, mailbox.getPendingCount());
+            assertEquals(0, mailbox.getDroppedCount());
+        } finally {
+            producers.shutdownNow();
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.gryzorz.fsm.v2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * runInParallel(...) must find the very states a single machine goes through, whether the candidate start states
+ * of its chunks converge or, for a permutation of the states, never do.
+ *
+ * @author Benoit Fernandez
+ */
+public class FiniteStateMachineParallelRunTest {
+    private static final int EVENT_COUNT = 1 << 20;
+
+    private ForkJoinPool pool;
+
+    @BeforeEach
+    public void setUp() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Rotating, swapping the first two and mirroring 12 states : every event is a permutation, so no two
+     * candidates ever meet and every speculated chunk must be run again.
+     */
+    @Test
+    public void permutationGivesTheSequentialStates() throws Exception {
+        int n = 12;
+        State[] states = _states(n);
+        Event rotate = new Event("rotate");
+        Event swap = new Event("swap");
+        Event mirror = new Event("mirror");
+        Event ignored = new Event("ignored");
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        for(int i = 0; i < n; i++) {
+            builder.addTransition(states[i], rotate, states[(i + 1) % n]);
+            builder.addTransition(states[i], swap, states[i < 2 ? 1 - i : i]);
+            builder.addTransition(states[i], mirror, states[n - 1 - i]);
+        }
+        builder.addTransition(states[0], ignored, states[0]); //no transition from the other states
+        FiniteStateMachineDefinition definition = builder.createDefinition(states[0]);
+        Event[] events = _events(new Event[] {rotate, swap, mirror, ignored}, 11);
+
+        FiniteStateMachineParallelRun run = definition.runInParallel(states[5], events, pool);
+
+        _assertSequential(definition, states[5], events, run);
+        assertEquals(16, run.getChunkCount());
+        assertEquals(run.getChunkCount() - 1, run.getSpeculationMissCount());
+    }
+
+    /**
+     * A counter over 1000 states, more than the candidates followed, so each chunk looks back at the previous
+     * one to find them : resets make them converge, soon enough for the lookback to stay within its budget.
+     */
+    @Test
+    public void convergingLargeDefinitionGivesTheSequentialStates() throws Exception {
+        int n = 1000;
+        State[] states = _states(n);
+        Event increment = new Event("increment");
+        Event reset = new Event("reset");
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        for(int i = 0; i < n; i++) {
+            builder.addTransition(states[i], increment, states[(i + 1) % n]);
+            builder.addTransition(states[i], reset, states[0]);
+        }
+        FiniteStateMachineDefinition definition = builder.createDefinition(states[0]);
+        Random random = new Random(5);
+        Event[] events = new Event[EVENT_COUNT];
+        for(int i = 0; i < events.length; i++) {
+            events[i] = i % 16 == 0 || random.nextInt(8) == 0 ? reset : increment;
+        }
+
+        FiniteStateMachineParallelRun run = definition.runInParallel(states[123], events, pool);
+
+        _assertSequential(definition, states[123], events, run);
+        assertEquals(0, run.getSpeculationMissCount());
+    }
+
+    @Test
+    public void fewEventsAreASingleChunk() throws Exception {
+        State off = new State("off");
+        State on = new State("on");
+        Event toggle = new Event("toggle");
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        builder.addTransition(off, toggle, on);
+        builder.addTransition(on, toggle, off);
+        FiniteStateMachineDefinition definition = builder.createDefinition(off);
+
+        FiniteStateMachineParallelRun run = definition.runInParallel(off, new Event[] {toggle, toggle, toggle}, pool);
+        assertEquals(1, run.getChunkCount());
+        assertSame(off, run.getInitialState());
+        assertSame(on, run.getFinalState());
+        assertSame(off, definition.runInParallel(off, new Event[0], pool).getFinalState());
+        assertThrows(FiniteStateMachineException.class, () -> definition.runInParallel(new State("unknown"), new Event[0], pool));
+    }
+
+    /**
+     * Runs the events one by one on an instance, checking the state at every chunk boundary
+     */
+    private static void _assertSequential(FiniteStateMachineDefinition definition, State from, Event[] events,
+                                          FiniteStateMachineParallelRun run) throws FiniteStateMachineException {
+        FiniteStateMachine fsm = definition.newInstance(from);
+        assertSame(from, run.getInitialState());
+        assertEquals(0, run.getChunkOffset(0));
+        assertEquals(events.length, run.getChunkOffset(run.getChunkCount()));
+        int chunk = 0;
+        for(int i = 0; i <= events.length; i++) {
+            while(chunk <= run.getChunkCount() && run.getChunkOffset(chunk) == i) {
+                assertSame(fsm.getState(), run.getBoundaryState(chunk), "chunk " + chunk);
+                chunk++;
+            }
+            if(i < events.length)
+                fsm.processEventWithoutErrorNotification(events[i]);
+        }
+        assertEquals(run.getChunkCount() + 1, chunk);
+        assertSame(fsm.getState(), run.getFinalState());
+    }
+
+    private static State[] _states(int n) {
+        State[] states = new State[n];
+        for(int i = 0; i < n; i++) {
+            states[i] = new State("s" + i);
+        }
+        return states;
+    }
+
+    private static Event[] _events(Event[] alphabet, long seed) {
+        Random random = new Random(seed);
+        Event[] events = new Event[EVENT_COUNT];
+        for(int i = 0; i < events.length; i++) {
+            events[i] = alphabet[random.nextInt(alphabet.length)];
+        }
+        return events;
+    }
+}
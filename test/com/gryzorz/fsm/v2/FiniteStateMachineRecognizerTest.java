@@ -0,0 +1,140 @@
+package com.gryzorz.fsm.v2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * A recognizer must report the matches a plain search finds, wherever the symbols come from : chars, heap or
+ * direct buffers, or a mapped file.
+ *
+ * @author Benoit Fernandez
+ */
+public class FiniteStateMachineRecognizerTest {
+    @TempDir
+    Path directory;
+
+    private State[] found; //found[i] : the i first chars of "aba" were just read
+    private FiniteStateMachineRecognizer searcher;
+
+    /**
+     * The searching automaton of "aba", overlapping occurrences included : any other char sends it back
+     * to the initial state.
+     */
+    @BeforeEach
+    public void setUp() throws Exception {
+        String pattern = "aba";
+        found = new State[pattern.length() + 1];
+        for(int i = 0; i < found.length; i++) {
+            found[i] = new State("found" + i);
+        }
+        Event a = new Event("a");
+        Event b = new Event("b");
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        for(int i = 0; i < found.length; i++) {
+            for(Event event : new Event[] {a, b}) {
+                builder.addTransition(found[i], event, found[_longestPrefix(pattern, pattern.substring(0, Math.min(i, pattern.length())) + event.toString())]);
+            }
+        }
+        Event[] symbols = new Event[256];
+        symbols['a'] = a;
+        symbols['b'] = b;
+        searcher = builder.createDefinition(found[0]).newRecognizer(symbols, found[pattern.length()]);
+    }
+
+    @Test
+    public void charsBytesAndFilesGiveTheMatchesOfAPlainSearch() throws Exception {
+        Random random = new Random(3);
+        char[] chars = new char[100000];
+        for(int i = 0; i < chars.length; i++) {
+            chars[i] = "abx".charAt(random.nextInt(3));
+        }
+        String text = new String(chars);
+        List<Long> expected = new ArrayList<Long>();
+        for(int i = text.indexOf("aba"); i >= 0; i = text.indexOf("aba", i + 1)) {
+            expected.add(i + 3L);
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 10);
+        direct.position(10);
+        direct.put(bytes).position(10);
+        Path file = directory.resolve("text");
+        Files.write(file, bytes);
+
+        assertEquals(expected, _ends(searcher, text));
+        assertEquals(expected.size(), searcher.scan(text, null));
+        List<Long> heap = new ArrayList<Long>();
+        searcher.scan(ByteBuffer.wrap(bytes), (state, start, end) -> heap.add(end));
+        assertEquals(expected, heap);
+        List<Long> offDirect = new ArrayList<Long>();
+        searcher.scan(direct, (state, start, end) -> offDirect.add(end - 10)); //indexes in the buffer, from its position
+        assertEquals(expected, offDirect);
+        assertEquals(10, direct.position());
+        List<Long> mapped = new ArrayList<Long>();
+        searcher.scan(file, (state, start, end) -> { assertSame(found[3], state); return mapped.add(end); });
+        assertEquals(expected, mapped);
+    }
+
+    @Test
+    public void symbolsOfTheSameEventShareAClass() throws Exception {
+        assertEquals(3, searcher.getSymbolClassCount()); //a, b and the symbols no transition reacts to
+    }
+
+    @Test
+    public void matchStartsAtTheSymbolLeavingTheInitialState() throws Exception {
+        State idle = new State("idle");
+        State number = new State("number");
+        Event digit = new Event("digit");
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        builder.addTransition(idle, digit, number);
+        builder.addTransition(number, digit, number);
+        Event[] symbols = new Event[257];
+        for(char c = '0'; c <= '9'; c++) {
+            symbols[c] = digit;
+        }
+        symbols[FiniteStateMachineRecognizer.OTHER_CHARS] = digit; //every char above 0xFF is a digit too
+        FiniteStateMachineRecognizer recognizer = builder.createDefinition(idle).newRecognizer(symbols, number);
+
+        List<String> matches = new ArrayList<String>();
+        long count = recognizer.scan("x12 €5é", (state, start, end) -> matches.add(start + "-" + end));
+        assertEquals(Arrays.asList("1-2", "1-3", "4-5", "4-6"), matches); //é is below 0xFF and is no digit
+        assertEquals(4, count);
+
+        matches.clear();
+        assertEquals(2, recognizer.scan("12 34", (state, start, end) -> matches.add(start + "-" + end) && matches.size() < 2));
+        assertEquals(Arrays.asList("0-1", "0-2"), matches);
+
+        assertThrows(FiniteStateMachineException.class, () -> builder.createDefinition(idle).newRecognizer(new Event[10], number));
+        assertThrows(FiniteStateMachineException.class, () -> builder.createDefinition(idle).newRecognizer(symbols, new State("unknown")));
+    }
+
+    private static List<Long> _ends(FiniteStateMachineRecognizer recognizer, CharSequence text) {
+        List<Long> ends = new ArrayList<Long>();
+        recognizer.scan(text, (state, start, end) -> ends.add(end));
+        return ends;
+    }
+
+    /**
+     * @return the length of the longest prefix of the pattern ending the text
+     */
+    private static int _longestPrefix(String pattern, String text) {
+        for(int length = Math.min(pattern.length(), text.length()); length > 0; length--) {
+            if(text.endsWith(pattern.substring(0, length)))
+                return length;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,141 @@
+package com.gryzorz.fsm.v2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Writing a snapshot then reading it back, into machines and into a fleet.
+ *
+ * @author Benoit Fernandez
+ */
+public class FiniteStateMachineSnapshotTest {
+    @TempDir
+    Path directory;
+
+    private State idle;
+    private State running;
+    private State done;
+    private Event start;
+    private Event finish;
+    private FiniteStateMachineDefinition definition;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        idle = new State("idle");
+        running = new State("running");
+        done = new State("done");
+        start = new Event("start");
+        finish = new Event("finish");
+        definition = _builder().createDefinition(idle);
+    }
+
+    private FiniteStateMachineBuilder _builder() throws Exception {
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        builder.addTransition(idle, start, running);
+        builder.addTransition(running, finish, done);
+        return builder;
+    }
+
+    @Test
+    public void machinesAreRestoredInTheirSavedState() throws Exception {
+        Path file = directory.resolve("machines.snapshot");
+        State[] saved = { idle, running, done };
+        try(FiniteStateMachineSnapshotWriter writer = new FiniteStateMachineSnapshotWriter(file, definition)) {
+            for(int i = 0; i < 3000; i++) {
+                FiniteStateMachine fsm = definition.newInstance();
+                for(int k = 0; k < i % 3; k++) {
+                    fsm.processEvent(k == 0 ? start : finish);
+                }
+                writer.write(1000 + i, fsm);
+            }
+            assertEquals(3000, writer.getRecordCount());
+        }
+
+        FiniteStateMachineSnapshotReader reader = new FiniteStateMachineSnapshotReader(file, definition);
+        assertEquals(3000, reader.getEntityCount());
+        for(int i = 0; i < 3000; i++) {
+            assertEquals(1000 + i, reader.getEntityId(i));
+            assertSame(saved[i % 3], reader.getState(i));
+            FiniteStateMachine fsm = reader.newInstance(i);
+            assertSame(saved[i % 3], fsm.getState());
+            assertSame(definition, fsm.getDefinition());
+        }
+    }
+
+    @Test
+    public void onlyFlushedRecordsAreRead() throws Exception {
+        Path file = directory.resolve("flushed.snapshot");
+        FiniteStateMachineSnapshotWriter writer = new FiniteStateMachineSnapshotWriter(file, definition);
+        writer.write(1, running);
+        writer.flush();
+        writer.write(2, done);
+        assertEquals(1, new FiniteStateMachineSnapshotReader(file, definition).getEntityCount());
+        writer.close();
+        assertEquals(2, new FiniteStateMachineSnapshotReader(file, definition).getEntityCount());
+    }
+
+    @Test
+    public void fleetIsRestoredInItsSavedState() throws Exception {
+        Path file = directory.resolve("fleet.snapshot");
+        FiniteStateMachineFleet fleet = new FiniteStateMachineFleet(definition, 2, 64);
+        try(FiniteStateMachineSnapshotWriter writer = new FiniteStateMachineSnapshotWriter(file, definition)) {
+            for(long id = 0; id < 500; id++) {
+                fleet.submit(id, start);
+                if(id % 2 == 0)
+                    fleet.submit(id, finish);
+            }
+            fleet.submit(500, finish); //rejected, the entity stays in the initial state and is not written
+            fleet.flush();
+            assertEquals(500, writer.writeAll(fleet));
+        } finally {
+            fleet.close();
+        }
+
+        FiniteStateMachineFleet restored = new FiniteStateMachineFleet(definition, 3, 64);
+        try {
+            new FiniteStateMachineSnapshotReader(file, definition).restoreInto(restored);
+            restored.flush();
+            for(long id = 0; id < 500; id++) {
+                assertSame(id % 2 == 0 ? done : running, restored.getState(id), "entity " + id);
+            }
+            assertEquals(500, restored.getEntityCount());
+        } finally {
+            restored.close();
+        }
+    }
+
+    @Test
+    public void snapshotOfAnotherDefinitionIsRejected() throws Exception {
+        Path file = directory.resolve("other.snapshot");
+        try(FiniteStateMachineSnapshotWriter writer = new FiniteStateMachineSnapshotWriter(file, definition)) {
+            writer.write(1, running);
+        }
+        FiniteStateMachineBuilder builder = _builder();
+        builder.addTransition(done, start, running); //same states, one more transition
+        FiniteStateMachineDefinition other = builder.createDefinition(idle);
+        assertNotEquals(definition.getFingerprint(), other.getFingerprint());
+        assertThrows(FiniteStateMachineException.class, () -> new FiniteStateMachineSnapshotReader(file, other));
+
+        //the same graph built again reads it
+        assertEquals(definition.getFingerprint(), _builder().createDefinition(idle).getFingerprint());
+        assertEquals(1, new FiniteStateMachineSnapshotReader(file, _builder().createDefinition(idle)).getEntityCount());
+    }
+
+    @Test
+    public void machineOfAnotherDefinitionIsNotWritten() throws Exception {
+        Path file = directory.resolve("foreign.snapshot");
+        FiniteStateMachine foreign = _builder().createDefinition(idle).newInstance();
+        try(FiniteStateMachineSnapshotWriter writer = new FiniteStateMachineSnapshotWriter(file, definition)) {
+            assertThrows(FiniteStateMachineException.class, () -> writer.write(1, foreign));
+            assertThrows(FiniteStateMachineException.class, () -> writer.write(1, new State("unknown")));
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.gryzorz.fsm.v2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Instances moving to the next versions of their definition, each one at its next event.
+ *
+ * @author Benoit Fernandez
+ */
+public class FiniteStateMachineSuccessorTest {
+    private State created;
+    private State paid;
+    private State charged;
+    private State shipped;
+    private State cancelled;
+    private Event pay;
+    private Event ship;
+    private Event cancel;
+
+    @BeforeEach
+    public void setUp() {
+        created = new State("created");
+        paid = new State("paid");
+        charged = new State("charged");
+        shipped = new State("shipped");
+        cancelled = new State("cancelled");
+        pay = new Event("pay");
+        ship = new Event("ship");
+        cancel = new Event("cancel");
+    }
+
+    @Test
+    public void lockedInstancesMoveAtTheirNextEvent() throws Exception {
+        _instancesMoveAtTheirNextEvent(ConcurrencyMode.LOCKED);
+    }
+
+    @Test
+    public void lockFreeInstancesMoveAtTheirNextEvent() throws Exception {
+        _instancesMoveAtTheirNextEvent(ConcurrencyMode.LOCK_FREE);
+    }
+
+    /**
+     * Version 2 renames paid to charged, and lets orders be cancelled before they are paid
+     */
+    private void _instancesMoveAtTheirNextEvent(ConcurrencyMode mode) throws Exception {
+        FiniteStateMachineDefinition v1 = _v1(mode).createDefinition(created);
+        FiniteStateMachine waiting = v1.newInstance();
+        FiniteStateMachine paying = v1.newInstance();
+        paying.processEvent(pay);
+        FiniteStateMachine idle = v1.newInstance(paid);
+        assertEquals(TransitionOutcome.UNEXISTING_TRANSITION, waiting.processEventWithOutcome(cancel));
+
+        FiniteStateMachineDefinition v2 = v1.publishSuccessor(_v2(mode), created, _renamePaid());
+        assertSame(v2, v1.getSuccessor());
+        assertEquals(2, v2.getVersion());
+        assertEquals(3, v1.getInstanceCount());
+
+        assertEquals(TransitionOutcome.STATE_CHANGED, waiting.processEventWithOutcome(cancel)); //a transition of version 2
+        assertSame(cancelled, waiting.getState());
+        assertSame(v2, waiting.getDefinition());
+        assertEquals(TransitionOutcome.STATE_CHANGED, paying.processEventWithOutcome(ship)); //moved from paid, through charged
+        assertSame(shipped, paying.getState());
+        assertEquals(1, v1.getInstanceCount()); //idle received nothing yet
+        assertEquals(2, v2.getInstanceCount());
+
+        assertSame(created, v2.newInstance().getState());
+        assertEquals(TransitionOutcome.UNEXISTING_TRANSITION, idle.processEventWithOutcome(pay));
+        assertSame(charged, idle.getState());
+        assertEquals(0, v1.getInstanceCount());
+    }
+
+    @Test
+    public void instancesSkipVersionsTheyNeverSaw() throws Exception {
+        FiniteStateMachineDefinition v1 = _v1(ConcurrencyMode.LOCKED).createDefinition(created);
+        FiniteStateMachine fsm = v1.newInstance(paid);
+        FiniteStateMachineDefinition v2 = v1.publishSuccessor(_v2(ConcurrencyMode.LOCKED), created, _renamePaid());
+        Map<State, State> back = new HashMap<State, State>();
+        back.put(charged, paid);
+        back.put(cancelled, created);
+        FiniteStateMachineDefinition v3 = v2.publishSuccessor(_v1(ConcurrencyMode.LOCKED), created, back);
+        fsm.processEvent(ship);
+        assertSame(v3, fsm.getDefinition());
+        assertSame(shipped, fsm.getState());
+    }
+
+    @Test
+    public void listenersKeepListeningAcrossVersions() throws Exception {
+        FiniteStateMachineDefinition v1 = _v1(ConcurrencyMode.LOCKED).createDefinition(created);
+        FiniteStateMachine fsm = v1.newInstance();
+        final List<State> reached = new ArrayList<State>();
+        fsm.addListener(new DefaultFiniteStateMachineListener() {
+            @Override
+            public void stateChanged(State from, Event event, State to) {
+                reached.add(to);
+            }
+        }, new FiniteStateMachineSubscription(null, ship, null, null));
+        v1.publishSuccessor(_v2(ConcurrencyMode.LOCKED), created, _renamePaid());
+        fsm.processEvent(pay);
+        fsm.processEvent(ship);
+        assertEquals(List.of(shipped), reached); //pay is filtered out, though its ordinal differs in version 2
+    }
+
+    @Test
+    public void invalidSuccessorsAreRefused() throws Exception {
+        FiniteStateMachineDefinition v1 = _v1(ConcurrencyMode.LOCKED).createDefinition(created);
+        assertThrows(FiniteStateMachineException.class, () -> v1.publishSuccessor(_v2(ConcurrencyMode.LOCKED), created, null)); //paid unmapped
+        assertThrows(FiniteStateMachineException.class, () -> v1.publishSuccessor(_v2(ConcurrencyMode.LOCK_FREE), created, _renamePaid()));
+        v1.publishSuccessor(_v2(ConcurrencyMode.LOCKED), created, _renamePaid());
+        assertThrows(FiniteStateMachineException.class, () -> v1.publishSuccessor(_v2(ConcurrencyMode.LOCKED), created, _renamePaid()));
+    }
+
+    private FiniteStateMachineBuilder _v1(ConcurrencyMode mode) throws FiniteStateMachineException {
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        builder.setConcurrencyMode(mode);
+        builder.addTransition(created, pay, paid);
+        builder.addTransition(paid, ship, shipped);
+        return builder;
+    }
+
+    private FiniteStateMachineBuilder _v2(ConcurrencyMode mode) throws FiniteStateMachineException {
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        builder.setConcurrencyMode(mode);
+        builder.addTransition(created, pay, charged);
+        builder.addTransition(created, cancel, cancelled);
+        builder.addTransition(charged, ship, shipped);
+        return builder;
+    }
+
+    private Map<State, State> _renamePaid() {
+        Map<State, State> mapping = new HashMap<State, State>();
+        mapping.put(paid, charged);
+        return mapping;
+    }
+}
@@ -0,0 +1,181 @@
+package com.gryzorz.fsm.v2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Timeouts fired by a TimingWheel on a ManualClock : when they fire, and when they must not.
+ *
+ * @author Benoit Fernandez
+ */
+public class TimingWheelTest {
+    private ManualClock clock;
+    private TimingWheel wheel;
+    private State waiting;
+    private State expired;
+    private State done;
+    private Event ping;
+    private Event expire;
+    private Event finish;
+    private FiniteStateMachineDefinition definition;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        clock = new ManualClock();
+        wheel = new TimingWheel(clock, Duration.ofMillis(1));
+        waiting = new State("waiting");
+        expired = new State("expired");
+        done = new State("done");
+        ping = new Event("ping");
+        expire = new Event("expire");
+        finish = new Event("finish");
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        builder.addTransition(waiting, ping, waiting);
+        builder.addTransition(waiting, expire, expired);
+        builder.addTransition(waiting, finish, done);
+        builder.addTimeout(waiting, Duration.ofMillis(100), expire);
+        definition = builder.createDefinition(waiting);
+    }
+
+    @Test
+    public void timeoutFiresOnceElapsedNeverBefore() throws Exception {
+        FiniteStateMachine fsm = _attached();
+        _advance(99);
+        assertSame(waiting, fsm.getState());
+        _advance(2);
+        assertSame(expired, fsm.getState());
+        assertEquals(0, wheel.getArmedCount());
+        _advance(1000);
+        assertSame(expired, fsm.getState()); //no timeout on the state it expired to
+    }
+
+    @Test
+    public void transitionRestartsTheTimeout() throws Exception {
+        FiniteStateMachine fsm = _attached();
+        _advance(60);
+        fsm.processEvent(ping); //loops on waiting : its timeout starts again
+        assertEquals(0, _advance(60));
+        assertSame(waiting, fsm.getState());
+        assertEquals(1, _advance(50));
+        assertSame(expired, fsm.getState());
+    }
+
+    @Test
+    public void leavingTheStateCancelsTheTimeout() throws Exception {
+        FiniteStateMachine fsm = _attached();
+        _advance(50);
+        fsm.processEvent(finish);
+        assertEquals(0, _advance(1000));
+        assertSame(done, fsm.getState());
+        assertEquals(0, wheel.getArmedCount());
+    }
+
+    @Test
+    public void detachedMachineTimesNothing() throws Exception {
+        FiniteStateMachine fsm = _attached();
+        assertTrue(wheel.detach(fsm));
+        assertFalse(wheel.detach(fsm));
+        assertEquals(0, _advance(1000));
+        assertSame(waiting, fsm.getState());
+    }
+
+    /**
+     * Timeouts far ahead are kept in the coarser levels, then moved down as time passes
+     */
+    @Test
+    public void longTimeoutsFireInOrder() throws Exception {
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        builder.addTransition(waiting, expire, expired);
+        builder.addTimeout(waiting, Duration.ofHours(1), expire);
+        FiniteStateMachineDefinition hourly = builder.createDefinition(waiting);
+        FiniteStateMachine[] machines = new FiniteStateMachine[100];
+        for(int i = 0; i < machines.length; i++) {
+            machines[i] = hourly.newInstance();
+            wheel.attach(machines[i]);
+            clock.advance(Duration.ofSeconds(7)); //machine i times out at 1 hour + 7 * i seconds
+        }
+        wheel.advance();
+        assertEquals(100, wheel.getArmedCount());
+
+        clock.advance(Duration.ofHours(1).minusSeconds(7 * machines.length + 1));
+        assertEquals(0, wheel.advance());
+        for(int i = 0; i < machines.length; i++) {
+            clock.advance(Duration.ofSeconds(7));
+            assertEquals(1, wheel.advance(), "machine " + i);
+            assertSame(expired, machines[i].getState());
+            if(i + 1 < machines.length)
+                assertSame(waiting, machines[i + 1].getState());
+        }
+        assertEquals(0, wheel.getArmedCount());
+    }
+
+    @Test
+    public void machineWithoutTimeoutCannotBeAttached() throws Exception {
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        builder.addTransition(waiting, expire, expired);
+        FiniteStateMachine untimed = builder.createDefinition(waiting).newInstance();
+        assertThrows(FiniteStateMachineException.class, () -> wheel.attach(untimed));
+        FiniteStateMachine fsm = _attached();
+        assertThrows(FiniteStateMachineException.class, () -> wheel.attach(fsm));
+    }
+
+    /**
+     * The wheel, the broadcaster and the recorder a machine is attached to are kept with its listeners : adding and
+     * removing listeners, shared with other instances, must not lose them, nor detaching one of them the others
+     */
+    @Test
+    public void attachmentsSurviveListenerChanges() throws Exception {
+        FiniteStateMachine fsm = _attached();
+        FiniteStateMachineBroadcaster broadcaster = new FiniteStateMachineBroadcaster();
+        broadcaster.register(fsm);
+        FiniteStateMachineFlightRecorder recorder = new FiniteStateMachineFlightRecorder(16);
+        recorder.attach(fsm);
+        final AtomicInteger pings = new AtomicInteger();
+        FiniteStateMachineListener listener = new DefaultFiniteStateMachineListener() {
+            @Override
+            public void stateLoop(State state, Event event) {
+                pings.incrementAndGet();
+            }
+        };
+        FiniteStateMachineSubscription subscription = new FiniteStateMachineSubscription(null, ping, null, null);
+        FiniteStateMachine other = definition.newInstance();
+        other.addListener(listener, subscription);
+        fsm.addListener(listener, subscription);
+
+        _advance(60);
+        assertEquals(1, broadcaster.broadcast(ping)); //restarts the timeout
+        assertEquals(1, pings.get());
+        fsm.removeListener(listener);
+        assertTrue(recorder.detach(fsm));
+        other.processEvent(ping);
+        assertEquals(2, pings.get());
+
+        assertEquals(0, _advance(60));
+        assertEquals(1, _advance(50));
+        assertSame(expired, fsm.getState());
+        assertEquals(0, broadcaster.broadcast(ping)); //expired does not react to it
+        assertEquals(1, recorder.getRecords(fsm).size()); //the ping, before the recorder was detached
+        assertTrue(broadcaster.unregister(fsm));
+        assertTrue(wheel.detach(fsm));
+    }
+
+    private FiniteStateMachine _attached() throws FiniteStateMachineException {
+        FiniteStateMachine fsm = definition.newInstance();
+        wheel.attach(fsm);
+        return fsm;
+    }
+
+    private int _advance(long millis) {
+        clock.advance(Duration.ofMillis(millis));
+        return wheel.advance();
+    }
+}
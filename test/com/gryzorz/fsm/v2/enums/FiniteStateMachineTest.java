@@ -0,0 +1,148 @@
+package com.gryzorz.fsm.v2.enums;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.gryzorz.fsm.v2.ConcurrencyMode;
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.State;
+import com.gryzorz.fsm.v2.TransitionAlreadyExistException;
+import com.gryzorz.fsm.v2.TransitionNotAllowedException;
+import com.gryzorz.fsm.v2.TransitionOutcome;
+
+/**
+ * An enum-typed machine must behave as the v2 machine built from the same transitions, and its adapter must
+ * always translate a constant to the same State or Event.
+ *
+ * @author Benoit Fernandez
+ */
+public class FiniteStateMachineTest {
+    enum Door { CLOSED, OPENED, LOCKED }
+    enum Action { OPEN, CLOSE, LOCK, UNLOCK, KNOCK }
+
+    private FiniteStateMachineBuilder<Door, Action> builder;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        builder = new FiniteStateMachineBuilder<Door, Action>(Door.class, Action.class);
+        builder.addTransition(Door.CLOSED, Action.OPEN, Door.OPENED);
+        builder.addTransition(Door.OPENED, Action.CLOSE, Door.CLOSED);
+        builder.addTransition(Door.CLOSED, Action.LOCK, Door.LOCKED);
+        builder.addTransition(Door.LOCKED, Action.UNLOCK, Door.CLOSED);
+        builder.addTransition(Door.CLOSED, Action.KNOCK, Door.CLOSED);
+    }
+
+    @Test
+    public void eventsFollowTheTransitionsOfTheEnums() throws Exception {
+        FiniteStateMachine<Door, Action> fsm = builder.createFSM(Door.CLOSED);
+
+        assertEquals(EnumSet.of(Action.OPEN, Action.LOCK, Action.KNOCK), fsm.getAcceptedEvents());
+        assertEquals(TransitionOutcome.STATE_LOOP, fsm.processEventWithOutcome(Action.KNOCK));
+        assertEquals(TransitionOutcome.STATE_CHANGED, fsm.processEventWithOutcome(Action.LOCK));
+        assertSame(Door.LOCKED, fsm.getState());
+        assertFalse(fsm.isTransitionExisting(Action.OPEN));
+        assertEquals(TransitionOutcome.UNEXISTING_TRANSITION, fsm.processEventWithOutcome(Action.OPEN));
+        assertEquals(TransitionOutcome.UNEXISTING_TRANSITION, fsm.processEventWithOutcome(null));
+        assertSame(Door.LOCKED, fsm.getState());
+
+        TransitionNotAllowedException e = assertThrows(TransitionNotAllowedException.class, () -> fsm.processEvent(Action.OPEN));
+        assertSame(builder.getAdapter().toState(Door.LOCKED), e.from);
+        assertSame(builder.getAdapter().toEvent(Action.OPEN), e.event);
+        assertThrows(TransitionAlreadyExistException.class, () -> builder.addTransition(Door.CLOSED, Action.OPEN, Door.LOCKED));
+    }
+
+    @Test
+    public void transitionsAddedAfterwardsOnlyReachTheNextMachines() throws Exception {
+        FiniteStateMachine<Door, Action> before = builder.createFSM(Door.OPENED);
+        builder.addTransition(Door.OPENED, Action.KNOCK, Door.OPENED);
+        FiniteStateMachine<Door, Action> after = builder.createFSM(Door.OPENED);
+
+        assertEquals(TransitionOutcome.UNEXISTING_TRANSITION, before.processEventWithOutcome(Action.KNOCK));
+        assertEquals(TransitionOutcome.STATE_LOOP, after.processEventWithOutcome(Action.KNOCK));
+    }
+
+    @Test
+    public void listenersAreCalledInTheOrderOfTheV2Listeners() throws Exception {
+        FiniteStateMachine<Door, Action> fsm = builder.createFSM(Door.CLOSED);
+        List<String> calls = new ArrayList<String>();
+        fsm.addListener(new FiniteStateMachineListener<Door, Action>() {
+            public void eventOccurred(Door from, Action event, Door to) { calls.add("event " + from + " " + event + " " + to); }
+            public void stateChanged(Door from, Action event, Door to) { calls.add("changed " + from + " " + to); }
+            public void stateLoop(Door state, Action event) { calls.add("loop " + state); }
+            public void unexistingTransition(Door from, Action event) { calls.add("unexisting " + from + " " + event); }
+        });
+
+        fsm.processEventWithoutErrorNotification(Action.OPEN);
+        fsm.processEventWithoutErrorNotification(Action.LOCK);
+        fsm.processEventWithoutErrorNotification(Action.CLOSE);
+        fsm.processEventWithoutErrorNotification(Action.KNOCK);
+        assertEquals(Arrays.asList("event CLOSED OPEN OPENED", "changed CLOSED OPENED",
+                                   "event OPENED LOCK null", "unexisting OPENED LOCK",
+                                   "event OPENED CLOSE CLOSED", "changed OPENED CLOSED",
+                                   "event CLOSED KNOCK CLOSED", "loop CLOSED"), calls);
+    }
+
+    @Test
+    public void adapterTranslatesBothWays() throws Exception {
+        EnumAdapter<Door, Action> adapter = builder.getAdapter();
+        for(Door door : Door.values()) {
+            assertSame(adapter.toState(door), adapter.toState(door));
+            assertSame(door, adapter.fromState(adapter.toState(door)));
+        }
+        for(Action action : Action.values()) {
+            assertSame(action, adapter.fromEvent(adapter.toEvent(action)));
+        }
+        assertNull(adapter.toState(null));
+        assertNull(adapter.fromState(new State("CLOSED")));
+        assertNull(adapter.fromEvent(new Event("OPEN")));
+        assertNull(new EnumAdapter<Door, Action>(Door.class, Action.class).fromState(adapter.toState(Door.CLOSED)));
+    }
+
+    @Test
+    public void v2BuilderGivesTheSameOutcomesAndNotifications() throws Exception {
+        builder.setConcurrencyMode(ConcurrencyMode.LOCK_FREE);
+        EnumAdapter<Door, Action> adapter = builder.getAdapter();
+        FiniteStateMachine<Door, Action> typed = builder.createFSM(Door.CLOSED);
+        com.gryzorz.fsm.v2.FiniteStateMachine untyped = builder.toFiniteStateMachineBuilder().createFSM(adapter.toState(Door.CLOSED));
+        List<String> typedCalls = new ArrayList<String>();
+        List<String> untypedCalls = new ArrayList<String>();
+        typed.addListener(_recorder(typedCalls));
+        untyped.addListener(adapter.toListener(_recorder(untypedCalls)));
+
+        Random random = new Random(7);
+        Action[] actions = Action.values();
+        for(int i = 0; i < 1000; i++) {
+            Action action = actions[random.nextInt(actions.length)];
+            assertEquals(typed.processEventWithOutcome(action), untyped.processEventWithOutcome(adapter.toEvent(action)), "event " + i);
+            assertSame(adapter.toState(typed.getState()), untyped.getState());
+        }
+        assertEquals(typedCalls, untypedCalls);
+        assertTrue(typedCalls.size() >= 2000);
+    }
+
+    private static FiniteStateMachineListener<Door, Action> _recorder(final List<String> calls) {
+        return new DefaultFiniteStateMachineListener<Door, Action>() {
+            @Override
+            public void eventOccurred(Door from, Action event, Door to) { calls.add("event " + from + " " + event + " " + to); }
+            @Override
+            public void stateChanged(Door from, Action event, Door to) { calls.add("changed " + from + " " + to); }
+            @Override
+            public void stateLoop(Door state, Action event) { calls.add("loop " + state); }
+            @Override
+            public void unexistingTransition(Door from, Action event) { calls.add("unexisting " + from + " " + event); }
+        };
+    }
+}
@@ -0,0 +1,152 @@
+package com.gryzorz.fsm.v2.nfa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import com.gryzorz.fsm.v2.Event;
+import com.gryzorz.fsm.v2.State;
+import com.gryzorz.fsm.v2.TransitionNotAllowedException;
+import com.gryzorz.fsm.v2.TransitionOutcome;
+
+/**
+ * The active states of a nondeterministic machine must be the states a simulation of every path reaches,
+ * epsilon transitions included, however many words of 64 states they take.
+ *
+ * @author Benoit Fernandez
+ */
+public class FiniteStateMachineTest {
+
+    @Test
+    public void epsilonTransitionsAreFollowedFromTheInitialAndTheReachedStates() throws Exception {
+        State start = new State("start");
+        State a = new State("a");
+        State b = new State("b");
+        State c = new State("c");
+        State d = new State("d");
+        Event x = new Event("x");
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        builder.addEpsilonTransition(start, a);
+        builder.addTransition(a, x, b);
+        builder.addEpsilonTransition(b, c);
+        builder.addEpsilonTransition(c, d);
+        FiniteStateMachine fsm = builder.createFSM(start);
+
+        assertEquals(_set(start, a), fsm.getActiveStates());
+        assertEquals(TransitionOutcome.STATE_CHANGED, fsm.processEventWithOutcome(x));
+        assertEquals(_set(b, c, d), fsm.getActiveStates()); //start does not react to x, so it is left
+        assertEquals(3, fsm.getActiveCount());
+        assertFalse(fsm.isActive(a));
+        assertTrue(fsm.isActive(d));
+    }
+
+    @Test
+    public void eventNoActiveStateReactsToChangesNothing() throws Exception {
+        State waiting = new State("waiting");
+        State done = new State("done");
+        Event go = new Event("go");
+        Event stop = new Event("stop");
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        builder.addTransition(waiting, go, done);
+        builder.addTransition(done, stop, waiting);
+        FiniteStateMachine fsm = builder.createFSM(waiting);
+
+        assertFalse(fsm.isTransitionExisting(stop));
+        assertEquals(TransitionOutcome.UNEXISTING_TRANSITION, fsm.processEventWithOutcome(stop));
+        fsm.processEventWithoutErrorNotification(stop);
+        TransitionNotAllowedException e = assertThrows(TransitionNotAllowedException.class, () -> fsm.processEvent(stop));
+        assertNull(e.from);
+        assertSame(stop, e.event);
+        assertEquals(_set(waiting), fsm.getActiveStates());
+        assertFalse(fsm.isActive(new State("unknown")));
+    }
+
+    @Test
+    public void listenersAreToldTheStatesExitedThenEntered() throws Exception {
+        State p = new State("p");
+        State q = new State("q");
+        State r = new State("r");
+        Event go = new Event("go");
+        Event tick = new Event("tick");
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        builder.addTransition(p, go, r);
+        builder.addTransition(q, go, q);
+        builder.addTransition(r, tick, r);
+        builder.addTransition(q, tick, q);
+        FiniteStateMachine fsm = builder.createFSM(p, q);
+        List<String> calls = new ArrayList<String>();
+        fsm.addListener(new FiniteStateMachineListener() {
+            public void eventOccurred(Event event) { calls.add("event " + event); }
+            public void stateExited(State state, Event event) { calls.add("exited " + state); }
+            public void stateEntered(State state, Event event) { calls.add("entered " + state); }
+            public void unexistingTransition(Event event) { calls.add("unexisting " + event); }
+        });
+
+        assertEquals(TransitionOutcome.STATE_CHANGED, fsm.processEventWithOutcome(go));
+        assertEquals(Arrays.asList("event go", "exited p", "entered r"), calls); //q stays active : neither exited nor entered
+        calls.clear();
+        assertEquals(TransitionOutcome.STATE_LOOP, fsm.processEventWithOutcome(tick));
+        assertEquals(Arrays.asList("event tick"), calls);
+        calls.clear();
+        fsm.processEventWithoutErrorNotification(new Event("unknown"));
+        assertEquals(Arrays.asList("event unknown", "unexisting unknown"), calls);
+    }
+
+    /**
+     * The classic machine telling whether the 70th last symbol is an a : after n symbols, state i is active
+     * exactly when the i-th last symbol is an a, which takes 71 states, so two words.
+     */
+    @Test
+    public void activeStatesSpanningSeveralWordsMatchASimulation() throws Exception {
+        int k = 70;
+        State[] states = new State[k + 1];
+        for(int i = 0; i <= k; i++) {
+            states[i] = new State("s" + i);
+        }
+        Event a = new Event("a");
+        Event b = new Event("b");
+        FiniteStateMachineBuilder builder = new FiniteStateMachineBuilder();
+        builder.addTransition(states[0], a, states[0]);
+        builder.addTransition(states[0], b, states[0]);
+        builder.addTransition(states[0], a, states[1]);
+        for(int i = 1; i < k; i++) {
+            builder.addTransition(states[i], a, states[i + 1]);
+            builder.addTransition(states[i], b, states[i + 1]);
+        }
+        FiniteStateMachine fsm = builder.createFSM(states[0]);
+
+        Random random = new Random(42);
+        List<Event> input = new ArrayList<Event>();
+        for(int n = 0; n < 300; n++) {
+            Event event = random.nextBoolean() ? a : b;
+            input.add(event);
+            fsm.processEvent(event);
+
+            Set<State> expected = new LinkedHashSet<State>();
+            expected.add(states[0]);
+            for(int i = 1; i <= k && i <= input.size(); i++) {
+                if(input.get(input.size() - i) == a)
+                    expected.add(states[i]);
+            }
+            assertEquals(expected, fsm.getActiveStates(), "after " + input.size() + " events");
+            assertEquals(expected.size(), fsm.getActiveCount());
+            assertEquals(input.size() >= k && input.get(input.size() - k) == a, fsm.isActive(states[k]));
+        }
+    }
+
+    private static Set<State> _set(State... states) {
+        return new LinkedHashSet<State>(Arrays.asList(states));
+    }
+}